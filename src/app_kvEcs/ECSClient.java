@@ -6,14 +6,22 @@ import common.parsers.CommandParser;
 import common.topology.HashValue;
 import common.topology.ServerAddress;
 import common.topology.ServiceMetaData;
+import common.topology.ServiceMetaData.RangeTransfer;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import logger.LogSetup;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -21,15 +29,33 @@ import org.apache.log4j.Logger;
 public class ECSClient implements Runnable {
     private enum ServiceState {UNINITIALIZED, STOPPED, RUNNING};
     private static final Logger logger = LogSetup.getLogger();
+    private static final int    MAX_CONTROL_THREADS = 64;
+    public static final int     DEFAULT_TOKENS_PER_SERVER = 16;
     
     private final List<ServiceNode> active_nodes;
     private final List<ServiceNode> inactive_nodes;
+    private final int               tokens_per_server;
     private ServiceState            state;
     private ServiceMetaData         meta_data;
 
     public ECSClient(List<ServiceNode> nodes) {
+        this(nodes, DEFAULT_TOKENS_PER_SERVER);
+    }
+    
+    /**
+     * Main constructor.
+     * @param nodes Nodes available to the service
+     * @param tokens_per_server Number of virtual tokens every server owns on the
+     *          hash ring (see ServiceMetaData)
+     */
+    public ECSClient(List<ServiceNode> nodes, int tokens_per_server) {
+        if (tokens_per_server < 1 || tokens_per_server > ServiceMetaData.MAX_TOKENS_PER_SERVER) {
+            throw new IllegalArgumentException("Illegal number of tokens per server: " + tokens_per_server + ".");
+        }
+        
         this.active_nodes = new ArrayList<ServiceNode>();
         this.inactive_nodes = nodes;
+        this.tokens_per_server = tokens_per_server;
         this.state = ServiceState.UNINITIALIZED;
         this.meta_data = null;
     }
@@ -57,11 +83,15 @@ public class ECSClient implements Runnable {
             active_addresses.add(node.getServerAddress());
         }
         
-        this.meta_data = ServiceMetaData.generateForServers(active_addresses);
+        this.meta_data = ServiceMetaData.generateForServers(active_addresses, this.tokens_per_server);
         
-        for (ServiceNode node : this.active_nodes) {
-            node.initialize(this.meta_data, Level.DEBUG);
-        }
+        final ServiceMetaData meta_data = this.meta_data;
+        ECSClient.issueToNodes(this.active_nodes, "initialize", new NodeCommand() {
+            @Override
+            public void execute(ServiceNode node) throws IOException {
+                node.initialize(meta_data, Level.DEBUG);
+            }
+        });
         
         this.state = ServiceState.STOPPED;
     }
@@ -71,9 +101,12 @@ public class ECSClient implements Runnable {
             throw new IllegalStateException("Service is not initialized or already running.");
         }
         
-        for (ServiceNode node : this.active_nodes) {
-            node.start();
-        }
+        ECSClient.issueToNodes(this.active_nodes, "start", new NodeCommand() {
+            @Override
+            public void execute(ServiceNode node) throws IOException {
+                node.start();
+            }
+        });
         
         this.state = ServiceState.RUNNING;
     }
@@ -83,9 +116,12 @@ public class ECSClient implements Runnable {
             throw new IllegalStateException("Service is not initialized or already running.");
         }
         
-        for (ServiceNode node : this.active_nodes) {
-            node.stop();
-        }
+        ECSClient.issueToNodes(this.active_nodes, "stop", new NodeCommand() {
+            @Override
+            public void execute(ServiceNode node) throws IOException {
+                node.stop();
+            }
+        });
         
         this.state = ServiceState.STOPPED;
     }
@@ -102,6 +138,15 @@ public class ECSClient implements Runnable {
         this.state = ServiceState.UNINITIALIZED;
     }
     
+    /**
+     * Adds a node to the ring. Every token of the new node takes over a part of
+     * the range of another node, so the data is moved from many nodes at once.
+     * The ranges are copied while their owners keep serving writes; only the
+     * changes made during the copy are sent while their writes are locked.
+     * If a step fails before the moved data is deleted, the addition is rolled
+     * back: the source nodes keep their ranges and are unlocked. If the deletion
+     * fails, the source nodes are unlocked as well.
+     */
     public void addNode() throws IOException {
         if (this.state != ServiceState.RUNNING) {
             throw new IllegalStateException("Cannot add a node to an uninitialized or stopped service.");
@@ -111,29 +156,74 @@ public class ECSClient implements Runnable {
         }
         
         ServiceNode     added_node = this.inactive_nodes.remove(0);
-        ServerAddress   added_address = added_node.getServerAddress();
-        
-        this.meta_data.addServer(added_address);
-        
-        HashValue[]     added_node_hash_range = this.meta_data.getHashRangeForServer(added_address);
-        ServerAddress   successor_address = this.meta_data.getSuccessorAddressForServer(added_address);
-        ServiceNode     successor_node = this.activeNodeWithAddress(successor_address);
+        ServiceMetaData old_meta_data = this.meta_data;
         
-        added_node.initialize(this.meta_data, Level.DEBUG);
-        this.active_nodes.add(added_node);
-        added_node.start();
+        this.meta_data = this.meta_data.addServer(added_node.getServerAddress());
         
-        successor_node.lockWrite();
-        successor_node.moveData(added_node_hash_range[0], added_node_hash_range[1], added_address);
+        final Map<ServiceNode, List<RangeTransfer>> transfers =
+                this.groupBySource(ServiceMetaData.getTransfers(old_meta_data, this.meta_data));
+        List<ServiceNode>   source_nodes = new ArrayList<ServiceNode>(transfers.keySet());
         
-        for (ServiceNode node : this.active_nodes) {
-            node.updateMetaData(this.meta_data);
+        List<ServiceNode>   locked_nodes = Collections.emptyList();
+        boolean             meta_data_sent = false;
+        try {
+            this.active_nodes.add(added_node);
+            added_node.initialize(this.meta_data, Level.DEBUG);
+            added_node.start();
+            
+            ECSClient.issueToNodes(source_nodes, "copy data from", new NodeCommand() {
+                @Override
+                public void execute(ServiceNode node) throws IOException {
+                    ECSClient.moveRanges(node, transfers.get(node));
+                }
+            });
+            locked_nodes = source_nodes;
+            ECSClient.issueToNodes(source_nodes, "lock writes on", new NodeCommand() {
+                @Override
+                public void execute(ServiceNode node) throws IOException {
+                    node.lockWrite();
+                }
+            });
+            ECSClient.issueToNodes(source_nodes, "move data from", new NodeCommand() {
+                @Override
+                public void execute(ServiceNode node) throws IOException {
+                    ECSClient.moveRanges(node, transfers.get(node));
+                }
+            });
+            
+            meta_data_sent = true;
+            this.updateMetaDataOnActiveNodes();
+            
+        } catch (IOException ex) {
+            this.active_nodes.remove(added_node);
+            this.inactive_nodes.add(added_node);
+            added_node.shutDown();
+            this.rollBack(old_meta_data, meta_data_sent, locked_nodes);
+            throw ex;
         }
         
-        successor_node.deleteData(added_node_hash_range[0], added_node_hash_range[1]);
-        successor_node.unlockWrite();
+        try {
+            ECSClient.issueToNodes(source_nodes, "delete moved data from", new NodeCommand() {
+                @Override
+                public void execute(ServiceNode node) throws IOException {
+                    for (RangeTransfer transfer : transfers.get(node)) {
+                        node.deleteData(transfer.getRangeBegin(), transfer.getRangeEnd());
+                    }
+                }
+            });
+        } catch (IOException ex) {
+            ECSClient.unlockAfterFailure(source_nodes);
+            throw ex;
+        }
+        ECSClient.unlockWrites(source_nodes);
     }
     
+    /**
+     * Removes a node from the ring. The range of every token of the node is
+     * taken over by the node owning the following token, so the data is moved
+     * to many nodes at once. If a step fails, the removal is rolled back: the
+     * node keeps its ranges and is unlocked.
+     */
     public void removeNode() throws IOException {
         if (this.state != ServiceState.RUNNING) {
             throw new IllegalStateException("Cannot remove a node from an uninitialized or stopped service.");
@@ -143,32 +233,166 @@ public class ECSClient implements Runnable {
         }
         
         ServiceNode     removed_node = this.active_nodes.remove(new Random().nextInt(this.active_nodes.size()));
-        ServerAddress   removed_address = removed_node.getServerAddress();
+        ServiceMetaData old_meta_data = this.meta_data;
         
-        HashValue[]     removed_node_hash_range = this.meta_data.getHashRangeForServer(removed_address);
-        ServerAddress   successor_address = this.meta_data.getSuccessorAddressForServer(removed_address);
-        ServiceNode     successor_node = this.activeNodeWithAddress(successor_address);
+        this.meta_data = this.meta_data.removeServer(removed_node.getServerAddress());
         
-        this.meta_data.removeServer(removed_address);
+        List<RangeTransfer> transfers = ServiceMetaData.getTransfers(old_meta_data, this.meta_data);
         
-        removed_node.lockWrite();
-        successor_node.updateMetaData(this.meta_data);
-        
-        removed_node.moveData(removed_node_hash_range[0], removed_node_hash_range[1], successor_address);
-        
-        for (ServiceNode node : this.active_nodes) {
-            node.updateMetaData(this.meta_data);
+        List<ServiceNode>   locked_nodes = Collections.emptyList();
+        boolean             meta_data_sent = false;
+        try {
+            ECSClient.moveRanges(removed_node, transfers);
+            locked_nodes = Collections.singletonList(removed_node);
+            removed_node.lockWrite();
+            ECSClient.moveRanges(removed_node, transfers);
+            
+            meta_data_sent = true;
+            this.updateMetaDataOnActiveNodes();
+            
+        } catch (IOException ex) {
+            this.active_nodes.add(removed_node);
+            this.rollBack(old_meta_data, meta_data_sent, locked_nodes);
+            throw ex;
         }
         
         removed_node.shutDown();
         this.inactive_nodes.add(removed_node);
     }
     
+    /**
+     * Restores the metadata preceding a failed change of the ring, and unlocks
+     * the nodes that were handing over their ranges. Nothing is deleted before
+     * the new metadata is in place, so the nodes still hold their ranges.
+     * Failures are only logged, so that the original failure is reported.
+     * @param meta_data_sent Whether the new metadata was sent to the nodes
+     * @param locked_nodes Nodes that were (possibly) write-locked
+     */
+    private void rollBack(ServiceMetaData old_meta_data, boolean meta_data_sent, List<ServiceNode> locked_nodes) {
+        logger.warn("Rolling back the change of the service topology.");
+        
+        this.meta_data = old_meta_data;
+        if (meta_data_sent) {
+            try {
+                this.updateMetaDataOnActiveNodes();
+            } catch (IOException ex) {
+                logger.error("Error! Unable to restore the metadata: " + ex.getMessage());
+            }
+        }
+        ECSClient.unlockAfterFailure(locked_nodes);
+    }
+    
+    private static void unlockWrites(List<ServiceNode> nodes) throws IOException {
+        ECSClient.issueToNodes(nodes, "unlock writes on", new NodeCommand() {
+            @Override
+            public void execute(ServiceNode node) throws IOException {
+                node.unlockWrite();
+            }
+        });
+    }
+    
+    /**
+     * Unlocks the nodes after a failed step, so that no node is left locked.
+     * Nodes whose lock failed also fail to unlock, which is only logged.
+     */
+    private static void unlockAfterFailure(List<ServiceNode> nodes) {
+        try {
+            ECSClient.unlockWrites(nodes);
+        } catch (IOException ex) {
+            logger.warn("Warning! " + ex.getMessage());
+        }
+    }
+    
+    private static void moveRanges(ServiceNode node, List<RangeTransfer> transfers) throws IOException {
+        for (RangeTransfer transfer : transfers) {
+            node.moveData(transfer.getRangeBegin(), transfer.getRangeEnd(), transfer.getTarget());
+        }
+    }
+    
+    private Map<ServiceNode, List<RangeTransfer>> groupBySource(List<RangeTransfer> transfers) {
+        Map<ServiceNode, List<RangeTransfer>>   grouped = new LinkedHashMap<ServiceNode, List<RangeTransfer>>();
+        
+        for (RangeTransfer transfer : transfers) {
+            ServiceNode         node = this.activeNodeWithAddress(transfer.getSource());
+            List<RangeTransfer> node_transfers = grouped.get(node);
+            if (node_transfers == null) {
+                node_transfers = new ArrayList<RangeTransfer>();
+                grouped.put(node, node_transfers);
+            }
+            node_transfers.add(transfer);
+        }
+        
+        return grouped;
+    }
+    
+    private void updateMetaDataOnActiveNodes() throws IOException {
+        final ServiceMetaData meta_data = this.meta_data;
+        ECSClient.issueToNodes(this.active_nodes, "update the metadata of", new NodeCommand() {
+            @Override
+            public void execute(ServiceNode node) throws IOException {
+                node.updateMetaData(meta_data);
+            }
+        });
+    }
+    
+    /**
+     * Issues a control command to the nodes concurrently and waits for all of
+     * them, so that a command to the whole service takes about one round trip.
+     * Every node bounds its own round trip (see ServiceNode.setControlTimeout()).
+     * @param action Verb describing the command in the error message
+     * @param command The command
+     * @throws IOException Thrown if the command failed on any of the nodes; the
+     *          message lists every failed node
+     */
+    private static void issueToNodes(List<ServiceNode> nodes, String action, final NodeCommand command)
+            throws IOException {
+        if (nodes.isEmpty()) {
+            return;
+        }
+        
+        List<Callable<Void>> calls = new ArrayList<Callable<Void>>(nodes.size());
+        for (final ServiceNode node : nodes) {
+            calls.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    command.execute(node);
+                    return null;
+                }
+            });
+        }
+        
+        ExecutorService issuers = Executors.newFixedThreadPool(Math.min(nodes.size(), MAX_CONTROL_THREADS));
+        StringBuilder   failures = new StringBuilder();
+        int             failure_count = 0;
+        try {
+            List<Future<Void>> results = issuers.invokeAll(calls);
+            for (int i = 0; i < results.size(); ++i) {
+                try {
+                    results.get(i).get();
+                } catch (ExecutionException ex) {
+                    failures.append("\n    ").append(nodes.get(i).getServerAddress()).append(": ")
+                            .append(ex.getCause().getMessage());
+                    ++failure_count;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the nodes to " + action + ".");
+        } finally {
+            issuers.shutdown();
+        }
+        
+        if (failure_count > 0) {
+            throw new IOException("Failed to " + action + " " + failure_count + " of " + nodes.size() + " nodes:" +
+                    failures);
+        }
+    }
+    
     private ServiceNode activeNodeWithAddress(ServerAddress server_address) {
         ServiceNode ret_node = null;
         
         for (ServiceNode node : this.active_nodes) {
-            if (node.getServerAddress() == server_address) {
+            if (node.getServerAddress().equals(server_address)) {
                 ret_node = node;
                 break;
             }
@@ -198,14 +422,18 @@ public class ECSClient implements Runnable {
             dump_server.startDumpServer();
             
             for (ServiceNode node : this.active_nodes) {
-                HashValue[] node_range = this.meta_data.getHashRangeForServer(node.getServerAddress());
+                HashValue[][]   node_ranges = this.meta_data.getHashRangeForServer(node.getServerAddress());
                 
                 node.lockWrite();
-                node.moveData(node_range[0], node_range[1], dump_address);
+                for (HashValue[] node_range : node_ranges) {
+                    node.moveData(node_range[0], node_range[1], dump_address);
+                }
                 node.unlockWrite();
                 
                 System.out.println("Node '" + node.getServerAddress() + "': " + dump_server.getDataStorage().dump());
-                dump_server.getDataStorage().deleteHashRange(node_range[0], node_range[1]);
+                for (HashValue[] node_range : node_ranges) {
+                    dump_server.getDataStorage().deleteHashRange(node_range[0], node_range[1]);
+                }
             }
             
         } catch (IOException ex) {
@@ -293,10 +521,13 @@ public class ECSClient implements Runnable {
     public static void main(String[] args) {
         Level   log_level = Level.WARN;
         String  config_path = null;
+        int     control_timeout = ServiceNode.DEFAULT_CONTROL_TIMEOUT;
+        boolean local_launch = false;
+        int     tokens_per_server = DEFAULT_TOKENS_PER_SERVER;
         
         // Parse command line arguments
         try {
-            ArgumentParser parser = new ArgumentParser("hl:", args);
+            ArgumentParser parser = new ArgumentParser("hl:t:Lv:", args);
             ArgumentParser.Option option;
             
             while ((option = parser.getNextArgument()) != null) {
@@ -317,6 +548,29 @@ public class ECSClient implements Runnable {
                     } else {
                         throw new ParseException("Invalid logging level: " + option.argument + ".", 0);
                     }
+                    
+                } else if (option.name.equals("t")) {
+                    try {
+                        control_timeout = Integer.parseInt(option.argument);
+                    } catch (NumberFormatException ex) {
+                        control_timeout = -1;
+                    }
+                    if (control_timeout < 0) {
+                        throw new ParseException("Invalid control timeout: " + option.argument + ".", 0);
+                    }
+                    
+                } else if (option.name.equals("L")) {
+                    local_launch = true;
+                    
+                } else if (option.name.equals("v")) {
+                    try {
+                        tokens_per_server = Integer.parseInt(option.argument);
+                    } catch (NumberFormatException ex) {
+                        tokens_per_server = 0;
+                    }
+                    if (tokens_per_server < 1 || tokens_per_server > ServiceMetaData.MAX_TOKENS_PER_SERVER) {
+                        throw new ParseException("Invalid number of tokens per server: " + option.argument + ".", 0);
+                    }
                 }
             }
             
@@ -353,19 +607,39 @@ public class ECSClient implements Runnable {
             System.exit(1);
         }
         
+        for (ServiceNode node : nodes) {
+            node.setControlTimeout(control_timeout);
+            if (local_launch) {
+                node.setLauncher(ServiceNode.Launcher.LOCAL);
+            }
+        }
+        
         // Initialize and run ECSClient
-        ECSClient   ecsclient = new ECSClient(nodes);
+        ECSClient   ecsclient = new ECSClient(nodes, tokens_per_server);
         ecsclient.run();
     }
     
     private static void printUsage() {
         System.out.println(
-                  "Usage: ECSClient [-l log_level] <config_file>\n"
+                  "Usage: ECSClient [-l log_level] [-t timeout] [-L] [-v tokens] <config_file>\n"
                 + "    -l log_level    - Set logging level (default: WARN).\n"
+                + "    -t timeout      - Milliseconds a node may take to reply to a control command,\n"
+                + "                      or 0 for no limit (default: " + ServiceNode.DEFAULT_CONTROL_TIMEOUT + ").\n"
+                + "    -L              - Launch the servers as local processes instead of via ssh.\n"
+                + "    -v tokens       - Number of virtual tokens every server owns on the hash ring\n"
+                + "                      (default: " + DEFAULT_TOKENS_PER_SERVER + ", maximum: "
+                + ServiceMetaData.MAX_TOKENS_PER_SERVER + ").\n"
                 + "    <config_file>   - Path to configurational file."
         );
     }
     
+    /**
+     * A control command issued to a node.
+     */
+    private interface NodeCommand {
+        void execute(ServiceNode node) throws IOException;
+    }
+    
     private static CommandParser initializeCommandParser() {
         CommandParser parser = new CommandParser(System.in, System.out, "ECSClient>");
         
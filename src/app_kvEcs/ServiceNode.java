@@ -1,5 +1,6 @@
 package app_kvEcs;
 
+import app_kvServer.ServerConfig;
 import common.messages.ControlMessage;
 import common.messages.NetworkMessage;
 import common.topology.HashValue;
@@ -10,7 +11,9 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.List;
@@ -26,12 +29,22 @@ import server.DataTransferRequest;
  * @author Danila Klimenko
  */
 public class ServiceNode {
+    public enum Launcher {SSH, LOCAL};
+    
     private static final Logger logger = LogSetup.getLogger();
+    public static final int     DEFAULT_CONTROL_TIMEOUT = 10000;
+    private static final int    LAUNCH_TIMEOUT = 30000;
+    private static final int    INITIAL_PROBE_DELAY = 20;
+    private static final int    MAX_PROBE_DELAY = 1000;
     
     private final String        name;
     private final ServerAddress server_address;
     private final String        path_to_jar;
+    private final String        storage_engine;
     
+    private int             control_timeout;
+    private Launcher        launcher;
+    private boolean         launched;
     private boolean         connected;
     private Socket          socket;
     private InputStream     input_stream;
@@ -41,7 +54,11 @@ public class ServiceNode {
         this.name = name;
         this.server_address = server_address;
         this.path_to_jar = path_to_jar;
+        this.storage_engine = null;
         
+        this.control_timeout = DEFAULT_CONTROL_TIMEOUT;
+        this.launcher = Launcher.SSH;
+        this.launched = false;
         this.connected = false;
         this.socket = null;
         this.input_stream = null;
@@ -49,10 +66,23 @@ public class ServiceNode {
     }
     
     public ServiceNode(String name, String address, int port, String path_to_jar) {
+        this(name, address, port, path_to_jar, null);
+    }
+    
+    /**
+     * Constructor of a node running a specific storage engine
+     * @param storage_engine Storage engine specification passed to the server (see
+     *          ServerConfig.parseStorageEngine()), or null for the default engine
+     */
+    public ServiceNode(String name, String address, int port, String path_to_jar, String storage_engine) {
         this.name = name;
         this.server_address = new ServerAddress(address, port);
         this.path_to_jar = path_to_jar;
+        this.storage_engine = storage_engine;
         
+        this.control_timeout = DEFAULT_CONTROL_TIMEOUT;
+        this.launcher = Launcher.SSH;
+        this.launched = false;
         this.connected = false;
         this.socket = null;
         this.input_stream = null;
@@ -67,34 +97,66 @@ public class ServiceNode {
         return this.server_address;
     }
     
+    /**
+     * Sets how long the node may take to connect and to reply to a control
+     * message. A node that does not reply in time is disconnected, since its
+     * late reply would be taken for the reply to the next message; the next
+     * control message is sent over a new connection. Data transfers and
+     * deletions (see moveData() and deleteData()) are not bounded, since their
+     * duration grows with the amount of data.
+     * @param control_timeout Timeout in milliseconds, or 0 for no timeout
+     */
+    public void setControlTimeout(int control_timeout) {
+        if (control_timeout < 0) {
+            throw new IllegalArgumentException("Illegal control timeout: " + control_timeout + ".");
+        }
+        this.control_timeout = control_timeout;
+    }
+    
+    /**
+     * Selects how the server process is started: remotely via ssh, or as a
+     * local process, which lets a whole service run on a single machine.
+     */
+    public void setLauncher(Launcher launcher) {
+        this.launcher = launcher;
+    }
+    
     public void initialize(ServiceMetaData meta_data, Level log_level) throws IOException {
-        // Launch server via ssh
-        List<String>    launch_command = new ArrayList<String>();
+        List<String>    server_command = new ArrayList<String>();
         
-        launch_command.add("ssh");
-        launch_command.add("-n");
-        launch_command.add(this.server_address.getAddress());
-        launch_command.add("nohup");
-        launch_command.add("java");
-        launch_command.add("-jar");
-        launch_command.add(this.path_to_jar);
-        launch_command.add("-l");
-        launch_command.add(log_level.toString());
-        launch_command.add(Integer.toString(this.server_address.getPort()));
-        launch_command.add("&");
+        server_command.add("java");
+        server_command.add("-jar");
+        server_command.add(this.path_to_jar);
+        server_command.add("-l");
+        server_command.add(log_level.toString());
+        if (this.storage_engine != null) {
+            server_command.add("-e");
+            server_command.add(this.storage_engine);
+        }
+        server_command.add(String.valueOf(this.server_address.getPort()));
         
-        logger.info("Launching a remote server at '" + this.server_address + "'.");
-        new ProcessBuilder(launch_command).start();
+        logger.info("Launching a " + this.launcher.name().toLowerCase() + " server at '" + this.server_address + "'.");
+        Process launch;
+        if (this.launcher == Launcher.LOCAL) {
+            // The server is started directly, with its arguments passed as they
+            // are, so a server failing to start is noticed at once; the server
+            // logs to its log file, and its console output is discarded
+            launch = new ProcessBuilder(server_command).redirectErrorStream(true).start();
+            ServiceNode.discardOutput(launch);
+        } else {
+            StringBuilder remote_command = new StringBuilder("nohup");
+            for (String argument : server_command) {
+                remote_command.append(' ').append(argument);
+            }
+            launch = new ProcessBuilder("ssh", "-n", this.server_address.getAddress(), remote_command + " &").start();
+        }
         
         try {
-            // Connect to server
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException ex) {}
-            this.socket = new Socket(this.server_address.getAddress(), this.server_address.getPort());
+            this.socket = this.awaitServer(launch);
             this.input_stream = this.socket.getInputStream();
             this.output_stream = this.socket.getOutputStream();
             this.connected = true;
+            this.launched = true;
             
             // Send metadata to server
             ControlMessage  ctrlmsg = new ControlMessage(ControlMessage.ControlType.INIT, this.server_address.toString(), meta_data);
@@ -113,6 +175,81 @@ public class ServiceNode {
         logger.info("Remote server at '" + this.server_address + "' launched successfully.");
     }
     
+    /**
+     * Reads and drops the output of a process in the background, so that the
+     * process never blocks on a full pipe.
+     */
+    private static void discardOutput(Process process) {
+        final InputStream output = process.getInputStream();
+        Thread drain = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[4096];
+                try {
+                    while (output.read(buffer) >= 0) {
+                    }
+                } catch (IOException ex) {
+                } finally {
+                    try {
+                        output.close();
+                    } catch (IOException ex) {
+                    }
+                }
+            }
+        }, "server-output");
+        drain.setDaemon(true);
+        drain.start();
+    }
+    
+    /**
+     * Connects to the launched server. The port is probed with exponential
+     * backoff until the server accepts the connection, so a fast server is not
+     * waited for longer than necessary, and a slow one is still waited for.
+     * @param launch The launching process (ssh, or the local server itself); the
+     *          launch failed if it exits with an error
+     * @return Socket connected to the server
+     * @throws IOException Thrown if the server does not come up in time
+     */
+    private Socket awaitServer(Process launch) throws IOException {
+        InetSocketAddress   address = new InetSocketAddress(this.server_address.getAddress(),
+                this.server_address.getPort());
+        long                deadline = System.currentTimeMillis() + LAUNCH_TIMEOUT;
+        int                 delay = INITIAL_PROBE_DELAY;
+        
+        while (true) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(address, this.control_timeout);
+                return socket;
+                
+            } catch (IOException ex) {
+                socket.close();
+                
+                int exit_value = 0;
+                try {
+                    exit_value = launch.exitValue();
+                } catch (IllegalThreadStateException running) {
+                }
+                if (exit_value != 0) {
+                    throw new IOException("Launching server '" + this.server_address + "' failed with exit code " +
+                            exit_value + ".");
+                }
+                if (System.currentTimeMillis() + delay > deadline) {
+                    throw new IOException("Server '" + this.server_address + "' did not come up within " +
+                            LAUNCH_TIMEOUT + " ms: " + ex.getMessage());
+                }
+            }
+            
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for server '" + this.server_address + "'.");
+            }
+            delay = Math.min(2 * delay, MAX_PROBE_DELAY);
+        }
+    }
+    
     public void updateMetaData(ServiceMetaData meta_data) throws IOException {
         ControlMessage  ctrlmsg = new ControlMessage(ControlMessage.ControlType.UPDATE, meta_data);
         ctrlmsg = this.processControlMessage(ctrlmsg);
@@ -145,6 +282,9 @@ public class ServiceNode {
     
     public void shutDown() throws IOException {
         try {
+            if (!this.connected && this.launched) {
+                this.reconnect();
+            }
             if (this.connected && !this.socket.isOutputShutdown()) {
                 ControlMessage  ctrlmsg = new ControlMessage(ControlMessage.ControlType.SHUTDOWN);
                 NetworkMessage  netmsg = new NetworkMessage(ControlMessage.marshal(ctrlmsg));
@@ -163,9 +303,44 @@ public class ServiceNode {
             logger.warn("Warning! Unable to tear down connection to server (" + this.server_address + "): " + ex.getMessage());
         }
         this.connected = false;
+        this.launched = false;
         logger.info("Remote server at '" + this.server_address + "' shut down.");
     }
     
+    /**
+     * Opens a new control connection to a launched server whose previous
+     * connection was dropped after a timeout.
+     */
+    private void reconnect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(this.server_address.getAddress(), this.server_address.getPort()),
+                    this.control_timeout);
+        } catch (IOException ex) {
+            socket.close();
+            throw new IOException("Reconnection to remote server '" + this.server_address + "' failed: " +
+                    ex.getMessage());
+        }
+        
+        this.socket = socket;
+        this.input_stream = socket.getInputStream();
+        this.output_stream = socket.getOutputStream();
+        this.connected = true;
+        logger.info("Reconnected to remote server '" + this.server_address + "'.");
+    }
+    
+    /**
+     * Drops the connection without shutting down the remote server.
+     */
+    private void disconnect() {
+        try {
+            this.socket.close();
+        } catch (IOException ex) {
+            logger.warn("Warning! Unable to tear down connection to server (" + this.server_address + "): " + ex.getMessage());
+        }
+        this.connected = false;
+    }
+    
     public void lockWrite() throws IOException {
         ControlMessage  ctrlmsg = new ControlMessage(ControlMessage.ControlType.LOCK_WRITE);
         ctrlmsg = this.processControlMessage(ctrlmsg);
@@ -189,7 +364,7 @@ public class ServiceNode {
     public void moveData(HashValue range_begin, HashValue range_end, ServerAddress target) throws IOException {
         DataTransferRequest dt_request = new DataTransferRequest(range_begin, range_end, target);
         ControlMessage      ctrlmsg = new ControlMessage(ControlMessage.ControlType.MOVE_DATA, dt_request);
-        ctrlmsg = this.processControlMessage(ctrlmsg);
+        ctrlmsg = this.processControlMessage(ctrlmsg, 0);
         if (ctrlmsg.getType() == ControlMessage.ControlType.FAILURE) {
             throw new IOException("Remote server '" + this.server_address + "' failed to transfer data to '" +
                     target + "': " + ctrlmsg.getDescription() + ".");
@@ -200,7 +375,7 @@ public class ServiceNode {
     public void deleteData(HashValue range_begin, HashValue range_end) throws IOException {
         DataTransferRequest dt_request = new DataTransferRequest(range_begin, range_end, this.server_address);
         ControlMessage      ctrlmsg = new ControlMessage(ControlMessage.ControlType.DELETE_DATA, dt_request);
-        ctrlmsg = this.processControlMessage(ctrlmsg);
+        ctrlmsg = this.processControlMessage(ctrlmsg, 0);
         if (ctrlmsg.getType() == ControlMessage.ControlType.FAILURE) {
             throw new IOException("Remote server '" + this.server_address + "' failed to delete data: " + ctrlmsg.getDescription() + ".");
         }
@@ -208,10 +383,28 @@ public class ServiceNode {
     }
     
     private ControlMessage processControlMessage(ControlMessage ctrlmsg) throws IOException {
+        return this.processControlMessage(ctrlmsg, this.control_timeout);
+    }
+    
+    private ControlMessage processControlMessage(ControlMessage ctrlmsg, int timeout) throws IOException {
+        if (!this.connected && this.launched) {
+            this.reconnect();
+        }
+        if (!this.connected) {
+            throw new IOException("Remote server '" + this.server_address + "' is not connected.");
+        }
+        
         NetworkMessage  netmsg = new NetworkMessage(ControlMessage.marshal(ctrlmsg));
             
         netmsg.writeTo(this.output_stream);
-        netmsg = NetworkMessage.readFrom(this.input_stream);
+        try {
+            this.socket.setSoTimeout(timeout);
+            netmsg = NetworkMessage.readFrom(this.input_stream);
+        } catch (SocketTimeoutException ex) {
+            this.disconnect();
+            throw new IOException("Remote server '" + this.server_address + "' did not reply within " +
+                    timeout + " ms.");
+        }
 
         try {
             ctrlmsg = ControlMessage.unmarshal(netmsg.getData());
@@ -232,7 +425,7 @@ public class ServiceNode {
         BufferedReader      reader = new BufferedReader(new FileReader(config_path));
         String              string = reader.readLine();
         Pattern             node_descr_pattern = Pattern.compile(
-                "([_a-zA-Z0-9]+)\\s+(\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3})\\s+(\\d{1,5})\\s+(\\S+)");
+                "([_a-zA-Z0-9]+)\\s+(\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3})\\s+(\\d{1,5})\\s+(\\S+)(?:\\s+(\\S+))?");
         List<ServiceNode>   nodes = new ArrayList<ServiceNode>();
         
         while (string != null) {
@@ -255,7 +448,17 @@ public class ServiceNode {
                     throw new ParseException("Illegal port number in configurational file: '" + string + "'", 0);
                 }
                 
-                nodes.add(new ServiceNode(matcher.group(1), ip_address, port, matcher.group(4)));
+                String storage_engine = matcher.group(5);
+                if (storage_engine != null) {
+                    try {
+                        new ServerConfig().parseStorageEngine(storage_engine);
+                    } catch (ParseException ex) {
+                        throw new ParseException("Illegal storage engine in configurational file: '" + string +
+                                "': " + ex.getMessage(), 0);
+                    }
+                }
+                
+                nodes.add(new ServiceNode(matcher.group(1), ip_address, port, matcher.group(4), storage_engine));
             }
             
             string = reader.readLine();
@@ -1,21 +1,25 @@
 package app_kvServer;
 
-import common.messages.ControlMessage;
-import common.messages.NetworkMessage;
+import server.CachedStorage;
+import server.ChangeTrackingStorage;
 import server.ClientConnection;
 import server.KVDataStorage;
+import server.LogStructuredStorage;
+import server.LsmStorage;
 import common.parsers.ArgumentParser;
 import common.topology.HashValue;
 import common.topology.ServerAddress;
 import common.topology.ServiceMetaData;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.ProtocolException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -23,23 +27,32 @@ import logger.LogSetup;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import server.DataTransferRequest;
+import server.DataTransferStream;
 import server.KeyValuePacket;
+import server.SelectorServer;
+import server.StorageEngine;
+import server.StoragePersistence;
 
 public class KVServer implements Runnable {
     private enum ServerState {UNINITIALIZED, STOPPED, RUNNING, LOCKED, DUMP_SERVER};
     
     private static final Logger logger = LogSetup.getLogger();
+    private static final int    MAX_CATCH_UP_ROUNDS = 8;
+    private static final int    FINAL_CATCH_UP_KEYS = 1024;
     private final int           port;
     
-    private final KVDataStorage         data_storage;
+    private final StorageEngine         data_storage;
+    private final ChangeTrackingStorage change_tracker;
+    private final StoragePersistence    persistence;
     private final ServerSocket          server_socket;
+    private final SelectorServer        selector_server;
     private final Set<ClientConnection> clients;
     private ServerAddress               server_address;
     private volatile boolean            online;
     private volatile ServerState        state;
-    private ServiceMetaData             meta_data;
-    private HashValue                   range_begin;
-    private HashValue                   range_end;
+    private volatile ServiceMetaData    meta_data;
+    private final int                   transfer_window;
+    private final Set<DataTransferRequest> migrations;  // Ranges copied while running
     
     /**
      * Constructor taking port number as its only argument
@@ -47,12 +60,74 @@ public class KVServer implements Runnable {
      * @throws IOException Thrown if server socket cannot be created
      */
     public KVServer(int port) throws IOException {
+        this(port, new ServerConfig());
+    }
+    
+    /**
+     * Constructor taking port number and startup configuration
+     * @param port Port number
+     * @param config Server configuration
+     * @throws IOException Thrown if server socket cannot be created
+     */
+    public KVServer(int port, ServerConfig config) throws IOException {
         this.port = port;
         this.online = false;
+        this.transfer_window = config.getTransferWindow();
+        
+        File    data_directory = config.getDataDirectory();
+        String  data_name = "kvserver-" + port;
+        if (data_directory != null && !data_directory.isDirectory() && !data_directory.mkdirs()) {
+            throw new IOException("Unable to create data directory '" + data_directory + "'.");
+        }
+        
+        StorageEngine   engine;
+        switch (config.getStorageType()) {
+            case LOG:
+                engine = new LogStructuredStorage(data_directory, data_name, config.getDataFileSize(),
+                        config.getSyncInterval(), config.getMergeInterval());
+                this.persistence = null;
+                break;
+                
+            case LSM:
+                engine = new LsmStorage(data_directory, data_name, config.getMemtableSize(),
+                        config.getCompactionThreads(), config.getSyncInterval());
+                this.persistence = null;
+                break;
+                
+            default:
+                KVDataStorage memory_storage = new KVDataStorage(config.getSegmentCount(), config.getOffHeapSize(),
+                        config.getExpectedKeys());
+                if (data_directory != null) {
+                    this.persistence = new StoragePersistence(data_directory, data_name,
+                            config.getSyncInterval(), config.getSnapshotInterval());
+                    this.persistence.recover(memory_storage);
+                } else {
+                    this.persistence = null;
+                }
+                engine = memory_storage;
+                break;
+        }
+        
+        if (config.getCachePolicy() != null) {
+            engine = new CachedStorage(engine, config.getCachePolicy(), config.getCacheEntries(),
+                    config.getCacheBytes());
+        }
+        this.change_tracker = new ChangeTrackingStorage(engine);
+        this.data_storage = this.change_tracker;
+        this.migrations = Collections.synchronizedSet(new HashSet<DataTransferRequest>());
         
-        this.server_socket = new ServerSocket(this.port);
+        if (config.getFrontEnd() == ServerConfig.FrontEnd.SELECTOR) {
+            ServerSocketChannel server_channel = ServerSocketChannel.open();
+            server_channel.socket().bind(new InetSocketAddress(this.port));
+            
+            this.server_socket = server_channel.socket();
+            this.selector_server = new SelectorServer(this, server_channel, config.getIoThreads(),
+                    config.getWorkerThreads(), config.getQueueSize());
+        } else {
+            this.server_socket = new ServerSocket(this.port);
+            this.selector_server = null;
+        }
         
-        this.data_storage = new KVDataStorage();
         this.clients = new HashSet<ClientConnection>();
         
         logger.info("Server listening on port: " + this.server_socket.getLocalPort());
@@ -61,8 +136,6 @@ public class KVServer implements Runnable {
         this.meta_data = null;
         
         this.server_address = null;
-        this.range_begin = null;
-        this.range_end = null;
     }
     
     /**
@@ -70,6 +143,12 @@ public class KVServer implements Runnable {
      */
     @Override
     public void run() {
+        if (this.selector_server != null) {
+            this.selector_server.run();
+            logger.info("Server stopped.");
+            return;
+        }
+        
         while (this.online) {
             try {
                 Socket client = server_socket.accept();
@@ -94,7 +173,7 @@ public class KVServer implements Runnable {
      * Returns the key-value storage used by the server
      * @return Key-value map
      */
-    public KVDataStorage getDataStorage() {
+    public StorageEngine getDataStorage() {
         return this.data_storage;
     }
     
@@ -115,6 +194,10 @@ public class KVServer implements Runnable {
     public void shutDown() {
         this.online = false;
         
+        if (this.selector_server != null) {
+            this.selector_server.shutDown();
+        }
+        
         synchronized (this.clients) {
             for (ClientConnection client : this.clients) {
                 client.closeConnection();
@@ -129,10 +212,15 @@ public class KVServer implements Runnable {
                 logger.error("Error! Unable to close server socket: " + e.getMessage());
             }
         }
+        
+        if (this.persistence != null) {
+            this.persistence.close();
+        }
+        this.data_storage.close();
     }
     
     public boolean isResponsibleForKey(String key) {
-        return HashValue.hashKey(key).isInRange(this.range_begin, this.range_end);
+        return this.server_address.equals(this.meta_data.getServerForKey(key));
     }
     
     public boolean isStopped() {
@@ -155,10 +243,6 @@ public class KVServer implements Runnable {
         this.meta_data = meta_data;
         this.state = ServerState.STOPPED;
         
-        HashValue[] range = this.meta_data.getHashRangeForServer(this.server_address);
-        this.range_begin = range[0];
-        this.range_end = range[1];
-        
         logger.info("Server successfully initialized as '" + this.server_address + "'.");
     }
     
@@ -194,74 +278,138 @@ public class KVServer implements Runnable {
         if (this.state != ServerState.LOCKED) {
             throw new IllegalStateException("Cannot unlock write operations: illegal switch from state '" + this.state + "'.");
         }
+        this.change_tracker.stopTracking();
+        this.migrations.clear();
         this.state = ServerState.RUNNING;
     }
     
     public void updateMetaData(ServiceMetaData meta_data) throws IllegalStateException {
         this.meta_data = meta_data;
-        
-        HashValue[] range = this.meta_data.getHashRangeForServer(this.server_address);
-        this.range_begin = range[0];
-        this.range_end = range[1];
     }
     
+    /**
+     * Sends the pairs of the requested hash range to the target server. The range
+     * is streamed while the storage is scanned, with a window of unacknowledged
+     * TRANSFER messages in flight (see DataTransferStream).
+     * A running server copies the range while its clients keep writing: the keys
+     * modified in the range meanwhile are tracked, and their current values (or
+     * their deletions) are sent after the copy, in rounds, until few changes
+     * remain. Once the server is write-locked, moving the same range again only
+     * sends the remaining changes, and writes to the range are rejected until the
+     * lock is released. A write-locked server sends the whole range otherwise.
+     * Several ranges may be copied this way, one request per range, before the
+     * server is write-locked; the ECS hands over every token of a server.
+     * @param dt_request Hash range and target server
+     * @throws IllegalStateException Thrown if the server is neither running nor write-locked
+     * @throws ProtocolException Thrown if the transfer fails
+     */
     public void moveData(DataTransferRequest dt_request) throws IllegalStateException, ProtocolException {
-        if (this.state != ServerState.LOCKED) {
-            throw new IllegalStateException("Cannot transfer data while not in a 'LOCKED' state. Current state: '" 
-                    + this.state + "'.");
+        if (this.state == ServerState.RUNNING) {
+            this.copyRangeLive(dt_request);
+            
+        } else if (this.state == ServerState.LOCKED) {
+            if (this.migrations.remove(dt_request)) {
+                this.completeMigration(dt_request);
+            } else {
+                this.transferRange(dt_request);
+            }
+            
+        } else {
+            throw new IllegalStateException("Cannot transfer data while not in a 'RUNNING' or 'LOCKED' state. " +
+                    "Current state: '" + this.state + "'.");
+        }
+    }
+    
+    private void transferRange(DataTransferRequest dt_request) throws ProtocolException {
+        DataTransferStream  stream = new DataTransferStream(dt_request.getTarget(), this.transfer_window);
+        try {
+            this.streamRange(dt_request, stream);
+            stream.finish();
+        } finally {
+            stream.close();
         }
         
-        KeyValuePacket          full_packet = this.data_storage.getPacketForHashRange(dt_request.getRangeBegin(),
-                                                                                        dt_request.getRangeEnd());
-        List<KeyValuePacket>    packets = full_packet.splitOnMarshaledSizeLimit(NetworkMessage.MAX_MESSAGE_SIZE);
+        logger.info("Server '" + this.getAddressAsString() + "': Transferred " + stream.getPairCount() +
+                " key-value pairs to '" + dt_request.getTarget() + "'.");
+    }
+    
+    private void copyRangeLive(DataTransferRequest dt_request) throws ProtocolException {
+        HashValue begin = dt_request.getRangeBegin();
+        HashValue end = dt_request.getRangeEnd();
         
-        Socket          target_server = null;
-        InputStream     input = null;
-        OutputStream    output = null;
+        if (this.migrations.remove(dt_request)) { // Drops a copy of the range that was never completed
+            this.change_tracker.stopTracking(begin, end);
+        }
+        this.change_tracker.startTracking(begin, end);
+        
+        DataTransferStream  stream = null;
+        int                 round = 0;
         try {
-            target_server = new Socket(dt_request.getTarget().getAddress(), dt_request.getTarget().getPort());
-            input = target_server.getInputStream();
-            output = target_server.getOutputStream();
+            // The storage is not locked while the pairs are sent; the changes made meanwhile are tracked
+            stream = new DataTransferStream(dt_request.getTarget(), this.transfer_window);
+            this.streamRange(dt_request, stream);
             
-            for (KeyValuePacket packet : packets) {
-                ControlMessage  ctrlmsg = new ControlMessage(ControlMessage.ControlType.TRANSFER, packet);
-                NetworkMessage  netmsg = new NetworkMessage(ControlMessage.marshal(ctrlmsg));
-
-                netmsg.writeTo(output);
-                netmsg = NetworkMessage.readFrom(input);
-
-                ctrlmsg = ControlMessage.unmarshal(netmsg.getData());
-                if (ctrlmsg.getType() == ControlMessage.ControlType.FAILURE) {
-                    throw new ProtocolException("Remote server (" + dt_request.getTarget().toString() + ") failed: " +
-                            ctrlmsg.getDescription());
-                } else if (ctrlmsg.getType() != ControlMessage.ControlType.SUCCESS) {
-                    throw new ProtocolException("Remote server (" + dt_request.getTarget().toString() +
-                            ") returned unexpected message: " + ctrlmsg.getType().name());
-                }
-            }
+            Set<String> changes;
+            do {
+                changes = this.change_tracker.drainChanges(begin, end);
+                this.streamChanges(changes, stream);
+                stream.finish();
+            } while (changes.size() > FINAL_CATCH_UP_KEYS && ++round < MAX_CATCH_UP_ROUNDS);
             
         } catch (ProtocolException ex) {
+            this.change_tracker.stopTracking(begin, end);
+            throw ex;
+        } catch (RuntimeException ex) {
+            this.change_tracker.stopTracking(begin, end);
             throw ex;
-        }catch (ParseException ex) {
-            throw new ProtocolException("Failed to parse message from the remote server (" +
-                    dt_request.getTarget().toString() + "): " + ex.getMessage());
-        } catch (IOException ex) {
-            throw new ProtocolException("Communication with remote server (" +
-                    dt_request.getTarget().toString() + ") failed: " + ex.getMessage());
         } finally {
-            try {
-                if (input != null) {
-                    input.close();
-                }
-                if (output != null) {
-                    output.close();
-                }
-                if ((target_server != null) && (!target_server.isClosed())) {
-                    target_server.close();
-                }
-            } catch (IOException ex) {
-                logger.warn("Warning! Unable to tear down connection to remote server (" +
-                    dt_request.getTarget().toString() + "): " + ex.getMessage());
+            if (stream != null) {
+                stream.close();
+            }
+        }
+        this.migrations.add(dt_request);
+        
+        logger.info("Server '" + this.getAddressAsString() + "': Copied " + stream.getPairCount() +
+                " key-value pairs and changes to '" + dt_request.getTarget() + "' in " + (round + 1) +
+                " catch-up rounds.");
+    }
+    
+    private void completeMigration(DataTransferRequest dt_request) throws ProtocolException {
+        Set<String> changes = this.change_tracker.seal(dt_request.getRangeBegin(), dt_request.getRangeEnd());
+        
+        DataTransferStream  stream = new DataTransferStream(dt_request.getTarget(), this.transfer_window);
+        try {
+            this.streamChanges(changes, stream);
+            stream.finish();
+        } finally {
+            stream.close();
+        }
+        
+        logger.info("Server '" + this.getAddressAsString() + "': Transferred the last " + changes.size() +
+                " changes to '" + dt_request.getTarget() + "'.");
+    }
+    
+    private void streamRange(DataTransferRequest dt_request, DataTransferStream stream) throws ProtocolException {
+        try {
+            this.data_storage.visitHashRange(dt_request.getRangeBegin(), dt_request.getRangeEnd(), stream);
+        } catch (IllegalStateException ex) {
+            if (stream.getFailure() != null) {
+                throw stream.getFailure();
+            }
+            throw ex;
+        }
+    }
+    
+    /**
+     * Sends the current values of the changed keys, or their deletions.
+     */
+    private void streamChanges(Set<String> keys, DataTransferStream stream) throws ProtocolException {
+        for (String key : keys) {
+            byte[] value = this.data_storage.getBytes(key);
+            if (value != null) {
+                stream.add(key, value);
+            } else {
+                stream.remove(key);
             }
         }
     }
@@ -282,6 +430,21 @@ public class KVServer implements Runnable {
         this.data_storage.putAllFromKeyValuePacket(packet);
     }
     
+    public void acceptTransferredDeletes(KeyValuePacket packet) throws IllegalStateException {
+        if ((this.state != ServerState.RUNNING) && (this.state != ServerState.DUMP_SERVER)) {
+            throw new IllegalStateException("Cannot receive data while not in a 'RUNNING' state. Current state: '" 
+                    + this.state + "'.");
+        }
+        
+        List<String>    keys = new ArrayList<String>(packet.size());
+        List<byte[]>    values = new ArrayList<byte[]>(packet.size());
+        for (KeyValuePacket.KeyValuePair kv_pair : packet) {
+            keys.add(kv_pair.getKey());
+            values.add(null);
+        }
+        this.data_storage.putAllBytes(keys, values);
+    }
+    
     public String getAddressAsString() {
         return (this.server_address != null) ? this.server_address.toString() : "?.?.?.?:" + this.port;
     }
@@ -291,12 +454,13 @@ public class KVServer implements Runnable {
      * @param args Array of command line arguments
      */
     public static void main(String[] args) {
-        Level   log_level = Level.WARN;
-        Integer port = null;
+        Level           log_level = Level.WARN;
+        Integer         port = null;
+        ServerConfig    config = new ServerConfig();
         
         // Parse command line arguments
         try {
-            ArgumentParser parser = new ArgumentParser("hl:", args);
+            ArgumentParser parser = new ArgumentParser("hl:m:e:c:d:s:i:w:", args);
             ArgumentParser.Option option;
             
             while ((option = parser.getNextArgument()) != null) {
@@ -313,6 +477,7 @@ public class KVServer implements Runnable {
                     }
                     
                 } else if (option.name.equals("h")) {
+                    printUsage();
                     System.exit(1);
                     
                 } else if (option.name.equals("l")) {
@@ -321,6 +486,27 @@ public class KVServer implements Runnable {
                     } else {
                         throw new ParseException("Invalid logging level: " + option.argument + ".", 0);
                     }
+                    
+                } else if (option.name.equals("m")) {
+                    config.parseFrontEnd(option.argument);
+                    
+                } else if (option.name.equals("e")) {
+                    config.parseStorageEngine(option.argument);
+                    
+                } else if (option.name.equals("c")) {
+                    config.parseCache(option.argument);
+                    
+                } else if (option.name.equals("d")) {
+                    config.setDataDirectory(option.argument);
+                    
+                } else if (option.name.equals("s")) {
+                    config.parseSyncInterval(option.argument);
+                    
+                } else if (option.name.equals("i")) {
+                    config.parseSnapshotInterval(option.argument);
+                    
+                } else if (option.name.equals("w")) {
+                    config.parseTransferWindow(option.argument);
                 }
             }
             
@@ -330,6 +516,7 @@ public class KVServer implements Runnable {
             
         } catch (ParseException e) {
             System.out.println("Error parsing command line arguments: " + e.getMessage());
+            printUsage();
             System.exit(1);
         }
         
@@ -346,11 +533,44 @@ public class KVServer implements Runnable {
         
         // Start server
         try {
-            KVServer server = new KVServer(port);
+            KVServer server = new KVServer(port, config);
             server.run();
             
         } catch (IOException e) {
             logger.error("Error! Cannot start server: " + e.getMessage());
         }
     }
+    
+    private static void printUsage() {
+        System.out.println(
+                  "Usage: KVServer [-l log_level] [-m front_end] [-e engine] [-c cache]\n"
+                + "                [-d data_dir [-s interval] [-i interval]] [-w window] <port>\n"
+                + "    -l log_level    - Set logging level (default: WARN).\n"
+                + "    -m front_end    - Connection handling model (default: threaded):\n"
+                + "                        threaded - one thread per client connection;\n"
+                + "                        selector[:io=N,workers=N,queue=N] - non-blocking I/O threads\n"
+                + "                        dispatching to a bounded pool of worker threads.\n"
+                + "    -e engine       - Storage engine (default: memory):\n"
+                + "                        memory[:segments=N,offheap=SIZE,keys=N] - in-memory hash map,\n"
+                + "                        optionally keeping up to SIZE bytes of values off the heap\n"
+                + "                        and presized for N keys;\n"
+                + "                        log[:file=SIZE,merge=N] - values in append-only data files,\n"
+                + "                        merged every N seconds;\n"
+                + "                        lsm[:memtable=SIZE,compactions=N] - log-structured merge tree\n"
+                + "                        with N compaction threads.\n"
+                + "    -c cache        - Serve hot keys from a cache in front of the storage engine:\n"
+                + "                        policy[:entries=N,bytes=SIZE], where policy is lru, lfu,\n"
+                + "                        fifo or arc (default size: 64M).\n"
+                + "    -d data_dir     - Keep the persistent data in the given directory and recover\n"
+                + "                      from it on startup (default: in-memory storage only; the\n"
+                + "                      'data' directory next to the jar for the disk engines).\n"
+                + "    -s interval     - Sync the log every 'interval' ms instead of before every\n"
+                + "                      reply (default: 0, i.e. before every reply).\n"
+                + "    -i interval     - Write a snapshot every 'interval' seconds (default: 300;\n"
+                + "                      0 disables snapshots).\n"
+                + "    -w window       - Number of unacknowledged messages in flight when moving data\n"
+                + "                      to another server (default: 8).\n"
+                + "    <port>          - Port number to listen on."
+        );
+    }
 }
@@ -0,0 +1,353 @@
+package app_kvServer;
+
+import common.parsers.ParameterSpec;
+import server.CachedStorage;
+import java.io.File;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.text.ParseException;
+
+/**
+ * Startup configuration of a KVServer. The defaults correspond to the classic
+ * behavior of the server.
+ * @author Danila Klimenko
+ */
+public class ServerConfig {
+    public enum FrontEnd {THREADED, SELECTOR};
+    public enum StorageType {MEMORY, LOG, LSM};
+    
+    private static final int    DEFAULT_IO_THREADS = 2;
+    private static final int    DEFAULT_QUEUE_SIZE = 1024;
+    private static final int    DEFAULT_SNAPSHOT_INTERVAL = 300;
+    private static final int    DEFAULT_TRANSFER_WINDOW = 8;
+    private static final int    DEFAULT_SEGMENT_COUNT = 16;
+    private static final int    MAX_SEGMENT_COUNT = 1 << 16;
+    private static final long   DEFAULT_DATA_FILE_SIZE = 64L * 1024 * 1024;
+    private static final int    DEFAULT_MERGE_INTERVAL = 60;
+    private static final int    DEFAULT_MEMTABLE_SIZE = 4 * 1024 * 1024;
+    private static final int    DEFAULT_COMPACTION_THREADS = 2;
+    private static final long   DEFAULT_CACHE_SIZE = 64L * 1024 * 1024;
+    private static final long   MIN_OFF_HEAP_SIZE = 1024 * 1024;
+    
+    private FrontEnd                        front_end;
+    private int                             io_threads;
+    private int                             worker_threads;
+    private int                             queue_size;
+    private File                            data_directory;
+    private int                             sync_interval;
+    private int                             snapshot_interval;
+    private int                             transfer_window;
+    private StorageType                     storage_type;
+    private int                             segment_count;
+    private long                            off_heap_size;
+    private long                            expected_keys;
+    private long                            data_file_size;
+    private int                             merge_interval;
+    private int                             memtable_size;
+    private int                             compaction_threads;
+    private CachedStorage.EvictionPolicy    cache_policy;
+    private long                            cache_entries;
+    private long                            cache_bytes;
+    
+    public ServerConfig() {
+        this.front_end = FrontEnd.THREADED;
+        this.io_threads = DEFAULT_IO_THREADS;
+        this.worker_threads = 2 * Runtime.getRuntime().availableProcessors();
+        this.queue_size = DEFAULT_QUEUE_SIZE;
+        this.data_directory = null;
+        this.sync_interval = 0;
+        this.snapshot_interval = DEFAULT_SNAPSHOT_INTERVAL;
+        this.transfer_window = DEFAULT_TRANSFER_WINDOW;
+        this.storage_type = StorageType.MEMORY;
+        this.segment_count = DEFAULT_SEGMENT_COUNT;
+        this.off_heap_size = 0;
+        this.expected_keys = 0;
+        this.data_file_size = DEFAULT_DATA_FILE_SIZE;
+        this.merge_interval = DEFAULT_MERGE_INTERVAL;
+        this.memtable_size = DEFAULT_MEMTABLE_SIZE;
+        this.compaction_threads = DEFAULT_COMPACTION_THREADS;
+        this.cache_policy = null;
+        this.cache_entries = 0;
+        this.cache_bytes = DEFAULT_CACHE_SIZE;
+    }
+    
+    /**
+     * Configures the front end from a specification of the form
+     * "threaded" or "selector[:io=N,workers=N,queue=N]".
+     * @param spec_string Front end specification
+     * @throws ParseException Thrown if the specification is invalid
+     */
+    public void parseFrontEnd(String spec_string) throws ParseException {
+        ParameterSpec   spec = new ParameterSpec(spec_string);
+        
+        if (spec.getName().equalsIgnoreCase("threaded")) {
+            spec.verifyParameters();
+            this.front_end = FrontEnd.THREADED;
+            
+        } else if (spec.getName().equalsIgnoreCase("selector")) {
+            spec.verifyParameters("io", "workers", "queue");
+            this.front_end = FrontEnd.SELECTOR;
+            this.io_threads = spec.getInt("io", this.io_threads);
+            this.worker_threads = spec.getInt("workers", this.worker_threads);
+            this.queue_size = spec.getInt("queue", this.queue_size);
+            
+            if (this.io_threads < 1 || this.worker_threads < 1 || this.queue_size < 1) {
+                throw new ParseException("Thread and queue counts must be positive: '" + spec_string + "'.", 0);
+            }
+            
+        } else {
+            throw new ParseException("Unknown front end: '" + spec.getName() + "'.", 0);
+        }
+    }
+    
+    /**
+     * Configures the storage engine from a specification of the form
+     * "memory[:segments=N,offheap=SIZE,keys=N]", "log[:file=SIZE,merge=N]" or
+     * "lsm[:memtable=SIZE,compactions=N]".
+     * @param spec_string Storage engine specification
+     * @throws ParseException Thrown if the specification is invalid
+     */
+    public void parseStorageEngine(String spec_string) throws ParseException {
+        ParameterSpec   spec = new ParameterSpec(spec_string);
+        
+        if (spec.getName().equalsIgnoreCase("memory")) {
+            spec.verifyParameters("segments", "offheap", "keys");
+            this.storage_type = StorageType.MEMORY;
+            this.segment_count = spec.getInt("segments", this.segment_count);
+            this.off_heap_size = spec.getSize("offheap", this.off_heap_size);
+            this.expected_keys = spec.getSize("keys", this.expected_keys);
+            
+            if (this.segment_count < 1 || this.segment_count > MAX_SEGMENT_COUNT) {
+                throw new ParseException("Segment count must be between 1 and " + MAX_SEGMENT_COUNT + ": '" +
+                        spec_string + "'.", 0);
+            }
+            if (this.off_heap_size != 0 && this.off_heap_size < MIN_OFF_HEAP_SIZE) {
+                throw new ParseException("Off-heap memory must be at least 1M: '" + spec_string + "'.", 0);
+            }
+            
+        } else if (spec.getName().equalsIgnoreCase("log")) {
+            spec.verifyParameters("file", "merge");
+            this.storage_type = StorageType.LOG;
+            this.data_file_size = spec.getSize("file", this.data_file_size);
+            this.merge_interval = spec.getInt("merge", this.merge_interval);
+            
+            if (this.data_file_size < 1) {
+                throw new ParseException("Data file size must be positive: '" + spec_string + "'.", 0);
+            }
+            
+        } else if (spec.getName().equalsIgnoreCase("lsm")) {
+            spec.verifyParameters("memtable", "compactions");
+            this.storage_type = StorageType.LSM;
+            this.memtable_size = spec.getInt("memtable", this.memtable_size);
+            this.compaction_threads = spec.getInt("compactions", this.compaction_threads);
+            
+            if (this.memtable_size < 1 || this.compaction_threads < 1) {
+                throw new ParseException("Memtable size and thread count must be positive: '" + spec_string + "'.", 0);
+            }
+            
+        } else {
+            throw new ParseException("Unknown storage engine: '" + spec.getName() + "'.", 0);
+        }
+    }
+    
+    /**
+     * Configures a cache in front of the storage engine from a specification of
+     * the form "policy[:entries=N,bytes=SIZE]", where the policy is one of "lru",
+     * "lfu", "fifo" and "arc". Without limits, the cache holds up to 64 MB.
+     * @param spec_string Cache specification
+     * @throws ParseException Thrown if the specification is invalid
+     */
+    public void parseCache(String spec_string) throws ParseException {
+        ParameterSpec   spec = new ParameterSpec(spec_string);
+        
+        spec.verifyParameters("entries", "bytes");
+        try {
+            this.cache_policy = CachedStorage.EvictionPolicy.valueOf(spec.getName().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new ParseException("Unknown cache eviction policy: '" + spec.getName() + "'.", 0);
+        }
+        
+        if (spec.hasParameter("entries") || spec.hasParameter("bytes")) {
+            this.cache_entries = spec.getSize("entries", 0);
+            this.cache_bytes = spec.getSize("bytes", 0);
+            if (this.cache_entries == 0 && this.cache_bytes == 0) {
+                throw new ParseException("Cache limits may not be both zero: '" + spec_string + "'.", 0);
+            }
+        }
+    }
+    
+    /**
+     * Sets the directory holding the persistent data of the server. Without it,
+     * the in-memory storage is not persisted, while the disk-based storage engines
+     * use the 'data' directory next to the server jar.
+     * @param path Directory path
+     */
+    public void setDataDirectory(String path) {
+        this.data_directory = new File(path);
+    }
+    
+    /**
+     * Configures how often the write-ahead log is synced to the disk.
+     * @param interval_string Interval in milliseconds; 0 makes every write wait
+     *          until it is durable
+     * @throws ParseException Thrown if the interval is invalid
+     */
+    public void parseSyncInterval(String interval_string) throws ParseException {
+        try {
+            this.sync_interval = Integer.parseInt(interval_string);
+        } catch (NumberFormatException e) {
+            this.sync_interval = -1;
+        }
+        if (this.sync_interval < 0) {
+            throw new ParseException("Invalid sync interval: '" + interval_string + "'.", 0);
+        }
+    }
+    
+    /**
+     * Configures how often a snapshot of the storage is written to the data
+     * directory, which bounds the length of the log replayed on startup.
+     * @param interval_string Interval in seconds; 0 disables periodic snapshots
+     * @throws ParseException Thrown if the interval is invalid
+     */
+    public void parseSnapshotInterval(String interval_string) throws ParseException {
+        try {
+            this.snapshot_interval = Integer.parseInt(interval_string);
+        } catch (NumberFormatException e) {
+            this.snapshot_interval = -1;
+        }
+        if (this.snapshot_interval < 0) {
+            throw new ParseException("Invalid snapshot interval: '" + interval_string + "'.", 0);
+        }
+    }
+    
+    /**
+     * Configures how many TRANSFER messages are sent ahead of their
+     * acknowledgements when data is moved to another server.
+     * @param window_string Number of messages; at least 1
+     * @throws ParseException Thrown if the number is invalid
+     */
+    public void parseTransferWindow(String window_string) throws ParseException {
+        try {
+            this.transfer_window = Integer.parseInt(window_string);
+        } catch (NumberFormatException e) {
+            this.transfer_window = 0;
+        }
+        if (this.transfer_window < 1) {
+            throw new ParseException("Invalid transfer window: '" + window_string + "'.", 0);
+        }
+    }
+    
+    public FrontEnd getFrontEnd() {
+        return this.front_end;
+    }
+    
+    public int getIoThreads() {
+        return this.io_threads;
+    }
+    
+    public int getWorkerThreads() {
+        return this.worker_threads;
+    }
+    
+    public int getQueueSize() {
+        return this.queue_size;
+    }
+    
+    /**
+     * @return The directory set by setDataDirectory(); otherwise the 'data'
+     *          directory next to the server jar for the disk-based storage engines,
+     *          and null for the in-memory storage
+     */
+    public File getDataDirectory() {
+        if (this.data_directory == null && this.storage_type != StorageType.MEMORY) {
+            return ServerConfig.defaultDataDirectory();
+        }
+        return this.data_directory;
+    }
+    
+    /**
+     * Locates the 'data' directory next to the jar (or the class directory) the
+     * server is loaded from, which does not depend on the working directory of
+     * the launched server.
+     */
+    private static File defaultDataDirectory() {
+        CodeSource  source = ServerConfig.class.getProtectionDomain().getCodeSource();
+        File        base = null;
+        
+        if (source != null) {
+            try {
+                base = new File(source.getLocation().toURI()).getAbsoluteFile().getParentFile();
+            } catch (URISyntaxException ex) {
+            } catch (IllegalArgumentException ex) { // Not a file URI
+            }
+        }
+        
+        return new File(base, "data");
+    }
+    
+    public int getSyncInterval() {
+        return this.sync_interval;
+    }
+    
+    public int getSnapshotInterval() {
+        return this.snapshot_interval;
+    }
+    
+    public int getTransferWindow() {
+        return this.transfer_window;
+    }
+    
+    public StorageType getStorageType() {
+        return this.storage_type;
+    }
+    
+    public int getSegmentCount() {
+        return this.segment_count;
+    }
+    
+    /**
+     * @return Maximum amount of direct memory for the values of the in-memory
+     *          engine, or 0 if the values are kept on the heap
+     */
+    public long getOffHeapSize() {
+        return this.off_heap_size;
+    }
+    
+    /**
+     * @return Number of keys the in-memory engine is presized for, or 0
+     */
+    public long getExpectedKeys() {
+        return this.expected_keys;
+    }
+    
+    public long getDataFileSize() {
+        return this.data_file_size;
+    }
+    
+    public int getMergeInterval() {
+        return this.merge_interval;
+    }
+    
+    public int getMemtableSize() {
+        return this.memtable_size;
+    }
+    
+    public int getCompactionThreads() {
+        return this.compaction_threads;
+    }
+    
+    /**
+     * @return The eviction policy of the cache, or null if no cache is configured
+     */
+    public CachedStorage.EvictionPolicy getCachePolicy() {
+        return this.cache_policy;
+    }
+    
+    public long getCacheEntries() {
+        return this.cache_entries;
+    }
+    
+    public long getCacheBytes() {
+        return this.cache_bytes;
+    }
+}
@@ -0,0 +1,22 @@
+package client;
+
+/**
+ * Receives the outcome of an asynchronous KVStore request. The methods are
+ * invoked on the network thread of the client and must not block.
+ * @param <V> Type of the result
+ * @author Danila Klimenko
+ */
+public interface KVCallback<V> {
+    
+    /**
+     * Called when the request has been answered.
+     * @param reply Result of the request
+     */
+    public void onReply(V reply);
+    
+    /**
+     * Called when the request could not be delivered to a responsible server.
+     * @param ex Cause of the failure
+     */
+    public void onFailure(Exception ex);
+}
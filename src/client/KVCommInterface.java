@@ -42,4 +42,30 @@ public interface KVCommInterface {
 	 *             KV server).
 	 */
 	public KVMessage get(String key) throws Exception;
+
+	/**
+	 * Asynchronously inserts a key-value pair into the storage service. Redirects
+	 * to the responsible server are followed without blocking the caller.
+	 *
+	 * @param key
+	 *            the key that identifies the given value.
+	 * @param value
+	 *            the value that is indexed by the given key.
+	 * @param callback
+	 *            receives the outcome of the request; may be null.
+	 * @return a future completed with the reply of the responsible server.
+	 */
+	public KVFuture<KVMessage> putAsync(String key, String value, KVCallback<KVMessage> callback);
+
+	/**
+	 * Asynchronously retrieves the value for a given key from the storage
+	 * service.
+	 *
+	 * @param key
+	 *            the key that identifies the value.
+	 * @param callback
+	 *            receives the outcome of the request; may be null.
+	 * @return a future completed with the reply of the responsible server.
+	 */
+	public KVFuture<KVMessage> getAsync(String key, KVCallback<KVMessage> callback);
 }
@@ -0,0 +1,103 @@
+package client;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import logger.LogSetup;
+import org.apache.log4j.Logger;
+
+/**
+ * Pending result of an asynchronous KVStore request. Requests cannot be
+ * cancelled once they are submitted.
+ * @param <V> Type of the result
+ * @author Danila Klimenko
+ */
+public class KVFuture<V> implements Future<V> {
+    private static final Logger logger = LogSetup.getLogger();
+    
+    private final KVCallback<V>     callback;
+    private final CountDownLatch    latch;
+    private final AtomicBoolean     done;
+    private volatile V              reply;
+    private volatile Exception      error;
+    
+    KVFuture(KVCallback<V> callback) {
+        this.callback = callback;
+        this.latch = new CountDownLatch(1);
+        this.done = new AtomicBoolean(false);
+        this.reply = null;
+        this.error = null;
+    }
+    
+    void complete(V reply) {
+        if (!this.done.compareAndSet(false, true)) {
+            return;
+        }
+        this.reply = reply;
+        this.latch.countDown();
+        
+        if (this.callback != null) {
+            try {
+                this.callback.onReply(reply);
+            } catch (RuntimeException ex) {
+                logger.error("Reply callback has thrown an exception: " + ex.getMessage());
+            }
+        }
+    }
+    
+    void fail(Exception error) {
+        if (!this.done.compareAndSet(false, true)) {
+            return;
+        }
+        this.error = error;
+        this.latch.countDown();
+        
+        if (this.callback != null) {
+            try {
+                this.callback.onFailure(error);
+            } catch (RuntimeException ex) {
+                logger.error("Failure callback has thrown an exception: " + ex.getMessage());
+            }
+        }
+    }
+    
+    @Override
+    public boolean cancel(boolean may_interrupt) {
+        return false;
+    }
+    
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+    
+    @Override
+    public boolean isDone() {
+        return this.latch.getCount() == 0;
+    }
+    
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        this.latch.await();
+        return this.result();
+    }
+    
+    @Override
+    public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+        if (!this.latch.await(timeout, unit)) {
+            throw new TimeoutException("No reply within " + timeout + " " + unit.name().toLowerCase() + ".");
+        }
+        return this.result();
+    }
+    
+    private V result() throws ExecutionException {
+        if (this.error != null) {
+            throw new ExecutionException(this.error);
+        }
+        return this.reply;
+    }
+}
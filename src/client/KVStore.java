@@ -7,203 +7,770 @@ import common.topology.HashValue;
 import common.topology.ServerAddress;
 import common.topology.ServiceMetaData;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.ProtocolException;
-import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import logger.LogSetup;
 import org.apache.log4j.Logger;
 
 /**
- *
+ * Client library for the storage service. A KVStore instance may be shared by
+ * several threads. All requests are routed by a single network thread, which
+ * keeps a non-blocking connection to every known server, pipelines the requests
+ * over them and follows the redirects of the servers. Blocking operations are
+ * implemented on top of the asynchronous ones. Batch operations split their keys
+ * by the responsible servers and send the per-server batches in parallel.
  * @author Danila Klimenko
  */
 public class KVStore implements KVCommInterface {
     private static final Logger logger = LogSetup.getLogger();
+    private static final int    MAX_ROUTING_ATTEMPTS = 16;
+    private static final int    MAX_BATCH_ENTRIES = 1024;
+    private static final int    MAX_BATCH_PAYLOAD = 64 * 1024;
     
-    private final ServerAddress                         default_server_address;
-    private final Map<ServerAddress, ServerConnection>  connections;
-    private ServiceMetaData                             meta_data;
-    private boolean                                     online;
+    private final ServerAddress default_server_address;
+    private volatile Dispatcher dispatcher;
+    private volatile boolean    online;
     
     public KVStore(String address, int port) {
         this.default_server_address = new ServerAddress(address, port);
-        this.connections = new HashMap<ServerAddress, ServerConnection>();
-        this.meta_data = null;
+        this.dispatcher = null;
         this.online = false;
     }
-
+    
     @Override
     public void connect() throws Exception {
-        this.addConnection(this.default_server_address);
+        this.disconnect();
+        
+        SocketChannel   channel = SocketChannel.open();
+        try {
+            channel.connect(new InetSocketAddress(this.default_server_address.getAddress(),
+                    this.default_server_address.getPort()));
+        } catch (IOException ex) {
+            channel.close();
+            logger.error("Failed to connect to server '" + this.default_server_address + "': " + ex.getMessage());
+            throw ex;
+        }
+        logger.info("Connected to a new server at '" + this.default_server_address + "'.");
+        
+        Dispatcher  new_dispatcher = new Dispatcher();
+        new_dispatcher.attach(this.default_server_address, channel);
+        new_dispatcher.start();
+        
+        this.dispatcher = new_dispatcher;
         this.online = true;
     }
-
+    
     @Override
     public void disconnect() {
-        for (ServerConnection connecion : this.connections.values()) {
-            connecion.disconnect();
+        Dispatcher  current = this.dispatcher;
+        
+        if (current != null) {
+            current.shutDown();
+            this.dispatcher = null;
         }
-        this.connections.clear();
         this.online = false;
     }
-
+    
     @Override
     public KVMessage put(String key, String value) throws Exception {
-        if (!this.online) {
-            throw new IOException("Operation 'put' is unavailable while client is offline.");
-        }
+        return KVStore.await(this.putAsync(key, value, null));
+    }
+    
+    @Override
+    public KVMessage get(String key) throws Exception {
+        return KVStore.await(this.getAsync(key, null));
+    }
+    
+    @Override
+    public KVFuture<KVMessage> putAsync(String key, String value, KVCallback<KVMessage> callback) {
         if (key == null) {
             throw new IllegalArgumentException("Key may not be null.");
         }
-        return this.processRequest(new KVMessageRaw(KVMessage.StatusType.PUT, key, value));
+        
+        KVFuture<KVMessage> future = new KVFuture<KVMessage>(callback);
+        this.submit(new Request(new KVMessageRaw(KVMessage.StatusType.PUT, key, value), future, null), future);
+        return future;
     }
-
+    
     @Override
-    public KVMessage get(String key) throws Exception {
-        if (!this.online) {
-            throw new IOException("Operation 'get' is unavailable while client is offline.");
-        }
+    public KVFuture<KVMessage> getAsync(String key, KVCallback<KVMessage> callback) {
         if (key == null) {
             throw new IllegalArgumentException("Key may not be null.");
         }
-        return this.processRequest(new KVMessageRaw(KVMessage.StatusType.GET, key, null));
+        
+        KVFuture<KVMessage> future = new KVFuture<KVMessage>(callback);
+        this.submit(new Request(new KVMessageRaw(KVMessage.StatusType.GET, key, null), future, null), future);
+        return future;
     }
     
-    private ServerConnection addConnection(ServerAddress server_address) throws IOException {
-        try {
-            ServerConnection    connection = new ServerConnection(this, server_address);
-            this.connections.put(server_address, connection);
-            logger.info("Connected to a new server at '" + server_address + "'.");
-            return connection;
-            
-        } catch (IOException ex) {
-            logger.error("Failed to connect to server '" + server_address + "': " + ex.getMessage());
-            throw ex;
+    /**
+     * Retrieves the values for many keys at once.
+     * @param keys The keys that identify the values
+     * @return Map from every key to the reply for this key
+     * @throws Exception Thrown if the batch cannot be executed
+     */
+    public Map<String, KVMessage> getAll(Collection<String> keys) throws Exception {
+        return KVStore.await(this.getAllAsync(keys, null));
+    }
+    
+    /**
+     * Inserts, updates or (for null values) deletes many key-value pairs at once.
+     * @param pairs The key-value pairs
+     * @return Map from every key to the reply for this key
+     * @throws Exception Thrown if the batch cannot be executed
+     */
+    public Map<String, KVMessage> putAll(Map<String, String> pairs) throws Exception {
+        return KVStore.await(this.putAllAsync(pairs, null));
+    }
+    
+    public KVFuture<Map<String, KVMessage>> getAllAsync(Collection<String> keys,
+            KVCallback<Map<String, KVMessage>> callback) {
+        List<KVMessageRaw>  entries = new ArrayList<KVMessageRaw>(keys.size());
+        
+        for (String key : new LinkedHashSet<String>(keys)) {
+            if (key == null) {
+                throw new IllegalArgumentException("Key may not be null.");
+            }
+            entries.add(new KVMessageRaw(KVMessage.StatusType.GET, key, null));
         }
+        
+        return this.submitBatch(KVMessage.StatusType.GET_BATCH, entries, callback);
     }
     
-    private ServerConnection getConnection(ServerAddress server_address) {
-        return this.connections.get(server_address);
+    public KVFuture<Map<String, KVMessage>> putAllAsync(Map<String, String> pairs,
+            KVCallback<Map<String, KVMessage>> callback) {
+        List<KVMessageRaw>  entries = new ArrayList<KVMessageRaw>(pairs.size());
+        
+        for (Map.Entry<String, String> pair : pairs.entrySet()) {
+            if (pair.getKey() == null) {
+                throw new IllegalArgumentException("Key may not be null.");
+            }
+            entries.add(new KVMessageRaw(KVMessage.StatusType.PUT, pair.getKey(), pair.getValue()));
+        }
+        
+        return this.submitBatch(KVMessage.StatusType.PUT_BATCH, entries, callback);
     }
     
-    private ServerConnection getAnyConnection() {
-        return this.connections.isEmpty() ? null : this.connections.values().iterator().next();
+    private KVFuture<Map<String, KVMessage>> submitBatch(KVMessage.StatusType type, List<KVMessageRaw> entries,
+            KVCallback<Map<String, KVMessage>> callback) {
+        KVFuture<Map<String, KVMessage>>    future = new KVFuture<Map<String, KVMessage>>(callback);
+        
+        if (entries.isEmpty()) {
+            future.complete(Collections.<String, KVMessage>emptyMap());
+        } else {
+            Batch   batch = new Batch(future, entries.size());
+            this.submit(new Request(new KVMessageRaw(type, entries, null, KVMessageRaw.NO_REQUEST_ID), null, batch), future);
+        }
+        
+        return future;
     }
     
-    private ServerConnection findConnectionForKey(String key) {
-        ServerConnection    connection;
+    private void submit(Request request, KVFuture<?> future) {
+        Dispatcher  current = this.dispatcher;
         
+        if (!this.online || current == null) {
+            future.fail(new IOException("Operation '" + request.message.getStatus().name().toLowerCase() +
+                    "' is unavailable while client is offline."));
+        } else {
+            current.submit(request);
+        }
+    }
+    
+    private static <V> V await(KVFuture<V> future) throws Exception {
         try {
-            if (this.meta_data == null) {
-                connection = this.getAnyConnection();
-                if (connection == null) {
-                    connection = this.addConnection(this.default_server_address);
-                }
-                
-            } else {
-                ServerAddress   address = this.meta_data.getServerForKey(key);
-
-                connection = (this.hasConnection(address)) ? this.getConnection(address) : this.addConnection(address);
+            return future.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) {
+                throw (Exception) ex.getCause();
             }
-            
-        } catch (IOException ex) { // Failed to connect to the server
-            // Invalidate metadata if any
-            this.meta_data = null;
-            connection = this.getAnyConnection();
+            throw ex;
+        }
+    }
+    
+    /**
+     * Roughly estimates the size of a marshaled batch entry.
+     */
+    private static int estimateSize(KVMessageRaw entry) {
+        return 16 + entry.getKey().length() + ((entry.getValueBytes() != null) ? entry.getValueBytes().length : 0);
+    }
+    
+    /**
+     * A request on its way through the service: either a single query or (a part
+     * of) a batch.
+     */
+    private static class Request {
+        final KVMessageRaw          message;
+        final KVFuture<KVMessage>   future;
+        final Batch                 batch;
+        int                         attempts;
+        
+        Request(KVMessageRaw message, KVFuture<KVMessage> future, Batch batch) {
+            this.message = message;
+            this.future = future;
+            this.batch = batch;
+            this.attempts = 0;
         }
         
-        return connection;
+        void fail(Exception ex) {
+            if (this.batch != null) {
+                this.batch.future.fail(ex);
+            } else {
+                this.future.fail(ex);
+            }
+        }
     }
     
-    private boolean hasConnection(ServerAddress server_address) {
-        return this.connections.containsKey(server_address);
+    /**
+     * Collects the results of a batch, which may arrive from many servers.
+     */
+    private static class Batch {
+        final KVFuture<Map<String, KVMessage>>  future;
+        final Map<String, KVMessage>            results;
+        int                                     remaining;
+        
+        Batch(KVFuture<Map<String, KVMessage>> future, int size) {
+            this.future = future;
+            this.results = new LinkedHashMap<String, KVMessage>();
+            this.remaining = size;
+        }
+        
+        void addResult(KVMessage result) {
+            if (this.results.put(result.getKey(), result) == null && --this.remaining == 0) {
+                this.future.complete(Collections.unmodifiableMap(this.results));
+            }
+        }
     }
     
-    private KVMessageRaw processRequest(KVMessageRaw kvmsg) throws IOException {
-        ServerConnection    connection = this.findConnectionForKey(kvmsg.getKey());
-        KVMessageRaw        reply = null;
+    /**
+     * The network thread of the client. The connections and the metadata are
+     * confined to this thread, so that routing needs no locking.
+     */
+    private class Dispatcher implements Runnable {
+        private final Selector                              selector;
+        private final Queue<Request>                        submitted;
+        private final Map<ServerAddress, ServerConnection>  connections;
+        private final Thread                                thread;
+        private ServiceMetaData                             meta_data;
+        private volatile boolean                            running;
+        
+        Dispatcher() throws IOException {
+            this.selector = Selector.open();
+            this.submitted = new ConcurrentLinkedQueue<Request>();
+            this.connections = new HashMap<ServerAddress, ServerConnection>();
+            this.thread = new Thread(this, "kv-client");
+            this.thread.setDaemon(true);
+            this.meta_data = null;
+            this.running = false;
+        }
+        
+        /**
+         * Hands an already established connection over to the dispatcher. May only
+         * be called before the dispatcher is started.
+         */
+        void attach(ServerAddress server_address, SocketChannel channel) throws IOException {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            
+            SelectionKey    key = channel.register(this.selector, SelectionKey.OP_READ);
+            this.connections.put(server_address, new ServerConnection(server_address, channel, key, true));
+        }
+        
+        void start() {
+            this.running = true;
+            this.thread.start();
+        }
+        
+        void shutDown() {
+            this.running = false;
+            this.selector.wakeup();
+            
+            if (Thread.currentThread() != this.thread) { // Callbacks may disconnect the client as well
+                try {
+                    this.thread.join();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        
+        void submit(Request request) {
+            this.submitted.add(request);
+            
+            if (this.running) {
+                this.selector.wakeup();
+            } else { // The dispatcher might have missed the request while shutting down
+                this.failSubmitted();
+            }
+        }
         
-        while (reply == null && connection != null) {
+        @Override
+        public void run() {
             try {
-                logger.info("Sending '" + kvmsg.getStatus().name() + "' request with {key='" + kvmsg.getKey() + "'; value='" +
-                        kvmsg.getValue() + "'} to server '" + connection.server_address + "'.");
-                reply = connection.processRequest(kvmsg);
-
-            } catch (IOException ex) { // Connection to server is lost
-                // Try another connection
-                this.connections.remove(connection.server_address);
-                connection = this.findConnectionForKey(kvmsg.getKey());
+                while (this.running) {
+                    this.selector.select();
+                    
+                    Request request;
+                    while ((request = this.submitted.poll()) != null) {
+                        this.route(request);
+                    }
+                    
+                    Iterator<SelectionKey>  it = this.selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey        key = it.next();
+                        ServerConnection    connection = (ServerConnection) key.attachment();
+                        it.remove();
+                        
+                        try {
+                            if (key.isValid() && key.isConnectable()) {
+                                connection.onConnectable();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException ex) {
+                            this.connectionFailed(connection, ex);
+                        }
+                    }
+                }
+                
+            } catch (IOException ex) {
+                logger.error("Client network thread has failed: " + ex.getMessage());
+                
+            } finally {
+                this.cleanUp();
             }
         }
-        if (connection == null || reply == null) {
-            this.online = false;
-            throw new IOException("Unable to connect to any of known service nodes.");
+        
+        /**
+         * Sends the request to the server, which is responsible for its key according
+         * to the current metadata. Without metadata any known server is used.
+         */
+        private void route(Request request) {
+            String  key = request.message.getKey();
+            
+            if (++request.attempts > MAX_ROUTING_ATTEMPTS) {
+                request.fail(new IOException("Unable to find the server responsible for " +
+                        ((request.batch != null) ? "a batch" : "key '" + key + "'") +
+                        " after " + MAX_ROUTING_ATTEMPTS + " attempts."));
+                return;
+            }
+            if (request.batch != null) {
+                this.routeBatch(request);
+                return;
+            }
+            
+            ServerAddress       address = this.addressForKey(key);
+            ServerConnection    connection = this.connectionTo(address, request);
+            if (connection != null) {
+                logger.info("Sending '" + request.message.getStatus().name() + "' request with {key='" + key +
+                        "'; value='" + request.message.getValue() + "'} to server '" + address + "'.");
+                connection.send(request);
+            }
         }
         
-        if (reply.getStatus() == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
-            logger.info("Server '" + connection.server_address + "' is not responsible for key '" + kvmsg.getKey() +
-                    "' (having hash='" + HashValue.hashKey(kvmsg.getKey()) + "'). Updating metadata.");
-            this.meta_data = reply.getMetaData();
-            logger.debug("Metadata: \n" + this.meta_data);
-            reply = this.processRequest(kvmsg);
-        } else {
-            logger.info("Received reply '" + reply.getStatus().name() + "' with {key='" + reply.getKey() + "'; value='" +
-                    reply.getValue() + "'} from server '" + connection.server_address + "'.");
+        /**
+         * Splits the batch by the responsible servers and sends the parts. Parts
+         * exceeding the batch size limits are split further.
+         */
+        private void routeBatch(Request request) {
+            KVMessage.StatusType                        type = request.message.getStatus();
+            Map<ServerAddress, List<KVMessageRaw>>      groups = new LinkedHashMap<ServerAddress, List<KVMessageRaw>>();
+            
+            for (KVMessageRaw entry : request.message.getEntries()) {
+                ServerAddress       address = this.addressForKey(entry.getKey());
+                List<KVMessageRaw>  group = groups.get(address);
+                if (group == null) {
+                    group = new ArrayList<KVMessageRaw>();
+                    groups.put(address, group);
+                }
+                group.add(entry);
+            }
+            
+            for (Map.Entry<ServerAddress, List<KVMessageRaw>> group : groups.entrySet()) {
+                List<KVMessageRaw>  entries = group.getValue();
+                int                 begin = 0;
+                
+                while (begin < entries.size()) {
+                    int end = begin;
+                    int payload = 0;
+                    while (end < entries.size() && end - begin < MAX_BATCH_ENTRIES &&
+                            (end == begin || payload + KVStore.estimateSize(entries.get(end)) <= MAX_BATCH_PAYLOAD)) {
+                        payload += KVStore.estimateSize(entries.get(end++));
+                    }
+                    
+                    Request part = new Request(new KVMessageRaw(type, entries.subList(begin, end), null,
+                            KVMessageRaw.NO_REQUEST_ID), null, request.batch);
+                    part.attempts = request.attempts;
+                    begin = end;
+                    
+                    ServerConnection    connection = this.connectionTo(group.getKey(), part);
+                    if (connection != null) {
+                        logger.info("Sending '" + type.name() + "' request with " + part.message.getEntries().size() +
+                                " entries to server '" + group.getKey() + "'.");
+                        connection.send(part);
+                    }
+                }
+            }
         }
         
-        return reply;
-    }
-    
-    private static class ServerConnection {
-        private static final Logger logger = LogSetup.getLogger();
+        private ServerAddress addressForKey(String key) {
+            if (this.meta_data != null) {
+                return this.meta_data.getServerForKey(key);
+            } else if (!this.connections.isEmpty()) {
+                return this.connections.keySet().iterator().next();
+            } else {
+                return KVStore.this.default_server_address;
+            }
+        }
         
-        private final KVStore       master;
-        private final ServerAddress server_address;
-        private final Socket        server_socket;
-        private final InputStream   input_stream;
-        private final OutputStream  output_stream;
+        /**
+         * Returns the connection to the server, establishing it if necessary. If the
+         * server is unreachable, the request is routed anew and null is returned.
+         */
+        private ServerConnection connectionTo(ServerAddress address, Request request) {
+            ServerConnection    connection = this.connections.get(address);
+            
+            if (connection == null) {
+                try {
+                    connection = this.openConnection(address);
+                } catch (IOException ex) { // Failed to connect to the server
+                    logger.error("Failed to connect to server '" + address + "': " + ex.getMessage());
+                    this.reroute(address, request);
+                    return null;
+                }
+            }
+            
+            return connection;
+        }
         
-        public ServerConnection(KVStore master, ServerAddress server_address) throws IOException {
-            this.master = master;
-            this.server_address = server_address;
-            this.server_socket = new Socket(this.server_address.getAddress(), this.server_address.getPort());
-            this.input_stream = this.server_socket.getInputStream();
-            this.output_stream = this.server_socket.getOutputStream();
+        /**
+         * Routes the request anew after its server has become unavailable.
+         */
+        private void reroute(ServerAddress failed_address, Request request) {
+            // Invalidate metadata if any
+            this.meta_data = null;
+            
+            if (this.connections.isEmpty() && failed_address.equals(KVStore.this.default_server_address)) {
+                KVStore.this.online = false;
+                request.fail(new IOException("Unable to connect to any of known service nodes."));
+            } else {
+                this.route(request);
+            }
         }
         
-        public void disconnect() {
+        private ServerConnection openConnection(ServerAddress server_address) throws IOException {
+            SocketChannel   channel = SocketChannel.open();
+            
             try {
-                this.input_stream.close();
-                this.output_stream.close();
-                if (!this.server_socket.isClosed()) {
-                    this.server_socket.close();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                
+                boolean             connected = channel.connect(new InetSocketAddress(server_address.getAddress(),
+                        server_address.getPort()));
+                SelectionKey        key = channel.register(this.selector,
+                        connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT);
+                ServerConnection    connection = new ServerConnection(server_address, channel, key, connected);
+                
+                this.connections.put(server_address, connection);
+                logger.info("Connecting to a new server at '" + server_address + "'.");
+                return connection;
+                
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+        
+        private void onReply(ServerConnection connection, Request request, KVMessageRaw reply) {
+            String  key = request.message.getKey();
+            
+            if (request.batch != null) {
+                this.onBatchReply(connection, request, reply);
+                
+            } else if (reply.getStatus() == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
+                logger.info("Server '" + connection.server_address + "' is not responsible for key '" + key +
+                        "' (having hash='" + HashValue.hashKey(key) + "'). Updating metadata.");
+                this.meta_data = reply.getMetaData();
+                logger.debug("Metadata: \n" + this.meta_data);
+                this.route(request);
+                
+            } else {
+                logger.info("Received reply '" + reply.getStatus().name() + "' with {key='" + reply.getKey() +
+                        "'; value='" + reply.getValue() + "'} from server '" + connection.server_address + "'.");
+                request.future.complete(reply);
+            }
+        }
+        
+        private void onBatchReply(ServerConnection connection, Request request, KVMessageRaw reply) {
+            List<KVMessageRaw>  entries = request.message.getEntries();
+            
+            logger.info("Received reply '" + reply.getStatus().name() + "' to a batch of " + entries.size() +
+                    " entries from server '" + connection.server_address + "'.");
+            
+            if (reply.getStatus() != KVMessage.StatusType.BATCH_REPLY) { // The whole batch is rejected
+                for (KVMessageRaw entry : entries) {
+                    request.batch.addResult(new KVMessageRaw(reply.getStatus(), entry.getKey(), reply.getValue()));
+                }
+                return;
+            }
+            
+            List<KVMessageRaw>  results = reply.getEntries();
+            if (results.size() != entries.size()) {
+                request.fail(new ProtocolException("Server (" + connection.server_address + ") replied with " +
+                        results.size() + " results to a batch of " + entries.size() + " entries."));
+                return;
+            }
+            
+            List<KVMessageRaw>  resend = new ArrayList<KVMessageRaw>();
+            boolean             redirected = false;
+            
+            for (int i = 0; i < results.size(); ++i) {
+                KVMessage.StatusType    status = results.get(i).getStatus();
+                
+                if (status == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
+                    resend.add(entries.get(i));
+                    redirected = true;
+                } else if (status == entries.get(i).getStatus()) { // Did not fit into the reply
+                    resend.add(entries.get(i));
+                } else {
+                    request.batch.addResult(results.get(i));
                 }
-            }  catch (IOException ex) {
-                logger.warn("Warning! Unable to tear down connection to server (" + this.server_address.toString() +
-                        "): " + ex.getMessage());
+            }
+            
+            if (redirected && reply.getMetaData() != null) {
+                logger.info("Server '" + connection.server_address + "' is not responsible for some keys of the batch." +
+                        " Updating metadata.");
+                this.meta_data = reply.getMetaData();
+                logger.debug("Metadata: \n" + this.meta_data);
+            }
+            if (!resend.isEmpty()) {
+                Request rest = new Request(new KVMessageRaw(request.message.getStatus(), resend, null,
+                        KVMessageRaw.NO_REQUEST_ID), null, request.batch);
+                // Only redirects count as routing attempts
+                rest.attempts = redirected ? request.attempts : request.attempts - 1;
+                this.route(rest);
             }
         }
         
-        public KVMessageRaw processRequest(KVMessageRaw kvmsg) throws IOException {
-            NetworkMessage  netmsg = new NetworkMessage(KVMessageRaw.marshal(kvmsg));
+        private void connectionFailed(ServerConnection connection, IOException ex) {
+            logger.warn("Connection to server '" + connection.server_address + "' is lost: " + ex.getMessage());
             
-            netmsg.writeTo(this.output_stream);
+            this.connections.remove(connection.server_address);
+            connection.close();
+            
+            // Try another connection
+            for (Request request : connection.drainPending()) {
+                this.reroute(connection.server_address, request);
+            }
+        }
+        
+        private void failSubmitted() {
+            Request request;
+            while ((request = this.submitted.poll()) != null) {
+                request.fail(new IOException("Client is disconnected."));
+            }
+        }
+        
+        private void cleanUp() {
+            this.running = false;
             
-            netmsg = NetworkMessage.readFrom(this.input_stream);
+            for (ServerConnection connection : this.connections.values()) {
+                connection.close();
+                for (Request request : connection.drainPending()) {
+                    request.fail(new IOException("Client is disconnected."));
+                }
+            }
+            this.connections.clear();
+            this.failSubmitted();
             
             try {
-                kvmsg = KVMessageRaw.unmarshal(netmsg.getData());
+                this.selector.close();
+            } catch (IOException ex) {
+                logger.warn("Warning! Unable to close the client selector: " + ex.getMessage());
+            }
+        }
+        
+        /**
+         * A non-blocking connection to a single server. Replies are matched to the
+         * requests by request id.
+         * The connection starts with the compact message format. The first request
+         * serves as a probe: further requests are held back until it is answered,
+         * and if the server rejects the compact format, the connection falls back
+         * to the legacy one. A legacy server knows neither request ids nor the
+         * compact format, so in the fallback mode the requests are sent untagged,
+         * one at a time, and every reply belongs to the only request in flight.
+         */
+        private class ServerConnection {
+            private final ServerAddress         server_address;
+            private final SocketChannel         channel;
+            private final SelectionKey          key;
+            private final NetworkMessage.Decoder decoder;
+            private final NetworkMessage.Writer output;
+            private final Map<Integer, Request> pending;
+            private final List<Request>         held;
+            private int                         next_request_id;
+            private boolean                     connected;
+            private boolean                     compact;
+            private boolean                     negotiated;
+            private boolean                     legacy;
+            
+            ServerConnection(ServerAddress server_address, SocketChannel channel, SelectionKey key, boolean connected) {
+                this.server_address = server_address;
+                this.channel = channel;
+                this.key = key;
+                this.decoder = new NetworkMessage.Decoder();
+                this.output = new NetworkMessage.Writer();
+                this.pending = new HashMap<Integer, Request>();
+                this.held = new ArrayList<Request>();
+                this.next_request_id = 0;
+                this.connected = connected;
+                this.compact = true;
+                this.negotiated = false;
+                this.legacy = false;
+                
+                this.key.attach(this);
+            }
+            
+            void send(Request request) {
+                // Wait for the reply to the probe, or to the previous legacy request
+                if ((!this.negotiated || this.legacy) && !this.pending.isEmpty()) {
+                    this.held.add(request);
+                } else {
+                    this.transmit(request);
+                }
+            }
+            
+            private void transmit(Request request) {
+                int             request_id = this.legacy ? KVMessageRaw.NO_REQUEST_ID :
+                        this.next_request_id++ & Integer.MAX_VALUE;
+                NetworkMessage  netmsg;
+                
+                try {
+                    netmsg = KVMessageRaw.toNetworkMessage(request.message.withRequestId(request_id), this.compact);
+                } catch (IOException ex) { // The message is too large to be sent
+                    request.fail(ex);
+                    return;
+                }
+                this.pending.put(request_id, request);
+                this.output.add(netmsg);
+                
+                if (this.connected) {
+                    this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+            
+            void onConnectable() throws IOException {
+                if (this.channel.finishConnect()) {
+                    this.connected = true;
+                    logger.info("Connected to a new server at '" + this.server_address + "'.");
+                    this.key.interestOps(this.output.isEmpty() ?
+                            SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+            
+            void onReadable() throws IOException {
+                NetworkMessage  netmsg;
+                
+                while ((netmsg = this.decoder.read(this.channel)) != null) {
+                    KVMessageRaw    reply;
+                    
+                    try {
+                        reply = KVMessageRaw.unmarshal(netmsg.getPayload());
+                    } catch (ParseException ex) {
+                        throw new ProtocolException("Failed to parse message from server (" + this.server_address +
+                                "): " + ex.getMessage());
+                    }
+                    
+                    if (!this.negotiated && this.compact && reply.getRequestId() == KVMessageRaw.NO_REQUEST_ID &&
+                            reply.getStatus() == KVMessage.StatusType.PROTOCOL_ERROR) {
+                        logger.info("Server '" + this.server_address + "' does not support the compact message format." +
+                                " Falling back to the legacy one.");
+                        this.compact = false;
+                        this.legacy = true;
+                        this.negotiated = true;
+                        this.output.clear();
+                        
+                        // The probe is sent again ahead of the held requests
+                        this.held.addAll(0, this.pending.values());
+                        this.pending.clear();
+                        this.releaseHeld();
+                        continue;
+                    }
+                    
+                    Request request = this.pending.remove(reply.getRequestId());
+                    if (request == null) {
+                        throw new ProtocolException("Server (" + this.server_address +
+                                ") replied to an unknown request (" + reply.getRequestId() + ").");
+                    }
+                    if (!this.negotiated || this.legacy) {
+                        this.negotiated = true;
+                        this.releaseHeld();
+                    }
+                    Dispatcher.this.onReply(this, request, reply);
+                }
+            }
+            
+            /**
+             * Sends the held requests; in the fallback mode only the next one.
+             */
+            private void releaseHeld() {
+                if (this.legacy) {
+                    while (this.pending.isEmpty() && !this.held.isEmpty()) { // Unless it cannot be sent
+                        this.transmit(this.held.remove(0));
+                    }
+                    return;
+                }
+                for (Request request : this.held) {
+                    this.transmit(request);
+                }
+                this.held.clear();
+            }
+            
+            void onWritable() throws IOException {
+                if (this.output.write(this.channel)) {
+                    this.key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+            
+            List<Request> drainPending() {
+                List<Request>   requests = new ArrayList<Request>(this.pending.values());
                 
-            } catch (ParseException ex) {
-                throw new ProtocolException("Failed to parse message from server (" + this.server_address.toString() +
-                        "): " + ex.getMessage());
+                requests.addAll(this.held);
+                this.pending.clear();
+                this.held.clear();
+                this.output.clear();
+                
+                return requests;
             }
             
-            return kvmsg;
+            void close() {
+                this.key.cancel();
+                try {
+                    this.channel.close();
+                } catch (IOException ex) {
+                    logger.warn("Warning! Unable to tear down connection to server (" + this.server_address +
+                            "): " + ex.getMessage());
+                }
+            }
         }
     }
 }
@@ -22,7 +22,8 @@ public class ControlMessage {
         MOVE_DATA,
         DELETE_DATA,
         UPDATE,
-        TRANSFER
+        TRANSFER,
+        TRANSFER_DELETE
     }
     
     private final ControlType           type;
@@ -150,7 +151,7 @@ public class ControlMessage {
         return (type == ControlType.MOVE_DATA) || (type == ControlType.DELETE_DATA);
     }
     private static boolean messageTypeHasKeyValuePacket(ControlType type) {
-        return (type == ControlType.TRANSFER);
+        return (type == ControlType.TRANSFER) || (type == ControlType.TRANSFER_DELETE);
     }
     
     
@@ -185,6 +186,37 @@ public class ControlMessage {
         return marshaller.getBytes();
     }
     
+    /**
+     * Starts marshaling a TRANSFER (or TRANSFER_DELETE) message whose key-value
+     * pairs are marshaled by the caller, one by one, right after the header (see
+     * KeyValuePacket.marshalPair()). The message is identical to the one
+     * marshaled from a complete packet.
+     * @param marshaller Empty marshaller
+     * @param type TRANSFER or TRANSFER_DELETE
+     * @return Size of the header
+     */
+    public static int beginTransfer(Marshaller marshaller, ControlType type) {
+        marshaller.marshalByte(CONTROLMESSAGE_SIGNATURE);
+        marshaller.marshalString(type.name());
+        marshaller.marshalInt(0); // Size of the packet, patched by finishTransfer()
+        marshaller.marshalInt(0); // Number of pairs
+        
+        return marshaller.size();
+    }
+    
+    /**
+     * Completes a message started by beginTransfer().
+     * @param marshaller Marshaller holding the message
+     * @param type Type the message was started with
+     * @param pair_count Number of pairs marshaled after the header
+     */
+    public static void finishTransfer(Marshaller marshaller, ControlType type, int pair_count) {
+        int packet_offset = 1 + Marshaller.sizeOfString(type.name());
+        
+        marshaller.patchInt(packet_offset, marshaller.size() - packet_offset - 4);
+        marshaller.patchInt(packet_offset + 4, pair_count);
+    }
+    
     public static ControlMessage unmarshal(byte[] data) throws ParseException {
         Unmarshaller unmarshaller = new Unmarshaller(data);
         
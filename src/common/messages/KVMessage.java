@@ -15,7 +15,10 @@ public interface KVMessage {
     	SERVER_STOPPED,         /* Server is stopped, no requests are processed */
     	SERVER_WRITE_LOCK,      /* Server locked for out, only get possible */
     	SERVER_NOT_RESPONSIBLE,  /* Request not successful, server not responsible for key */
-        PROTOCOL_ERROR  /* Returned after receiving an inconsistent message */
+        PROTOCOL_ERROR,  /* Returned after receiving an inconsistent message */
+        GET_BATCH,       /* Get - batch request, one entry per key */
+        PUT_BATCH,       /* Put - batch request, one entry per key-value pair */
+        BATCH_REPLY      /* Reply to a batch request, carrying a status per entry */
 }
 
 	/**
@@ -1,17 +1,37 @@
 package common.messages;
 
 import common.topology.ServiceMetaData;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
- * KVMessage implementation based on pure byte streams
+ * KVMessage implementation based on pure byte streams. A message may carry a
+ * request id, which allows a client to have several requests in flight on one
+ * connection and to match the replies, possibly arriving out of order.
+ * Batch messages (GET_BATCH, PUT_BATCH and BATCH_REPLY) carry a list of entries,
+ * each holding its own status, key and value.
+ * Messages are marshaled either in the legacy format, which spells out the
+ * message type and uses fixed-size lengths, or in the compact format with
+ * one-byte opcodes, varint lengths and flags for the optional fields. Servers
+ * answer every message in the format of the request.
+ * Values are kept as their UTF-8 representation, so that the server passes them
+ * through without decoding them.
  * @author Danila Klimenko
  */
 public class KVMessageRaw implements KVMessage {
+    public static final int         NO_REQUEST_ID = -1;
+    
     private final StatusType        type;
     private final String            key;
-    private final String            value;
+    private final byte[]            value;
     private final ServiceMetaData   meta_data;
+    private final int               request_id;
+    private final List<KVMessageRaw> entries;
+    private final boolean           compact;
     
     /**
      * Main constructor for the class. Used for a known key-value pair.
@@ -20,25 +40,97 @@ public class KVMessageRaw implements KVMessage {
      * @param value The value
      */
     public KVMessageRaw(StatusType type, String key, String value) {
+        this(type, key, value, null, NO_REQUEST_ID);
+    }
+    
+    public KVMessageRaw(StatusType type, String key, String value, ServiceMetaData meta_data) {
+        this(type, key, value, meta_data, NO_REQUEST_ID);
+    }
+    
+    public KVMessageRaw(StatusType type, String key, String value, ServiceMetaData meta_data, int request_id) {
+        this(type, key, (value != null) ? value.getBytes(Marshaller.UTF8) : null, meta_data, request_id, false);
+    }
+    
+    private KVMessageRaw(StatusType type, String key, byte[] value, ServiceMetaData meta_data, int request_id,
+            boolean compact) {
         if (type == null) {
             throw new IllegalArgumentException("KVMessageRaw(): type may not be null.");
         }
+        if (request_id < 0 && request_id != NO_REQUEST_ID) {
+            throw new IllegalArgumentException("KVMessageRaw(): request id may not be negative.");
+        }
         this.type = type;
         this.key = key;
         this.value = value;
-        this.meta_data = null;
+        this.meta_data = meta_data;
+        this.request_id = request_id;
+        this.entries = null;
+        this.compact = compact;
     }
     
-    public KVMessageRaw(StatusType type, String key, String value, ServiceMetaData meta_data) {
-        if (type == null) {
-            throw new IllegalArgumentException("KVMessageRaw(): type may not be null.");
+    /**
+     * Creates a message carrying the value in its UTF-8 representation. The array
+     * is not copied and may not be modified afterwards.
+     * @param type Message type
+     * @param key The key
+     * @param value UTF-8 representation of the value, or null
+     * @param meta_data Metadata attached to the message, or null
+     * @param request_id Request id, or NO_REQUEST_ID
+     * @return A new message
+     */
+    public static KVMessageRaw withValueBytes(StatusType type, String key, byte[] value, ServiceMetaData meta_data,
+            int request_id) {
+        return new KVMessageRaw(type, key, value, meta_data, request_id, false);
+    }
+    
+    /**
+     * Constructor for batch messages.
+     * @param type Batch message type
+     * @param entries Entries of the batch
+     * @param meta_data Metadata attached to the message, or null
+     * @param request_id Request id, or NO_REQUEST_ID
+     */
+    public KVMessageRaw(StatusType type, List<KVMessageRaw> entries, ServiceMetaData meta_data, int request_id) {
+        if (!KVMessageRaw.isBatchType(type)) {
+            throw new IllegalArgumentException("KVMessageRaw(): '" + type + "' is not a batch message type.");
+        }
+        if (entries == null) {
+            throw new IllegalArgumentException("KVMessageRaw(): entries may not be null.");
+        }
+        if (request_id < 0 && request_id != NO_REQUEST_ID) {
+            throw new IllegalArgumentException("KVMessageRaw(): request id may not be negative.");
         }
         this.type = type;
-        this.key = key;
-        this.value = value;
+        this.key = null;
+        this.value = null;
         this.meta_data = meta_data;
+        this.request_id = request_id;
+        this.entries = Collections.unmodifiableList(new ArrayList<KVMessageRaw>(entries));
+        this.compact = false;
     }
-
+    
+    private KVMessageRaw(KVMessageRaw other, int request_id, boolean compact) {
+        this.type = other.type;
+        this.key = other.key;
+        this.value = other.value;
+        this.meta_data = other.meta_data;
+        this.request_id = request_id;
+        this.entries = other.entries;
+        this.compact = compact;
+    }
+    
+    /**
+     * Creates a copy of the message tagged with the given request id.
+     * @param request_id Non-negative request id
+     * @return A new message
+     */
+    public KVMessageRaw withRequestId(int request_id) {
+        if (request_id < 0 && request_id != NO_REQUEST_ID) {
+            throw new IllegalArgumentException("withRequestId(): request id may not be negative.");
+        }
+        return new KVMessageRaw(this, request_id, this.compact);
+    }
+    
     /**
      * Getter method for the key.
      * @return The key
@@ -47,16 +139,25 @@ public class KVMessageRaw implements KVMessage {
     public String getKey() {
         return this.key;
     }
-
+    
     /**
      * Getter method for the value.
      * @return The value
      */
     @Override
     public String getValue() {
+        return (this.value != null) ? new String(this.value, Marshaller.UTF8) : null;
+    }
+    
+    /**
+     * Getter method for the UTF-8 representation of the value. The array is shared
+     * with the message and may not be modified.
+     * @return The value, or null
+     */
+    public byte[] getValueBytes() {
         return this.value;
     }
-
+    
     /**
      * Getter method for the message type.
      * @return The type of the message
@@ -70,22 +171,150 @@ public class KVMessageRaw implements KVMessage {
         return this.meta_data;
     }
     
+    /**
+     * Getter method for the request id.
+     * @return The request id, or NO_REQUEST_ID for untagged messages
+     */
+    public int getRequestId() {
+        return this.request_id;
+    }
+    
+    /**
+     * Getter method for the entries of a batch message.
+     * @return Unmodifiable list of entries; empty for non-batch messages
+     */
+    public List<KVMessageRaw> getEntries() {
+        return (this.entries != null) ? this.entries : Collections.<KVMessageRaw>emptyList();
+    }
+    
+    /**
+     * Indicates whether the message has been received in the compact format.
+     * @return True for compact messages
+     */
+    public boolean isCompact() {
+        return this.compact;
+    }
+    
+    public static boolean isBatchType(StatusType type) {
+        return type == StatusType.GET_BATCH || type == StatusType.PUT_BATCH || type == StatusType.BATCH_REPLY;
+    }
+    
     /**
      * The following are the static methods for marshaling and un-marshaling of
      * the KVMessages, respectively, to and from byte arrays.
      */
     private static final byte   KVMESSAGERAW_SIGNATURE = (byte)0xA1;
+    private static final byte   KVMESSAGERAW_TAGGED_SIGNATURE = (byte)0xA2;
+    private static final byte   KVMESSAGERAW_COMPACT_SIGNATURE = (byte)0xA3;
+    
+    private static final int    FLAG_KEY = 0x01;
+    private static final int    FLAG_VALUE = 0x02;
+    private static final int    FLAG_META_DATA = 0x04;
+    private static final int    FLAG_REQUEST_ID = 0x08;
+    private static final int    FLAG_ENTRIES = 0x10;
+    
+    /**
+     * Opcodes of the compact format: the position of a type in this table is its
+     * opcode. New types may only be appended.
+     */
+    private static final StatusType[]   OPCODE_TYPES = {
+        StatusType.GET, StatusType.GET_ERROR, StatusType.GET_SUCCESS, StatusType.PUT, StatusType.PUT_SUCCESS,
+        StatusType.PUT_UPDATE, StatusType.PUT_ERROR, StatusType.DELETE_SUCCESS, StatusType.DELETE_ERROR,
+        StatusType.SERVER_STOPPED, StatusType.SERVER_WRITE_LOCK, StatusType.SERVER_NOT_RESPONSIBLE,
+        StatusType.PROTOCOL_ERROR, StatusType.GET_BATCH, StatusType.PUT_BATCH, StatusType.BATCH_REPLY
+    };
+    private static final byte[]         TYPE_OPCODES = new byte[StatusType.values().length];
+    static {
+        for (int i = 0; i < OPCODE_TYPES.length; ++i) {
+            TYPE_OPCODES[OPCODE_TYPES[i].ordinal()] = (byte) i;
+        }
+    }
+    
+    /**
+     * Checks whether the marshaled message carries a request id, i.e. whether the
+     * sender accepts replies out of order.
+     * @param data Marshaled message
+     * @return True if the message is tagged with a request id
+     */
+    public static boolean isTagged(byte[] data) {
+        return KVMessageRaw.isTagged(ByteBuffer.wrap(data));
+    }
+    
+    public static boolean isTagged(ByteBuffer data) {
+        int start = data.position();
+        
+        if (data.remaining() > 2 && data.get(start) == KVMESSAGERAW_COMPACT_SIGNATURE) {
+            return (data.get(start + 2) & FLAG_REQUEST_ID) != 0;
+        }
+        return data.hasRemaining() && (data.get(start) == KVMESSAGERAW_TAGGED_SIGNATURE);
+    }
+    
+    /**
+     * Marshals the message in the requested format.
+     * @param kvmsg The message
+     * @param compact True for the compact format, false for the legacy one
+     * @return Marshaled message
+     */
+    public static byte[] marshal(KVMessageRaw kvmsg, boolean compact) {
+        return compact ? KVMessageRaw.marshalCompact(kvmsg) : KVMessageRaw.marshal(kvmsg);
+    }
+    
+    /**
+     * Marshals the message in the requested format, appending it to the data
+     * already held by the marshaller.
+     * @param kvmsg The message
+     * @param compact True for the compact format, false for the legacy one
+     * @param marshaller Marshaller to write to
+     */
+    public static void marshal(KVMessageRaw kvmsg, boolean compact, Marshaller marshaller) {
+        if (compact) {
+            KVMessageRaw.marshalCompact(kvmsg, marshaller);
+        } else {
+            KVMessageRaw.marshal(kvmsg, marshaller);
+        }
+    }
+    
+    /**
+     * Marshals the message into a pooled buffer and wraps it into a network
+     * message without copying. The buffer returns to the pool once the message
+     * is released.
+     * @param kvmsg The message
+     * @param compact True for the compact format, false for the legacy one
+     * @return Network message ready to be sent
+     * @throws IOException Thrown if the message exceeds the size limit
+     */
+    public static NetworkMessage toNetworkMessage(KVMessageRaw kvmsg, boolean compact) throws IOException {
+        Marshaller  marshaller = Marshaller.acquire();
+        
+        KVMessageRaw.marshal(kvmsg, compact, marshaller);
+        try {
+            return new NetworkMessage(marshaller);
+        } catch (IOException ex) {
+            marshaller.release();
+            throw ex;
+        }
+    }
     
     public static byte[] marshal(KVMessageRaw kvmsg) {
         Marshaller marshaller = new Marshaller();
         
-        marshaller.marshalByte(KVMESSAGERAW_SIGNATURE);
+        KVMessageRaw.marshal(kvmsg, marshaller);
+        
+        return marshaller.getBytes();
+    }
+    
+    private static void marshal(KVMessageRaw kvmsg, Marshaller marshaller) {
+        if (kvmsg.getRequestId() != NO_REQUEST_ID) {
+            marshaller.marshalByte(KVMESSAGERAW_TAGGED_SIGNATURE);
+            marshaller.marshalInt(kvmsg.getRequestId());
+        } else {
+            marshaller.marshalByte(KVMESSAGERAW_SIGNATURE);
+        }
         marshaller.marshalString(kvmsg.getStatus().name());
         
         String  key = kvmsg.getKey() != null ? kvmsg.getKey() : "";
-        String  value = kvmsg.getValue()!= null ? kvmsg.getValue() : "";
         marshaller.marshalString(key);
-        marshaller.marshalString(value);
+        marshaller.marshalSizedBytes(kvmsg.getValueBytes());
         if (kvmsg.getMetaData() != null) {
             byte[]  bytes = ServiceMetaData.marshal(kvmsg.getMetaData());
             marshaller.marshalInt(bytes.length);
@@ -93,26 +322,128 @@ public class KVMessageRaw implements KVMessage {
         } else {
             marshaller.marshalInt(0);
         }
+        if (KVMessageRaw.isBatchType(kvmsg.getStatus())) {
+            List<KVMessageRaw>  entries = kvmsg.getEntries();
+            
+            marshaller.marshalInt(entries.size());
+            for (KVMessageRaw entry : entries) {
+                marshaller.marshalString(entry.getStatus().name());
+                marshaller.marshalString(entry.getKey() != null ? entry.getKey() : "");
+                marshaller.marshalSizedBytes(entry.getValueBytes());
+            }
+        }
+    }
+    
+    /**
+     * Marshals the message in the compact format: signature, opcode, flags and
+     * the optional fields present according to the flags.
+     * @param kvmsg The message
+     * @return Marshaled message
+     */
+    public static byte[] marshalCompact(KVMessageRaw kvmsg) {
+        Marshaller marshaller = new Marshaller();
+        
+        KVMessageRaw.marshalCompact(kvmsg, marshaller);
         
         return marshaller.getBytes();
     }
     
+    private static void marshalCompact(KVMessageRaw kvmsg, Marshaller marshaller) {
+        boolean     batch = KVMessageRaw.isBatchType(kvmsg.getStatus());
+        byte[]      meta_data = (kvmsg.getMetaData() != null) ? ServiceMetaData.marshal(kvmsg.getMetaData()) : null;
+        
+        int flags = KVMessageRaw.fieldFlags(kvmsg);
+        if (meta_data != null) {
+            flags |= FLAG_META_DATA;
+        }
+        if (kvmsg.getRequestId() != NO_REQUEST_ID) {
+            flags |= FLAG_REQUEST_ID;
+        }
+        if (batch) {
+            flags |= FLAG_ENTRIES;
+        }
+        
+        marshaller.marshalByte(KVMESSAGERAW_COMPACT_SIGNATURE);
+        marshaller.marshalByte(TYPE_OPCODES[kvmsg.getStatus().ordinal()]);
+        marshaller.marshalByte((byte) flags);
+        if ((flags & FLAG_REQUEST_ID) != 0) {
+            marshaller.marshalVarInt(kvmsg.getRequestId());
+        }
+        KVMessageRaw.marshalCompactFields(marshaller, kvmsg, flags);
+        if (meta_data != null) {
+            marshaller.marshalVarInt(meta_data.length);
+            marshaller.marshalBytes(meta_data);
+        }
+        if (batch) {
+            marshaller.marshalVarInt(kvmsg.getEntries().size());
+            for (KVMessageRaw entry : kvmsg.getEntries()) {
+                int entry_flags = KVMessageRaw.fieldFlags(entry);
+                
+                marshaller.marshalByte(TYPE_OPCODES[entry.getStatus().ordinal()]);
+                marshaller.marshalByte((byte) entry_flags);
+                KVMessageRaw.marshalCompactFields(marshaller, entry, entry_flags);
+            }
+        }
+    }
+    
+    /**
+     * Empty keys and values are omitted, just like the legacy format does not
+     * distinguish them from absent ones.
+     */
+    private static int fieldFlags(KVMessageRaw kvmsg) {
+        int flags = 0;
+        
+        if (kvmsg.getKey() != null && !kvmsg.getKey().isEmpty()) {
+            flags |= FLAG_KEY;
+        }
+        if (kvmsg.getValueBytes() != null && kvmsg.getValueBytes().length > 0) {
+            flags |= FLAG_VALUE;
+        }
+        
+        return flags;
+    }
+    
+    private static void marshalCompactFields(Marshaller marshaller, KVMessageRaw kvmsg, int flags) {
+        if ((flags & FLAG_KEY) != 0) {
+            marshaller.marshalVarString(kvmsg.getKey());
+        }
+        if ((flags & FLAG_VALUE) != 0) {
+            marshaller.marshalVarBytes(kvmsg.getValueBytes());
+        }
+    }
+    
     public static KVMessageRaw unmarshal(byte[] data) throws ParseException {
+        return KVMessageRaw.unmarshal(ByteBuffer.wrap(data));
+    }
+    
+    /**
+     * Unmarshals the message from the remaining contents of the buffer without
+     * copying them first.
+     * @param data Buffer holding the marshaled message; its position is not modified
+     * @return The message
+     * @throws ParseException Thrown if the message is malformed
+     */
+    public static KVMessageRaw unmarshal(ByteBuffer data) throws ParseException {
         Unmarshaller unmarshaller = new Unmarshaller(data);
         
-        if (unmarshaller.unmarshalByte() != KVMESSAGERAW_SIGNATURE) {
+        byte    signature = unmarshaller.unmarshalByte();
+        int     request_id = NO_REQUEST_ID;
+        
+        if (signature == KVMESSAGERAW_COMPACT_SIGNATURE) {
+            return KVMessageRaw.unmarshalCompact(unmarshaller, data.remaining());
+        } else if (signature == KVMESSAGERAW_TAGGED_SIGNATURE) {
+            request_id = unmarshaller.unmarshalInt();
+            if (request_id < 0) {
+                throw new ParseException("Invalid request id: " + request_id + ".", unmarshaller.position());
+            }
+        } else if (signature != KVMESSAGERAW_SIGNATURE) {
             throw new ParseException("Received message is not a valid KVMessageRaw.", 0);
         }
         
-        StatusType  type;
-        try {
-            type = StatusType.valueOf(unmarshaller.unmarshalString());
-        } catch (IllegalArgumentException ex) {
-            throw new ParseException("Invalid message type.", unmarshaller.position());
-        }
+        StatusType  type = KVMessageRaw.unmarshalType(unmarshaller);
         
         String  key = unmarshaller.unmarshalString();
-        String  value = unmarshaller.unmarshalString();
+        byte[]  value = unmarshaller.unmarshalSizedBytes();
         
         ServiceMetaData meta_data = null;
         int             meta_data_size = unmarshaller.unmarshalInt();
@@ -120,6 +451,101 @@ public class KVMessageRaw implements KVMessage {
             meta_data = ServiceMetaData.unmarshal(unmarshaller.unmarshalBytes(meta_data_size));
         }
         
-        return new KVMessageRaw(type, key, value, meta_data);
+        if (!KVMessageRaw.isBatchType(type)) {
+            return new KVMessageRaw(type, key, value, meta_data, request_id, false);
+        }
+        
+        int entry_count = unmarshaller.unmarshalInt();
+        if (entry_count < 0 || entry_count > data.remaining()) {
+            throw new ParseException("Invalid number of batch entries: " + entry_count + ".", unmarshaller.position());
+        }
+        
+        List<KVMessageRaw>  entries = new ArrayList<KVMessageRaw>(entry_count);
+        for (int i = 0; i < entry_count; ++i) {
+            StatusType  entry_type = KVMessageRaw.unmarshalType(unmarshaller);
+            String      entry_key = unmarshaller.unmarshalString();
+            byte[]      entry_value = unmarshaller.unmarshalSizedBytes();
+            
+            if (KVMessageRaw.isBatchType(entry_type)) {
+                throw new ParseException("Batch entries may not be batches themselves.", unmarshaller.position());
+            }
+            entries.add(new KVMessageRaw(entry_type, entry_key, entry_value, null, NO_REQUEST_ID, false));
+        }
+        
+        return new KVMessageRaw(type, entries, meta_data, request_id);
+    }
+    
+    private static KVMessageRaw unmarshalCompact(Unmarshaller unmarshaller, int size) throws ParseException {
+        StatusType      type = KVMessageRaw.unmarshalOpcode(unmarshaller);
+        int             flags = unmarshaller.unmarshalByte() & 0xFF;
+        int             request_id = NO_REQUEST_ID;
+        ServiceMetaData meta_data = null;
+        
+        if ((flags & FLAG_REQUEST_ID) != 0) {
+            request_id = unmarshaller.unmarshalVarInt();
+        }
+        String  key = ((flags & FLAG_KEY) != 0) ? unmarshaller.unmarshalVarString() : null;
+        byte[]  value = ((flags & FLAG_VALUE) != 0) ? unmarshaller.unmarshalVarBytes() : null;
+        if ((flags & FLAG_META_DATA) != 0) {
+            int meta_data_size = unmarshaller.unmarshalVarInt();
+            if (meta_data_size == 0) {
+                throw new ParseException("Metadata flag is set, but metadata is empty.", unmarshaller.position());
+            }
+            meta_data = ServiceMetaData.unmarshal(unmarshaller.unmarshalBytes(meta_data_size));
+        }
+        
+        KVMessageRaw    kvmsg;
+        if (KVMessageRaw.isBatchType(type) != ((flags & FLAG_ENTRIES) != 0)) {
+            throw new ParseException("Batch entries are inconsistent with message type '" + type + "'.",
+                    unmarshaller.position());
+            
+        } else if ((flags & FLAG_ENTRIES) != 0) {
+            int entry_count = unmarshaller.unmarshalVarInt();
+            if (entry_count > size) {
+                throw new ParseException("Invalid number of batch entries: " + entry_count + ".", unmarshaller.position());
+            }
+            
+            List<KVMessageRaw>  entries = new ArrayList<KVMessageRaw>(entry_count);
+            for (int i = 0; i < entry_count; ++i) {
+                StatusType  entry_type = KVMessageRaw.unmarshalOpcode(unmarshaller);
+                int         entry_flags = unmarshaller.unmarshalByte() & 0xFF;
+                String      entry_key = ((entry_flags & FLAG_KEY) != 0) ? unmarshaller.unmarshalVarString() : null;
+                byte[]      entry_value = ((entry_flags & FLAG_VALUE) != 0) ? unmarshaller.unmarshalVarBytes() : null;
+                
+                if (KVMessageRaw.isBatchType(entry_type)) {
+                    throw new ParseException("Batch entries may not be batches themselves.", unmarshaller.position());
+                }
+                entries.add(new KVMessageRaw(entry_type, entry_key, entry_value, null, NO_REQUEST_ID, false));
+            }
+            kvmsg = new KVMessageRaw(type, entries, meta_data, NO_REQUEST_ID);
+            
+        } else {
+            kvmsg = new KVMessageRaw(type, key, value, meta_data, NO_REQUEST_ID, false);
+        }
+        
+        return new KVMessageRaw(kvmsg, request_id, true);
+    }
+    
+    private static StatusType unmarshalOpcode(Unmarshaller unmarshaller) throws ParseException {
+        int opcode = unmarshaller.unmarshalByte() & 0xFF;
+        
+        if (opcode >= OPCODE_TYPES.length) {
+            throw new ParseException("Invalid message opcode: " + opcode + ".", unmarshaller.position());
+        }
+        
+        return OPCODE_TYPES[opcode];
+    }
+    
+    private static StatusType unmarshalType(Unmarshaller unmarshaller) throws ParseException {
+        String  name = unmarshaller.unmarshalString();
+        
+        if (name == null) {
+            throw new ParseException("Message type is missing.", unmarshaller.position());
+        }
+        try {
+            return StatusType.valueOf(name);
+        } catch (IllegalArgumentException ex) {
+            throw new ParseException("Invalid message type.", unmarshaller.position());
+        }
     }
 }
@@ -1,62 +1,317 @@
 package common.messages;
 
-import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- *
+ * Encoder writing directly into a growable ByteBuffer. The buffer reserves room
+ * for the length prefix of a NetworkMessage in front of the data, so that the
+ * marshaled data can be sent as a frame without being copied.
+ * Marshallers may be reused: reset() discards the data but keeps the buffer, and
+ * acquire()/release() maintain a shared pool of marshallers.
  * @author Danila Klimenko
  */
 public class Marshaller {
-    private final ByteArrayOutputStream baos;
+    static final Charset        UTF8 = Charset.forName("UTF-8");
+    
+    private static final int    DEFAULT_SIZE = 256;
+    private static final int    POOL_LIMIT = 256;
+    private static final int    POOLED_CAPACITY_LIMIT = 16 * 1024;
+    
+    private static final Queue<Marshaller>  pool = new ConcurrentLinkedQueue<Marshaller>();
+    private static final AtomicInteger      pool_size = new AtomicInteger(0);
+    
+    private final boolean   direct;
+    private ByteBuffer      buffer;
     
     public Marshaller() {
-        this.baos = new ByteArrayOutputStream();
+        this(DEFAULT_SIZE, false);
     }
+    
     public Marshaller(int size) {
-        this.baos = new ByteArrayOutputStream(size);
+        this(size, false);
+    }
+    
+    /**
+     * Main constructor.
+     * @param size Initial capacity of the buffer
+     * @param direct True to use a direct buffer, which channels write without
+     *          an intermediate copy
+     */
+    public Marshaller(int size, boolean direct) {
+        this.direct = direct;
+        this.buffer = this.allocate(NetworkMessage.SIZEOF_LENGTH + Math.max(size, 0));
+        this.buffer.position(NetworkMessage.SIZEOF_LENGTH);
+    }
+    
+    /**
+     * Takes a marshaller from the pool, or creates a new one if the pool is empty.
+     * @return An empty marshaller
+     */
+    public static Marshaller acquire() {
+        Marshaller marshaller = pool.poll();
+        
+        if (marshaller == null) {
+            return new Marshaller();
+        }
+        pool_size.decrementAndGet();
+        
+        return marshaller;
+    }
+    
+    /**
+     * Returns the marshaller to the pool. Neither the marshaller nor the frames
+     * obtained from it may be used afterwards. Releasing is optional: marshallers
+     * that are never released are simply garbage collected.
+     */
+    public void release() {
+        if (this.direct || this.buffer.capacity() > POOLED_CAPACITY_LIMIT) {
+            return;
+        }
+        if (pool_size.incrementAndGet() > POOL_LIMIT) {
+            pool_size.decrementAndGet();
+            return;
+        }
+        
+        this.reset();
+        pool.add(this);
     }
     
     public int size() {
-        return this.baos.size();
+        return this.buffer.position() - NetworkMessage.SIZEOF_LENGTH;
     }
     
     public void reset() {
-        this.baos.reset();
+        this.buffer.clear();
+        this.buffer.position(NetworkMessage.SIZEOF_LENGTH);
     }
     
+    /**
+     * Returns a copy of the marshaled data.
+     * @return A newly allocated array
+     */
     public byte[] getBytes() {
-        return this.baos.toByteArray();
+        byte[]      bytes = new byte[this.size()];
+        ByteBuffer  data = this.buffer.duplicate();
+        
+        data.flip();
+        data.position(NetworkMessage.SIZEOF_LENGTH);
+        data.get(bytes);
+        
+        return bytes;
+    }
+    
+    /**
+     * Returns the marshaled data prefixed with its length, without copying it.
+     * The frame shares the buffer of the marshaller and stays valid until the
+     * marshaller is reset, written to or released.
+     * @return A buffer positioned at the beginning of the frame
+     */
+    ByteBuffer getFrame() {
+        ByteBuffer  frame = this.buffer.duplicate();
+        
+        frame.putInt(0, this.size());
+        frame.flip();
+        
+        return frame;
+    }
+    
+    /**
+     * Overwrites four bytes of the already marshaled data, e.g. a count that is
+     * only known once the data following it is marshaled.
+     * @param offset Offset of the integer within the data
+     * @param val The value
+     */
+    public void patchInt(int offset, int val) {
+        if (offset < 0 || offset + 4 > this.size()) {
+            throw new IndexOutOfBoundsException("patchInt(): offset " + offset + " is outside of the data.");
+        }
+        this.buffer.putInt(NetworkMessage.SIZEOF_LENGTH + offset, val);
+    }
+    
+    /**
+     * @return Number of bytes written by marshalString() for the string
+     */
+    public static int sizeOfString(String str) {
+        return 4 + Marshaller.encodedLength(str);
+    }
+    
+    /**
+     * @return Number of bytes written by marshalSizedBytes() for the array
+     */
+    public static int sizeOfSizedBytes(byte[] bytes) {
+        return 4 + ((bytes != null) ? bytes.length : 0);
     }
     
     public void marshalByte(byte val) {
-        this.baos.write(val);
+        this.ensureRemaining(1);
+        this.buffer.put(val);
     }
     
     public void marshalInt(int val) {
-        byte[] bytes = ByteBuffer.allocate(4).putInt(val).array();
-        this.baos.write(bytes, 0, bytes.length);
+        this.ensureRemaining(4);
+        this.buffer.putInt(val);
+    }
+    
+    public void marshalLong(long val) {
+        this.ensureRemaining(8);
+        this.buffer.putLong(val);
     }
     
     public void marshalBytes(byte[] bytes) {
         if (bytes != null) {
-            this.baos.write(bytes, 0, bytes.length);
+            this.ensureRemaining(bytes.length);
+            this.buffer.put(bytes);
         }
     }
     
+    /**
+     * Writes a string as its UTF-8 representation prefixed by a four-byte length.
+     * @param str The string; null is written as an empty string
+     */
     public void marshalString(String str) {
-        ByteBuffer bbuf;
+        int length = Marshaller.encodedLength(str);
         
-        if (str != null) {
-            byte[] str_data = str.getBytes();
-            bbuf = ByteBuffer.allocate(4 + str_data.length);
-            bbuf.putInt(str_data.length);
-            bbuf.put(str_data);
-        } else {
-            bbuf = ByteBuffer.allocate(4);
-            bbuf.putInt(0);
+        this.ensureRemaining(4 + length);
+        this.buffer.putInt(length);
+        this.encode(str);
+    }
+    
+    /**
+     * Writes a byte array prefixed by a four-byte length, i.e. in the same format
+     * as marshalString() writes the UTF-8 representation of a string.
+     * @param bytes The array; null is written as an empty array
+     */
+    public void marshalSizedBytes(byte[] bytes) {
+        int length = (bytes != null) ? bytes.length : 0;
+        
+        this.ensureRemaining(4 + length);
+        this.buffer.putInt(length);
+        if (length > 0) {
+            this.buffer.put(bytes);
+        }
+    }
+    
+    /**
+     * Writes a non-negative integer using 7 bits per byte, least significant
+     * group first. Values below 128 take a single byte.
+     * @param val Non-negative value
+     */
+    public void marshalVarInt(int val) {
+        if (val < 0) {
+            throw new IllegalArgumentException("marshalVarInt(): value may not be negative: " + val + ".");
+        }
+        this.ensureRemaining(5);
+        while ((val & ~0x7F) != 0) {
+            this.buffer.put((byte) ((val & 0x7F) | 0x80));
+            val >>>= 7;
+        }
+        this.buffer.put((byte) val);
+    }
+    
+    /**
+     * Writes a string as its UTF-8 representation prefixed by a varint length.
+     * @param str The string; null is written as an empty string
+     */
+    public void marshalVarString(String str) {
+        int length = Marshaller.encodedLength(str);
+        
+        this.marshalVarInt(length);
+        this.ensureRemaining(length);
+        this.encode(str);
+    }
+    
+    /**
+     * Writes a byte array prefixed by a varint length.
+     * @param bytes The array; null is written as an empty array
+     */
+    public void marshalVarBytes(byte[] bytes) {
+        int length = (bytes != null) ? bytes.length : 0;
+        
+        this.marshalVarInt(length);
+        if (length > 0) {
+            this.ensureRemaining(length);
+            this.buffer.put(bytes);
+        }
+    }
+    
+    private ByteBuffer allocate(int capacity) {
+        return this.direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+    
+    private void ensureRemaining(int count) {
+        if (this.buffer.remaining() >= count) {
+            return;
+        }
+        
+        ByteBuffer  grown = this.allocate(Math.max(2 * this.buffer.capacity(), this.buffer.position() + count));
+        this.buffer.flip();
+        grown.put(this.buffer);
+        this.buffer = grown;
+    }
+    
+    /**
+     * Computes the size of the UTF-8 representation of the string. Unpaired
+     * surrogates are encoded as '?', just like String.getBytes() does.
+     */
+    private static int encodedLength(String str) {
+        if (str == null) {
+            return 0;
         }
         
-        this.baos.write(bbuf.array(), 0, bbuf.array().length);
+        int length = str.length();
+        int size = length;
+        for (int i = 0; i < length; ++i) {
+            char c = str.charAt(i);
+            
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    size += 1;
+                } else if (Character.isHighSurrogate(c) && (i + 1 < length) &&
+                        Character.isLowSurrogate(str.charAt(i + 1))) {
+                    size += 2; // Four bytes for two chars
+                    ++i;
+                } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+                    size += 2;
+                }
+            }
+        }
+        
+        return size;
+    }
+    
+    private void encode(String str) {
+        if (str == null) {
+            return;
+        }
+        
+        ByteBuffer  buf = this.buffer;
+        int         length = str.length();
+        for (int i = 0; i < length; ++i) {
+            char c = str.charAt(i);
+            
+            if (c < 0x80) {
+                buf.put((byte) c);
+            } else if (c < 0x800) {
+                buf.put((byte) (0xC0 | (c >> 6)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && (i + 1 < length) &&
+                    Character.isLowSurrogate(str.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, str.charAt(++i));
+                buf.put((byte) (0xF0 | (cp >> 18)));
+                buf.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                buf.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                buf.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                buf.put((byte) '?');
+            } else {
+                buf.put((byte) (0xE0 | (c >> 12)));
+                buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
     }
 }
@@ -1,21 +1,27 @@
 package common.messages;
 
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
 
 /**
- * Special class representing low-level message format for client-server interaction
+ * Special class representing low-level message format for client-server interaction.
+ * A message keeps its whole frame, i.e. the data prefixed with its length, in a
+ * single buffer, so that it is received and sent without further copying.
  * @author Danila Klimenko
  */
 public class NetworkMessage {
     public  static final int    MAX_MESSAGE_SIZE = 128 * 1024;
-    private static final int    SIZEOF_LENGTH = 4;
+    static final int            SIZEOF_LENGTH = 4;
     
-    private final int       length;
-    private final byte[]    data;
+    private final ByteBuffer    frame;
+    private final Marshaller    owner;
     
     /**
      * Main constructor from a byte array.
@@ -27,16 +33,78 @@ public class NetworkMessage {
             throw new IOException("Message size limit exceeded.");
         }
         
-        this.data = data;
-        this.length = data.length;
+        this.frame = ByteBuffer.allocate(SIZEOF_LENGTH + data.length);
+        this.frame.putInt(data.length);
+        this.frame.put(data);
+        this.frame.flip();
+        this.owner = null;
+    }
+    
+    /**
+     * Constructor wrapping the data of a marshaller without copying it. The message
+     * stays valid as long as the marshaller is not reused; release() returns the
+     * marshaller to its pool once the message is sent.
+     * @param marshaller Marshaller holding the data to be sent
+     * @throws IOException Thrown if data size exceeds the limit
+     */
+    public NetworkMessage(Marshaller marshaller) throws IOException {
+        if (marshaller.size() > MAX_MESSAGE_SIZE) {
+            throw new IOException("Message size limit exceeded.");
+        }
+        
+        this.frame = marshaller.getFrame();
+        this.owner = marshaller;
+    }
+    
+    private NetworkMessage(ByteBuffer frame) {
+        this.frame = frame;
+        this.owner = null;
+    }
+    
+    public int getLength() {
+        return this.frame.limit() - SIZEOF_LENGTH;
     }
     
     /**
      * Getter method for the contents of the message
-     * @return Message contents as an array of bytes
+     * @return Message contents as a newly allocated array of bytes
      */
     public byte[] getData() {
-        return this.data;
+        byte[] data = new byte[this.getLength()];
+        
+        this.getPayload().get(data);
+        
+        return data;
+    }
+    
+    /**
+     * Returns the contents of the message without copying them.
+     * @return A buffer sharing the contents of the message
+     */
+    public ByteBuffer getPayload() {
+        ByteBuffer payload = this.frame.duplicate();
+        
+        payload.position(SIZEOF_LENGTH);
+        
+        return payload.slice();
+    }
+    
+    /**
+     * Returns the message in its wire format, i.e. prefixed with its length.
+     * @return A buffer ready to be written to a channel
+     */
+    public ByteBuffer getFrame() {
+        return this.frame.duplicate();
+    }
+    
+    /**
+     * Returns the buffer holding the message to its pool. The message may not be
+     * used afterwards. Calling this method is optional.
+     */
+    public void release() {
+        if (this.owner != null) {
+            this.owner.release();
+        }
     }
     
     /**
@@ -45,12 +113,13 @@ public class NetworkMessage {
      * @throws IOException Thrown if OutputStream malfunctions
      */
     public void writeTo(OutputStream os) throws IOException {
-        ByteBuffer bbuf = ByteBuffer.allocate(SIZEOF_LENGTH + this.length);
-        
-        bbuf.putInt(this.length);
-        bbuf.put(this.data);
-        
-        os.write(bbuf.array());
+        if (this.frame.hasArray()) {
+            os.write(this.frame.array(), this.frame.arrayOffset(), this.frame.limit());
+        } else {
+            byte[] bytes = new byte[this.frame.limit()];
+            this.getFrame().get(bytes);
+            os.write(bytes);
+        }
         os.flush();
     }
     
@@ -61,20 +130,36 @@ public class NetworkMessage {
      * @throws IOException Thrown if InputStream malfunctions
      */
     public static NetworkMessage readFrom(InputStream is) throws IOException {
-        DataInputStream dis = new DataInputStream(is);
+        byte[]  header = new byte[SIZEOF_LENGTH];
+        
+        if (NetworkMessage.readFully(is, header, 0, SIZEOF_LENGTH) != SIZEOF_LENGTH) {
+            throw new EOFException("Connection closed by the remote side.");
+        }
         
-        int length = dis.readInt();
-        if (length > MAX_MESSAGE_SIZE) {
+        int length = ((header[0] & 0xFF) << 24) | ((header[1] & 0xFF) << 16) | ((header[2] & 0xFF) << 8) |
+                (header[3] & 0xFF);
+        if (length < 0 || length > MAX_MESSAGE_SIZE) {
             throw new IOException("Message size limit exceeded.");
         }
         
-        byte[] data = new byte[length];
+        ByteBuffer  frame = ByteBuffer.allocate(SIZEOF_LENGTH + length);
+        frame.put(header);
+        
+        int total_read_bytes = NetworkMessage.readFully(is, frame.array(), SIZEOF_LENGTH, length);
+        if (total_read_bytes != length) {
+            throw new IOException("Message is incomplete: expected length = " +
+                                    length + "; available = " + total_read_bytes + ".");
+        }
         
-        int read_bytes;
+        frame.clear();
+        return new NetworkMessage(frame);
+    }
+    
+    private static int readFully(InputStream is, byte[] data, int offset, int length) throws IOException {
         int total_read_bytes = 0;
         
         while (total_read_bytes < length) {
-            read_bytes = dis.read(data, total_read_bytes, length - total_read_bytes);
+            int read_bytes = is.read(data, offset + total_read_bytes, length - total_read_bytes);
             
             if (read_bytes > 0) {
                 total_read_bytes += read_bytes;
@@ -83,11 +168,180 @@ public class NetworkMessage {
             }
         }
         
-        if (total_read_bytes != length) {
-            throw new IOException("Message is incomplete: expected length = " +
-                                    length + "; available = " + total_read_bytes + ".");
+        return total_read_bytes;
+    }
+    
+    /**
+     * Incremental reader of length-prefixed messages from a non-blocking channel.
+     * The decoder reads as much as is available into its buffer and cuts the
+     * messages out of it, so that small messages arriving together cost a single
+     * read. A message exceeding the buffered data is completed by reading
+     * directly into its own frame.
+     */
+    public static class Decoder {
+        private static final int    READ_BUFFER_SIZE = 16 * 1024;
+        
+        private final ByteBuffer    input;
+        private ByteBuffer          frame;
+        
+        public Decoder() {
+            this.input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            this.input.flip();
+            this.frame = null;
+        }
+        
+        /**
+         * Returns the next message already read from the channel, if any. Messages
+         * remain buffered when the owner of the decoder stops reading for a while,
+         * so this method has to be called before waiting for the channel again.
+         * @return A complete message, or null if none is buffered
+         * @throws IOException Thrown if the buffered message exceeds the size limit
+         */
+        public NetworkMessage poll() throws IOException {
+            return (this.frame == null) ? this.extract() : null;
+        }
+        
+        /**
+         * Returns the next message, reading from the channel if necessary.
+         * @param channel Channel to read from
+         * @return A complete message, or null if more data is required
+         * @throws IOException Thrown if the channel malfunctions, reaches the end of
+         *          stream or delivers a message exceeding the size limit
+         */
+        public NetworkMessage read(ReadableByteChannel channel) throws IOException {
+            NetworkMessage message = this.poll();
+            if (message != null) {
+                return message;
+            }
+            
+            if (this.frame != null) {
+                if (channel.read(this.frame) < 0) {
+                    throw new EOFException("Message is incomplete: expected length = " +
+                            (this.frame.capacity() - SIZEOF_LENGTH) + "; available = " +
+                            (this.frame.position() - SIZEOF_LENGTH) + ".");
+                }
+                if (this.frame.hasRemaining()) {
+                    return null;
+                }
+                
+                ByteBuffer complete = this.frame;
+                this.frame = null;
+                complete.flip();
+                return new NetworkMessage(complete);
+            }
+            
+            this.input.compact();
+            int read_bytes = channel.read(this.input);
+            this.input.flip();
+            
+            if (read_bytes < 0) {
+                throw new EOFException(this.input.hasRemaining() ?
+                        "Message is incomplete." : "Connection closed by the remote side.");
+            }
+            
+            return this.extract();
         }
         
-        return new NetworkMessage(data);
+        /**
+         * Cuts the next message out of the buffered data. If only a part of the
+         * message is buffered, it is moved to the frame being assembled.
+         */
+        private NetworkMessage extract() throws IOException {
+            if (this.input.remaining() < SIZEOF_LENGTH) {
+                return null;
+            }
+            
+            int length = this.input.getInt(this.input.position());
+            if (length < 0 || length > MAX_MESSAGE_SIZE) {
+                throw new IOException("Message size limit exceeded.");
+            }
+            
+            ByteBuffer  new_frame = ByteBuffer.allocate(SIZEOF_LENGTH + length);
+            int         available = Math.min(this.input.remaining(), new_frame.capacity());
+            int         limit = this.input.limit();
+            
+            this.input.limit(this.input.position() + available);
+            new_frame.put(this.input);
+            this.input.limit(limit);
+            
+            if (new_frame.hasRemaining()) {
+                this.frame = new_frame;
+                return null;
+            }
+            
+            new_frame.flip();
+            return new NetworkMessage(new_frame);
+        }
+    }
+    
+    /**
+     * Queue of messages waiting to be written to a non-blocking channel. Several
+     * frames are sent by a single gathering write, and every message is released
+     * as soon as it is completely written.
+     */
+    public static class Writer {
+        private static final int    MAX_GATHERED_FRAMES = 16;
+        
+        private final Queue<NetworkMessage> messages;
+        private final Queue<ByteBuffer>     frames;
+        private final ByteBuffer[]          gathered;
+        
+        public Writer() {
+            this.messages = new ArrayDeque<NetworkMessage>();
+            this.frames = new ArrayDeque<ByteBuffer>();
+            this.gathered = new ByteBuffer[MAX_GATHERED_FRAMES];
+        }
+        
+        public void add(NetworkMessage message) {
+            this.messages.add(message);
+            this.frames.add(message.getFrame());
+        }
+        
+        public boolean isEmpty() {
+            return this.messages.isEmpty();
+        }
+        
+        /**
+         * Writes as many of the queued messages as the channel accepts.
+         * @param channel Channel to write to
+         * @return True if all the queued messages have been written
+         * @throws IOException Thrown if the channel malfunctions
+         */
+        public boolean write(GatheringByteChannel channel) throws IOException {
+            while (!this.messages.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer frame : this.frames) {
+                    if (count == MAX_GATHERED_FRAMES) {
+                        break;
+                    }
+                    this.gathered[count++] = frame;
+                }
+                
+                channel.write(this.gathered, 0, count);
+                
+                for (int i = 0; i < count; ++i) {
+                    this.gathered[i] = null;
+                }
+                int written = 0;
+                while (written < count && !this.frames.peek().hasRemaining()) {
+                    this.frames.poll();
+                    this.messages.poll().release();
+                    ++written;
+                }
+                if (written < count) { // The channel is full
+                    return false;
+                }
+            }
+            
+            return true;
+        }
+        
+        /**
+         * Drops all the queued messages.
+         */
+        public void clear() {
+            this.messages.clear();
+            this.frames.clear();
+        }
     }
 }
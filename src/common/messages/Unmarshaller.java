@@ -9,6 +9,7 @@ import java.text.ParseException;
  */
 public class Unmarshaller {
     private static final int    SIZEOF_INT = 4;
+    private static final int    SIZEOF_LONG = 8;
     
     private final ByteBuffer    bbuf;
 
@@ -16,6 +17,14 @@ public class Unmarshaller {
         this.bbuf = ByteBuffer.wrap(data);
     }
     
+    /**
+     * Constructor reading the remaining contents of the buffer in place.
+     * @param data Buffer to read from; its position is not modified
+     */
+    public Unmarshaller(ByteBuffer data) {
+        this.bbuf = data.slice();
+    }
+    
     public int position() {
         return this.bbuf.position();
     }
@@ -38,6 +47,15 @@ public class Unmarshaller {
         return this.bbuf.getInt();
     }
     
+    public long unmarshalLong() throws ParseException {
+        if (this.bbuf.remaining() < SIZEOF_LONG) {
+            throw new ParseException("unmarshalLong(): Buffer is incomplete: expected length = " + SIZEOF_LONG +
+                    "; available = " + this.bbuf.remaining() + ".", this.bbuf.position());
+        }
+        
+        return this.bbuf.getLong();
+    }
+    
     public byte[] unmarshalBytes(int count) throws ParseException {
         byte[] bytes = null;
         
@@ -54,6 +72,76 @@ public class Unmarshaller {
         return bytes;
     }
     
+    /**
+     * Reads an integer written by Marshaller.marshalVarInt().
+     * @return Non-negative value
+     * @throws ParseException Thrown if the value is incomplete or too large
+     */
+    public int unmarshalVarInt() throws ParseException {
+        int value = 0;
+        
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = this.unmarshalByte();
+            
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        
+        throw new ParseException("unmarshalVarInt(): Value is malformed or exceeds the integer range.", this.bbuf.position());
+    }
+    
+    /**
+     * Reads a string written by Marshaller.marshalVarString().
+     * @return The string; null if it is empty
+     * @throws ParseException Thrown if the string is incomplete
+     */
+    public String unmarshalVarString() throws ParseException {
+        int len = this.unmarshalVarInt();
+        
+        if (len == 0) {
+            return null;
+        }
+        if (this.bbuf.remaining() < len) {
+            throw new ParseException("String is incomplete: expected length = " + len +
+                    "; available = " + this.bbuf.remaining() + ".", this.bbuf.position());
+        }
+        
+        return this.decodeString(len);
+    }
+    
+    /**
+     * Reads a byte array written by Marshaller.marshalSizedBytes().
+     * @return The array; null if it is empty
+     * @throws ParseException Thrown if the array is incomplete
+     */
+    public byte[] unmarshalSizedBytes() throws ParseException {
+        if (this.bbuf.remaining() < SIZEOF_INT) {
+            throw new ParseException("unmarshalSizedBytes(): Buffer is incomplete: expected length = " + SIZEOF_INT +
+                    "; available = " + this.bbuf.remaining() + ".", this.bbuf.position());
+        }
+        
+        int len = this.bbuf.getInt();
+        if (len < 0) {
+            throw new ParseException("Invalid array length: " + len + ".", this.bbuf.position());
+        }
+        
+        return this.unmarshalBytes(len);
+    }
+    
+    /**
+     * Reads a byte array written by Marshaller.marshalVarBytes().
+     * @return The array; null if it is empty
+     * @throws ParseException Thrown if the array is incomplete
+     */
+    public byte[] unmarshalVarBytes() throws ParseException {
+        return this.unmarshalBytes(this.unmarshalVarInt());
+    }
+    
     public String unmarshalString() throws ParseException {
         String str = null;
         
@@ -70,10 +158,22 @@ public class Unmarshaller {
                         "; available = " + this.bbuf.remaining() + ".", this.bbuf.position());
             }
             
+            str = this.decodeString(len);
+        }
+        
+        return str;
+    }
+    
+    private String decodeString(int len) {
+        String str;
+        
+        if (this.bbuf.hasArray()) {
+            str = new String(this.bbuf.array(), this.bbuf.arrayOffset() + this.bbuf.position(), len, Marshaller.UTF8);
+            this.bbuf.position(this.bbuf.position() + len);
+        } else {
             byte[]  str_data = new byte[len];
             this.bbuf.get(str_data);
-            
-            str = new String(str_data);
+            str = new String(str_data, Marshaller.UTF8);
         }
         
         return str;
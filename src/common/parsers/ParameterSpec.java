@@ -0,0 +1,153 @@
+package common.parsers;
+
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Class responsible for parsing compact component specifications of the form
+ * "name[:key=value[,key=value...]]". Such specifications are used by command line
+ * options selecting an implementation together with its tuning parameters.
+ *
+ * @author Danila Klimenko
+ */
+public class ParameterSpec {
+    private static final Pattern    NAME_SYNTAX = Pattern.compile("[_a-zA-Z0-9\\-]+");
+    private static final Pattern    PARAMETER_SYNTAX = Pattern.compile("([_a-zA-Z0-9]+)=([^,=\\s]+)");
+    private static final Pattern    SIZE_SYNTAX = Pattern.compile("(\\d+)([kKmMgG]?)");
+    
+    private final String                name;
+    private final Map<String, String>   parameters;
+    
+    /**
+     * Main constructor
+     *
+     * @param spec Specification string
+     * @throws ParseException Thrown if the specification has inconsistent syntax
+     */
+    public ParameterSpec(String spec) throws ParseException {
+        if (spec == null) {
+            throw new ParseException("Specification may not be empty.", 0);
+        }
+        
+        String[] tokens = spec.trim().split(":", 2);
+        
+        if (!NAME_SYNTAX.matcher(tokens[0]).matches()) {
+            throw new ParseException("Illegal name in specification: '" + spec + "'.", 0);
+        }
+        
+        this.name = tokens[0];
+        this.parameters = new LinkedHashMap<String, String>();
+        
+        if (tokens.length > 1) {
+            for (String parameter : tokens[1].split(",")) {
+                Matcher matcher = PARAMETER_SYNTAX.matcher(parameter);
+                
+                if (!matcher.matches()) {
+                    throw new ParseException("Illegal parameter in specification '" + spec + "': '" + parameter + "'.", 0);
+                }
+                if (this.parameters.put(matcher.group(1), matcher.group(2)) != null) {
+                    throw new ParseException("Duplicate parameter in specification '" + spec + "': '" +
+                            matcher.group(1) + "'.", 0);
+                }
+            }
+        }
+    }
+    
+    public String getName() {
+        return this.name;
+    }
+    
+    public boolean hasParameter(String key) {
+        return this.parameters.containsKey(key);
+    }
+    
+    /**
+     * Verifies that the specification contains no parameters besides the given ones.
+     *
+     * @param keys Names of the supported parameters
+     * @throws ParseException Thrown if an unsupported parameter is present
+     */
+    public void verifyParameters(String... keys) throws ParseException {
+        List<String>    supported = Arrays.asList(keys);
+        
+        for (String key : this.parameters.keySet()) {
+            if (!supported.contains(key)) {
+                throw new ParseException("Parameter '" + key + "' is not supported by '" + this.name + "'.", 0);
+            }
+        }
+    }
+    
+    public String getString(String key, String default_value) {
+        String value = this.parameters.get(key);
+        return (value != null) ? value : default_value;
+    }
+    
+    public int getInt(String key, int default_value) throws ParseException {
+        long value = this.getSize(key, default_value);
+        
+        if (value > Integer.MAX_VALUE) {
+            throw new ParseException("Parameter '" + key + "' is too large: " + value + ".", 0);
+        }
+        
+        return (int) value;
+    }
+    
+    /**
+     * Returns a non-negative numeric parameter. The value may carry one of the
+     * binary suffixes 'K', 'M' or 'G'.
+     *
+     * @param key Parameter name
+     * @param default_value Value returned if the parameter is not set
+     * @return Parameter value
+     * @throws ParseException Thrown if the parameter is not a valid size
+     */
+    public long getSize(String key, long default_value) throws ParseException {
+        String value = this.parameters.get(key);
+        
+        if (value == null) {
+            return default_value;
+        }
+        
+        Matcher matcher = SIZE_SYNTAX.matcher(value);
+        if (!matcher.matches() || matcher.group(1).length() > 12) {
+            throw new ParseException("Parameter '" + key + "' must be a non-negative number: '" + value + "'.", 0);
+        }
+        
+        long    multiplier;
+        char    suffix = (matcher.group(2).length() > 0) ? Character.toUpperCase(matcher.group(2).charAt(0)) : ' ';
+        switch (suffix) {
+            case 'G':
+                multiplier = 1L << 30;
+                break;
+            case 'M':
+                multiplier = 1L << 20;
+                break;
+            case 'K':
+                multiplier = 1L << 10;
+                break;
+            default:
+                multiplier = 1L;
+                break;
+        }
+        
+        return Long.parseLong(matcher.group(1)) * multiplier;
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(this.name);
+        
+        char separator = ':';
+        for (Map.Entry<String, String> parameter : this.parameters.entrySet()) {
+            builder.append(separator).append(parameter.getKey()).append('=').append(parameter.getValue());
+            separator = ',';
+        }
+        
+        return builder.toString();
+    }
+}
@@ -1,41 +1,85 @@
 package common.topology;
 
-import java.math.BigInteger;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import logger.LogSetup;
 import org.apache.log4j.Logger;
 
 /**
- *
+ * A 128-bit position on the hash ring, stored as two primitive longs and
+ * compared as an unsigned number.
  * @author Danila Klimenko
  */
 public class HashValue implements Comparable<HashValue> {
     private static final Logger     logger = LogSetup.getLogger();
     public static final int         VALUE_SIZE = 16;
     
-    private final byte[]        data;
-    private final BigInteger    big_int;
+    private static final ThreadLocal<HashContext>   context = new ThreadLocal<HashContext>() {
+        @Override
+        protected HashContext initialValue() {
+            return new HashContext();
+        }
+    };
+    
+    private final long  high;
+    private final long  low;
     
     public HashValue(byte[] data) {
-        this.data = data;
-        this.big_int = new BigInteger(data);
+        if (data == null || data.length != VALUE_SIZE) {
+            throw new IllegalArgumentException("HashValue(): data must be exactly " + VALUE_SIZE + " bytes long.");
+        }
+        this.high = HashValue.readLong(data, 0);
+        this.low = HashValue.readLong(data, 8);
+    }
+    
+    public HashValue(long high, long low) {
+        this.high = high;
+        this.low = low;
     }
     
+    /**
+     * Returns the big-endian representation of the value, as used on the wire.
+     * @return A newly allocated array of VALUE_SIZE bytes
+     */
     public byte[] getData() {
-        return this.data;
+        byte[]  data = new byte[VALUE_SIZE];
+        
+        HashValue.writeLong(data, 0, this.high);
+        HashValue.writeLong(data, 8, this.low);
+        
+        return data;
+    }
+    
+    public long getHigh() {
+        return this.high;
+    }
+    
+    public long getLow() {
+        return this.low;
     }
     
     @Override
     public int compareTo(HashValue rhs) {
-        return this.big_int.compareTo(rhs.big_int);
+        return HashValue.compare(this.high, this.low, rhs.high, rhs.low);
     }
     
     public boolean isInRange(HashValue begin, HashValue end) {
+        return HashValue.isInRange(this.high, this.low, begin, end);
+    }
+    
+    /**
+     * Version of isInRange() for a value given by its two halves, which spares
+     * the allocation when scanning hashes kept in primitive arrays.
+     */
+    public static boolean isInRange(long high, long low, HashValue begin, HashValue end) {
+        boolean after_begin = HashValue.compare(begin.high, begin.low, high, low) < 0;
+        boolean before_end = HashValue.compare(high, low, end.high, end.low) <= 0;
+        
         if (begin.compareTo(end) < 0) {
-            return (begin.compareTo(this) < 0) && (this.compareTo(end) <= 0);
+            return after_begin && before_end;
         } else {
-            return (begin.compareTo(this) < 0) || (this.compareTo(end) <= 0);
+            return after_begin || before_end;
         }
     }
     
@@ -47,20 +91,143 @@ public class HashValue implements Comparable<HashValue> {
         return HashValue.hashString(address.toString());
     }
     
+    /**
+     * Position of a virtual token of the server on the ring. The first token lies
+     * at the hash of the address itself.
+     * @param token Index of the token
+     */
+    public static HashValue hashServerToken(ServerAddress address, int token) {
+        return (token == 0) ? HashValue.hashServerAddress(address) : HashValue.hashString(address + "#" + token);
+    }
+    
     private static HashValue hashString(String str) {
-        HashValue res = null;
+        HashContext ctx = context.get();
+        
         try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            res = new HashValue(md.digest(str.getBytes()));
-        } catch (NoSuchAlgorithmException ex) {
-            logger.fatal("FATAL ERROR: Cannot find MD5 hashing algorithm: " + ex.getMessage() + ".");
+            int length = ctx.encode(str);
+            ctx.digest.update(ctx.input, 0, length);
+            ctx.digest.digest(ctx.output, 0, VALUE_SIZE);
+        } catch (DigestException ex) {
+            logger.fatal("FATAL ERROR: MD5 hashing failed: " + ex.getMessage() + ".");
             System.exit(-1);
         }
-        return res;
+        
+        return new HashValue(HashValue.readLong(ctx.output, 0), HashValue.readLong(ctx.output, 8));
     }
-
+    
+    /**
+     * Version of compareTo() for values given by their two halves.
+     */
+    public static int compare(long lhs_high, long lhs_low, long rhs_high, long rhs_low) {
+        int result = HashValue.compareUnsigned(lhs_high, rhs_high);
+        return (result != 0) ? result : HashValue.compareUnsigned(lhs_low, rhs_low);
+    }
+    
+    private static int compareUnsigned(long lhs, long rhs) {
+        lhs += Long.MIN_VALUE;
+        rhs += Long.MIN_VALUE;
+        return (lhs < rhs) ? -1 : ((lhs == rhs) ? 0 : 1);
+    }
+    
+    private static long readLong(byte[] data, int offset) {
+        long    value = 0;
+        
+        for (int i = offset; i < offset + 8; ++i) {
+            value = (value << 8) | (data[i] & 0xFF);
+        }
+        
+        return value;
+    }
+    
+    private static void writeLong(byte[] data, int offset, long value) {
+        for (int i = offset + 7; i >= offset; --i) {
+            data[i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this)
+            return true;
+        if (!(obj instanceof HashValue))
+            return false;
+        
+        HashValue   other = (HashValue) obj;
+        return (this.high == other.high) && (this.low == other.low);
+    }
+    
+    @Override
+    public int hashCode() {
+        long    hash = this.high ^ this.low;
+        return (int) (hash ^ (hash >>> 32));
+    }
+    
     @Override
     public String toString() {
-        return this.big_int.toString(16);
+        return String.format("%016x%016x", this.high, this.low);
+    }
+    
+    /**
+     * Per-thread hashing state: a reusable MD5 digest together with its input and
+     * output buffers, so that hashing does not allocate anything but the result.
+     */
+    private static class HashContext {
+        final MessageDigest digest;
+        final byte[]        output;
+        byte[]              input;
+        
+        HashContext() {
+            MessageDigest md = null;
+            try {
+                md = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException ex) {
+                logger.fatal("FATAL ERROR: Cannot find MD5 hashing algorithm: " + ex.getMessage() + ".");
+                System.exit(-1);
+            }
+            this.digest = md;
+            this.output = new byte[VALUE_SIZE];
+            this.input = new byte[64];
+        }
+        
+        /**
+         * Encodes the string as UTF-8 into the input buffer.
+         * @return Number of encoded bytes
+         */
+        int encode(String str) {
+            int length = str.length();
+            
+            if (this.input.length < length * 3) {
+                this.input = new byte[length * 3];
+            }
+            
+            byte[]  buf = this.input;
+            int     pos = 0;
+            for (int i = 0; i < length; ++i) {
+                char c = str.charAt(i);
+                
+                if (c < 0x80) {
+                    buf[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    buf[pos++] = (byte) (0xC0 | (c >> 6));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && (i + 1 < length) &&
+                        Character.isLowSurrogate(str.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, str.charAt(++i));
+                    buf[pos++] = (byte) (0xF0 | (cp >> 18));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+                } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                    buf[pos++] = (byte) '?';
+                } else {
+                    buf[pos++] = (byte) (0xE0 | (c >> 12));
+                    buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            
+            return pos;
+        }
     }
 }
@@ -4,77 +4,193 @@ import common.messages.Marshaller;
 import common.messages.Unmarshaller;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import logger.LogSetup;
 import org.apache.log4j.Logger;
 
 /**
- *
+ * Immutable description of the hash ring. Every server owns a number of virtual
+ * tokens spread over the ring, the first one at the hash of its address, and is
+ * responsible for the range ending at each of them; with more tokens per server
+ * the ranges of the servers are more even, and a joining or leaving server
+ * exchanges data with many peers instead of a single successor. Every instance
+ * represents a single version of the service metadata: the ring end-points are
+ * sorted into an array once on construction and looked up by binary search
+ * afterwards. Topology changes produce a new instance.
  * @author Danila Klimenko
  */
 public class ServiceMetaData {
     private static final Logger logger = LogSetup.getLogger();
+    public static final int     MAX_TOKENS_PER_SERVER = 1024;
+    private static final byte   METADATA_TOKENS_SIGNATURE = (byte)0xC1;
     
-    private final Map<ServerAddress, MetaDataItem>  records;
+    private final int                                       tokens_per_server;
+    private final Map<ServerAddress, List<MetaDataItem>>    records;
+    private final HashValue[]                               ring_ends;
+    private final MetaDataItem[]                            ring_items;
     
     public static ServiceMetaData generateForServers(List<ServerAddress> server_addresses) {
-        Map<ServerAddress, MetaDataItem>    records = new HashMap<ServerAddress, MetaDataItem>(server_addresses.size());
-        List<AddressHashPair>               ah_pairs = new ArrayList<AddressHashPair>(server_addresses.size());
+        return ServiceMetaData.generateForServers(server_addresses, 1);
+    }
+    
+    /**
+     * Places the given number of tokens of every server on the ring.
+     * @param tokens_per_server Number of virtual tokens per server
+     */
+    public static ServiceMetaData generateForServers(List<ServerAddress> server_addresses, int tokens_per_server) {
+        if (tokens_per_server < 1 || tokens_per_server > MAX_TOKENS_PER_SERVER) {
+            throw new IllegalArgumentException("Illegal number of tokens per server: " + tokens_per_server + ".");
+        }
         
+        List<AddressHashPair>   ah_pairs = new ArrayList<AddressHashPair>(server_addresses.size() * tokens_per_server);
         for (ServerAddress server_address : server_addresses) {
-            ah_pairs.add(new AddressHashPair(server_address, HashValue.hashServerAddress(server_address)));
+            ServiceMetaData.addTokens(ah_pairs, server_address, tokens_per_server);
         }
+        
+        return new ServiceMetaData(ah_pairs, tokens_per_server);
+    }
+    
+    public ServiceMetaData(ServiceMetaData other) {
+        this.tokens_per_server = other.tokens_per_server;
+        this.records = other.records;
+        this.ring_ends = other.ring_ends;
+        this.ring_items = other.ring_items;
+    }
+    
+    private ServiceMetaData(List<AddressHashPair> ah_pairs, int tokens_per_server) {
         Collections.sort(ah_pairs);
         
-        HashValue               prev_hash = ah_pairs.get(ah_pairs.size() - 1).hash;
-        for (AddressHashPair pair : ah_pairs) {
-            records.put(pair.server_address, new MetaDataItem(pair.server_address, prev_hash, pair.hash));
+        this.tokens_per_server = tokens_per_server;
+        this.records = new HashMap<ServerAddress, List<MetaDataItem>>();
+        this.ring_items = new MetaDataItem[ah_pairs.size()];
+        this.ring_ends = new HashValue[ah_pairs.size()];
+        
+        HashValue   prev_hash = ah_pairs.get(ah_pairs.size() - 1).hash;
+        for (int i = 0; i < this.ring_items.length; ++i) {
+            AddressHashPair pair = ah_pairs.get(i);
+            this.ring_items[i] = new MetaDataItem(pair.server_address, prev_hash, pair.hash);
+            this.ring_ends[i] = pair.hash;
             prev_hash = pair.hash;
+            
+            List<MetaDataItem> items = this.records.get(pair.server_address);
+            if (items == null) {
+                items = new ArrayList<MetaDataItem>(tokens_per_server);
+                this.records.put(pair.server_address, items);
+            }
+            items.add(this.ring_items[i]);
         }
-        
-        return new ServiceMetaData(records);
     }
     
-    public ServiceMetaData(ServiceMetaData other) {
-        this.records = new HashMap<ServerAddress, MetaDataItem>(other.records);
+    private static void addTokens(List<AddressHashPair> ah_pairs, ServerAddress server_address, int count) {
+        for (int token = 0; token < count; ++token) {
+            ah_pairs.add(new AddressHashPair(server_address, HashValue.hashServerToken(server_address, token)));
+        }
+    }
+    
+    private List<AddressHashPair> getTokens() {
+        List<AddressHashPair>   ah_pairs = new ArrayList<AddressHashPair>(this.ring_items.length + this.tokens_per_server);
+        for (MetaDataItem item : this.ring_items) {
+            ah_pairs.add(new AddressHashPair(item.server_address, item.end_hash));
+        }
+        return ah_pairs;
     }
     
-    private ServiceMetaData(Map<ServerAddress, MetaDataItem> records) {
-        this.records = records;
+    public int getTokensPerServer() {
+        return this.tokens_per_server;
     }
     
+    /**
+     * Produces the metadata version with the given server added to the ring.
+     * Every token of the new server takes over a part of the range of the token
+     * following it (see getTransfers()).
+     * @param server_address Address of the new server
+     * @return New metadata instance; this instance is left unchanged
+     */
     public ServiceMetaData addServer(ServerAddress server_address) {
-        MetaDataItem    successor = findSuccessorForServer(server_address, false);
-        
-        HashValue       new_server_begin_hash = successor.begin_hash;
-        HashValue       new_server_end_hash = HashValue.hashServerAddress(server_address);
-        
-        successor.begin_hash = new_server_end_hash;
+        if (this.records.containsKey(server_address)) {
+            logger.fatal("FATAL ERROR! Address '" + server_address + "' is already in metadata!");
+            System.exit(-1);
+        }
         
-        this.records.put(server_address, new MetaDataItem(server_address, new_server_begin_hash, new_server_end_hash));
+        List<AddressHashPair>   ah_pairs = this.getTokens();
+        ServiceMetaData.addTokens(ah_pairs, server_address, this.tokens_per_server);
         
-        return this;
+        return new ServiceMetaData(ah_pairs, this.tokens_per_server);
     }
     
+    /**
+     * Produces the metadata version with the given server removed from the ring.
+     * The range of every token of the server is taken over by the token
+     * following it (see getTransfers()).
+     * @param server_address Address of the removed server
+     * @return New metadata instance; this instance is left unchanged
+     */
     public ServiceMetaData removeServer(ServerAddress server_address) {
-        MetaDataItem    server = findServer(server_address);
-        MetaDataItem    successor = findSuccessorForServer(server_address, true);
-        
-        successor.begin_hash = server.begin_hash;
+        this.findServer(server_address);
         
-        if (this.records.remove(server_address) == null) {
+        List<AddressHashPair>   ah_pairs = this.getTokens();
+        for (Iterator<AddressHashPair> it = ah_pairs.iterator(); it.hasNext(); ) {
+            if (it.next().server_address.equals(server_address)) {
+                it.remove();
+            }
+        }
+        if (ah_pairs.isEmpty()) {
             logger.fatal("FATAL ERROR! Failed removing server '" + server_address + "' from metadata!");
             System.exit(-1);
         }
         
-        return this;
+        return new ServiceMetaData(ah_pairs, this.tokens_per_server);
     }
     
-    private MetaDataItem findServer(ServerAddress server_address) {
-        MetaDataItem    server = this.records.get(server_address);
+    /**
+     * Computes the hash ranges changing their owner between two metadata versions,
+     * which is the data to be moved when switching from one to the other.
+     * Adjacent ranges moving between the same pair of servers are merged.
+     * @param from Current metadata version
+     * @param to Next metadata version
+     * @return The moved ranges, ordered by their position on the ring
+     */
+    public static List<RangeTransfer> getTransfers(ServiceMetaData from, ServiceMetaData to) {
+        // No end-point of either ring lies within the interval between two
+        // consecutive end-points, so each interval has one owner in each version
+        List<HashValue> bounds = new ArrayList<HashValue>(from.ring_ends.length + to.ring_ends.length);
+        bounds.addAll(Arrays.asList(from.ring_ends));
+        bounds.addAll(Arrays.asList(to.ring_ends));
+        Collections.sort(bounds);
+        
+        List<RangeTransfer> transfers = new ArrayList<RangeTransfer>();
+        RangeTransfer       last = null;
+        HashValue           prev_bound = bounds.get(bounds.size() - 1);
+        for (HashValue bound : bounds) {
+            if (bound.equals(prev_bound)) {
+                continue;
+            }
+            
+            ServerAddress   source = from.ring_items[from.ringIndexFor(bound)].server_address;
+            ServerAddress   target = to.ring_items[to.ringIndexFor(bound)].server_address;
+            if (!source.equals(target)) {
+                if (last != null && last.end.equals(prev_bound) && last.source.equals(source) &&
+                        last.target.equals(target)) {
+                    last = new RangeTransfer(last.begin, bound, source, target);
+                    transfers.set(transfers.size() - 1, last);
+                } else {
+                    last = new RangeTransfer(prev_bound, bound, source, target);
+                    transfers.add(last);
+                }
+            }
+            prev_bound = bound;
+        }
+        
+        return transfers;
+    }
+    
+    private List<MetaDataItem> findServer(ServerAddress server_address) {
+        List<MetaDataItem>  server = this.records.get(server_address);
         
         if (server == null) {
             logger.fatal("FATAL ERROR! Address '" + server_address + "' is not in metadata!");
@@ -84,15 +200,15 @@ public class ServiceMetaData {
         return server;
     }
     
-    private MetaDataItem findSuccessorForServer(ServerAddress server_address, boolean active) {
+    private MetaDataItem findSuccessorForServer(ServerAddress server_address) {
         HashValue       server_hash = HashValue.hashServerAddress(server_address);
         MetaDataItem    successor = null;
         
-        for (MetaDataItem item: this.records.values()) {
-            if ((active && (item.begin_hash.compareTo(server_hash) == 0)) ||
-                    (!active && server_hash.isInRange(item.begin_hash, item.end_hash))) {
-                successor = item;
-                break;
+        if (this.ring_items.length > 0) {
+            // The server itself owns the end-point; its successor is the next one on the ring
+            int index = (this.ringIndexFor(server_hash) + 1) % this.ring_items.length;
+            if (this.ring_items[index].begin_hash.compareTo(server_hash) == 0) {
+                successor = this.ring_items[index];
             }
         }
         
@@ -104,48 +220,97 @@ public class ServiceMetaData {
         return successor;
     }
     
+    /**
+     * Binary search for the ring end-point responsible for the given hash, i.e. the
+     * first end-point not smaller than the hash, wrapping around to the first one.
+     * @param hash Position on the ring
+     * @return Index into the sorted ring arrays
+     */
+    private int ringIndexFor(HashValue hash) {
+        int low = 0;
+        int high = this.ring_ends.length;
+        
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (this.ring_ends[mid].compareTo(hash) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        
+        return (low == this.ring_ends.length) ? 0 : low;
+    }
+    
+    /**
+     * @return The server owning the token that follows the first token of the given server
+     */
     public ServerAddress getSuccessorAddressForServer(ServerAddress server_address) {
-        return findSuccessorForServer(server_address, true).server_address;
+        return findSuccessorForServer(server_address).server_address;
     }
     
     public ServerAddress getServerForKey(String key) {
-        HashValue       key_hash = HashValue.hashKey(key);
+        return this.getServerForHash(HashValue.hashKey(key));
+    }
+    
+    public ServerAddress getServerForHash(HashValue hash) {
         ServerAddress   address = null;
         
-        for (MetaDataItem item: this.records.values()) {
-            if (key_hash.isInRange(item.begin_hash, item.end_hash)) {
-                address = item.server_address;
-                break;
-            }
+        if (this.ring_items.length > 0) {
+            address = this.ring_items[this.ringIndexFor(hash)].server_address;
         }
         
         if (address == null) {
-            logger.fatal("FATAL ERROR! Key '" + key + "' is not hashed!");
+            logger.fatal("FATAL ERROR! Hash '" + hash + "' is not mapped to a server!");
             System.exit(-1);
         }
         
         return address;
     }
     
-    public HashValue[] getHashRangeForServer(ServerAddress address) {
-        MetaDataItem    server = findServer(address);
+    /**
+     * Returns the ranges of all the tokens of the server.
+     * @return Pairs of the exclusive beginning and the inclusive end of every
+     *          range, ordered by their position on the ring
+     */
+    public HashValue[][] getHashRangeForServer(ServerAddress address) {
+        List<MetaDataItem>  server = findServer(address);
         
-        HashValue[] range = new HashValue[2];
-        range[0] = server.begin_hash;
-        range[1] = server.end_hash;
+        HashValue[][]   ranges = new HashValue[server.size()][];
+        for (int i = 0; i < ranges.length; ++i) {
+            ranges[i] = new HashValue[] {server.get(i).begin_hash, server.get(i).end_hash};
+        }
         
-        return range;
+        return ranges;
     }
     
+    /**
+     * Marshals a ring of a single token per server in the legacy format: the
+     * number of servers followed by the address and the range of every server,
+     * so that it is understood by the servers and clients preceding the tokens.
+     * Otherwise, the servers only are marshaled after a signature byte, which
+     * cannot start the legacy format: the tokens are placed on the ring by the
+     * hashes of the addresses, so the receiver recomputes them.
+     */
     public static byte[] marshal(ServiceMetaData metadata) {
         Marshaller  marshaller = new Marshaller();
         
+        if (metadata.tokens_per_server == 1) {
+            marshaller.marshalInt(metadata.ring_items.length);
+            for (MetaDataItem item : metadata.ring_items) {
+                marshaller.marshalString(item.server_address.toString());
+                marshaller.marshalBytes(item.begin_hash.getData());
+                marshaller.marshalBytes(item.end_hash.getData());
+            }
+            return marshaller.getBytes();
+        }
+        
+        marshaller.marshalByte(METADATA_TOKENS_SIGNATURE);
+        marshaller.marshalInt(metadata.tokens_per_server);
         marshaller.marshalInt(metadata.records.size());
         
-        for (MetaDataItem item: metadata.records.values()) {
-            marshaller.marshalString(item.server_address.toString());
-            marshaller.marshalBytes(item.begin_hash.getData());
-            marshaller.marshalBytes(item.end_hash.getData());
+        for (ServerAddress server_address : metadata.records.keySet()) {
+            marshaller.marshalString(server_address.toString());
         }
         
         return marshaller.getBytes();
@@ -154,25 +319,54 @@ public class ServiceMetaData {
     public static ServiceMetaData unmarshal(byte[] data) throws ParseException {
         Unmarshaller unmarshaller = new Unmarshaller(data);
         
+        if (data.length == 0 || data[0] != METADATA_TOKENS_SIGNATURE) {
+            return ServiceMetaData.unmarshalLegacy(unmarshaller);
+        }
+        unmarshaller.unmarshalByte();
+        
+        int tokens_per_server = unmarshaller.unmarshalInt();
         int count = unmarshaller.unmarshalInt();
+        if (tokens_per_server < 1 || tokens_per_server > MAX_TOKENS_PER_SERVER) {
+            throw new ParseException("Invalid number of tokens per server: " + tokens_per_server + ".",
+                    unmarshaller.position());
+        }
+        if (count < 1) {
+            throw new ParseException("Invalid number of servers: " + count + ".", unmarshaller.position());
+        }
         
-        Map<ServerAddress, MetaDataItem>    records = new HashMap<ServerAddress, MetaDataItem>(count);
+        List<ServerAddress> server_addresses = new ArrayList<ServerAddress>();
         for (int i = 0; i < count; ++i) {
-            MetaDataItem item = new MetaDataItem(new ServerAddress(unmarshaller.unmarshalString()),
-                    new HashValue(unmarshaller.unmarshalBytes(HashValue.VALUE_SIZE)),
-                    new HashValue(unmarshaller.unmarshalBytes(HashValue.VALUE_SIZE))
-            );
-            records.put(item.server_address, item);
+            server_addresses.add(new ServerAddress(unmarshaller.unmarshalString()));
         }
         
-        return new ServiceMetaData(records);
+        return ServiceMetaData.generateForServers(server_addresses, tokens_per_server);
+    }
+    
+    /**
+     * Reads the legacy format, in which every server has a single token at the
+     * hash of its address. The ranges are implied by the addresses, so the ring
+     * is recomputed from them.
+     */
+    private static ServiceMetaData unmarshalLegacy(Unmarshaller unmarshaller) throws ParseException {
+        int count = unmarshaller.unmarshalInt();
+        if (count < 1) {
+            throw new ParseException("Invalid number of servers: " + count + ".", unmarshaller.position());
+        }
+        
+        List<ServerAddress> server_addresses = new ArrayList<ServerAddress>();
+        for (int i = 0; i < count; ++i) {
+            server_addresses.add(new ServerAddress(unmarshaller.unmarshalString()));
+            unmarshaller.unmarshalBytes(2 * HashValue.VALUE_SIZE);
+        }
+        
+        return ServiceMetaData.generateForServers(server_addresses, 1);
     }
     
     private static class MetaDataItem {
-        ServerAddress   server_address;
-        HashValue       begin_hash;
-        HashValue       end_hash;
-
+        final ServerAddress server_address;
+        final HashValue     begin_hash;
+        final HashValue     end_hash;
+        
         public MetaDataItem(ServerAddress server_address, HashValue begin_hash, HashValue end_hash) {
             this.server_address = server_address;
             this.begin_hash = begin_hash;
@@ -180,26 +374,59 @@ public class ServiceMetaData {
         }
     }
     
+    /**
+     * A hash range changing its owner between two metadata versions.
+     */
+    public static class RangeTransfer {
+        private final HashValue     begin;
+        private final HashValue     end;
+        private final ServerAddress source;
+        private final ServerAddress target;
+        
+        RangeTransfer(HashValue begin, HashValue end, ServerAddress source, ServerAddress target) {
+            this.begin = begin;
+            this.end = end;
+            this.source = source;
+            this.target = target;
+        }
+        
+        public HashValue getRangeBegin() {
+            return this.begin;
+        }
+        
+        public HashValue getRangeEnd() {
+            return this.end;
+        }
+        
+        public ServerAddress getSource() {
+            return this.source;
+        }
+        
+        public ServerAddress getTarget() {
+            return this.target;
+        }
+    }
+    
     private static class AddressHashPair implements Comparable<AddressHashPair> {
         ServerAddress   server_address;
         HashValue       hash;
-
+        
         public AddressHashPair(ServerAddress server_address, HashValue hash) {
             this.server_address = server_address;
             this.hash = hash;
         }
-
+        
         @Override
         public int compareTo(AddressHashPair o) {
             return this.hash.compareTo(o.hash);
         }
     }
-
+    
     @Override
     public String toString() {
         StringBuilder   builder = new StringBuilder();
         
-        for (MetaDataItem item: this.records.values()) {
+        for (MetaDataItem item: this.ring_items) {
             builder.append("Address: ").append(item.server_address).append("; ");
             builder.append("Begin: ").append(item.begin_hash).append("; ");
             builder.append("End: ").append(item.end_hash).append("\n");
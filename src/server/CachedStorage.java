@@ -0,0 +1,303 @@
+package server;
+
+import common.topology.HashValue;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Storage engine serving the hot keys of another engine from a size-bounded
+ * in-memory cache. Writes go through to the engine and update the cache; reads
+ * that miss the cache are served by the engine and cache the value. Writes and
+ * cache fills of the same key are serialized by lock striping, so a fill never
+ * caches a value that is overwritten concurrently. Range operations are served
+ * by the engine; deleting a hash range removes the range from the cache as well.
+ * @author Danila Klimenko
+ */
+public class CachedStorage implements StorageEngine {
+    public enum EvictionPolicy {LRU, LFU, FIFO, ARC};
+    
+    private static final Charset    UTF8 = Charset.forName("UTF-8");
+    private static final int        STRIPE_COUNT = 64;
+    private static final int        SEGMENT_COUNT = 16;
+    private static final int        MIN_SEGMENT_ENTRIES = 64;
+    private static final int        MAX_KEY_LENGTH = 20;
+    private static final int        MAX_VALUE_LENGTH = 120 * 1024;
+    
+    private final StorageEngine engine;
+    private final ValueCache    cache;
+    private final Lock[]        stripes;
+    
+    /**
+     * Main constructor.
+     * @param engine Storage engine holding the data
+     * @param policy Eviction policy of the cache
+     * @param max_entries Maximum number of cached entries, or 0 for no limit
+     * @param max_bytes Maximum number of bytes held by the cached entries, or 0
+     *          for no limit
+     */
+    public CachedStorage(StorageEngine engine, EvictionPolicy policy, long max_entries, long max_bytes) {
+        if (max_entries < 0 || max_bytes < 0 || (max_entries == 0 && max_bytes == 0)) {
+            throw new IllegalArgumentException("Illegal cache limits: " + max_entries + " entries, " +
+                    max_bytes + " bytes.");
+        }
+        
+        // Small caches are not split, so that the policy sees all the entries
+        int segment_count = (max_entries > 0 && max_entries < SEGMENT_COUNT * MIN_SEGMENT_ENTRIES) ?
+                1 : SEGMENT_COUNT;
+        // Nor are they split into shares too small for the largest values
+        long max_weight = ValueCache.weightOf(MAX_KEY_LENGTH, MAX_VALUE_LENGTH);
+        while (max_bytes > 0 && segment_count > 1 && max_bytes / segment_count < max_weight) {
+            segment_count >>= 1;
+        }
+        
+        this.engine = engine;
+        this.cache = new ValueCache(policy, max_entries, max_bytes, segment_count);
+        this.stripes = new Lock[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; ++i) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+    
+    public String put(String key, String value) throws IllegalArgumentException {
+        return CachedStorage.decode(this.putBytes(key, CachedStorage.encode(value)));
+    }
+    
+    public byte[] putBytes(String key, byte[] value) throws IllegalArgumentException {
+        Lock stripe = this.stripes[CachedStorage.stripeIndexFor(key)];
+        
+        stripe.lock();
+        try {
+            byte[] prev_value = this.engine.putBytes(key, value);
+            this.cache.put(key, value);
+            return prev_value;
+            
+        } catch (IllegalStateException ex) { // The engine state is unknown
+            this.cache.remove(key);
+            throw ex;
+        } finally {
+            stripe.unlock();
+        }
+    }
+    
+    public String get(String key) {
+        return CachedStorage.decode(this.getBytes(key));
+    }
+    
+    public byte[] getBytes(String key) {
+        byte[] value = this.cache.get(key);
+        if (value != null) {
+            return value;
+        }
+        
+        Lock stripe = this.stripes[CachedStorage.stripeIndexFor(key)];
+        stripe.lock();
+        try {
+            value = this.engine.getBytes(key);
+            if (value != null) {
+                this.cache.put(key, value);
+            }
+        } finally {
+            stripe.unlock();
+        }
+        
+        return value;
+    }
+    
+    public String delete(String key) {
+        return CachedStorage.decode(this.deleteBytes(key));
+    }
+    
+    public byte[] deleteBytes(String key) {
+        Lock stripe = this.stripes[CachedStorage.stripeIndexFor(key)];
+        
+        stripe.lock();
+        try {
+            return this.engine.deleteBytes(key);
+        } finally {
+            this.cache.remove(key);
+            stripe.unlock();
+        }
+    }
+    
+    public String[] getAll(List<String> keys) {
+        byte[][]    found_values = this.getAllBytes(keys);
+        String[]    values = new String[found_values.length];
+        
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = CachedStorage.decode(found_values[i]);
+        }
+        
+        return values;
+    }
+    
+    public byte[][] getAllBytes(List<String> keys) {
+        byte[][]        values = new byte[keys.size()][];
+        List<Integer>   positions = new ArrayList<Integer>();
+        List<String>    missed_keys = new ArrayList<String>();
+        boolean[]       involved = new boolean[STRIPE_COUNT];
+        
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = this.cache.get(keys.get(i));
+            if (values[i] == null) {
+                positions.add(i);
+                missed_keys.add(keys.get(i));
+                involved[CachedStorage.stripeIndexFor(keys.get(i))] = true;
+            }
+        }
+        if (missed_keys.isEmpty()) {
+            return values;
+        }
+        
+        this.lockStripes(involved);
+        try {
+            byte[][] found_values = this.engine.getAllBytes(missed_keys);
+            for (int j = 0; j < found_values.length; ++j) {
+                values[positions.get(j)] = found_values[j];
+                if (found_values[j] != null) {
+                    this.cache.put(missed_keys.get(j), found_values[j]);
+                }
+            }
+        } finally {
+            this.unlockStripes(involved);
+        }
+        
+        return values;
+    }
+    
+    public String[] putAll(List<String> keys, List<String> values) throws IllegalArgumentException {
+        List<byte[]>    encoded_values = new ArrayList<byte[]>(values.size());
+        for (String value : values) {
+            encoded_values.add(CachedStorage.encode(value));
+        }
+        
+        byte[][]    prev_values = this.putAllBytes(keys, encoded_values);
+        String[]    decoded_values = new String[prev_values.length];
+        for (int i = 0; i < prev_values.length; ++i) {
+            decoded_values[i] = CachedStorage.decode(prev_values[i]);
+        }
+        
+        return decoded_values;
+    }
+    
+    public byte[][] putAllBytes(List<String> keys, List<byte[]> values) throws IllegalArgumentException {
+        boolean[] involved = new boolean[STRIPE_COUNT];
+        for (String key : keys) {
+            involved[CachedStorage.stripeIndexFor(key)] = true;
+        }
+        
+        this.lockStripes(involved);
+        try {
+            byte[][] prev_values = this.engine.putAllBytes(keys, values);
+            for (int i = 0; i < keys.size(); ++i) {
+                this.cache.put(keys.get(i), values.get(i));
+            }
+            return prev_values;
+            
+        } catch (IllegalStateException ex) { // The engine state is unknown
+            for (String key : keys) {
+                this.cache.remove(key);
+            }
+            throw ex;
+        } finally {
+            this.unlockStripes(involved);
+        }
+    }
+    
+    public String dump() {
+        return this.engine.dump();
+    }
+    
+    public void visitHashRange(HashValue begin, HashValue end, EntryVisitor visitor) {
+        this.engine.visitHashRange(begin, end, visitor);
+    }
+    
+    public KeyValuePacket getPacketForHashRange(HashValue begin, HashValue end) {
+        return this.engine.getPacketForHashRange(begin, end);
+    }
+    
+    /**
+     * Stores the pairs in the engine. The transferred pairs are not cached; cached
+     * values of the same keys are dropped.
+     * @param packet Packet with the key-value pairs
+     */
+    public void putAllFromKeyValuePacket(KeyValuePacket packet) {
+        this.lockAll();
+        try {
+            this.engine.putAllFromKeyValuePacket(packet);
+        } finally {
+            for (KeyValuePacket.KeyValuePair kv_pair : packet) {
+                if (kv_pair.key != null) {
+                    this.cache.remove(kv_pair.key);
+                }
+            }
+            this.unlockAll();
+        }
+    }
+    
+    public void deleteHashRange(HashValue begin, HashValue end) {
+        this.lockAll();
+        try {
+            this.engine.deleteHashRange(begin, end);
+        } finally {
+            this.cache.removeHashRange(begin, end);
+            this.unlockAll();
+        }
+    }
+    
+    public void close() {
+        this.engine.close();
+    }
+    
+    public long getHitCount() {
+        return this.cache.getHitCount();
+    }
+    
+    public long getMissCount() {
+        return this.cache.getMissCount();
+    }
+    
+    private static int stripeIndexFor(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return hash & (STRIPE_COUNT - 1);
+    }
+    
+    private void lockStripes(boolean[] selected) {
+        for (int i = 0; i < STRIPE_COUNT; ++i) {
+            if (selected[i]) {
+                this.stripes[i].lock();
+            }
+        }
+    }
+    
+    private void unlockStripes(boolean[] selected) {
+        for (int i = STRIPE_COUNT - 1; i >= 0; --i) {
+            if (selected[i]) {
+                this.stripes[i].unlock();
+            }
+        }
+    }
+    
+    private void lockAll() {
+        for (Lock stripe : this.stripes) {
+            stripe.lock();
+        }
+    }
+    
+    private void unlockAll() {
+        for (int i = STRIPE_COUNT - 1; i >= 0; --i) {
+            this.stripes[i].unlock();
+        }
+    }
+    
+    private static byte[] encode(String value) {
+        return (value != null) ? value.getBytes(UTF8) : null;
+    }
+    
+    private static String decode(byte[] value) {
+        return (value != null) ? new String(value, UTF8) : null;
+    }
+}
@@ -0,0 +1,362 @@
+package server;
+
+import common.topology.HashValue;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Storage engine recording which keys of given hash ranges of another engine
+ * are modified, so that a range can be copied to another server while it is
+ * being written to: the changes made during the copy are drained and sent
+ * after it, and so on, until few changes remain (see KVServer.moveData()).
+ * Several ranges may be tracked at once, each with its own changes; a server
+ * owning many tokens hands over many ranges at a time.
+ * Only the keys are recorded; their current values are read when they are sent.
+ * Sealing a range for the last round rejects further writes to the range, so
+ * no change made after the last drain goes unnoticed. While no range is
+ * tracked, a write costs two volatile reads.
+ * @author Danila Klimenko
+ */
+public class ChangeTrackingStorage implements StorageEngine {
+    private static final Tracker[]  NO_TRACKERS = new Tracker[0];
+    
+    private final StorageEngine     engine;
+    private final ReadWriteLock     lock;       // Writers hold the read lock, drains the write lock
+    private volatile Tracker[]      trackers;
+    
+    /**
+     * Main constructor.
+     * @param engine Storage engine holding the data
+     */
+    public ChangeTrackingStorage(StorageEngine engine) {
+        this.engine = engine;
+        this.lock = new ReentrantReadWriteLock();
+        this.trackers = NO_TRACKERS;
+    }
+    
+    /**
+     * Starts recording the modified keys of the range.
+     * @param begin Exclusive beginning of the hash range
+     * @param end Inclusive end of the hash range
+     * @throws IllegalStateException Thrown if the range is tracked already
+     */
+    public void startTracking(HashValue begin, HashValue end) throws IllegalStateException {
+        this.lock.writeLock().lock();
+        try {
+            if (this.indexOf(begin, end) >= 0) {
+                throw new IllegalStateException("Changes of the hash range are tracked already.");
+            }
+            
+            Tracker[] trackers = new Tracker[this.trackers.length + 1];
+            System.arraycopy(this.trackers, 0, trackers, 0, this.trackers.length);
+            trackers[this.trackers.length] = new Tracker(begin, end);
+            this.trackers = trackers;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Stops recording the range; the keys recorded since the last drain are
+     * dropped, and writes to the range are accepted again.
+     */
+    public void stopTracking(HashValue begin, HashValue end) {
+        this.lock.writeLock().lock();
+        try {
+            int index = this.indexOf(begin, end);
+            if (index >= 0) {
+                Tracker[] trackers = new Tracker[this.trackers.length - 1];
+                System.arraycopy(this.trackers, 0, trackers, 0, index);
+                System.arraycopy(this.trackers, index + 1, trackers, index, trackers.length - index);
+                this.trackers = trackers;
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Stops recording all the ranges.
+     */
+    public void stopTracking() {
+        this.lock.writeLock().lock();
+        try {
+            this.trackers = NO_TRACKERS;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * @return The keys of the range modified since the previous drain
+     * @throws IllegalStateException Thrown if the range is not tracked
+     */
+    public Set<String> drainChanges(HashValue begin, HashValue end) throws IllegalStateException {
+        return this.drain(begin, end, false);
+    }
+    
+    /**
+     * Rejects all further writes to the range with WriteLockedException, until
+     * its tracking stops. Writes in progress are completed first.
+     * @return The keys of the range modified since the previous drain
+     * @throws IllegalStateException Thrown if the range is not tracked
+     */
+    public Set<String> seal(HashValue begin, HashValue end) throws IllegalStateException {
+        return this.drain(begin, end, true);
+    }
+    
+    public String put(String key, String value) throws IllegalArgumentException {
+        HashValue hash = this.enter(key);
+        try {
+            return this.engine.put(key, value);
+        } finally {
+            this.exit(hash, key);
+        }
+    }
+    
+    public byte[] putBytes(String key, byte[] value) throws IllegalArgumentException {
+        HashValue hash = this.enter(key);
+        try {
+            return this.engine.putBytes(key, value);
+        } finally {
+            this.exit(hash, key);
+        }
+    }
+    
+    public String get(String key) {
+        return this.engine.get(key);
+    }
+    
+    public byte[] getBytes(String key) {
+        return this.engine.getBytes(key);
+    }
+    
+    public String delete(String key) {
+        HashValue hash = this.enter(key);
+        try {
+            return this.engine.delete(key);
+        } finally {
+            this.exit(hash, key);
+        }
+    }
+    
+    public byte[] deleteBytes(String key) {
+        HashValue hash = this.enter(key);
+        try {
+            return this.engine.deleteBytes(key);
+        } finally {
+            this.exit(hash, key);
+        }
+    }
+    
+    public String[] getAll(List<String> keys) {
+        return this.engine.getAll(keys);
+    }
+    
+    public byte[][] getAllBytes(List<String> keys) {
+        return this.engine.getAllBytes(keys);
+    }
+    
+    public String[] putAll(List<String> keys, List<String> values) throws IllegalArgumentException {
+        HashValue[] hashes = this.enterAll(keys);
+        try {
+            return this.engine.putAll(keys, values);
+        } finally {
+            this.exitAll(hashes, keys);
+        }
+    }
+    
+    public byte[][] putAllBytes(List<String> keys, List<byte[]> values) throws IllegalArgumentException {
+        HashValue[] hashes = this.enterAll(keys);
+        try {
+            return this.engine.putAllBytes(keys, values);
+        } finally {
+            this.exitAll(hashes, keys);
+        }
+    }
+    
+    public String dump() {
+        return this.engine.dump();
+    }
+    
+    public void visitHashRange(HashValue begin, HashValue end, EntryVisitor visitor) {
+        this.engine.visitHashRange(begin, end, visitor);
+    }
+    
+    public KeyValuePacket getPacketForHashRange(HashValue begin, HashValue end) {
+        return this.engine.getPacketForHashRange(begin, end);
+    }
+    
+    /**
+     * Stores the pairs in the engine. Transferred pairs are not recorded.
+     * @param packet Packet with the key-value pairs
+     */
+    public void putAllFromKeyValuePacket(KeyValuePacket packet) {
+        this.engine.putAllFromKeyValuePacket(packet);
+    }
+    
+    public void deleteHashRange(HashValue begin, HashValue end) {
+        this.engine.deleteHashRange(begin, end);
+    }
+    
+    public void close() {
+        this.engine.close();
+    }
+    
+    private Set<String> drain(HashValue begin, HashValue end, boolean seal) throws IllegalStateException {
+        // Waits for the writes in progress, whose keys are recorded when they complete
+        this.lock.writeLock().lock();
+        try {
+            int index = this.indexOf(begin, end);
+            if (index < 0) {
+                throw new IllegalStateException("Changes of the hash range are not tracked.");
+            }
+            
+            Tracker tracker = this.trackers[index];
+            Set<String> changes = tracker.changes;
+            tracker.changes = Tracker.newChangeSet();
+            tracker.sealed = tracker.sealed || seal;
+            return changes;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Must be called with the write lock held.
+     * @return Index of the tracker of the range, or -1
+     */
+    private int indexOf(HashValue begin, HashValue end) {
+        for (int i = 0; i < this.trackers.length; ++i) {
+            if (this.trackers[i].begin.equals(begin) && this.trackers[i].end.equals(end)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Registers a write of the key with the trackers, if there are any.
+     * @return The hash of the key, or null if no range is tracked
+     * @throws WriteLockedException Thrown if the key lies in a sealed range
+     */
+    private HashValue enter(String key) throws WriteLockedException {
+        if (this.trackers.length == 0) {
+            return null;
+        }
+        
+        HashValue hash = HashValue.hashKey(key);
+        this.lock.readLock().lock();
+        for (Tracker tracker : this.trackers) {
+            if (tracker.sealed && tracker.covers(hash)) {
+                this.lock.readLock().unlock();
+                throw new WriteLockedException("Key '" + key + "' is being handed over to another server.");
+            }
+        }
+        return hash;
+    }
+    
+    private HashValue[] enterAll(List<String> keys) throws WriteLockedException {
+        if (this.trackers.length == 0) {
+            return null;
+        }
+        
+        HashValue[] hashes = new HashValue[keys.size()];
+        for (int i = 0; i < hashes.length; ++i) {
+            hashes[i] = HashValue.hashKey(keys.get(i));
+        }
+        this.lock.readLock().lock();
+        for (Tracker tracker : this.trackers) {
+            if (tracker.sealed) {
+                for (int i = 0; i < hashes.length; ++i) {
+                    if (tracker.covers(hashes[i])) {
+                        this.lock.readLock().unlock();
+                        throw new WriteLockedException("Key '" + keys.get(i) +
+                                "' is being handed over to another server.");
+                    }
+                }
+            }
+        }
+        return hashes;
+    }
+    
+    /**
+     * Records the key with the trackers covering it once its write is complete.
+     * A write that started before the tracking is recorded as well, since the
+     * copy of the range may have been taken before the write.
+     * @param hash Hash of the key returned by enter(), or null
+     */
+    private void exit(HashValue hash, String key) {
+        if (hash == null) {
+            if (this.trackers.length == 0) {
+                return;
+            }
+            hash = HashValue.hashKey(key);
+            this.lock.readLock().lock();
+        }
+        try {
+            for (Tracker tracker : this.trackers) {
+                if (tracker.covers(hash)) {
+                    tracker.changes.add(key);
+                }
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+    
+    private void exitAll(HashValue[] hashes, List<String> keys) {
+        if (hashes == null) {
+            if (this.trackers.length == 0) {
+                return;
+            }
+            hashes = new HashValue[keys.size()];
+            for (int i = 0; i < hashes.length; ++i) {
+                hashes[i] = HashValue.hashKey(keys.get(i));
+            }
+            this.lock.readLock().lock();
+        }
+        try {
+            for (Tracker tracker : this.trackers) {
+                for (int i = 0; i < hashes.length; ++i) {
+                    if (tracker.covers(hashes[i])) {
+                        tracker.changes.add(keys.get(i));
+                    }
+                }
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * A tracked range and the keys recorded since its last drain. The changes
+     * are added to concurrently by the writers; the fields are replaced under
+     * the write lock only.
+     */
+    private static class Tracker {
+        final HashValue begin;
+        final HashValue end;
+        Set<String>     changes;
+        boolean         sealed;
+        
+        Tracker(HashValue begin, HashValue end) {
+            this.begin = begin;
+            this.end = end;
+            this.changes = Tracker.newChangeSet();
+            this.sealed = false;
+        }
+        
+        boolean covers(HashValue hash) {
+            return hash.isInRange(this.begin, this.end);
+        }
+        
+        static Set<String> newChangeSet() {
+            return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        }
+    }
+}
@@ -33,6 +33,26 @@ public class DataTransferRequest {
         return this.target;
     }
     
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null || this.getClass() != obj.getClass()) {
+            return false;
+        }
+        
+        final DataTransferRequest other = (DataTransferRequest) obj;
+        return this.range_begin.equals(other.range_begin) && this.range_end.equals(other.range_end) &&
+                this.target.equals(other.target);
+    }
+    
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 37 * hash + this.range_begin.hashCode();
+        hash = 37 * hash + this.range_end.hashCode();
+        hash = 37 * hash + this.target.hashCode();
+        return hash;
+    }
+    
     public static byte[] marshal(DataTransferRequest dt_request) {
         Marshaller  marshaller = new Marshaller();
         
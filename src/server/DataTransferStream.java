@@ -0,0 +1,206 @@
+package server;
+
+import common.messages.ControlMessage;
+import common.messages.ControlMessage.ControlType;
+import common.messages.Marshaller;
+import common.messages.NetworkMessage;
+import common.topology.ServerAddress;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.text.ParseException;
+import logger.LogSetup;
+import org.apache.log4j.Logger;
+
+/**
+ * Stream of key-value pairs sent to another server in TRANSFER messages. Every
+ * pair is marshaled once, directly into the message being filled, and the
+ * message is sent as soon as the next pair would exceed the message size limit.
+ * Up to 'window' messages are in flight without being acknowledged, so the
+ * transfer does not wait for a round trip per message; the receiving server
+ * processes and acknowledges the messages of a connection in order.
+ * The stream may serve as the visitor of a hash range of a storage engine, so
+ * that the range is sent while it is being scanned instead of being collected
+ * first. A visitor cannot throw checked exceptions: failures are reported as
+ * IllegalStateException, and getFailure() returns the original exception.
+ * Deletions of keys, which are only sent when replaying the changes made to a
+ * range during its transfer, are sent in TRANSFER_DELETE messages on the same
+ * connection, so they are applied in order with the pairs.
+ * @author Danila Klimenko
+ */
+public class DataTransferStream implements StorageEngine.EntryVisitor {
+    private static final Logger     logger = LogSetup.getLogger();
+    
+    private final ServerAddress     target;
+    private final int               window;
+    private final Socket            socket;
+    private final InputStream       input;
+    private final OutputStream      output;
+    private final Marshaller        message;
+    private ControlType             message_type;
+    private int                     message_pairs;
+    private int                     in_flight;
+    private long                    pair_count;
+    private ProtocolException       failure;
+    
+    /**
+     * Main constructor; connects to the target server.
+     * @param target Address of the receiving server
+     * @param window Maximum number of unacknowledged messages
+     * @throws ProtocolException Thrown if the connection cannot be established
+     */
+    public DataTransferStream(ServerAddress target, int window) throws ProtocolException {
+        if (window < 1) {
+            throw new IllegalArgumentException("Illegal transfer window: " + window + ".");
+        }
+        
+        this.target = target;
+        this.window = window;
+        try {
+            this.socket = new Socket(target.getAddress(), target.getPort());
+            this.input = this.socket.getInputStream();
+            this.output = this.socket.getOutputStream();
+        } catch (IOException ex) {
+            throw new ProtocolException("Connection to remote server (" + target + ") failed: " + ex.getMessage());
+        }
+        this.message = new Marshaller(NetworkMessage.MAX_MESSAGE_SIZE);
+        this.message_type = ControlType.TRANSFER;
+        this.message_pairs = 0;
+        this.in_flight = 0;
+        this.pair_count = 0;
+        this.failure = null;
+        
+        ControlMessage.beginTransfer(this.message, this.message_type);
+    }
+    
+    /**
+     * Adds a pair to the stream, sending the current message first if the pair
+     * does not fit into it.
+     * @throws ProtocolException Thrown if the transfer fails
+     */
+    public void add(String key, byte[] value) throws ProtocolException {
+        this.append(ControlType.TRANSFER, key, value);
+    }
+    
+    /**
+     * Adds the deletion of a key to the stream.
+     * @throws ProtocolException Thrown if the transfer fails
+     */
+    public void remove(String key) throws ProtocolException {
+        this.append(ControlType.TRANSFER_DELETE, key, null);
+    }
+    
+    @Override
+    public void visit(String key, byte[] value) {
+        try {
+            this.add(key, value);
+        } catch (ProtocolException ex) {
+            this.failure = ex;
+            throw new IllegalStateException(ex.getMessage());
+        }
+    }
+    
+    /**
+     * Sends the pairs added so far, waiting for an acknowledgement first if the
+     * window is full.
+     * @throws ProtocolException Thrown if the transfer fails
+     */
+    public void flush() throws ProtocolException {
+        if (this.message_pairs == 0) {
+            return;
+        }
+        
+        ControlMessage.finishTransfer(this.message, this.message_type, this.message_pairs);
+        if (this.in_flight >= this.window) {
+            this.awaitAcknowledgement();
+        }
+        try {
+            new NetworkMessage(this.message).writeTo(this.output);
+        } catch (IOException ex) {
+            throw new ProtocolException("Communication with remote server (" + this.target + ") failed: " +
+                    ex.getMessage());
+        }
+        ++this.in_flight;
+        
+        this.message.reset();
+        this.message_pairs = 0;
+        ControlMessage.beginTransfer(this.message, this.message_type);
+    }
+    
+    /**
+     * Sends the remaining pairs and waits until the target has stored all of them.
+     * @throws ProtocolException Thrown if the transfer fails
+     */
+    public void finish() throws ProtocolException {
+        this.flush();
+        while (this.in_flight > 0) {
+            this.awaitAcknowledgement();
+        }
+    }
+    
+    /**
+     * Closes the connection; unacknowledged pairs may or may not be stored.
+     */
+    public void close() {
+        try {
+            this.socket.close();
+        } catch (IOException ex) {
+            logger.warn("Warning! Unable to tear down connection to remote server (" + this.target + "): " +
+                    ex.getMessage());
+        }
+    }
+    
+    /**
+     * @return The failure reported as IllegalStateException by visit(), or null
+     */
+    public ProtocolException getFailure() {
+        return this.failure;
+    }
+    
+    /**
+     * @return Number of pairs and deletions added to the stream
+     */
+    public long getPairCount() {
+        return this.pair_count;
+    }
+    
+    private void append(ControlType type, String key, byte[] value) throws ProtocolException {
+        if (this.message_pairs > 0 && (type != this.message_type ||
+                this.message.size() + KeyValuePacket.sizeOfPair(key, value) > NetworkMessage.MAX_MESSAGE_SIZE)) {
+            this.flush();
+        }
+        if (type != this.message_type) { // The message being filled is empty
+            this.message_type = type;
+            this.message.reset();
+            ControlMessage.beginTransfer(this.message, type);
+        }
+        
+        KeyValuePacket.marshalPair(this.message, key, value);
+        ++this.message_pairs;
+        ++this.pair_count;
+    }
+    
+    private void awaitAcknowledgement() throws ProtocolException {
+        ControlMessage ctrlmsg;
+        
+        try {
+            ctrlmsg = ControlMessage.unmarshal(NetworkMessage.readFrom(this.input).getData());
+        } catch (ParseException ex) {
+            throw new ProtocolException("Failed to parse message from the remote server (" + this.target + "): " +
+                    ex.getMessage());
+        } catch (IOException ex) {
+            throw new ProtocolException("Communication with remote server (" + this.target + ") failed: " +
+                    ex.getMessage());
+        }
+        
+        if (ctrlmsg.getType() == ControlType.FAILURE) {
+            throw new ProtocolException("Remote server (" + this.target + ") failed: " + ctrlmsg.getDescription());
+        } else if (ctrlmsg.getType() != ControlType.SUCCESS) {
+            throw new ProtocolException("Remote server (" + this.target + ") returned unexpected message: " +
+                    ctrlmsg.getType().name());
+        }
+        --this.in_flight;
+    }
+}
@@ -1,33 +1,114 @@
 package server;
 
 import common.topology.HashValue;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Class responsible for storing the key-value data.
+ * The storage is split into a number of independently locked segments, so that
+ * operations on keys belonging to different segments never contend with each other.
+ * Every segment holds its entries in a compact open-addressing table (see
+ * KeyTable), which keeps the short keys inline and indexes them by their ring
+ * hashes; hash range operations visit only the keys within the range.
+ * Values are stored as opaque byte arrays, which the server receives from and
+ * sends to the clients without converting them; the String-based methods store
+ * the UTF-8 representation of the values.
+ * Optionally, all modifications are recorded in a write-ahead log, and a write
+ * returns only once its record is durable (see WriteAheadLog).
  * @author Danila Klimenko
  */
-public class KVDataStorage {
+public class KVDataStorage implements StorageEngine {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
     private static final int    MAX_KEY_LENGTH = 20;
     private static final int    MAX_VALUE_LENGTH = 120 * 1024;
+    private static final int    DEFAULT_SEGMENT_COUNT = 16;
+    private static final int    MAX_SEGMENT_COUNT = 1 << 16;
+    private static final int    VISIT_CHUNK_SIZE = 1024;
+    private static final long   NO_HANDLE = -1;
     
-    private final Map<String, String>       storage;
-    private final ReentrantReadWriteLock    rw_lock;
-    private final Lock                      read_lock;
-    private final Lock                      write_lock;
+    private final Segment[]         segments;
+    private final int               segment_mask;
+    private final SlabArena         arena;
+    private volatile WriteAheadLog  log;
     
     /**
      * Main parameterless constructor.
      */
     public KVDataStorage() {
-        this.storage = new HashMap<String, String>();
-        this.rw_lock = new ReentrantReadWriteLock();
-        this.read_lock = this.rw_lock.readLock();
-        this.write_lock = this.rw_lock.writeLock();
+        this(DEFAULT_SEGMENT_COUNT);
+    }
+    
+    /**
+     * Constructor with explicit number of lock segments.
+     * @param segment_count Desired number of segments (rounded up to a power of two)
+     */
+    public KVDataStorage(int segment_count) {
+        this(segment_count, 0);
+    }
+    
+    /**
+     * Constructor of a storage keeping the values off the Java heap, in slabs of
+     * direct memory (see SlabArena). Only the keys and the indexes remain on the
+     * heap, which keeps garbage collection pauses short on large nodes. Values are
+     * copied into the slabs on writes and out of them on reads; the slot of an
+     * overwritten or deleted value is reused by the next value of its size class.
+     * @param segment_count Desired number of segments (rounded up to a power of two)
+     * @param off_heap_bytes Maximum amount of direct memory for the values, or 0
+     *          to keep the values on the heap
+     */
+    public KVDataStorage(int segment_count, long off_heap_bytes) {
+        this(segment_count, off_heap_bytes, 0);
+    }
+    
+    /**
+     * Constructor of a storage presized for the expected number of keys, which
+     * spares the growth of the key tables during bulk loads. The tables still grow
+     * beyond that if needed; the growth is spread over the following insertions.
+     * @param segment_count Desired number of segments (rounded up to a power of two)
+     * @param off_heap_bytes Maximum amount of direct memory for the values, or 0
+     *          to keep the values on the heap
+     * @param expected_keys Expected number of keys, or 0
+     */
+    public KVDataStorage(int segment_count, long off_heap_bytes, long expected_keys) {
+        if (segment_count < 1 || segment_count > MAX_SEGMENT_COUNT) {
+            throw new IllegalArgumentException("Illegal number of storage segments: " + segment_count + ".");
+        }
+        
+        int count = 1;
+        while (count < segment_count) {
+            count <<= 1;
+        }
+        
+        this.arena = (off_heap_bytes > 0) ? new SlabArena(off_heap_bytes, MAX_VALUE_LENGTH) : null;
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; ++i) {
+            this.segments[i] = new Segment(this.arena, (expected_keys + count - 1) / count);
+        }
+        this.segment_mask = count - 1;
+        this.log = null;
+    }
+    
+    /**
+     * Replays the write-ahead log into the storage and records all further
+     * modifications in it. Must be called before the storage is used.
+     * @param log The write-ahead log
+     * @throws IOException Thrown if the log cannot be replayed
+     */
+    public void attachLog(WriteAheadLog log) throws IOException {
+        if (this.log != null) {
+            throw new IllegalStateException("Write-ahead log is already attached.");
+        }
+        log.replay(this);
+        this.log = log;
     }
     
     /**
@@ -37,25 +118,44 @@ public class KVDataStorage {
      * @return The previous value associated with the given key, or null, if the
      *          key was not present in the key-value storage.
      * @throws IllegalArgumentException Thrown if key or value are illegal
+     * @throws IllegalStateException Thrown if the write-ahead log fails
      */
     public String put(String key, String value) throws IllegalArgumentException {
-        // Verify arguments
-        if (key == null || key.length() > MAX_KEY_LENGTH) {
-            throw new IllegalArgumentException("Illegal key: '" + key + "'.");
-        }
-        if (value == null || value.length() > MAX_VALUE_LENGTH) {
-            throw new IllegalArgumentException("Illegal value: '" + key + "'.");
-        }
+        return KVDataStorage.decode(this.putBytes(key, KVDataStorage.encode(value)));
+    }
+    
+    /**
+     * Version of put() for values in their binary representation. The array is
+     * stored without copying and may not be modified afterwards.
+     * @param key The key
+     * @param value The value to be associated with the key
+     * @return The previous value associated with the given key, or null
+     * @throws IllegalArgumentException Thrown if key or value are illegal
+     * @throws IllegalStateException Thrown if the write-ahead log fails or the
+     *          off-heap memory is exhausted
+     */
+    public byte[] putBytes(String key, byte[] value) throws IllegalArgumentException {
+        KVDataStorage.verifyPair(key, value);
         
         // Put (key,value) pair into storage
-        String prev_value = null;
+        HashValue   hash = HashValue.hashKey(key);
+        Segment     segment = this.segmentFor(key);
+        long        handle = this.allocate(value);
+        byte[]      prev_value = null;
+        long        seq = 0;
         
-        this.write_lock.lock();
+        segment.write_lock.lock();
         try {
-            prev_value = this.storage.put(key, value);
+            if (this.log != null) {
+                seq = this.log.appendPut(key, value);
+            }
+            prev_value = segment.put(key, hash, value, handle);
+            handle = NO_HANDLE;
         } finally {
-            this.write_lock.unlock();
+            segment.write_lock.unlock();
+            this.free(handle);
         }
+        this.commit(seq);
         
         return prev_value;
     }
@@ -67,17 +167,28 @@ public class KVDataStorage {
      *          not present in the key-value storage.
      */
     public String get(String key) {
+        return KVDataStorage.decode(this.getBytes(key));
+    }
+    
+    /**
+     * Version of get() returning the value in its binary representation. The
+     * array is shared with the storage and may not be modified.
+     * @param key The key to look for
+     * @return The value associated with the given key, or null
+     */
+    public byte[] getBytes(String key) {
         if (key == null || key.length() > MAX_KEY_LENGTH) {
             return null;
         }
         
-        String value = null;
+        Segment segment = this.segmentFor(key);
+        byte[]  value = null;
         
-        this.read_lock.lock();
+        segment.read_lock.lock();
         try {
-            value = this.storage.get(key);
+            value = segment.get(key);
         } finally {
-            this.read_lock.unlock();
+            segment.read_lock.unlock();
         }
         
         return value;
@@ -90,69 +201,619 @@ public class KVDataStorage {
      *          the key was not present in the key-value storage.
      */
     public String delete(String key) {
+        return KVDataStorage.decode(this.deleteBytes(key));
+    }
+    
+    /**
+     * Version of delete() returning the value in its binary representation.
+     * @param key The key to look for
+     * @return The value previously associated with the given key, or null
+     */
+    public byte[] deleteBytes(String key) {
         if (key == null || key.length() > MAX_KEY_LENGTH) {
             return null;
         }
         
-        String deleted_value = null;
+        Segment segment = this.segmentFor(key);
+        byte[]  deleted_value = null;
+        long    seq = 0;
         
-        this.write_lock.lock();
+        segment.write_lock.lock();
         try {
-            deleted_value = this.storage.remove(key);
+            // Logged before the removal, so that a failed append leaves the key in place
+            int slot = segment.table.find(key);
+            if (slot >= 0) {
+                deleted_value = segment.valueAt(slot);
+                if (this.log != null) {
+                    seq = this.log.appendDelete(key);
+                }
+                segment.removeAt(slot);
+            }
         } finally {
-            this.write_lock.unlock();
+            segment.write_lock.unlock();
         }
+        this.commit(seq);
         
         return deleted_value;
     }
     
+    /**
+     * Batch version of the 'get' command. All the segments holding the keys are
+     * read-locked together, each of them once, so the values form a consistent
+     * snapshot.
+     * @param keys The keys to look for
+     * @return Values in the order of the keys; null for the keys that are not
+     *          present in the key-value storage or illegal.
+     */
+    public String[] getAll(List<String> keys) {
+        byte[][]    found_values = this.getAllBytes(keys);
+        String[]    values = new String[found_values.length];
+        
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = KVDataStorage.decode(found_values[i]);
+        }
+        
+        return values;
+    }
+    
+    /**
+     * Version of getAll() returning the values in their binary representation.
+     * @param keys The keys to look for
+     * @return Values in the order of the keys; null for the missing keys
+     */
+    public byte[][] getAllBytes(List<String> keys) {
+        byte[][]    values = new byte[keys.size()][];
+        int[]       indices = new int[keys.size()];
+        boolean[]   involved = new boolean[this.segments.length];
+        
+        for (int i = 0; i < indices.length; ++i) {
+            String key = keys.get(i);
+            indices[i] = (key == null || key.length() > MAX_KEY_LENGTH) ? -1 : this.segmentIndexFor(key);
+            if (indices[i] >= 0) {
+                involved[indices[i]] = true;
+            }
+        }
+        
+        this.lockSegments(involved, false);
+        try {
+            for (int i = 0; i < indices.length; ++i) {
+                if (indices[i] >= 0) {
+                    values[i] = this.segments[indices[i]].get(keys.get(i));
+                }
+            }
+        } finally {
+            this.unlockSegments(involved, false);
+        }
+        
+        return values;
+    }
+    
+    /**
+     * Batch version of the 'put' command. A null value deletes the key. All the
+     * segments holding the keys are write-locked together, each of them once, so
+     * the batch is applied atomically.
+     * @param keys The keys
+     * @param values The values to be associated with the keys
+     * @return The previous values associated with the keys, in the order of the keys
+     * @throws IllegalArgumentException Thrown if any key or value is illegal; the
+     *          storage remains unchanged in this case
+     */
+    public String[] putAll(List<String> keys, List<String> values) throws IllegalArgumentException {
+        List<byte[]>    encoded_values = new ArrayList<byte[]>(values.size());
+        for (String value : values) {
+            encoded_values.add(KVDataStorage.encode(value));
+        }
+        
+        byte[][]    prev_values = this.putAllBytes(keys, encoded_values);
+        String[]    decoded_values = new String[prev_values.length];
+        for (int i = 0; i < prev_values.length; ++i) {
+            decoded_values[i] = KVDataStorage.decode(prev_values[i]);
+        }
+        
+        return decoded_values;
+    }
+    
+    /**
+     * Version of putAll() for values in their binary representation.
+     * @param keys The keys
+     * @param values The values to be associated with the keys; null deletes the key
+     * @return The previous values associated with the keys, in the order of the keys
+     * @throws IllegalArgumentException Thrown if any key or value is illegal; the
+     *          storage remains unchanged in this case
+     */
+    public byte[][] putAllBytes(List<String> keys, List<byte[]> values) throws IllegalArgumentException {
+        if (keys.size() != values.size()) {
+            throw new IllegalArgumentException("Numbers of keys and values differ.");
+        }
+        
+        byte[][]    prev_values = new byte[keys.size()][];
+        HashValue[] hashes = new HashValue[keys.size()];
+        int[]       indices = new int[keys.size()];
+        boolean[]   involved = new boolean[this.segments.length];
+        
+        // Verify the pairs and hash the keys before taking the locks
+        for (int i = 0; i < indices.length; ++i) {
+            String key = keys.get(i);
+            byte[] value = values.get(i);
+            
+            if (value != null) {
+                KVDataStorage.verifyPair(key, value);
+                hashes[i] = HashValue.hashKey(key);
+            } else if (key == null || key.length() > MAX_KEY_LENGTH) {
+                throw new IllegalArgumentException("Illegal key: '" + key + "'.");
+            }
+            indices[i] = this.segmentIndexFor(key);
+            involved[indices[i]] = true;
+        }
+        
+        long[]  handles = this.allocateAll(values);
+        long    seq = 0;
+        this.lockSegments(involved, true);
+        try {
+            if (this.log != null && !keys.isEmpty()) {
+                seq = this.log.appendPutAll(keys, values);
+            }
+            for (int i = 0; i < indices.length; ++i) {
+                Segment segment = this.segments[indices[i]];
+                prev_values[i] = (hashes[i] != null) ?
+                        segment.put(keys.get(i), hashes[i], values.get(i), handles[i]) : segment.remove(keys.get(i));
+            }
+            handles = null;
+        } finally {
+            this.unlockSegments(involved, true);
+            this.freeAll(handles);
+        }
+        this.commit(seq);
+        
+        return prev_values;
+    }
+    
+    /**
+     * Checks whether a key-value pair may be stored.
+     * @param key The key
+     * @param value The value
+     * @throws IllegalArgumentException Thrown if key or value are illegal
+     */
+    static void verifyPair(String key, byte[] value) throws IllegalArgumentException {
+        if (key == null || key.length() > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Illegal key: '" + key + "'.");
+        }
+        if (value == null || value.length > MAX_VALUE_LENGTH) {
+            throw new IllegalArgumentException("Illegal value: '" + key + "'.");
+        }
+    }
+    
     /**
      * Returns the dump of all the contents of the key-value storage.
      * @return A string containing all stored key-value data
      */
     public String dump() {
-        return this.storage.toString();
-    }
-    
-    public KeyValuePacket getPacketForHashRange(HashValue begin, HashValue end) {
-        KeyValuePacket  packet = new KeyValuePacket();
+        StringBuilder   builder = new StringBuilder("{");
         
-        this.read_lock.lock();
+        this.lockAll(false);
         try {
-            for (String key : this.storage.keySet()) {
-                if (HashValue.hashKey(key).isInRange(begin, end)) {
-                    packet.addKeyValuePair(key, this.storage.get(key));
+            for (Segment segment : this.segments) {
+                for (String key : segment.table.keys()) {
+                    if (builder.length() > 1) {
+                        builder.append(", ");
+                    }
+                    builder.append(key).append('=').append(KVDataStorage.decode(segment.get(key)));
                 }
             }
         } finally {
-            this.read_lock.unlock();
+            this.unlockAll(false);
+        }
+        
+        return builder.append('}').toString();
+    }
+    
+    /**
+     * Calls the visitor for every key-value pair with the key hashed into the
+     * given range. The segments are visited one at a time, and a segment is
+     * read-locked only while the next chunk of VISIT_CHUNK_SIZE pairs is
+     * collected, resuming from the ring hash of the last collected key; the
+     * visitor runs without any locks, so writers are not blocked by a slow
+     * visitor. Pairs written during the visit may be visited with either value
+     * or skipped, and removed pairs may be skipped. Only the keys within the
+     * range are looked up, through the ring indexes of the tables.
+     * @param begin Exclusive beginning of the hash range
+     * @param end Inclusive end of the hash range
+     * @param visitor Visitor of the pairs
+     */
+    public void visitHashRange(HashValue begin, HashValue end, EntryVisitor visitor) {
+        List<String>    keys = new ArrayList<String>(VISIT_CHUNK_SIZE);
+        byte[][]        values = new byte[VISIT_CHUNK_SIZE][];
+        
+        for (Segment segment : this.segments) {
+            HashValue position = begin;
+            
+            do {
+                segment.read_lock.lock();
+                try {
+                    position = segment.table.keysInRange(position, end, VISIT_CHUNK_SIZE, keys);
+                    for (int i = 0; i < keys.size(); ++i) {
+                        values[i] = segment.get(keys.get(i));
+                    }
+                } finally {
+                    segment.read_lock.unlock();
+                }
+                for (int i = 0; i < keys.size(); ++i) {
+                    visitor.visit(keys.get(i), values[i]);
+                    values[i] = null;
+                }
+                keys.clear();
+            } while (position != null);
         }
+    }
+    
+    /**
+     * Collects all the key-value pairs with keys hashed into the given range.
+     * @param begin Exclusive beginning of the hash range
+     * @param end Inclusive end of the hash range
+     * @return Packet with the matching key-value pairs
+     */
+    public KeyValuePacket getPacketForHashRange(HashValue begin, HashValue end) {
+        final KeyValuePacket    packet = new KeyValuePacket();
+        
+        this.visitHashRange(begin, end, new EntryVisitor() {
+            @Override
+            public void visit(String key, byte[] value) {
+                packet.addKeyValuePair(key, value);
+            }
+        });
         
         return packet;
     }
     
-    public void putAllFromKeyValuePacket(KeyValuePacket packet) {
-        this.write_lock.lock();
+    int getSegmentCount() {
+        return this.segments.length;
+    }
+    
+    /**
+     * Continues the attached write-ahead log in the given file. All segments are
+     * read-locked while the log is switched, so every modification is either
+     * applied before the switch or logged in the new file.
+     * @param next_log_file File to continue the write-ahead log in
+     * @throws IOException Thrown if the write-ahead log cannot be switched
+     */
+    void rotateLog(File next_log_file) throws IOException {
+        this.lockAll(false);
         try {
-            for (KeyValuePacket.KeyValuePair kv_pair : packet) {
-                this.storage.put(kv_pair.key, kv_pair.value);
-            }
+            this.log.rotate(next_log_file);
         } finally {
-            this.write_lock.unlock();
+            this.unlockAll(false);
+        }
+    }
+    
+    /**
+     * Writes the pairs of a segment as a snapshot partition: the length and the
+     * bytes of every key and value. The segment is read-locked for a chunk of
+     * VISIT_CHUNK_SIZE keys at a time, and off-heap values are written straight
+     * from the arena. Pairs modified during the write may be written with either
+     * value, so the partition is only complete together with the log continued
+     * by rotateLog() before it is written.
+     * @return Number of pairs written
+     * @throws IOException Thrown if the pairs cannot be written
+     */
+    int writeSegment(int index, DataOutput output) throws IOException {
+        Segment         segment = this.segments[index];
+        List<String>    keys = new ArrayList<String>(VISIT_CHUNK_SIZE);
+        byte[]          buffer = new byte[8192];
+        HashValue       whole_ring = new HashValue(0, 0);
+        HashValue       position = whole_ring;
+        int             count = 0;
+        
+        do {
+            segment.read_lock.lock();
+            try {
+                position = segment.table.keysInRange(position, whole_ring, VISIT_CHUNK_SIZE, keys);
+                for (String key : keys) {
+                    byte[] key_bytes = key.getBytes(UTF8);
+                    output.writeInt(key_bytes.length);
+                    output.write(key_bytes);
+                    segment.writeValue(segment.table.find(key), output, buffer);
+                }
+            } finally {
+                segment.read_lock.unlock();
+            }
+            count += keys.size();
+            keys.clear();
+        } while (position != null);
+        
+        return count;
+    }
+    
+    public void putAllFromKeyValuePacket(KeyValuePacket packet) {
+        // Group the pairs by segment, so that every segment is locked only once
+        List<List<KeyValuePacket.KeyValuePair>> groups =
+                new ArrayList<List<KeyValuePacket.KeyValuePair>>(this.segments.length);
+        for (int i = 0; i < this.segments.length; ++i) {
+            groups.add(null);
+        }
+        for (KeyValuePacket.KeyValuePair kv_pair : packet) {
+            if (kv_pair.key == null || kv_pair.value == null) {
+                continue;
+            }
+            KVDataStorage.verifyPair(kv_pair.key, kv_pair.value);
+            int index = this.segmentIndexFor(kv_pair.key);
+            if (groups.get(index) == null) {
+                groups.set(index, new ArrayList<KeyValuePacket.KeyValuePair>());
+            }
+            groups.get(index).add(kv_pair);
+        }
+        
+        long seq = 0;
+        for (int i = 0; i < this.segments.length; ++i) {
+            List<KeyValuePacket.KeyValuePair> group = groups.get(i);
+            if (group == null) {
+                continue;
+            }
+            
+            // Hash the keys before taking the lock
+            HashValue[]     hashes = new HashValue[group.size()];
+            List<String>    keys = new ArrayList<String>(group.size());
+            List<byte[]>    values = new ArrayList<byte[]>(group.size());
+            for (int j = 0; j < hashes.length; ++j) {
+                hashes[j] = HashValue.hashKey(group.get(j).key);
+                keys.add(group.get(j).key);
+                values.add(group.get(j).value);
+            }
+            
+            Segment segment = this.segments[i];
+            long[]  handles = this.allocateAll(values);
+            segment.write_lock.lock();
+            try {
+                if (this.log != null) {
+                    seq = this.log.appendPutAll(keys, values);
+                }
+                for (int j = 0; j < hashes.length; ++j) {
+                    segment.put(group.get(j).key, hashes[j], group.get(j).value, handles[j]);
+                }
+                handles = null;
+            } finally {
+                segment.write_lock.unlock();
+                this.freeAll(handles);
+            }
         }
+        this.commit(seq);
     }
     
+    /**
+     * Removes all the key-value pairs with keys hashed into the given range.
+     * All segments are write-locked for the duration of the removal, which
+     * touches only the keys within the range.
+     * @param begin Exclusive beginning of the hash range
+     * @param end Inclusive end of the hash range
+     */
     public void deleteHashRange(HashValue begin, HashValue end) {
-        this.write_lock.lock();
+        long seq = 0;
+        
+        this.lockAll(true);
         try {
-            for (Iterator<String> it = this.storage.keySet().iterator(); it.hasNext(); ) {
-                String key = it.next();
-                if (HashValue.hashKey(key).isInRange(begin, end)) {
-                    it.remove();
+            if (this.log != null) {
+                seq = this.log.appendDeleteRange(begin, end);
+            }
+            for (Segment segment : this.segments) {
+                for (String key : segment.table.keysInRange(begin, end)) {
+                    segment.removeAt(segment.table.find(key));
                 }
             }
         } finally {
-            this.write_lock.unlock();
+            this.unlockAll(true);
+        }
+        this.commit(seq);
+    }
+    
+    /**
+     * Nothing to release: the storage is held in memory, and an attached
+     * write-ahead log is closed by its owner (see StoragePersistence).
+     */
+    public void close() {
+    }
+    
+    /**
+     * Waits until the logged modification is durable. Called without holding any
+     * segment locks, so that concurrent writers are committed together.
+     */
+    private void commit(long seq) {
+        if (seq != 0) {
+            this.log.commit(seq);
+        }
+    }
+    
+    /**
+     * Copies the value into the off-heap memory before the segment is locked.
+     * @return Handle of the copy, or NO_HANDLE if the values are kept on the heap
+     */
+    private long allocate(byte[] value) {
+        return (this.arena != null) ? this.arena.allocate(value) : NO_HANDLE;
+    }
+    
+    /**
+     * Allocates the copies of all the non-null values; releases the allocated
+     * ones if the memory is exhausted.
+     */
+    private long[] allocateAll(List<byte[]> values) {
+        long[] handles = new long[values.size()];
+        
+        Arrays.fill(handles, NO_HANDLE);
+        try {
+            for (int i = 0; i < handles.length; ++i) {
+                if (values.get(i) != null) {
+                    handles[i] = this.allocate(values.get(i));
+                }
+            }
+        } catch (RuntimeException ex) {
+            this.freeAll(handles);
+            throw ex;
+        }
+        
+        return handles;
+    }
+    
+    /**
+     * Releases a copy that was not stored, e.g. because the write-ahead log failed.
+     */
+    private void free(long handle) {
+        if (handle != NO_HANDLE) {
+            this.arena.free(handle);
+        }
+    }
+    
+    private void freeAll(long[] handles) {
+        if (handles != null) {
+            for (long handle : handles) {
+                this.free(handle);
+            }
+        }
+    }
+    
+    private static byte[] encode(String value) {
+        return (value != null) ? value.getBytes(UTF8) : null;
+    }
+    
+    private static String decode(byte[] value) {
+        return (value != null) ? new String(value, UTF8) : null;
+    }
+    
+    private int segmentIndexFor(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return hash & this.segment_mask;
+    }
+    
+    private Segment segmentFor(String key) {
+        return this.segments[this.segmentIndexFor(key)];
+    }
+    
+    /**
+     * Acquires the locks of all segments. Locks are always taken in the order of
+     * segment indices, which rules out deadlocks between concurrent bulk operations.
+     */
+    private void lockAll(boolean write) {
+        for (Segment segment : this.segments) {
+            (write ? segment.write_lock : segment.read_lock).lock();
+        }
+    }
+    
+    private void unlockAll(boolean write) {
+        for (int i = this.segments.length - 1; i >= 0; --i) {
+            (write ? this.segments[i].write_lock : this.segments[i].read_lock).unlock();
+        }
+    }
+    
+    /**
+     * Acquires the locks of the selected segments, in the same order as lockAll().
+     */
+    private void lockSegments(boolean[] selected, boolean write) {
+        for (int i = 0; i < this.segments.length; ++i) {
+            if (selected[i]) {
+                (write ? this.segments[i].write_lock : this.segments[i].read_lock).lock();
+            }
+        }
+    }
+    
+    private void unlockSegments(boolean[] selected, boolean write) {
+        for (int i = this.segments.length - 1; i >= 0; --i) {
+            if (selected[i]) {
+                (write ? this.segments[i].write_lock : this.segments[i].read_lock).unlock();
+            }
+        }
+    }
+    
+    /**
+     * A single independently locked part of the storage, holding its entries in
+     * a compact key table.
+     */
+    private static class Segment {
+        final KeyTable  table;
+        final Lock      read_lock;
+        final Lock      write_lock;
+        final SlabArena arena;
+        
+        Segment(SlabArena arena, long expected_keys) {
+            ReentrantReadWriteLock  rw_lock = new ReentrantReadWriteLock();
+            
+            this.table = new KeyTable(MAX_KEY_LENGTH, arena != null, expected_keys);
+            this.read_lock = rw_lock.readLock();
+            this.write_lock = rw_lock.writeLock();
+            this.arena = arena;
+        }
+        
+        /**
+         * Returns the value of a slot; off-heap values are copied to the heap.
+         */
+        byte[] valueAt(int slot) {
+            return (this.arena != null) ? this.arena.read(this.table.handleAt(slot)) : this.table.valueAt(slot);
+        }
+        
+        byte[] get(String key) {
+            int slot = this.table.find(key);
+            return (slot >= 0) ? this.valueAt(slot) : null;
+        }
+        
+        /**
+         * Writes the length and the bytes of the value of a slot; off-heap values
+         * are copied through the buffer.
+         */
+        void writeValue(int slot, DataOutput output, byte[] buffer) throws IOException {
+            if (this.arena != null) {
+                this.arena.writeTo(this.table.handleAt(slot), output, buffer);
+            } else {
+                byte[] value = this.table.valueAt(slot);
+                output.writeInt(value.length);
+                output.write(value);
+            }
+        }
+        
+        /**
+         * Stores the value, or the handle of its off-heap copy if the segment
+         * keeps the values off the heap.
+         */
+        byte[] put(String key, HashValue hash, byte[] value, long handle) {
+            int     slot = this.table.find(key);
+            byte[]  prev_value = null;
+            
+            if (slot >= 0) {
+                prev_value = this.valueAt(slot);
+                this.release(slot);
+            } else {
+                slot = this.table.insert(key, hash);
+            }
+            
+            if (this.arena != null) {
+                this.table.setHandle(slot, handle);
+            } else {
+                this.table.setValue(slot, value);
+            }
+            
+            return prev_value;
+        }
+        
+        byte[] remove(String key) {
+            int slot = this.table.find(key);
+            
+            if (slot < 0) {
+                return null;
+            }
+            
+            byte[] value = this.valueAt(slot);
+            this.removeAt(slot);
+            return value;
+        }
+        
+        /**
+         * Removes the entry of the slot; the slot may hold another entry afterwards.
+         */
+        void removeAt(int slot) {
+            this.release(slot);
+            this.table.removeAt(slot);
+        }
+        
+        private void release(int slot) {
+            if (this.arena != null) {
+                this.arena.free(this.table.handleAt(slot));
+            }
         }
     }
 }
@@ -0,0 +1,611 @@
+package server;
+
+import common.topology.HashValue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Open-addressing hash table holding the entries of a storage segment. Keys are
+ * short (see KVDataStorage), so instead of a String and a map entry per key, the
+ * characters of every key are stored inline in a flat array, in fixed-width
+ * slots, next to the String hash code of the key, the ring hash of the key and
+ * the value (or the handle of its off-heap copy). A lookup probes consecutive
+ * slots of the primitive arrays and never follows a pointer before the key is
+ * found. Collisions are resolved by linear probing; removals shift the following
+ * entries back instead of leaving tombstones, so removals do not slow down later
+ * lookups.
+ * The table grows incrementally: once it is full, a table of twice the capacity
+ * is allocated, and every following insertion moves the entries of a few slots
+ * of the old table into the new one, so that no single write pays for rehashing
+ * all the entries. Until the old table is drained, lookups probe both tables.
+ * The table may also be presized for the expected number of keys.
+ * Next to the slots, the table keeps its entries ordered by their ring hashes in
+ * a primitive index (see RingIndex), so that hash range operations find the keys
+ * of a range in O(log n + k) instead of examining every slot.
+ * Slots of both tables are numbered consecutively; slot numbers stay valid until
+ * the next insertion or removal. The table is not thread-safe: the segment locks
+ * serialize its modifications.
+ * @author Danila Klimenko
+ */
+class KeyTable {
+    private static final int    MIN_CAPACITY = 16;
+    private static final int    MAX_CAPACITY = 1 << 26;
+    private static final int    HASH_MULTIPLIER = 0x9E3779B9;
+    private static final int    MIGRATION_STEP = 16;
+    private static final byte   EMPTY = -1;
+    private static final byte   MOVED = -2;
+    
+    private final int       key_width;
+    private final boolean   off_heap;
+    private int             size;
+    private Slots           current;
+    private Slots           draining;       // Null unless the table is growing
+    private int             drain_position; // Slots of the draining table before it are moved
+    private final RingIndex ring_index;
+    
+    /**
+     * Main constructor.
+     * @param key_width Maximum length of the keys
+     * @param off_heap Whether the table stores handles of off-heap values
+     *          instead of the values themselves
+     * @param expected_keys Number of keys the table is initially sized for
+     */
+    KeyTable(int key_width, boolean off_heap, long expected_keys) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < MAX_CAPACITY && capacity - (capacity >>> 2) < expected_keys) {
+            capacity <<= 1;
+        }
+        
+        this.key_width = key_width;
+        this.off_heap = off_heap;
+        this.size = 0;
+        this.current = new Slots(capacity, 0);
+        this.draining = null;
+        this.drain_position = 0;
+        this.ring_index = new RingIndex();
+    }
+    
+    int size() {
+        return this.size;
+    }
+    
+    /**
+     * @return The slot holding the key, or -1 if the key is not present
+     */
+    int find(String key) {
+        int hash = key.hashCode();
+        int index = this.current.find(key, hash);
+        
+        if (index >= 0) {
+            return index;
+        }
+        if (this.draining != null) {
+            index = this.draining.find(key, hash);
+            if (index >= 0) {
+                return this.current.capacity + index;
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Adds a key that is not present in the table. The value of the new slot is
+     * null (or a zero handle) until it is set.
+     * @return The slot of the key
+     * @throws IllegalArgumentException Thrown if the key is too long
+     * @throws IllegalStateException Thrown if the table cannot grow any further
+     */
+    int insert(String key, HashValue ring_hash) {
+        if (key.length() > this.key_width) {
+            throw new IllegalArgumentException("Illegal key: '" + key + "'.");
+        }
+        
+        if (this.draining != null) {
+            this.migrate(MIGRATION_STEP);
+        }
+        if (this.size + 1 > this.current.threshold()) {
+            this.grow();
+        }
+        
+        int     hash = key.hashCode();
+        Slots   slots = this.current;
+        int     index = slots.freeIndex(hash);
+        
+        key.getChars(0, key.length(), slots.keys, index * this.key_width);
+        slots.key_lengths[index] = (byte) key.length();
+        slots.key_hashes[index] = hash;
+        slots.ring_hashes[2 * index] = ring_hash.getHigh();
+        slots.ring_hashes[2 * index + 1] = ring_hash.getLow();
+        this.ring_index.add(ring_hash.getHigh(), ring_hash.getLow(), slots.referenceOf(index));
+        ++this.size;
+        
+        return index;
+    }
+    
+    /**
+     * Removes the entry of the slot. Entries following it in the probe sequence
+     * may be moved back, so the slot may hold another entry afterwards. Removals
+     * never move entries between the tables.
+     */
+    void removeAt(int slot) {
+        Slots   slots = this.slotsOf(slot);
+        int     index = this.indexOf(slot);
+        
+        this.ring_index.remove(slots.ring_hashes[2 * index], slots.ring_hashes[2 * index + 1],
+                slots.referenceOf(index));
+        if (slot < this.current.capacity) {
+            this.current.removeAt(slot);
+        } else {
+            // The draining table is never shifted: it is drained by position
+            this.draining.clear(slot - this.current.capacity, MOVED);
+        }
+        --this.size;
+    }
+    
+    String keyAt(int slot) {
+        Slots   slots = this.slotsOf(slot);
+        int     index = this.indexOf(slot);
+        
+        return new String(slots.keys, index * this.key_width, slots.key_lengths[index]);
+    }
+    
+    byte[] valueAt(int slot) {
+        return this.slotsOf(slot).values[this.indexOf(slot)];
+    }
+    
+    void setValue(int slot, byte[] value) {
+        this.slotsOf(slot).values[this.indexOf(slot)] = value;
+    }
+    
+    long handleAt(int slot) {
+        return this.slotsOf(slot).handles[this.indexOf(slot)];
+    }
+    
+    void setHandle(int slot, long handle) {
+        this.slotsOf(slot).handles[this.indexOf(slot)] = handle;
+    }
+    
+    /**
+     * Returns the keys hashed into the range, in the order of their ring hashes.
+     * The list is a copy, so the table may be modified while it is processed.
+     * @param begin Exclusive beginning of the hash range
+     * @param end Inclusive end of the hash range; the whole ring if equal to begin
+     */
+    List<String> keysInRange(HashValue begin, HashValue end) {
+        List<String> keys = new ArrayList<String>();
+        this.keysInRange(begin, end, Integer.MAX_VALUE, keys);
+        return keys;
+    }
+    
+    /**
+     * Collects up to the given number of keys hashed into the range, in the order
+     * of their ring hashes. The rest of the range is collected by calling the
+     * method again with the returned hash as the beginning.
+     * @param begin Exclusive beginning of the hash range
+     * @param end Inclusive end of the hash range; the whole ring if equal to begin
+     * @param max_keys Maximum number of keys to collect
+     * @param keys List receiving the keys
+     * @return Hash of the last key collected, or null if the range is exhausted
+     */
+    HashValue keysInRange(HashValue begin, HashValue end, int max_keys, List<String> keys) {
+        RingIndex   index = this.ring_index;
+        boolean     wrapping = begin.compareTo(end) >= 0;
+        long        position = index.findAfter(begin.getHigh(), begin.getLow());
+        long        last_high = 0;
+        long        last_low = 0;
+        int         count = 0;
+        
+        while (true) {
+            if (index.isEnd(position)) {
+                if (!wrapping) {
+                    return null;
+                }
+                // The second part of a wrapping range starts at the beginning of the ring
+                wrapping = false;
+                position = index.first();
+                continue;
+            }
+            
+            long high = index.highAt(position);
+            long low = index.lowAt(position);
+            if (!wrapping && HashValue.compare(high, low, end.getHigh(), end.getLow()) > 0) {
+                return null;
+            }
+            if (count == max_keys) {
+                // Further keys follow: resume after the last one collected
+                return new HashValue(last_high, last_low);
+            }
+            
+            keys.add(this.keyAt(this.slotOf(index.referenceAt(position))));
+            last_high = high;
+            last_low = low;
+            ++count;
+            position = index.next(position);
+        }
+    }
+    
+    /**
+     * Returns all the keys, in the order of their ring hashes.
+     */
+    List<String> keys() {
+        List<String>    keys = new ArrayList<String>(this.size);
+        RingIndex       index = this.ring_index;
+        
+        for (long position = index.first(); !index.isEnd(position); position = index.next(position)) {
+            keys.add(this.keyAt(this.slotOf(index.referenceAt(position))));
+        }
+        
+        return keys;
+    }
+    
+    /**
+     * Maps a reference kept by the ring index to the slot number. The tables
+     * alternate their parity as the table grows, and only two exist at a time.
+     */
+    private int slotOf(long reference) {
+        int index = (int) reference;
+        return ((reference >>> 32) == this.current.parity) ? index : this.current.capacity + index;
+    }
+    
+    private Slots slotsOf(int slot) {
+        return (slot < this.current.capacity) ? this.current : this.draining;
+    }
+    
+    private int indexOf(int slot) {
+        return (slot < this.current.capacity) ? slot : slot - this.current.capacity;
+    }
+    
+    /**
+     * Starts moving the entries into a table of twice the capacity.
+     */
+    private void grow() {
+        if (this.current.capacity >= MAX_CAPACITY) {
+            throw new IllegalStateException("Key table is full: " + this.size + " keys.");
+        }
+        if (this.draining != null) { // Only if the growth outpaced the migration
+            this.migrate(this.draining.capacity);
+        }
+        
+        this.draining = this.current;
+        this.drain_position = 0;
+        this.current = new Slots(2 * this.current.capacity, 1 - this.current.parity);
+    }
+    
+    /**
+     * Moves the entries of the next slots of the draining table into the current one.
+     * @param slot_count Number of slots to process
+     */
+    private void migrate(int slot_count) {
+        Slots   from = this.draining;
+        Slots   to = this.current;
+        int     limit = (int) Math.min(from.capacity, (long) this.drain_position + slot_count);
+        
+        for (int i = this.drain_position; i < limit; ++i) {
+            if (from.key_lengths[i] >= 0) {
+                to.copy(to.freeIndex(from.key_hashes[i]), from, i);
+                from.clear(i, MOVED);
+            }
+        }
+        
+        this.drain_position = limit;
+        if (limit == from.capacity) {
+            this.draining = null;
+        }
+    }
+    
+    /**
+     * Entries of the table ordered by their ring hashes. Every entry is a triple
+     * of longs: the high and the low half of the hash, and the reference of the
+     * slot holding the entry (the parity of its table and the index within it).
+     * The triples are kept in sorted blocks of bounded size, so that the order
+     * costs no object per key, and an insertion or a removal shifts the triples
+     * of a single block only. Positions within the index combine the block and
+     * the index within the block; they stay valid until the next modification.
+     */
+    private static class RingIndex {
+        private static final int    BLOCK_ENTRIES = 256;
+        
+        private long[][]    blocks;
+        private int[]       counts;
+        private int         block_count;
+        
+        RingIndex() {
+            this.blocks = new long[][] {new long[3 * BLOCK_ENTRIES]};
+            this.counts = new int[1];
+            this.block_count = 1;
+        }
+        
+        /**
+         * Inserts an entry after the entries with an equal hash.
+         */
+        void add(long high, long low, long reference) {
+            long    position = this.findAfter(high, low);
+            int     block = (int) (position >>> 32);
+            int     index = (int) position;
+            
+            if (block == this.block_count) { // Appended to the last block
+                block = this.block_count - 1;
+                index = this.counts[block];
+            }
+            if (this.counts[block] == BLOCK_ENTRIES) {
+                this.split(block);
+                if (index > this.counts[block]) {
+                    index -= this.counts[block];
+                    ++block;
+                }
+            }
+            
+            long[]  entries = this.blocks[block];
+            System.arraycopy(entries, 3 * index, entries, 3 * index + 3, 3 * (this.counts[block] - index));
+            entries[3 * index] = high;
+            entries[3 * index + 1] = low;
+            entries[3 * index + 2] = reference;
+            ++this.counts[block];
+        }
+        
+        void remove(long high, long low, long reference) {
+            long    position = this.locate(high, low, reference);
+            int     block = (int) (position >>> 32);
+            int     index = (int) position;
+            long[]  entries = this.blocks[block];
+            
+            System.arraycopy(entries, 3 * index + 3, entries, 3 * index, 3 * (this.counts[block] - index - 1));
+            if (--this.counts[block] == 0 && this.block_count > 1) {
+                System.arraycopy(this.blocks, block + 1, this.blocks, block, this.block_count - block - 1);
+                System.arraycopy(this.counts, block + 1, this.counts, block, this.block_count - block - 1);
+                this.blocks[--this.block_count] = null;
+            }
+        }
+        
+        /**
+         * Points the entry to the slot its table entry was moved to.
+         */
+        void move(long high, long low, long reference, long new_reference) {
+            long position = this.locate(high, low, reference);
+            this.blocks[(int) (position >>> 32)][3 * (int) position + 2] = new_reference;
+        }
+        
+        long first() {
+            return (this.counts[0] > 0) ? 0 : ((long) this.block_count << 32);
+        }
+        
+        /**
+         * @return Position of the first entry with a hash greater than the given one
+         */
+        long findAfter(long high, long low) {
+            // The first block ending after the hash holds the entry
+            int lower = 0;
+            int upper = this.block_count;
+            while (lower < upper) {
+                int middle = (lower + upper) >>> 1;
+                int last = 3 * (this.counts[middle] - 1);
+                if (last < 0 || HashValue.compare(this.blocks[middle][last], this.blocks[middle][last + 1],
+                        high, low) <= 0) {
+                    lower = middle + 1;
+                } else {
+                    upper = middle;
+                }
+            }
+            if (lower == this.block_count) {
+                return (long) lower << 32;
+            }
+            
+            long[]  entries = this.blocks[lower];
+            int     from = 0;
+            int     to = this.counts[lower];
+            while (from < to) {
+                int middle = (from + to) >>> 1;
+                if (HashValue.compare(entries[3 * middle], entries[3 * middle + 1], high, low) <= 0) {
+                    from = middle + 1;
+                } else {
+                    to = middle;
+                }
+            }
+            
+            return ((long) lower << 32) | from;
+        }
+        
+        boolean isEnd(long position) {
+            return (int) (position >>> 32) == this.block_count;
+        }
+        
+        long next(long position) {
+            int block = (int) (position >>> 32);
+            int index = (int) position + 1;
+            
+            return (index < this.counts[block]) ? (((long) block << 32) | index) : ((long) (block + 1) << 32);
+        }
+        
+        long highAt(long position) {
+            return this.blocks[(int) (position >>> 32)][3 * (int) position];
+        }
+        
+        long lowAt(long position) {
+            return this.blocks[(int) (position >>> 32)][3 * (int) position + 1];
+        }
+        
+        long referenceAt(long position) {
+            return this.blocks[(int) (position >>> 32)][3 * (int) position + 2];
+        }
+        
+        /**
+         * Finds the position of an entry. Entries with equal hashes precede the
+         * position findAfter() returns, so they are searched backwards from it.
+         */
+        private long locate(long high, long low, long reference) {
+            long    position = this.findAfter(high, low);
+            int     block = (int) (position >>> 32);
+            int     index = (int) position;
+            
+            while (true) {
+                if (index == 0) {
+                    --block;
+                    index = this.counts[block];
+                    continue;
+                }
+                --index;
+                if (this.blocks[block][3 * index + 2] == reference) {
+                    return ((long) block << 32) | index;
+                }
+            }
+        }
+        
+        /**
+         * Moves the upper half of a full block into a new block following it.
+         */
+        private void split(int block) {
+            if (this.block_count == this.blocks.length) {
+                this.blocks = Arrays.copyOf(this.blocks, 2 * this.block_count);
+                this.counts = Arrays.copyOf(this.counts, 2 * this.block_count);
+            }
+            System.arraycopy(this.blocks, block + 1, this.blocks, block + 2, this.block_count - block - 1);
+            System.arraycopy(this.counts, block + 1, this.counts, block + 2, this.block_count - block - 1);
+            
+            int     kept = BLOCK_ENTRIES / 2;
+            long[]  entries = new long[3 * BLOCK_ENTRIES];
+            System.arraycopy(this.blocks[block], 3 * kept, entries, 0, 3 * (BLOCK_ENTRIES - kept));
+            this.blocks[block + 1] = entries;
+            this.counts[block + 1] = BLOCK_ENTRIES - kept;
+            this.counts[block] = kept;
+            ++this.block_count;
+        }
+    }
+    
+    /**
+     * The arrays of a single table. Slots of a draining table whose entries were
+     * moved or removed are marked as MOVED rather than EMPTY, so that the probe
+     * sequences of the remaining entries stay intact.
+     */
+    private class Slots {
+        final int       capacity;
+        final int       parity;         // Alternates between the tables, see slotOf()
+        final int       shift;
+        final char[]    keys;
+        final byte[]    key_lengths;    // EMPTY or MOVED for the free slots
+        final int[]     key_hashes;
+        final long[]    ring_hashes;    // High and low half of the ring hash per slot, to find its index entry
+        final byte[][]  values;         // Null if the values are kept off the heap
+        final long[]    handles;        // Null if the values are kept on the heap
+        
+        Slots(int capacity, int parity) {
+            this.capacity = capacity;
+            this.parity = parity;
+            this.shift = 32 - Integer.numberOfTrailingZeros(capacity);
+            this.keys = new char[capacity * KeyTable.this.key_width];
+            this.key_lengths = new byte[capacity];
+            this.key_hashes = new int[capacity];
+            this.ring_hashes = new long[2 * capacity];
+            this.values = KeyTable.this.off_heap ? null : new byte[capacity][];
+            this.handles = KeyTable.this.off_heap ? new long[capacity] : null;
+            
+            Arrays.fill(this.key_lengths, EMPTY);
+        }
+        
+        /**
+         * @return Maximum number of entries, which keeps a quarter of the slots free
+         */
+        int threshold() {
+            return this.capacity - (this.capacity >>> 2);
+        }
+        
+        int find(String key, int hash) {
+            int mask = this.capacity - 1;
+            
+            for (int i = this.homeIndex(hash); this.key_lengths[i] != EMPTY; i = (i + 1) & mask) {
+                if (this.key_hashes[i] == hash && this.keyEquals(i, key)) {
+                    return i;
+                }
+            }
+            
+            return -1;
+        }
+        
+        int freeIndex(int hash) {
+            int mask = this.capacity - 1;
+            int i = this.homeIndex(hash);
+            
+            while (this.key_lengths[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            
+            return i;
+        }
+        
+        void removeAt(int index) {
+            int mask = this.capacity - 1;
+            int hole = index;
+            
+            for (int next = (index + 1) & mask; this.key_lengths[next] != EMPTY; next = (next + 1) & mask) {
+                // The entry may fill the hole unless its home slot lies between the two
+                int home = this.homeIndex(this.key_hashes[next]);
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    this.copy(hole, this, next);
+                    hole = next;
+                }
+            }
+            
+            this.clear(hole, EMPTY);
+        }
+        
+        /**
+         * @return Reference of the slot kept by the ring index
+         */
+        long referenceOf(int index) {
+            return ((long) this.parity << 32) | index;
+        }
+        
+        /**
+         * Moves an entry into the slot, and points its ring index entry there.
+         */
+        void copy(int index, Slots from, int from_index) {
+            int width = KeyTable.this.key_width;
+            
+            KeyTable.this.ring_index.move(from.ring_hashes[2 * from_index], from.ring_hashes[2 * from_index + 1],
+                    from.referenceOf(from_index), this.referenceOf(index));
+            System.arraycopy(from.keys, from_index * width, this.keys, index * width, from.key_lengths[from_index]);
+            this.key_lengths[index] = from.key_lengths[from_index];
+            this.key_hashes[index] = from.key_hashes[from_index];
+            this.ring_hashes[2 * index] = from.ring_hashes[2 * from_index];
+            this.ring_hashes[2 * index + 1] = from.ring_hashes[2 * from_index + 1];
+            if (this.values != null) {
+                this.values[index] = from.values[from_index];
+            } else {
+                this.handles[index] = from.handles[from_index];
+            }
+        }
+        
+        void clear(int index, byte state) {
+            this.key_lengths[index] = state;
+            if (this.values != null) {
+                this.values[index] = null;
+            }
+        }
+        
+        /**
+         * Maps the hash code to the slot where its probe sequence starts. The hash
+         * code is multiplied by a large odd constant, and the top bits of the
+         * product are taken: the low bits of the hash codes in a segment are all
+         * the same.
+         */
+        private int homeIndex(int hash) {
+            return (hash * HASH_MULTIPLIER) >>> this.shift;
+        }
+        
+        private boolean keyEquals(int index, String key) {
+            int length = key.length();
+            
+            if (this.key_lengths[index] != length) {
+                return false;
+            }
+            for (int i = 0, offset = index * KeyTable.this.key_width; i < length; ++i, ++offset) {
+                if (this.keys[offset] != key.charAt(i)) {
+                    return false;
+                }
+            }
+            
+            return true;
+        }
+    }
+}
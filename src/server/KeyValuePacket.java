@@ -22,57 +22,50 @@ public class KeyValuePacket implements Iterable<KeyValuePacket.KeyValuePair> {
         this.kv_pairs = kv_pairs;
     }
     
-    public void addKeyValuePair(String key, String value) {
+    public void addKeyValuePair(String key, byte[] value) {
         this.kv_pairs.add(new KeyValuePair(key, value));
     }
     
     public boolean isEmpty() {
         return this.kv_pairs.isEmpty();
     }
+    
+    public int size() {
+        return this.kv_pairs.size();
+    }
 
     @Override
     public Iterator<KeyValuePair> iterator() {
         return this.kv_pairs.iterator();
     }
     
-    public List<KeyValuePacket> splitOnMarshaledSizeLimit(int size_limit) {
-        List<KeyValuePacket> packets = new ArrayList<KeyValuePacket>();
-        
-        KeyValuePacket  sub_packet = new KeyValuePacket();
-        int             sub_packet_size = 4;
-        Marshaller      marshaller = new Marshaller();
-        
-        for (KeyValuePair kv_pair : this.kv_pairs) {
-            marshaller.marshalString(kv_pair.key);
-            marshaller.marshalString(kv_pair.value);
-            
-            if (sub_packet_size + marshaller.size() >= size_limit) {
-                packets.add(sub_packet);
-                sub_packet = new KeyValuePacket();
-                sub_packet_size = 4;
-            }
-            
-            sub_packet.addKeyValuePair(kv_pair.key, kv_pair.value);
-            sub_packet_size += marshaller.size();
-            marshaller.reset();
-        }
-        packets.add(sub_packet);
-        
-        return packets;
-    }
-    
     public static byte[] marshal(KeyValuePacket packet) {
         Marshaller  marshaller = new Marshaller();
         
         marshaller.marshalInt(packet.kv_pairs.size());
         for (KeyValuePair kv_pair : packet.kv_pairs) {
-            marshaller.marshalString(kv_pair.key);
-            marshaller.marshalString(kv_pair.value);
+            KeyValuePacket.marshalPair(marshaller, kv_pair.key, kv_pair.value);
         }
         
         return marshaller.getBytes();
     }
     
+    /**
+     * Marshals a single pair in the format of the pairs of a marshaled packet,
+     * which lets packets be marshaled incrementally (see DataTransferStream).
+     */
+    public static void marshalPair(Marshaller marshaller, String key, byte[] value) {
+        marshaller.marshalString(key);
+        marshaller.marshalSizedBytes(value);
+    }
+    
+    /**
+     * @return Number of bytes written by marshalPair() for the pair
+     */
+    public static int sizeOfPair(String key, byte[] value) {
+        return Marshaller.sizeOfString(key) + Marshaller.sizeOfSizedBytes(value);
+    }
+    
     public static KeyValuePacket unmarshal(byte[] data) throws ParseException {
         Unmarshaller unmarshaller = new Unmarshaller(data);
         
@@ -80,7 +73,7 @@ public class KeyValuePacket implements Iterable<KeyValuePacket.KeyValuePair> {
         
         List<KeyValuePair>  kv_pairs = new ArrayList<KeyValuePair>(count);
         for (int i = 0; i < count; ++i) {
-            kv_pairs.add(new KeyValuePair(unmarshaller.unmarshalString(), unmarshaller.unmarshalString()));
+            kv_pairs.add(new KeyValuePair(unmarshaller.unmarshalString(), unmarshaller.unmarshalSizedBytes()));
         }
         
         return new KeyValuePacket(kv_pairs);
@@ -88,11 +81,19 @@ public class KeyValuePacket implements Iterable<KeyValuePacket.KeyValuePair> {
     
     public static class KeyValuePair {
         String   key;
-        String   value;
+        byte[]   value;
 
-        KeyValuePair(String key, String value) {
+        KeyValuePair(String key, byte[] value) {
             this.key = key;
             this.value = value;
         }
+        
+        public String getKey() {
+            return this.key;
+        }
+        
+        public byte[] getValue() {
+            return this.value;
+        }
     }
 }
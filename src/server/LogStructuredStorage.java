@@ -0,0 +1,1404 @@
+package server;
+
+import common.topology.HashValue;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import logger.LogSetup;
+import org.apache.log4j.Logger;
+
+/**
+ * Persistent key-value storage keeping the values on disk (Bitcask design).
+ * Every modification is appended as a checksummed record to the active data
+ * file, which is replaced by a new one once it reaches its size limit. Only the
+ * key directory is kept in memory: for every key it holds the location of the
+ * latest value and the ring hash of the key. Values are read from the data files
+ * with positional reads. On startup the key directory is rebuilt by scanning the
+ * data files; records carry sequence numbers, so the latest one wins regardless
+ * of the file it is stored in.
+ * Overwritten and deleted values stay in the files until they are merged: the
+ * live records of all the inactive files are copied to new files, and the old
+ * files are deleted. Merging runs in the background once the files consist
+ * mostly of dead records, and does not block readers and writers except for the
+ * final switch of the record locations.
+ * The methods correspond to the ones of KVDataStorage. Reads proceed in
+ * parallel, while writes are serialized, just like appends to a file are. Like
+ * the write-ahead log, the data files are synced either by the writers after
+ * they release the write lock, so that a single sync commits all the writers
+ * waiting for it (group commit), or periodically by a background thread.
+ * @author Danila Klimenko
+ */
+public class LogStructuredStorage implements StorageEngine {
+    private static final Logger logger = LogSetup.getLogger();
+    
+    private static final Charset    UTF8 = Charset.forName("UTF-8");
+    
+    private static final byte       FLAG_BATCH = 1; // Further records of the same batch follow
+    private static final int        SIZEOF_HEADER = 21; // Checksum, sequence, flags, key and value lengths
+    private static final int        MAX_FIELD_LENGTH = 1024 * 1024;
+    private static final long       DEFAULT_MAX_FILE_SIZE = 64L * 1024 * 1024;
+    private static final int        DEFAULT_MERGE_INTERVAL = 60;
+    private static final int        DEFAULT_SYNC_INTERVAL = 1000;
+    private static final double     MERGE_THRESHOLD = 0.5;
+    private static final int        VISIT_CHUNK_SIZE = 1024;
+    private static final byte[]     PRESENT = new byte[0]; // Stands for a previous value that is not read
+    
+    private final File                          directory;
+    private final String                        name;
+    private final long                          max_file_size;
+    private final int                           sync_interval;
+    private final int                           merge_interval;
+    private final Map<String, KeyEntry>         keydir;
+    private final TreeMap<HashValue, KeyEntry>  index;
+    private final List<DataFile>                files;
+    private final AtomicInteger                 next_file_id;
+    private final Lock                          read_lock;
+    private final Lock                          write_lock;
+    private final Object                        merge_lock;
+    private final Object                        timer;
+    private final Object                        sync_lock;
+    private DataFile                            active;
+    private long                                next_seq;
+    private IOException                         failure;
+    private boolean                             closed;
+    private boolean                             stopped;
+    private Thread                              merge_thread;
+    private long                                synced_seq;
+    private boolean                             syncing;
+    private boolean                             sync_stopped;
+    private Thread                              sync_thread;
+    
+    /**
+     * Constructor with default tuning: 64 MB data files, a sync every second and
+     * a merge check every minute.
+     * @param directory Directory holding the data files
+     * @param name Common prefix of the file names
+     * @throws IOException Thrown if the data files cannot be read
+     */
+    public LogStructuredStorage(File directory, String name) throws IOException {
+        this(directory, name, DEFAULT_MAX_FILE_SIZE, DEFAULT_SYNC_INTERVAL, DEFAULT_MERGE_INTERVAL);
+    }
+    
+    /**
+     * Main constructor. Opens the storage and rebuilds the key directory from the
+     * existing data files.
+     * @param directory Directory holding the data files
+     * @param name Common prefix of the file names
+     * @param max_file_size Size after which a new data file is started
+     * @param sync_interval Interval between background syncs in milliseconds, or 0
+     *          to make every write wait until it is synced
+     * @param merge_interval Interval between merge checks in seconds, or 0 to
+     *          merge only on request
+     * @throws IOException Thrown if the data files cannot be read
+     */
+    public LogStructuredStorage(File directory, String name, long max_file_size, int sync_interval,
+            int merge_interval) throws IOException {
+        if (max_file_size <= 0) {
+            throw new IllegalArgumentException("Illegal data file size: " + max_file_size + ".");
+        }
+        if (sync_interval < 0) {
+            throw new IllegalArgumentException("Illegal sync interval: " + sync_interval + ".");
+        }
+        if (merge_interval < 0) {
+            throw new IllegalArgumentException("Illegal merge interval: " + merge_interval + ".");
+        }
+        
+        ReentrantReadWriteLock  rw_lock = new ReentrantReadWriteLock();
+        
+        this.directory = directory;
+        this.name = name;
+        this.max_file_size = max_file_size;
+        this.sync_interval = sync_interval;
+        this.merge_interval = merge_interval;
+        this.keydir = new HashMap<String, KeyEntry>();
+        this.index = new TreeMap<HashValue, KeyEntry>();
+        this.files = new ArrayList<DataFile>();
+        this.next_file_id = new AtomicInteger(0);
+        this.read_lock = rw_lock.readLock();
+        this.write_lock = rw_lock.writeLock();
+        this.merge_lock = new Object();
+        this.timer = new Object();
+        this.sync_lock = new Object();
+        this.next_seq = 1;
+        this.failure = null;
+        this.closed = false;
+        this.stopped = false;
+        this.merge_thread = null;
+        this.synced_seq = 0;
+        this.syncing = false;
+        this.sync_stopped = false;
+        this.sync_thread = null;
+        
+        this.open();
+        
+        if (this.merge_interval > 0) {
+            this.startMergeThread();
+        }
+        if (this.sync_interval > 0) {
+            this.startSyncThread();
+        }
+    }
+    
+    /**
+     * Method implementing the 'put' command. The previous value is not read from
+     * the disk: only its presence is reported.
+     * @param key The key
+     * @param value The value to be associated with the key
+     * @return An empty string if the key was present, or null
+     * @throws IllegalArgumentException Thrown if key or value are illegal
+     * @throws IllegalStateException Thrown if the data files cannot be accessed
+     */
+    public String put(String key, String value) throws IllegalArgumentException {
+        return LogStructuredStorage.decode(this.putBytes(key, LogStructuredStorage.encode(value)));
+    }
+    
+    /**
+     * Version of put() for values in their binary representation.
+     * @param key The key
+     * @param value The value to be associated with the key
+     * @return An empty value if the key was present, or null
+     * @throws IllegalArgumentException Thrown if key or value are illegal
+     * @throws IllegalStateException Thrown if the data files cannot be accessed
+     */
+    public byte[] putBytes(String key, byte[] value) throws IllegalArgumentException {
+        KVDataStorage.verifyPair(key, value);
+        
+        return this.write(Collections.singletonList(key), Collections.singletonList(value))[0];
+    }
+    
+    /**
+     * Method implementing the 'get' command.
+     * @param key The key to look for
+     * @return The value associated with the given key, or null
+     * @throws IllegalStateException Thrown if the data files cannot be accessed
+     */
+    public String get(String key) {
+        return LogStructuredStorage.decode(this.getBytes(key));
+    }
+    
+    /**
+     * Version of get() returning the value in its binary representation.
+     * @param key The key to look for
+     * @return The value associated with the given key, or null
+     * @throws IllegalStateException Thrown if the data files cannot be accessed
+     */
+    public byte[] getBytes(String key) {
+        if (key == null) {
+            return null;
+        }
+        
+        this.read_lock.lock();
+        try {
+            this.ensureOpen();
+            return this.readValue(this.keydir.get(key));
+        } finally {
+            this.read_lock.unlock();
+        }
+    }
+    
+    /**
+     * Method implementing the 'delete' command.
+     * @param key The key to look for
+     * @return The value previously associated with the given key, or null
+     * @throws IllegalStateException Thrown if the data files cannot be accessed
+     */
+    public String delete(String key) {
+        return LogStructuredStorage.decode(this.deleteBytes(key));
+    }
+    
+    /**
+     * Version of delete() returning the value in its binary representation.
+     * @param key The key to look for
+     * @return The value previously associated with the given key, or null
+     * @throws IllegalStateException Thrown if the data files cannot be accessed
+     */
+    public byte[] deleteBytes(String key) {
+        if (key == null) {
+            return null;
+        }
+        
+        this.write_lock.lock();
+        try {
+            this.ensureOpen();
+            byte[] prev_value = this.readValue(this.keydir.get(key));
+            if (prev_value == null) {
+                return null; // Nothing to record
+            }
+            this.write(Collections.singletonList(key), Collections.singletonList((byte[]) null));
+            return prev_value;
+        } finally {
+            this.write_lock.unlock();
+        }
+    }
+    
+    /**
+     * Batch version of the 'get' command. The values form a consistent snapshot.
+     * @param keys The keys to look for
+     * @return Values in the order of the keys; null for the missing keys
+     */
+    public String[] getAll(List<String> keys) {
+        byte[][]    found_values = this.getAllBytes(keys);
+        String[]    values = new String[found_values.length];
+        
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = LogStructuredStorage.decode(found_values[i]);
+        }
+        
+        return values;
+    }
+    
+    /**
+     * Version of getAll() returning the values in their binary representation.
+     * @param keys The keys to look for
+     * @return Values in the order of the keys; null for the missing keys
+     */
+    public byte[][] getAllBytes(List<String> keys) {
+        byte[][]    values = new byte[keys.size()][];
+        
+        this.read_lock.lock();
+        try {
+            this.ensureOpen();
+            for (int i = 0; i < values.length; ++i) {
+                if (keys.get(i) != null) {
+                    values[i] = this.readValue(this.keydir.get(keys.get(i)));
+                }
+            }
+        } finally {
+            this.read_lock.unlock();
+        }
+        
+        return values;
+    }
+    
+    /**
+     * Batch version of the 'put' command. A null value deletes the key. The batch
+     * is written as a single unit, so it is recovered either completely or not
+     * at all. As with put(), only the presence of the previous values is reported.
+     * @param keys The keys
+     * @param values The values to be associated with the keys
+     * @return Empty strings for the keys that were present and nulls for the
+     *          others, in the order of the keys
+     * @throws IllegalArgumentException Thrown if any key or value is illegal; the
+     *          storage remains unchanged in this case
+     */
+    public String[] putAll(List<String> keys, List<String> values) throws IllegalArgumentException {
+        List<byte[]>    encoded_values = new ArrayList<byte[]>(values.size());
+        for (String value : values) {
+            encoded_values.add(LogStructuredStorage.encode(value));
+        }
+        
+        byte[][]    prev_values = this.putAllBytes(keys, encoded_values);
+        String[]    decoded_values = new String[prev_values.length];
+        for (int i = 0; i < prev_values.length; ++i) {
+            decoded_values[i] = LogStructuredStorage.decode(prev_values[i]);
+        }
+        
+        return decoded_values;
+    }
+    
+    /**
+     * Version of putAll() for values in their binary representation.
+     * @param keys The keys
+     * @param values The values to be associated with the keys; null deletes the key
+     * @return Empty values for the keys that were present and nulls for the
+     *          others, in the order of the keys
+     * @throws IllegalArgumentException Thrown if any key or value is illegal; the
+     *          storage remains unchanged in this case
+     */
+    public byte[][] putAllBytes(List<String> keys, List<byte[]> values) throws IllegalArgumentException {
+        if (keys.size() != values.size()) {
+            throw new IllegalArgumentException("Numbers of keys and values differ.");
+        }
+        for (int i = 0; i < keys.size(); ++i) {
+            if (values.get(i) != null) {
+                KVDataStorage.verifyPair(keys.get(i), values.get(i));
+            } else if (keys.get(i) == null) {
+                throw new IllegalArgumentException("Illegal key: 'null'.");
+            }
+        }
+        
+        return this.write(keys, values);
+    }
+    
+    /**
+     * Returns the dump of all the contents of the key-value storage.
+     * @return A string containing all stored key-value data
+     */
+    public String dump() {
+        StringBuilder   builder = new StringBuilder("{");
+        
+        this.read_lock.lock();
+        try {
+            this.ensureOpen();
+            for (KeyEntry entry : this.keydir.values()) {
+                if (builder.length() > 1) {
+                    builder.append(", ");
+                }
+                builder.append(entry.key).append('=').append(LogStructuredStorage.decode(this.readValue(entry)));
+            }
+        } finally {
+            this.read_lock.unlock();
+        }
+        
+        return builder.append('}').toString();
+    }
+    
+    /**
+     * Calls the visitor for every key-value pair with the key hashed into the
+     * given range. The range is read in chunks of VISIT_CHUNK_SIZE hashes;
+     * writers are locked out only while a chunk is read, not while it is visited.
+     * @param begin Exclusive beginning of the hash range
+     * @param end Inclusive end of the hash range
+     * @param visitor Visitor of the pairs
+     */
+    public void visitHashRange(HashValue begin, HashValue end, EntryVisitor visitor) {
+        List<String>    keys = new ArrayList<String>();
+        List<byte[]>    values = new ArrayList<byte[]>();
+        HashValue       position = begin;
+        
+        while (position != null) {
+            position = this.readChunk(position, end, keys, values);
+            for (int i = 0; i < keys.size(); ++i) {
+                visitor.visit(keys.get(i), values.get(i));
+            }
+            keys.clear();
+            values.clear();
+        }
+    }
+    
+    /**
+     * Reads the pairs of up to VISIT_CHUNK_SIZE hashes of the range following
+     * the given position.
+     * @param values List receiving the values, or null to collect the keys only
+     * @return Hash of the last pair read, or null if the range is exhausted
+     */
+    private HashValue readChunk(HashValue position, HashValue end, List<String> keys, List<byte[]> values) {
+        int hash_count = 0;
+        
+        this.read_lock.lock();
+        try {
+            this.ensureOpen();
+            for (NavigableMap<HashValue, KeyEntry> part : this.indexPartsForRange(position, end)) {
+                for (KeyEntry entry : part.values()) {
+                    if (hash_count == VISIT_CHUNK_SIZE) {
+                        return position;
+                    }
+                    for (KeyEntry chained = entry; chained != null; chained = chained.next) {
+                        keys.add(chained.key);
+                        if (values != null) {
+                            values.add(this.readValue(chained));
+                        }
+                    }
+                    position = entry.hash;
+                    ++hash_count;
+                }
+            }
+        } finally {
+            this.read_lock.unlock();
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Collects all the key-value pairs with keys hashed into the given range.
+     * @param begin Exclusive beginning of the hash range
+     * @param end Inclusive end of the hash range
+     * @return Packet with the matching key-value pairs
+     */
+    public KeyValuePacket getPacketForHashRange(HashValue begin, HashValue end) {
+        final KeyValuePacket    packet = new KeyValuePacket();
+        
+        this.visitHashRange(begin, end, new EntryVisitor() {
+            @Override
+            public void visit(String key, byte[] value) {
+                packet.addKeyValuePair(key, value);
+            }
+        });
+        
+        return packet;
+    }
+    
+    public void putAllFromKeyValuePacket(KeyValuePacket packet) {
+        List<String>    keys = new ArrayList<String>(packet.size());
+        List<byte[]>    values = new ArrayList<byte[]>(packet.size());
+        
+        for (KeyValuePacket.KeyValuePair kv_pair : packet) {
+            if (kv_pair.key != null && kv_pair.value != null) {
+                keys.add(kv_pair.key);
+                values.add(kv_pair.value);
+            }
+        }
+        
+        this.write(keys, values);
+    }
+    
+    /**
+     * Removes all the key-value pairs with keys hashed into the given range. The
+     * range is removed in chunks of VISIT_CHUNK_SIZE hashes, each written as a
+     * batch of deletions, so that writers are only locked out while a chunk is
+     * written. Deleting a key removed meanwhile only appends a redundant record.
+     * @param begin Exclusive beginning of the hash range
+     * @param end Inclusive end of the hash range
+     */
+    public void deleteHashRange(HashValue begin, HashValue end) {
+        List<String>    keys = new ArrayList<String>();
+        HashValue       position = begin;
+        
+        while (position != null) {
+            position = this.readChunk(position, end, keys, null);
+            this.write(keys, Collections.<byte[]>nCopies(keys.size(), null));
+            keys.clear();
+        }
+    }
+    
+    /**
+     * Merges all the inactive data files, dropping overwritten and deleted values.
+     * Readers and writers are only blocked while the active file is replaced and
+     * while the locations of the copied records are switched.
+     * @throws IOException Thrown if the data files cannot be merged
+     */
+    public void compact() throws IOException {
+        synchronized (this.merge_lock) {
+            List<DataFile>  merged;
+            int             watermark;
+            
+            // Start a new active file, so that all the merged files are immutable
+            this.write_lock.lock();
+            try {
+                this.ensureOpen();
+                this.rollActiveFile();
+                watermark = this.active.id;
+                merged = new ArrayList<DataFile>(this.files);
+            } finally {
+                this.write_lock.unlock();
+            }
+            
+            long            start_time = System.currentTimeMillis();
+            List<DataFile>  outputs = new ArrayList<DataFile>();
+            List<Move>      moves = new ArrayList<Move>();
+            try {
+                DataFile    output = null;
+                for (DataFile file : merged) {
+                    RecordReader    reader = new RecordReader(file.file);
+                    try {
+                        Record record;
+                        while ((record = reader.next()) != null) {
+                            if (record.value == null || !this.isLive(record.key, file, record.value_offset)) {
+                                continue;
+                            }
+                            
+                            if (output == null || output.size >= this.max_file_size) {
+                                output = this.createFile();
+                                outputs.add(output);
+                            }
+                            ByteBuffer  data = ByteBuffer.allocate(record.size);
+                            LogStructuredStorage.encodeRecord(data, record.seq, (byte) 0, record.key_bytes,
+                                    record.value);
+                            data.flip();
+                            long offset = output.append(data);
+                            moves.add(new Move(record.key, file, record.value_offset, output,
+                                    offset + SIZEOF_HEADER + record.key_bytes.length, record.size));
+                        }
+                    } finally {
+                        reader.close();
+                    }
+                }
+                for (DataFile file : outputs) {
+                    file.channel.force(true);
+                }
+                this.writeWatermark(watermark);
+                
+            } catch (IOException ex) {
+                for (DataFile file : outputs) {
+                    file.close();
+                    file.file.delete();
+                }
+                throw ex;
+            }
+            
+            // Switch the records that are still live to their copies
+            this.write_lock.lock();
+            try {
+                for (Move move : moves) {
+                    KeyEntry entry = this.keydir.get(move.key);
+                    if (entry != null && entry.file == move.from_file && entry.offset == move.from_offset) {
+                        entry.file = move.to_file;
+                        entry.offset = move.to_offset;
+                        move.to_file.live_bytes += move.size;
+                    }
+                }
+                
+                this.files.removeAll(merged);
+                this.files.addAll(0, outputs);
+                for (DataFile file : merged) {
+                    file.close();
+                    if (!file.file.delete()) {
+                        logger.warn("Warning! Unable to delete merged data file '" + file.file + "'.");
+                    }
+                }
+            } finally {
+                this.write_lock.unlock();
+            }
+            
+            logger.info("Merged " + merged.size() + " data files into " + outputs.size() + " in " +
+                    (System.currentTimeMillis() - start_time) + " ms.");
+        }
+    }
+    
+    /**
+     * Stops merging and syncing, and syncs and closes the data files. The storage
+     * may not be used afterwards.
+     */
+    public void close() {
+        synchronized (this.timer) {
+            this.stopped = true;
+            this.timer.notifyAll();
+        }
+        synchronized (this.sync_lock) {
+            this.sync_stopped = true;
+            this.sync_lock.notifyAll();
+        }
+        if (this.sync_thread != null) {
+            try {
+                this.sync_thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this.merge_lock) {
+            this.write_lock.lock();
+            try {
+                if (this.closed) {
+                    return;
+                }
+                this.closed = true;
+                try {
+                    this.active.channel.force(false);
+                } catch (IOException ex) {
+                    logger.error("Error! Unable to sync data file '" + this.active.file + "': " + ex.getMessage());
+                }
+                for (DataFile file : this.files) {
+                    file.close();
+                }
+                this.active.close();
+            } finally {
+                this.write_lock.unlock();
+            }
+        }
+        
+        if (this.merge_thread != null) {
+            try {
+                this.merge_thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * Appends the records of a batch and points the key directory to them. The
+     * presence of the keys is answered from the key directory, without reading
+     * the previous values.
+     * @return PRESENT for the keys that were present and nulls for the others
+     */
+    private byte[][] write(List<String> keys, List<byte[]> values) {
+        byte[][]    prev_values = new byte[keys.size()][];
+        if (keys.isEmpty()) {
+            return prev_values;
+        }
+        
+        // Hash the keys and size the batch before taking the lock
+        List<byte[]>    key_bytes = new ArrayList<byte[]>(keys.size());
+        HashValue[]     hashes = new HashValue[keys.size()];
+        int             size = 0;
+        for (int i = 0; i < keys.size(); ++i) {
+            key_bytes.add(keys.get(i).getBytes(UTF8));
+            if (values.get(i) != null) {
+                hashes[i] = HashValue.hashKey(keys.get(i));
+            }
+            size += LogStructuredStorage.recordSize(key_bytes.get(i), values.get(i));
+        }
+        ByteBuffer      data = ByteBuffer.allocate(size);
+        long            last_seq;
+        
+        this.write_lock.lock();
+        try {
+            this.ensureOpen();
+            if (this.failure != null) {
+                throw new IllegalStateException("Storage failure: " + this.failure.getMessage());
+            }
+            
+            long first_seq = this.next_seq;
+            for (int i = 0; i < keys.size(); ++i) {
+                LogStructuredStorage.encodeRecord(data, first_seq + i,
+                        (i < keys.size() - 1) ? FLAG_BATCH : 0, key_bytes.get(i), values.get(i));
+            }
+            data.flip();
+            
+            // A batch is never split between files
+            if (this.active.size > 0 && this.active.size + size > this.max_file_size) {
+                this.rollActiveFile();
+            }
+            long    offset;
+            try {
+                offset = this.active.append(data);
+            } catch (IOException ex) {
+                this.discardTail(ex);
+                throw new IllegalStateException("Storage failure: " + ex.getMessage());
+            }
+            this.next_seq += keys.size();
+            last_seq = this.next_seq - 1;
+            
+            for (int i = 0; i < keys.size(); ++i) {
+                KeyEntry    entry = this.keydir.get(keys.get(i));
+                int         record_size = LogStructuredStorage.recordSize(key_bytes.get(i), values.get(i));
+                
+                if (entry != null) {
+                    entry.file.live_bytes -= entry.record_size;
+                    prev_values[i] = PRESENT;
+                }
+                
+                if (values.get(i) == null) {
+                    if (entry != null) {
+                        this.removeEntry(entry);
+                    }
+                } else {
+                    if (entry == null) {
+                        entry = new KeyEntry(keys.get(i), hashes[i]);
+                        this.addEntry(entry);
+                    }
+                    entry.file = this.active;
+                    entry.offset = offset + SIZEOF_HEADER + key_bytes.get(i).length;
+                    entry.length = values.get(i).length;
+                    entry.record_size = record_size;
+                    entry.seq = first_seq + i;
+                    this.active.live_bytes += record_size;
+                }
+                offset += record_size;
+            }
+        } finally {
+            this.write_lock.unlock();
+        }
+        
+        if (this.sync_interval == 0) {
+            this.sync(last_seq);
+        }
+        
+        return prev_values;
+    }
+    
+    /**
+     * Group commit: the caller either finds its records synced by another writer,
+     * or syncs the active file itself, committing all the records appended so
+     * far. Records of the files rolled meanwhile were synced by the roll.
+     * @param seq Sequence number of the last record to be synced
+     * @throws IllegalStateException Thrown if the data file cannot be synced
+     */
+    private void sync(long seq) throws IllegalStateException {
+        DataFile    file;
+        long        target_seq;
+        
+        synchronized (this.sync_lock) {
+            while (this.syncing) {
+                try {
+                    this.sync_lock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for the sync of the data file.");
+                }
+            }
+            if (this.synced_seq >= seq) {
+                return;
+            }
+            this.syncing = true;
+        }
+        
+        IOException error = null;
+        this.read_lock.lock();
+        try {
+            file = this.active;
+            target_seq = this.next_seq - 1;
+        } finally {
+            this.read_lock.unlock();
+        }
+        try {
+            file.channel.force(false);
+        } catch (IOException ex) {
+            logger.error("Error! Unable to sync data file '" + file.file + "': " + ex.getMessage());
+            error = ex;
+        }
+        
+        synchronized (this.sync_lock) {
+            if (error == null) {
+                this.synced_seq = Math.max(this.synced_seq, target_seq);
+            }
+            this.syncing = false;
+            this.sync_lock.notifyAll();
+        }
+        
+        if (error != null) {
+            throw new IllegalStateException("Storage failure: " + error.getMessage());
+        }
+    }
+    
+    private void startSyncThread() {
+        this.sync_thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    synchronized (LogStructuredStorage.this.sync_lock) {
+                        if (LogStructuredStorage.this.sync_stopped) {
+                            return;
+                        }
+                        try {
+                            LogStructuredStorage.this.sync_lock.wait(LogStructuredStorage.this.sync_interval);
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                        if (LogStructuredStorage.this.sync_stopped) {
+                            return;
+                        }
+                    }
+                    
+                    try {
+                        LogStructuredStorage.this.sync(Long.MAX_VALUE);
+                    } catch (IllegalStateException ex) {
+                        // Already logged; retried on the next interval
+                    }
+                }
+            }
+        }, "kv-data-sync");
+        this.sync_thread.setDaemon(true);
+        this.sync_thread.start();
+    }
+    
+    /**
+     * Removes a partially written batch from the active file. If this fails too,
+     * further writes are rejected, as they would follow a corrupted record.
+     */
+    private void discardTail(IOException cause) {
+        try {
+            this.active.channel.truncate(this.active.size);
+        } catch (IOException ex) {
+            this.failure = cause;
+            logger.error("Error! Unable to discard an incomplete record in '" + this.active.file + "': " +
+                    ex.getMessage());
+        }
+    }
+    
+    private byte[] readValue(KeyEntry entry) {
+        if (entry == null) {
+            return null;
+        }
+        
+        try {
+            return entry.file.read(entry.offset, entry.length);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Storage failure: " + ex.getMessage());
+        }
+    }
+    
+    private boolean isLive(String key, DataFile file, long value_offset) {
+        this.read_lock.lock();
+        try {
+            KeyEntry entry = this.keydir.get(key);
+            return entry != null && entry.file == file && entry.offset == value_offset;
+        } finally {
+            this.read_lock.unlock();
+        }
+    }
+    
+    private void ensureOpen() {
+        if (this.closed) {
+            throw new IllegalStateException("Storage is closed.");
+        }
+    }
+    
+    /**
+     * Makes the active file immutable and starts a new one. Must be called with
+     * the write lock held.
+     */
+    private void rollActiveFile() {
+        DataFile    next;
+        try {
+            next = this.createFile();
+        } catch (IOException ex) {
+            throw new IllegalStateException("Storage failure: " + ex.getMessage());
+        }
+        
+        if (this.active.size > 0) {
+            // Later syncs only cover the new active file
+            try {
+                this.active.channel.force(false);
+            } catch (IOException ex) {
+                next.close();
+                next.file.delete();
+                throw new IllegalStateException("Storage failure: " + ex.getMessage());
+            }
+            this.files.add(this.active);
+        } else {
+            this.active.close();
+            this.active.file.delete();
+        }
+        this.active = next;
+        
+        synchronized (this.timer) {
+            this.timer.notifyAll();
+        }
+    }
+    
+    private DataFile createFile() throws IOException {
+        int id = this.next_file_id.getAndIncrement();
+        
+        return new DataFile(this.getDataFile(id), id);
+    }
+    
+    private File getDataFile(int id) {
+        return new File(this.directory, this.name + "." + id + ".data");
+    }
+    
+    private File getWatermarkFile() {
+        return new File(this.directory, this.name + ".merged");
+    }
+    
+    /**
+     * Rebuilds the key directory from the data files. Files superseded by a
+     * completed merge are deleted, and an incomplete record at the end of a file,
+     * left by a crash, is discarded.
+     */
+    private void open() throws IOException {
+        int                 watermark = this.readWatermark();
+        Map<String, Long>   deleted = new HashMap<String, Long>();
+        long                max_seq = 0;
+        int                 max_id = watermark;
+        long                start_time = System.currentTimeMillis();
+        
+        for (int id : this.listFileIds()) {
+            File    file = this.getDataFile(id);
+            if (id < watermark) {
+                if (!file.delete()) {
+                    throw new IOException("Unable to delete merged data file '" + file + "'.");
+                }
+                continue;
+            }
+            
+            DataFile    data_file = new DataFile(file, id);
+            try {
+                max_seq = Math.max(max_seq, this.load(data_file, deleted));
+            } catch (IOException ex) {
+                data_file.close();
+                this.closeFiles();
+                throw ex;
+            }
+            if (data_file.size > 0) {
+                this.files.add(data_file);
+            } else {
+                data_file.close();
+                file.delete();
+            }
+            max_id = Math.max(max_id, id + 1);
+        }
+        
+        this.next_seq = max_seq + 1;
+        this.next_file_id.set(max_id);
+        try {
+            this.active = this.createFile();
+        } catch (IOException ex) {
+            this.closeFiles();
+            throw ex;
+        }
+        
+        logger.info("Loaded " + this.keydir.size() + " keys from " + this.files.size() + " data files in " +
+                (System.currentTimeMillis() - start_time) + " ms.");
+    }
+    
+    /**
+     * Applies the records of the file to the key directory.
+     * @param deleted Sequence numbers of the deletions of the keys that are absent
+     * @return The highest sequence number found in the file
+     */
+    private long load(DataFile file, Map<String, Long> deleted) throws IOException {
+        RecordReader    reader = new RecordReader(file.file);
+        List<Record>    batch = new ArrayList<Record>();
+        long            valid_size = 0;
+        long            max_seq = 0;
+        
+        try {
+            Record record;
+            while ((record = reader.next()) != null) {
+                batch.add(record);
+                if ((record.flags & FLAG_BATCH) != 0) {
+                    continue;
+                }
+                
+                for (Record batch_record : batch) {
+                    this.recover(file, batch_record, deleted);
+                    max_seq = Math.max(max_seq, batch_record.seq);
+                }
+                batch.clear();
+                valid_size = reader.getPosition();
+            }
+        } finally {
+            reader.close();
+        }
+        
+        if (valid_size < file.size) {
+            logger.warn("Warning! Discarding " + (file.size - valid_size) + " bytes of incomplete records at " +
+                    "the end of '" + file.file + "'.");
+            file.channel.truncate(valid_size);
+            file.size = valid_size;
+        }
+        
+        return max_seq;
+    }
+    
+    private void recover(DataFile file, Record record, Map<String, Long> deleted) {
+        KeyEntry    entry = this.keydir.get(record.key);
+        Long        deleted_seq = deleted.get(record.key);
+        long        known_seq = (entry != null) ? entry.seq : ((deleted_seq != null) ? deleted_seq : 0);
+        
+        if (record.seq <= known_seq) {
+            return; // Superseded by a record already loaded
+        }
+        if (entry != null) {
+            entry.file.live_bytes -= entry.record_size;
+        }
+        
+        if (record.value == null) {
+            if (entry != null) {
+                this.removeEntry(entry);
+            }
+            deleted.put(record.key, record.seq);
+        } else {
+            if (entry == null) {
+                entry = new KeyEntry(record.key, HashValue.hashKey(record.key));
+                this.addEntry(entry);
+                deleted.remove(record.key);
+            }
+            entry.file = file;
+            entry.offset = record.value_offset;
+            entry.length = record.value.length;
+            entry.record_size = record.size;
+            entry.seq = record.seq;
+            file.live_bytes += record.size;
+        }
+    }
+    
+    private void closeFiles() {
+        for (DataFile file : this.files) {
+            file.close();
+        }
+        this.files.clear();
+    }
+    
+    /**
+     * Returns the identifiers of the existing data files in ascending order.
+     */
+    private List<Integer> listFileIds() {
+        List<Integer>   ids = new ArrayList<Integer>();
+        String[]        file_names = this.directory.list();
+        String          prefix = this.name + ".";
+        
+        if (file_names != null) {
+            for (String file_name : file_names) {
+                if (file_name.startsWith(prefix) && file_name.endsWith(".data")) {
+                    try {
+                        ids.add(Integer.parseInt(
+                                file_name.substring(prefix.length(), file_name.length() - ".data".length())));
+                    } catch (NumberFormatException ex) {
+                        // Not a data file of this storage
+                    }
+                }
+            }
+        }
+        Collections.sort(ids);
+        
+        return ids;
+    }
+    
+    /**
+     * Reads the identifier of the active file of the last completed merge: all
+     * the files with lower identifiers have been merged and may be deleted.
+     */
+    private int readWatermark() throws IOException {
+        File    file = this.getWatermarkFile();
+        if (!file.exists()) {
+            return 0;
+        }
+        
+        DataInputStream input = new DataInputStream(new FileInputStream(file));
+        try {
+            return input.readInt();
+        } finally {
+            input.close();
+        }
+    }
+    
+    private void writeWatermark(int watermark) throws IOException {
+        File                temp_file = new File(this.directory, this.name + ".merged.tmp");
+        FileOutputStream    file_output = new FileOutputStream(temp_file);
+        DataOutputStream    output = new DataOutputStream(file_output);
+        
+        try {
+            output.writeInt(watermark);
+            output.flush();
+            file_output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!temp_file.renameTo(this.getWatermarkFile())) {
+            throw new IOException("Unable to replace '" + this.getWatermarkFile() + "'.");
+        }
+    }
+    
+    private void startMergeThread() {
+        this.merge_thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    synchronized (LogStructuredStorage.this.timer) {
+                        if (LogStructuredStorage.this.stopped) {
+                            return;
+                        }
+                        try {
+                            LogStructuredStorage.this.timer.wait(1000L * LogStructuredStorage.this.merge_interval);
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                        if (LogStructuredStorage.this.stopped) {
+                            return;
+                        }
+                    }
+                    
+                    try {
+                        if (LogStructuredStorage.this.needsMerge()) {
+                            LogStructuredStorage.this.compact();
+                        }
+                    } catch (IllegalStateException ex) {
+                        logger.error("Error! Unable to merge data files: " + ex.getMessage());
+                    } catch (IOException ex) {
+                        logger.error("Error! Unable to merge data files: " + ex.getMessage());
+                    }
+                }
+            }
+        }, "kv-merge");
+        this.merge_thread.setDaemon(true);
+        this.merge_thread.start();
+    }
+    
+    /**
+     * Checks whether the inactive files are large enough and consist mostly of
+     * dead records.
+     */
+    private boolean needsMerge() {
+        this.read_lock.lock();
+        try {
+            this.ensureOpen();
+            
+            long total_size = 0;
+            long live_size = 0;
+            for (DataFile file : this.files) {
+                total_size += file.size;
+                live_size += file.live_bytes;
+            }
+            
+            return total_size >= this.max_file_size && total_size - live_size >= MERGE_THRESHOLD * total_size;
+        } finally {
+            this.read_lock.unlock();
+        }
+    }
+    
+    private void addEntry(KeyEntry entry) {
+        this.keydir.put(entry.key, entry);
+        
+        // Entries with colliding hashes are chained behind the indexed one
+        KeyEntry    head = this.index.get(entry.hash);
+        if (head == null) {
+            this.index.put(entry.hash, entry);
+        } else {
+            entry.next = head.next;
+            head.next = entry;
+        }
+    }
+    
+    private void removeEntry(KeyEntry entry) {
+        this.keydir.remove(entry.key);
+        
+        KeyEntry    head = this.index.get(entry.hash);
+        if (head == entry) {
+            if (entry.next == null) {
+                this.index.remove(entry.hash);
+            } else {
+                this.index.put(entry.hash, entry.next);
+            }
+        } else {
+            while (head.next != entry) {
+                head = head.next;
+            }
+            head.next = entry.next;
+        }
+    }
+    
+    /**
+     * Returns the views of the ring index covering the hash range (begin, end].
+     */
+    private List<NavigableMap<HashValue, KeyEntry>> indexPartsForRange(HashValue begin, HashValue end) {
+        List<NavigableMap<HashValue, KeyEntry>> parts = new ArrayList<NavigableMap<HashValue, KeyEntry>>(2);
+        
+        if (begin.compareTo(end) < 0) {
+            parts.add(this.index.subMap(begin, false, end, true));
+        } else {
+            parts.add(this.index.tailMap(begin, false));
+            parts.add(this.index.headMap(end, true));
+        }
+        
+        return parts;
+    }
+    
+    private static int recordSize(byte[] key, byte[] value) {
+        return SIZEOF_HEADER + key.length + ((value != null) ? value.length : 0);
+    }
+    
+    /**
+     * Writes a record: checksum, sequence number, flags, key length, value length
+     * (-1 for a deletion), key and value. The checksum covers the rest of the record.
+     */
+    private static void encodeRecord(ByteBuffer buffer, long seq, byte flags, byte[] key, byte[] value) {
+        int start = buffer.position();
+        
+        buffer.putInt(0);
+        buffer.putLong(seq);
+        buffer.put(flags);
+        buffer.putInt(key.length);
+        buffer.putInt((value != null) ? value.length : -1);
+        buffer.put(key);
+        if (value != null) {
+            buffer.put(value);
+        }
+        
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), buffer.arrayOffset() + start + 4, buffer.position() - start - 4);
+        buffer.putInt(start, (int) crc.getValue());
+    }
+    
+    private static byte[] encode(String value) {
+        return (value != null) ? value.getBytes(UTF8) : null;
+    }
+    
+    private static String decode(byte[] value) {
+        return (value != null) ? new String(value, UTF8) : null;
+    }
+    
+    /**
+     * A data file. Only the active file is appended to; all the others are immutable.
+     */
+    private static class DataFile {
+        final int           id;
+        final File          file;
+        final FileChannel   channel;
+        long                size;
+        long                live_bytes;
+        
+        DataFile(File file, int id) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.size = this.channel.size();
+            this.live_bytes = 0;
+        }
+        
+        /**
+         * Appends the data to the file.
+         * @return Offset of the data in the file
+         */
+        long append(ByteBuffer data) throws IOException {
+            long offset = this.size;
+            
+            while (data.hasRemaining()) {
+                this.size += this.channel.write(data, this.size);
+            }
+            
+            return offset;
+        }
+        
+        byte[] read(long offset, int length) throws IOException {
+            byte[]  data = new byte[length];
+            
+            WriteAheadLog.readFully(this.channel, ByteBuffer.wrap(data), offset);
+            
+            return data;
+        }
+        
+        void close() {
+            try {
+                this.channel.close();
+            } catch (IOException ex) {
+                logger.warn("Warning! Unable to close data file '" + this.file + "': " + ex.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Sequential reader of the records of a data file.
+     */
+    private static class RecordReader {
+        private final DataInputStream   input;
+        private long                    position;
+        
+        RecordReader(File file) throws IOException {
+            this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            this.position = 0;
+        }
+        
+        /**
+         * Reads the next record.
+         * @return The record, or null at the end of the file or at the first
+         *          incomplete or corrupted record
+         */
+        Record next() throws IOException {
+            byte[]  header = new byte[SIZEOF_HEADER];
+            try {
+                this.input.readFully(header);
+            } catch (EOFException ex) {
+                return null;
+            }
+            
+            ByteBuffer  header_buffer = ByteBuffer.wrap(header);
+            int         checksum = header_buffer.getInt();
+            long        seq = header_buffer.getLong();
+            byte        flags = header_buffer.get();
+            int         key_length = header_buffer.getInt();
+            int         value_length = header_buffer.getInt();
+            if (key_length <= 0 || key_length > MAX_FIELD_LENGTH || value_length < -1 ||
+                    value_length > MAX_FIELD_LENGTH) {
+                return null;
+            }
+            
+            byte[]  key = new byte[key_length];
+            byte[]  value = (value_length >= 0) ? new byte[value_length] : null;
+            try {
+                this.input.readFully(key);
+                if (value != null) {
+                    this.input.readFully(value);
+                }
+            } catch (EOFException ex) {
+                return null;
+            }
+            
+            CRC32 crc = new CRC32();
+            crc.update(header, 4, SIZEOF_HEADER - 4);
+            crc.update(key);
+            if (value != null) {
+                crc.update(value);
+            }
+            if ((int) crc.getValue() != checksum) {
+                return null;
+            }
+            
+            Record  record = new Record(seq, flags, key, value, this.position + SIZEOF_HEADER + key_length);
+            this.position += record.size;
+            
+            return record;
+        }
+        
+        /**
+         * Returns the offset following the last record read.
+         */
+        long getPosition() {
+            return this.position;
+        }
+        
+        void close() throws IOException {
+            this.input.close();
+        }
+    }
+    
+    private static class Record {
+        final long      seq;
+        final byte      flags;
+        final String    key;
+        final byte[]    key_bytes;
+        final byte[]    value;
+        final long      value_offset;
+        final int       size;
+        
+        Record(long seq, byte flags, byte[] key_bytes, byte[] value, long value_offset) {
+            this.seq = seq;
+            this.flags = flags;
+            this.key = new String(key_bytes, UTF8);
+            this.key_bytes = key_bytes;
+            this.value = value;
+            this.value_offset = value_offset;
+            this.size = LogStructuredStorage.recordSize(key_bytes, value);
+        }
+    }
+    
+    /**
+     * A record copied by a merge, which replaces the original if the original is
+     * still live once the merge completes.
+     */
+    private static class Move {
+        final String    key;
+        final DataFile  from_file;
+        final long      from_offset;
+        final DataFile  to_file;
+        final long      to_offset;
+        final int       size;
+        
+        Move(String key, DataFile from_file, long from_offset, DataFile to_file, long to_offset, int size) {
+            this.key = key;
+            this.from_file = from_file;
+            this.from_offset = from_offset;
+            this.to_file = to_file;
+            this.to_offset = to_offset;
+            this.size = size;
+        }
+    }
+    
+    /**
+     * Location of the latest value of a key, together with the precomputed ring
+     * hash of the key.
+     */
+    private static class KeyEntry {
+        final String    key;
+        final HashValue hash;
+        DataFile        file;
+        long            offset;
+        int             length;
+        int             record_size;
+        long            seq;
+        KeyEntry        next;
+        
+        KeyEntry(String key, HashValue hash) {
+            this.key = key;
+            this.hash = hash;
+            this.file = null;
+            this.offset = 0;
+            this.length = 0;
+            this.record_size = 0;
+            this.seq = 0;
+            this.next = null;
+        }
+    }
+}
@@ -0,0 +1,1579 @@
+package server;
+
+import common.messages.Marshaller;
+import common.messages.Unmarshaller;
+import common.topology.HashValue;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import logger.LogSetup;
+import org.apache.log4j.Logger;
+
+/**
+ * Persistent key-value storage organized as a log-structured merge tree.
+ * Writes go to the write-ahead log and to a concurrent in-memory table. A full
+ * memtable is replaced by a new one and flushed to an immutable sorted table
+ * (SSTable) on level 0 by a dedicated thread. Tables are merged in the background
+ * by a separate thread pool (leveled compaction): level 0 tables are merged into
+ * level 1, and every further level is kept ten times larger than the previous
+ * one by merging single tables into the next level. Tables on levels 1 and below
+ * do not overlap, so a lookup reads at most one table per level, and the bloom
+ * filters of the tables answer most lookups of absent keys without reading them.
+ * Entries are sorted by the ring hash of their keys, so hash range operations
+ * read contiguous parts of the tables.
+ * The set of tables is recorded in a manifest file, which is replaced atomically
+ * after every flush and compaction.
+ * The methods correspond to the ones of KVDataStorage. Lookups do not take any
+ * locks; writes are serialized per key by lock striping.
+ * @author Danila Klimenko
+ */
+public class LsmStorage implements StorageEngine {
+    private static final Logger logger = LogSetup.getLogger();
+    
+    private static final Charset    UTF8 = Charset.forName("UTF-8");
+    private static final int        MANIFEST_MAGIC = 0x4B564D46; // "KVMF"
+    private static final int        MANIFEST_VERSION = 1;
+    
+    private static final int        DEFAULT_MEMTABLE_SIZE = 4 * 1024 * 1024;
+    private static final int        DEFAULT_COMPACTION_THREADS = 2;
+    private static final int        STRIPE_COUNT = 64;
+    private static final int        MAX_IMMUTABLE_MEMTABLES = 4;
+    private static final int        LEVEL0_COMPACTION_TRIGGER = 4;
+    private static final int        LEVEL_SIZE_MULTIPLIER = 10;
+    private static final int        LEVEL_COUNT = 7;
+    private static final int        SIZEOF_ENTRY_OVERHEAD = 64;
+    private static final int        DELETE_CHUNK_SIZE = 1024;
+    private static final HashValue  MIN_HASH = new HashValue(0, 0);
+    
+    private final File                      directory;
+    private final String                    name;
+    private final int                       memtable_size;
+    private final int                       compaction_threads;
+    private final Lock[]                    stripes;
+    private final ReentrantReadWriteLock    switch_lock;
+    private final Object                    state_lock;
+    private final AtomicInteger             next_file_id;
+    private final ExecutorService           compaction_pool;
+    private volatile State                  state;
+    private WriteAheadLog                   log;
+    private int                             running_compactions;
+    private boolean                         closed;
+    private Thread                          flush_thread;
+    
+    /**
+     * Constructor with default tuning: 4 MB memtables, two compaction threads and
+     * a sync of the log before every write returns.
+     * @param directory Directory holding the tables and the logs
+     * @param name Common prefix of the file names
+     * @throws IOException Thrown if the storage cannot be opened
+     */
+    public LsmStorage(File directory, String name) throws IOException {
+        this(directory, name, DEFAULT_MEMTABLE_SIZE, DEFAULT_COMPACTION_THREADS, 0);
+    }
+    
+    /**
+     * Main constructor. Opens the tables listed in the manifest and replays the
+     * write-ahead log into the memtable.
+     * @param directory Directory holding the tables and the logs
+     * @param name Common prefix of the file names
+     * @param memtable_size Size of the memtable triggering a flush, in bytes;
+     *          also determines the size of the tables and of the levels
+     * @param compaction_threads Number of compaction threads
+     * @param sync_interval Sync interval of the write-ahead log (see WriteAheadLog)
+     * @throws IOException Thrown if the storage cannot be opened
+     */
+    public LsmStorage(File directory, String name, int memtable_size, int compaction_threads, int sync_interval)
+            throws IOException {
+        if (memtable_size <= 0) {
+            throw new IllegalArgumentException("Illegal memtable size: " + memtable_size + ".");
+        }
+        if (compaction_threads <= 0) {
+            throw new IllegalArgumentException("Illegal number of compaction threads: " + compaction_threads + ".");
+        }
+        
+        this.directory = directory;
+        this.name = name;
+        this.memtable_size = memtable_size;
+        this.compaction_threads = compaction_threads;
+        this.stripes = new Lock[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; ++i) {
+            this.stripes[i] = new ReentrantLock();
+        }
+        this.switch_lock = new ReentrantReadWriteLock();
+        this.state_lock = new Object();
+        this.next_file_id = new AtomicInteger(0);
+        this.log = null;
+        this.running_compactions = 0;
+        this.closed = false;
+        
+        this.open(sync_interval);
+        
+        final AtomicInteger thread_count = new AtomicInteger(0);
+        this.compaction_pool = Executors.newFixedThreadPool(compaction_threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "kv-lsm-compaction-" + thread_count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.startFlushThread();
+        synchronized (this.state_lock) {
+            this.scheduleCompactions();
+        }
+    }
+    
+    /**
+     * Method implementing the 'put' command.
+     * @param key The key
+     * @param value The value to be associated with the key
+     * @return The previous value associated with the given key, or null
+     * @throws IllegalArgumentException Thrown if key or value are illegal
+     * @throws IllegalStateException Thrown if the write-ahead log fails
+     */
+    public String put(String key, String value) throws IllegalArgumentException {
+        return LsmStorage.decode(this.putBytes(key, LsmStorage.encode(value)));
+    }
+    
+    /**
+     * Version of put() for values in their binary representation.
+     * @param key The key
+     * @param value The value to be associated with the key
+     * @return The previous value associated with the given key, or null
+     * @throws IllegalArgumentException Thrown if key or value are illegal
+     * @throws IllegalStateException Thrown if the write-ahead log fails
+     */
+    @Override
+    public byte[] putBytes(String key, byte[] value) throws IllegalArgumentException {
+        KVDataStorage.verifyPair(key, value);
+        
+        return this.write(Collections.singletonList(key), Collections.singletonList(value), true)[0];
+    }
+    
+    /**
+     * Method implementing the 'get' command.
+     * @param key The key to look for
+     * @return The value associated with the given key, or null
+     * @throws IllegalStateException Thrown if a table is corrupted
+     */
+    public String get(String key) {
+        return LsmStorage.decode(this.getBytes(key));
+    }
+    
+    /**
+     * Version of get() returning the value in its binary representation.
+     * @param key The key to look for
+     * @return The value associated with the given key, or null
+     * @throws IllegalStateException Thrown if a table is corrupted
+     */
+    public byte[] getBytes(String key) {
+        if (key == null) {
+            return null;
+        }
+        
+        return LsmStorage.live(this.state.lookup(new SSTable.Key(key)));
+    }
+    
+    /**
+     * Method implementing the 'delete' command.
+     * @param key The key to look for
+     * @return The value previously associated with the given key, or null
+     * @throws IllegalStateException Thrown if the write-ahead log fails
+     */
+    public String delete(String key) {
+        return LsmStorage.decode(this.deleteBytes(key));
+    }
+    
+    /**
+     * Version of delete() returning the value in its binary representation.
+     * @param key The key to look for
+     * @return The value previously associated with the given key, or null
+     * @throws IllegalStateException Thrown if the write-ahead log fails
+     */
+    @Override
+    public byte[] deleteBytes(String key) {
+        if (key == null) {
+            return null;
+        }
+        
+        return this.write(Collections.singletonList(key), Collections.singletonList((byte[]) null), true)[0];
+    }
+    
+    /**
+     * Batch version of the 'get' command. Writers of the keys are locked out
+     * during the lookup, so the values form a consistent snapshot.
+     * @param keys The keys to look for
+     * @return Values in the order of the keys; null for the missing keys
+     */
+    public String[] getAll(List<String> keys) {
+        byte[][]    found_values = this.getAllBytes(keys);
+        String[]    values = new String[found_values.length];
+        
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = LsmStorage.decode(found_values[i]);
+        }
+        
+        return values;
+    }
+    
+    /**
+     * Version of getAll() returning the values in their binary representation.
+     * @param keys The keys to look for
+     * @return Values in the order of the keys; null for the missing keys
+     */
+    public byte[][] getAllBytes(List<String> keys) {
+        byte[][]    values = new byte[keys.size()][];
+        boolean[]   involved = new boolean[STRIPE_COUNT];
+        
+        for (String key : keys) {
+            if (key != null) {
+                involved[LsmStorage.stripeIndexFor(key)] = true;
+            }
+        }
+        
+        this.lockStripes(involved);
+        try {
+            State current = this.state;
+            for (int i = 0; i < values.length; ++i) {
+                if (keys.get(i) != null) {
+                    values[i] = LsmStorage.live(current.lookup(new SSTable.Key(keys.get(i))));
+                }
+            }
+        } finally {
+            this.unlockStripes(involved);
+        }
+        
+        return values;
+    }
+    
+    /**
+     * Batch version of the 'put' command. A null value deletes the key. The batch
+     * is logged as a single record, so it is recovered either completely or not
+     * at all.
+     * @param keys The keys
+     * @param values The values to be associated with the keys
+     * @return The previous values associated with the keys, in the order of the keys
+     * @throws IllegalArgumentException Thrown if any key or value is illegal; the
+     *          storage remains unchanged in this case
+     */
+    public String[] putAll(List<String> keys, List<String> values) throws IllegalArgumentException {
+        List<byte[]>    encoded_values = new ArrayList<byte[]>(values.size());
+        for (String value : values) {
+            encoded_values.add(LsmStorage.encode(value));
+        }
+        
+        byte[][]    prev_values = this.putAllBytes(keys, encoded_values);
+        String[]    decoded_values = new String[prev_values.length];
+        for (int i = 0; i < prev_values.length; ++i) {
+            decoded_values[i] = LsmStorage.decode(prev_values[i]);
+        }
+        
+        return decoded_values;
+    }
+    
+    /**
+     * Version of putAll() for values in their binary representation.
+     * @param keys The keys
+     * @param values The values to be associated with the keys; null deletes the key
+     * @return The previous values associated with the keys, in the order of the keys
+     * @throws IllegalArgumentException Thrown if any key or value is illegal; the
+     *          storage remains unchanged in this case
+     */
+    @Override
+    public byte[][] putAllBytes(List<String> keys, List<byte[]> values) throws IllegalArgumentException {
+        if (keys.size() != values.size()) {
+            throw new IllegalArgumentException("Numbers of keys and values differ.");
+        }
+        for (int i = 0; i < keys.size(); ++i) {
+            if (values.get(i) != null) {
+                KVDataStorage.verifyPair(keys.get(i), values.get(i));
+            } else if (keys.get(i) == null) {
+                throw new IllegalArgumentException("Illegal key: 'null'.");
+            }
+        }
+        
+        return this.write(keys, values, true);
+    }
+    
+    /**
+     * Returns the dump of all the contents of the key-value storage.
+     * @return A string containing all stored key-value data
+     */
+    public String dump() {
+        StringBuilder   builder = new StringBuilder("{");
+        
+        for (Iterator<SSTable.Entry> it = this.scanRange(MIN_HASH, MIN_HASH); it.hasNext(); ) {
+            SSTable.Entry entry = it.next();
+            if (builder.length() > 1) {
+                builder.append(", ");
+            }
+            builder.append(entry.key.key).append('=').append(LsmStorage.decode(entry.value));
+        }
+        
+        return builder.append('}').toString();
+    }
+    
+    /**
+     * Calls the visitor for every key-value pair with the key hashed into the
+     * given range. The range is read while it is visited, and writers are not
+     * locked out (see scanRange()).
+     * @param begin Exclusive beginning of the hash range
+     * @param end Inclusive end of the hash range
+     * @param visitor Visitor of the pairs
+     */
+    @Override
+    public void visitHashRange(HashValue begin, HashValue end, EntryVisitor visitor) {
+        for (Iterator<SSTable.Entry> it = this.scanRange(begin, end); it.hasNext(); ) {
+            SSTable.Entry entry = it.next();
+            visitor.visit(entry.key.key, entry.value);
+        }
+    }
+    
+    /**
+     * Collects all the key-value pairs with keys hashed into the given range.
+     * @param begin Exclusive beginning of the hash range
+     * @param end Inclusive end of the hash range
+     * @return Packet with the matching key-value pairs
+     */
+    @Override
+    public KeyValuePacket getPacketForHashRange(HashValue begin, HashValue end) {
+        final KeyValuePacket    packet = new KeyValuePacket();
+        
+        this.visitHashRange(begin, end, new EntryVisitor() {
+            @Override
+            public void visit(String key, byte[] value) {
+                packet.addKeyValuePair(key, value);
+            }
+        });
+        
+        return packet;
+    }
+    
+    public void putAllFromKeyValuePacket(KeyValuePacket packet) {
+        List<String>    keys = new ArrayList<String>(packet.size());
+        List<byte[]>    values = new ArrayList<byte[]>(packet.size());
+        
+        for (KeyValuePacket.KeyValuePair kv_pair : packet) {
+            if (kv_pair.key != null && kv_pair.value != null) {
+                keys.add(kv_pair.key);
+                values.add(kv_pair.value);
+            }
+        }
+        
+        this.write(keys, values, false);
+    }
+    
+    /**
+     * Removes all the key-value pairs with keys hashed into the given range by
+     * writing deletion markers for them. The range is scanned without locking
+     * out the writers (see scanRange()), and the markers are written like other
+     * deletions, DELETE_CHUNK_SIZE keys at a time, so that the memtables are
+     * switched as they fill up. Keys written to the range during the deletion
+     * may be kept; the range is expected to be no longer served.
+     * @param begin Exclusive beginning of the hash range
+     * @param end Inclusive end of the hash range
+     */
+    @Override
+    public void deleteHashRange(HashValue begin, HashValue end) {
+        List<String>    keys = new ArrayList<String>(DELETE_CHUNK_SIZE);
+        
+        this.ensureOpen();
+        for (Iterator<SSTable.Entry> it = this.scanRange(begin, end); it.hasNext(); ) {
+            keys.add(it.next().key.key);
+            if (keys.size() == DELETE_CHUNK_SIZE || !it.hasNext()) {
+                this.write(keys, Collections.<byte[]>nCopies(keys.size(), null), false);
+                keys.clear();
+            }
+        }
+    }
+    
+    /**
+     * Writes the current memtable to a table and waits until all the memtables
+     * are flushed.
+     */
+    public void flush() {
+        this.switchMemtable(true);
+        
+        synchronized (this.state_lock) {
+            while (!this.closed && !this.state.immutables.isEmpty()) {
+                try {
+                    this.state_lock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Waits until no compaction is running or needed.
+     */
+    public void awaitCompactions() {
+        synchronized (this.state_lock) {
+            while (!this.closed && this.running_compactions > 0) {
+                try {
+                    this.state_lock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns the number of tables on every level.
+     */
+    public int[] getTableCounts() {
+        State   current = this.state;
+        int[]   counts = new int[LEVEL_COUNT];
+        
+        for (int i = 0; i < LEVEL_COUNT; ++i) {
+            counts[i] = current.levels.get(i).size();
+        }
+        
+        return counts;
+    }
+    
+    /**
+     * Stops flushing and compacting and closes the write-ahead log. Memtables that
+     * are not flushed yet are recovered from the log on the next start.
+     */
+    public void close() {
+        this.switch_lock.writeLock().lock();
+        try {
+            synchronized (this.state_lock) {
+                if (this.closed) {
+                    return;
+                }
+                this.closed = true;
+                this.state_lock.notifyAll();
+            }
+        } finally {
+            this.switch_lock.writeLock().unlock();
+        }
+        
+        try {
+            this.flush_thread.join();
+            this.compaction_pool.shutdown();
+            this.compaction_pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        this.log.close();
+    }
+    
+    /**
+     * Logs and applies a batch of writes. Deletions of keys known to be absent,
+     * from the memtables and the bloom filters, are neither logged nor applied.
+     * Only the memtables are read under the stripe locks: the previous values
+     * stored in the tables are looked up after the locks are released, which
+     * gives the same result since the tables of a state never change.
+     * @param collect_values True to return the previous values of the keys
+     * @return The previous values, or nulls if they are not collected
+     */
+    private byte[][] write(List<String> keys, List<byte[]> values, boolean collect_values) {
+        byte[][]            prev_values = new byte[keys.size()][];
+        SSTable.Key[]       sort_keys = new SSTable.Key[keys.size()];
+        boolean[]           involved = new boolean[STRIPE_COUNT];
+        boolean[]           in_tables = new boolean[keys.size()];
+        State               current;
+        
+        // Hash the keys before taking the locks
+        for (int i = 0; i < sort_keys.length; ++i) {
+            sort_keys[i] = new SSTable.Key(keys.get(i));
+            involved[LsmStorage.stripeIndexFor(keys.get(i))] = true;
+        }
+        
+        this.waitForFlush();
+        
+        long seq = 0;
+        this.switch_lock.readLock().lock();
+        try {
+            this.lockStripes(involved);
+            try {
+                this.ensureOpen();
+                
+                current = this.state;
+                List<String>        logged_keys = new ArrayList<String>(keys.size());
+                List<byte[]>        logged_values = new ArrayList<byte[]>(keys.size());
+                boolean[]           logged = new boolean[keys.size()];
+                Map<String, byte[]> written = new HashMap<String, byte[]>();
+                for (int i = 0; i < sort_keys.length; ++i) {
+                    String  key = keys.get(i);
+                    byte[]  prev_value = null;
+                    boolean present;
+                    
+                    if (written.containsKey(key)) {
+                        prev_value = written.get(key);
+                        present = true;
+                    } else if ((prev_value = current.lookupMemtables(sort_keys[i])) != null) {
+                        prev_value = LsmStorage.live(prev_value);
+                        present = (prev_value != null);
+                    } else {
+                        // Deletions of keys the bloom filters rule out are skipped
+                        in_tables[i] = (values.get(i) != null) || current.tablesMayHold(sort_keys[i]);
+                        present = in_tables[i];
+                    }
+                    if (values.get(i) != null || present) {
+                        logged_keys.add(key);
+                        logged_values.add(values.get(i));
+                        logged[i] = true;
+                        written.put(key, values.get(i));
+                    }
+                    if (collect_values) {
+                        prev_values[i] = prev_value;
+                    }
+                }
+                
+                if (this.log != null && !logged_keys.isEmpty()) {
+                    seq = (logged_keys.size() == 1) ? ((logged_values.get(0) != null) ?
+                            this.log.appendPut(logged_keys.get(0), logged_values.get(0)) :
+                            this.log.appendDelete(logged_keys.get(0))) :
+                            this.log.appendPutAll(logged_keys, logged_values);
+                }
+                for (int i = 0; i < sort_keys.length; ++i) {
+                    if (logged[i]) {
+                        current.active.put(sort_keys[i], (values.get(i) != null) ? values.get(i) : SSTable.TOMBSTONE);
+                    }
+                }
+            } finally {
+                this.unlockStripes(involved);
+            }
+        } finally {
+            this.switch_lock.readLock().unlock();
+        }
+        this.commit(seq);
+        this.switchMemtableIfFull();
+        
+        if (collect_values) {
+            for (int i = 0; i < sort_keys.length; ++i) {
+                if (in_tables[i]) {
+                    prev_values[i] = LsmStorage.live(current.lookupTables(sort_keys[i]));
+                }
+            }
+        }
+        
+        return prev_values;
+    }
+    
+    /**
+     * Waits until the logged modification is durable. Called without holding any
+     * locks, so that concurrent writers are committed together.
+     */
+    private void commit(long seq) {
+        if (seq != 0) {
+            this.log.commit(seq);
+        }
+    }
+    
+    /**
+     * Blocks the writer while too many memtables wait for being flushed, which
+     * bounds the memory used by the memtables.
+     */
+    private void waitForFlush() {
+        synchronized (this.state_lock) {
+            while (!this.closed && this.state.immutables.size() >= MAX_IMMUTABLE_MEMTABLES) {
+                try {
+                    this.state_lock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+    
+    private void switchMemtableIfFull() {
+        if (this.log != null && this.state.active.size.get() >= this.memtable_size) {
+            this.switchMemtable(false);
+        }
+    }
+    
+    /**
+     * Replaces the active memtable by an empty one and continues the write-ahead
+     * log in a new file, so that the log files of a memtable can be deleted once
+     * it is flushed.
+     * @param force True to switch a memtable that is not full
+     */
+    private void switchMemtable(boolean force) {
+        this.switch_lock.writeLock().lock();
+        try {
+            this.ensureOpen();
+            
+            Memtable    full = this.state.active;
+            if (full.map.isEmpty() || (!force && full.size.get() < this.memtable_size)) {
+                return;
+            }
+            
+            Memtable    next = new Memtable(full.generation + 1, full.generation + 1);
+            try {
+                this.log.rotate(this.getLogFile(next.generation));
+            } catch (IOException ex) {
+                throw new IllegalStateException("Unable to continue the write-ahead log: " + ex.getMessage());
+            }
+            
+            synchronized (this.state_lock) {
+                List<Memtable> immutables = new ArrayList<Memtable>(this.state.immutables.size() + 1);
+                immutables.add(full);
+                immutables.addAll(this.state.immutables);
+                this.state = new State(next, immutables, this.state.levels);
+                this.state_lock.notifyAll();
+            }
+        } finally {
+            this.switch_lock.writeLock().unlock();
+        }
+    }
+    
+    private void startFlushThread() {
+        this.flush_thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    Memtable memtable;
+                    synchronized (LsmStorage.this.state_lock) {
+                        while (!LsmStorage.this.closed && LsmStorage.this.state.immutables.isEmpty()) {
+                            try {
+                                LsmStorage.this.state_lock.wait();
+                            } catch (InterruptedException ex) {
+                                return;
+                            }
+                        }
+                        if (LsmStorage.this.closed) {
+                            return;
+                        }
+                        List<Memtable> immutables = LsmStorage.this.state.immutables;
+                        memtable = immutables.get(immutables.size() - 1); // The oldest one
+                    }
+                    
+                    try {
+                        LsmStorage.this.flushMemtable(memtable);
+                    } catch (IOException ex) {
+                        logger.error("Error! Unable to flush memtable: " + ex.getMessage());
+                        try {
+                            Thread.sleep(1000);
+                        } catch (InterruptedException ie) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }, "kv-lsm-flush");
+        this.flush_thread.setDaemon(true);
+        this.flush_thread.start();
+    }
+    
+    /**
+     * Writes the memtable to a level 0 table, installs the table and deletes the
+     * log files holding the modifications of the memtable.
+     */
+    private void flushMemtable(Memtable memtable) throws IOException {
+        int             id = this.next_file_id.getAndIncrement();
+        File            file = this.getTableFile(id);
+        SSTable.Writer  writer = new SSTable.Writer(file);
+        SSTable         table;
+        
+        try {
+            for (Map.Entry<SSTable.Key, byte[]> entry : memtable.map.entrySet()) {
+                writer.add(entry.getKey(), entry.getValue());
+            }
+            table = writer.finish(id, 0);
+        } catch (IOException ex) {
+            writer.abort();
+            throw ex;
+        }
+        
+        synchronized (this.state_lock) {
+            List<Memtable>      immutables = new ArrayList<Memtable>(this.state.immutables);
+            immutables.remove(memtable);
+            List<List<SSTable>> levels = LsmStorage.copyLevels(this.state.levels);
+            levels.get(0).add(0, table);
+            State               next = new State(this.state.active, immutables, levels);
+            
+            try {
+                this.writeManifest(next);
+            } catch (IOException ex) {
+                file.delete();
+                throw ex;
+            }
+            this.state = next;
+            this.state_lock.notifyAll();
+            
+            long oldest_generation = next.getOldestGeneration();
+            for (long generation : this.listLogGenerations()) {
+                if (generation < oldest_generation) {
+                    this.getLogFile(generation).delete();
+                }
+            }
+            
+            this.scheduleCompactions();
+        }
+    }
+    
+    /**
+     * Starts compactions on the idle compaction threads. Must be called with the
+     * state lock held.
+     */
+    private void scheduleCompactions() {
+        while (!this.closed && this.running_compactions < this.compaction_threads) {
+            final Compaction compaction = this.pickCompaction();
+            if (compaction == null) {
+                return;
+            }
+            
+            for (SSTable table : compaction.inputs) {
+                table.compacting = true;
+            }
+            ++this.running_compactions;
+            this.compaction_pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    LsmStorage.this.runCompaction(compaction);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Chooses the most urgent compaction whose tables are not being compacted.
+     * Level 0 is compacted as a whole once it holds too many tables; any other
+     * level is compacted one table at a time once it exceeds its size limit.
+     */
+    private Compaction pickCompaction() {
+        List<List<SSTable>> levels = this.state.levels;
+        Compaction          best = null;
+        double              best_score = 1.0;
+        
+        List<SSTable> level0 = levels.get(0);
+        double score0 = (double) level0.size() / LEVEL0_COMPACTION_TRIGGER;
+        if (score0 >= best_score && !LsmStorage.anyCompacting(level0)) {
+            Compaction compaction = this.prepareCompaction(levels, new ArrayList<SSTable>(level0), 0);
+            if (compaction != null) {
+                best = compaction;
+                best_score = score0;
+            }
+        }
+        
+        long max_size = (long) LEVEL0_COMPACTION_TRIGGER * this.memtable_size;
+        for (int level = 1; level < LEVEL_COUNT - 1; ++level, max_size *= LEVEL_SIZE_MULTIPLIER) {
+            long level_size = 0;
+            for (SSTable table : levels.get(level)) {
+                level_size += table.size;
+            }
+            
+            double score = (double) level_size / max_size;
+            if (score <= best_score) {
+                continue;
+            }
+            for (SSTable table : levels.get(level)) {
+                if (!table.compacting) {
+                    Compaction compaction = this.prepareCompaction(levels, Collections.singletonList(table), level);
+                    if (compaction != null) {
+                        best = compaction;
+                        best_score = score;
+                        break;
+                    }
+                }
+            }
+        }
+        
+        return best;
+    }
+    
+    /**
+     * Adds the overlapping tables of the next level to the inputs.
+     * @return The compaction, or null if an overlapping table is being compacted
+     */
+    private Compaction prepareCompaction(List<List<SSTable>> levels, List<SSTable> upper, int level) {
+        SSTable.Key smallest = upper.get(0).smallest;
+        SSTable.Key largest = upper.get(0).largest;
+        for (SSTable table : upper) {
+            smallest = (table.smallest.compareTo(smallest) < 0) ? table.smallest : smallest;
+            largest = (table.largest.compareTo(largest) > 0) ? table.largest : largest;
+        }
+        
+        List<SSTable>   inputs = new ArrayList<SSTable>(upper);
+        for (SSTable table : levels.get(level + 1)) {
+            if (table.overlaps(smallest, largest)) {
+                if (table.compacting) {
+                    return null;
+                }
+                inputs.add(table);
+                smallest = (table.smallest.compareTo(smallest) < 0) ? table.smallest : smallest;
+                largest = (table.largest.compareTo(largest) > 0) ? table.largest : largest;
+            }
+        }
+        
+        // Deletion markers are only needed while deeper levels may hold the keys
+        boolean drop_tombstones = true;
+        for (int deeper = level + 2; deeper < LEVEL_COUNT && drop_tombstones; ++deeper) {
+            for (SSTable table : levels.get(deeper)) {
+                if (table.overlaps(smallest, largest)) {
+                    drop_tombstones = false;
+                    break;
+                }
+            }
+        }
+        
+        return new Compaction(inputs, level + 1, drop_tombstones);
+    }
+    
+    private void runCompaction(Compaction compaction) {
+        long            start_time = System.currentTimeMillis();
+        List<SSTable>   outputs = new ArrayList<SSTable>();
+        SSTable.Writer  writer = null;
+        int             writer_id = 0;
+        
+        try {
+            // Inputs are ordered from the newest to the oldest
+            List<Iterator<SSTable.Entry>> sources = new ArrayList<Iterator<SSTable.Entry>>();
+            for (SSTable table : compaction.inputs) {
+                sources.add(table.iterator(null));
+            }
+            
+            Iterator<SSTable.Entry> merged = new MergingIterator(sources);
+            while (merged.hasNext()) {
+                SSTable.Entry entry = merged.next();
+                if (compaction.drop_tombstones && entry.value == SSTable.TOMBSTONE) {
+                    continue;
+                }
+                
+                if (writer == null) {
+                    writer_id = this.next_file_id.getAndIncrement();
+                    writer = new SSTable.Writer(this.getTableFile(writer_id));
+                }
+                writer.add(entry.key, entry.value);
+                if (writer.size() >= this.memtable_size) {
+                    outputs.add(writer.finish(writer_id, compaction.level));
+                    writer = null;
+                }
+            }
+            if (writer != null) {
+                outputs.add(writer.finish(writer_id, compaction.level));
+                writer = null;
+            }
+            
+            synchronized (this.state_lock) {
+                List<List<SSTable>> levels = LsmStorage.copyLevels(this.state.levels);
+                for (SSTable table : compaction.inputs) {
+                    levels.get(table.level).remove(table);
+                }
+                levels.get(compaction.level).addAll(outputs);
+                Collections.sort(levels.get(compaction.level), SMALLEST_KEY_ORDER);
+                State next = new State(this.state.active, this.state.immutables, levels);
+                
+                this.writeManifest(next);
+                this.state = next;
+                for (SSTable table : compaction.inputs) {
+                    if (!table.file.delete()) {
+                        logger.warn("Warning! Unable to delete compacted table '" + table.file + "'.");
+                    }
+                }
+                this.finishCompaction(compaction);
+            }
+            
+            logger.debug("Compacted " + compaction.inputs.size() + " tables into " + outputs.size() +
+                    " tables on level " + compaction.level + " in " + (System.currentTimeMillis() - start_time) +
+                    " ms.");
+            
+        } catch (Exception ex) { // IOException or IllegalStateException on corrupted tables
+            logger.error("Error! Compaction failed: " + ex.getMessage());
+            if (writer != null) {
+                writer.abort();
+            }
+            for (SSTable table : outputs) {
+                table.file.delete();
+            }
+            synchronized (this.state_lock) {
+                for (SSTable table : compaction.inputs) {
+                    table.compacting = false;
+                }
+                --this.running_compactions;
+                this.state_lock.notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Must be called with the state lock held.
+     */
+    private void finishCompaction(Compaction compaction) {
+        --this.running_compactions;
+        this.scheduleCompactions();
+        this.state_lock.notifyAll();
+    }
+    
+    /**
+     * Returns the live entries with keys hashed into the range (begin, end]. The
+     * entries are merged lazily from the current state, without locking out the
+     * writers: the tables of a state never change (and remain mapped after a
+     * compaction deletes their files), while writes to the active memtable made
+     * during the iteration may or may not be returned.
+     */
+    private Iterator<SSTable.Entry> scanRange(HashValue begin, HashValue end) {
+        State current = this.state;
+        
+        if (begin.compareTo(end) < 0) {
+            return current.scan(begin, end, null);
+        } else {
+            return current.scan(begin, null, current.scan(null, end, null));
+        }
+    }
+    
+    private void ensureOpen() {
+        if (this.closed) {
+            throw new IllegalStateException("Storage is closed.");
+        }
+    }
+    
+    private static int stripeIndexFor(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return hash & (STRIPE_COUNT - 1);
+    }
+    
+    private void lockStripes(boolean[] selected) {
+        for (int i = 0; i < STRIPE_COUNT; ++i) {
+            if (selected[i]) {
+                this.stripes[i].lock();
+            }
+        }
+    }
+    
+    private void unlockStripes(boolean[] selected) {
+        for (int i = STRIPE_COUNT - 1; i >= 0; --i) {
+            if (selected[i]) {
+                this.stripes[i].unlock();
+            }
+        }
+    }
+    
+    private File getTableFile(int id) {
+        return new File(this.directory, this.name + "." + id + ".sst");
+    }
+    
+    private File getLogFile(long generation) {
+        return new File(this.directory, this.name + "." + generation + ".wal");
+    }
+    
+    private File getManifestFile() {
+        return new File(this.directory, this.name + ".manifest");
+    }
+    
+    /**
+     * Opens the tables listed in the manifest, deletes the tables left over by
+     * interrupted flushes and compactions, and replays the write-ahead log.
+     */
+    private void open(int sync_interval) throws IOException {
+        long                start_time = System.currentTimeMillis();
+        List<List<SSTable>> levels = new ArrayList<List<SSTable>>(LEVEL_COUNT);
+        for (int i = 0; i < LEVEL_COUNT; ++i) {
+            levels.add(new ArrayList<SSTable>());
+        }
+        Set<Integer>        listed = new HashSet<Integer>();
+        long                log_generation = this.readManifest(levels, listed);
+        
+        Collections.sort(levels.get(0), NEWEST_FIRST_ORDER);
+        for (int i = 1; i < LEVEL_COUNT; ++i) {
+            Collections.sort(levels.get(i), SMALLEST_KEY_ORDER);
+        }
+        for (int id : this.listFileIds(".sst")) {
+            if (!listed.contains(id)) {
+                this.getTableFile(id).delete();
+            }
+            if (id >= this.next_file_id.get()) {
+                this.next_file_id.set(id + 1);
+            }
+        }
+        
+        // Replay the logs of the memtables that were not flushed into a memtable
+        // keeping the replayed files until it is flushed
+        List<Long>  generations = this.listLogGenerations();
+        long        next_generation = log_generation;
+        for (long generation : generations) {
+            next_generation = Math.max(next_generation, generation + 1);
+        }
+        Memtable    active = new Memtable(log_generation, next_generation);
+        this.state = new State(active, new ArrayList<Memtable>(), levels);
+        for (long generation : generations) {
+            File    file = this.getLogFile(generation);
+            if (generation < log_generation) {
+                file.delete();
+                continue;
+            }
+            
+            WriteAheadLog   replayed_log = new WriteAheadLog(file, 0);
+            try {
+                replayed_log.replay(this);
+            } finally {
+                replayed_log.close();
+            }
+        }
+        
+        WriteAheadLog   new_log = new WriteAheadLog(this.getLogFile(active.generation), sync_interval);
+        new_log.replay(this);
+        this.log = new_log;
+        
+        int table_count = 0;
+        for (List<SSTable> level : levels) {
+            table_count += level.size();
+        }
+        logger.info("Opened " + table_count + " tables and recovered " + active.map.size() +
+                " memtable entries in " + (System.currentTimeMillis() - start_time) + " ms.");
+    }
+    
+    /**
+     * Opens the tables listed in the manifest.
+     * @return The oldest log generation holding modifications that are not flushed
+     */
+    private long readManifest(List<List<SSTable>> levels, Set<Integer> listed) throws IOException {
+        File    file = this.getManifestFile();
+        if (!file.exists()) {
+            return 0;
+        }
+        
+        byte[]              manifest = new byte[(int) file.length()];
+        RandomAccessFile    input = new RandomAccessFile(file, "r");
+        try {
+            input.readFully(manifest);
+        } finally {
+            input.close();
+        }
+        
+        CRC32   crc = new CRC32();
+        crc.update(manifest, 0, Math.max(manifest.length - 4, 0));
+        if (manifest.length < 4 || (int) crc.getValue() != ByteBuffer.wrap(manifest, manifest.length - 4, 4).getInt()) {
+            throw new IOException("Manifest '" + file + "' is corrupted: checksum mismatch.");
+        }
+        
+        try {
+            Unmarshaller    unmarshaller = new Unmarshaller(manifest);
+            if (unmarshaller.unmarshalInt() != MANIFEST_MAGIC || unmarshaller.unmarshalInt() != MANIFEST_VERSION) {
+                throw new IOException("Manifest '" + file + "' has an unsupported format.");
+            }
+            this.next_file_id.set(unmarshaller.unmarshalInt());
+            long    log_generation = unmarshaller.unmarshalLong();
+            
+            int     table_count = unmarshaller.unmarshalInt();
+            for (int i = 0; i < table_count; ++i) {
+                int id = unmarshaller.unmarshalInt();
+                int level = unmarshaller.unmarshalInt();
+                if (level < 0 || level >= LEVEL_COUNT) {
+                    throw new IOException("Manifest '" + file + "' is corrupted: invalid level " + level + ".");
+                }
+                levels.get(level).add(SSTable.open(this.getTableFile(id), id, level));
+                listed.add(id);
+            }
+            
+            return log_generation;
+            
+        } catch (ParseException ex) {
+            throw new IOException("Manifest '" + file + "' is corrupted: " + ex.getMessage());
+        }
+    }
+    
+    /**
+     * Replaces the manifest by the description of the given state. Must be called
+     * with the state lock held.
+     */
+    private void writeManifest(State next) throws IOException {
+        Marshaller  marshaller = new Marshaller();
+        int         table_count = 0;
+        
+        for (List<SSTable> level : next.levels) {
+            table_count += level.size();
+        }
+        marshaller.marshalInt(MANIFEST_MAGIC);
+        marshaller.marshalInt(MANIFEST_VERSION);
+        marshaller.marshalInt(this.next_file_id.get());
+        marshaller.marshalLong(next.getOldestGeneration());
+        marshaller.marshalInt(table_count);
+        for (List<SSTable> level : next.levels) {
+            for (SSTable table : level) {
+                marshaller.marshalInt(table.id);
+                marshaller.marshalInt(table.level);
+            }
+        }
+        
+        byte[]  manifest = marshaller.getBytes();
+        CRC32   crc = new CRC32();
+        crc.update(manifest);
+        marshaller.marshalInt((int) crc.getValue());
+        manifest = marshaller.getBytes();
+        
+        File                temp_file = new File(this.directory, this.name + ".manifest.tmp");
+        FileOutputStream    output = new FileOutputStream(temp_file);
+        try {
+            output.write(manifest);
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!temp_file.renameTo(this.getManifestFile())) {
+            throw new IOException("Unable to replace manifest '" + this.getManifestFile() + "'.");
+        }
+    }
+    
+    /**
+     * Returns the identifiers of the existing files with the given extension in
+     * ascending order.
+     */
+    private List<Integer> listFileIds(String extension) {
+        List<Integer>   ids = new ArrayList<Integer>();
+        String[]        file_names = this.directory.list();
+        String          prefix = this.name + ".";
+        
+        if (file_names != null) {
+            for (String file_name : file_names) {
+                if (file_name.startsWith(prefix) && file_name.endsWith(extension)) {
+                    try {
+                        ids.add(Integer.parseInt(
+                                file_name.substring(prefix.length(), file_name.length() - extension.length())));
+                    } catch (NumberFormatException ex) {
+                        // Not a file of this storage
+                    }
+                }
+            }
+        }
+        Collections.sort(ids);
+        
+        return ids;
+    }
+    
+    private List<Long> listLogGenerations() {
+        List<Long> generations = new ArrayList<Long>();
+        
+        for (int id : this.listFileIds(".wal")) {
+            generations.add((long) id);
+        }
+        
+        return generations;
+    }
+    
+    private static List<List<SSTable>> copyLevels(List<List<SSTable>> levels) {
+        List<List<SSTable>> copy = new ArrayList<List<SSTable>>(levels.size());
+        
+        for (List<SSTable> level : levels) {
+            copy.add(new ArrayList<SSTable>(level));
+        }
+        
+        return copy;
+    }
+    
+    private static boolean anyCompacting(List<SSTable> tables) {
+        for (SSTable table : tables) {
+            if (table.compacting) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    private static byte[] live(byte[] value) {
+        return (value != SSTable.TOMBSTONE) ? value : null;
+    }
+    
+    private static byte[] encode(String value) {
+        return (value != null) ? value.getBytes(UTF8) : null;
+    }
+    
+    private static String decode(byte[] value) {
+        return (value != null) ? new String(value, UTF8) : null;
+    }
+    
+    private static final Comparator<SSTable> SMALLEST_KEY_ORDER = new Comparator<SSTable>() {
+        @Override
+        public int compare(SSTable lhs, SSTable rhs) {
+            return lhs.smallest.compareTo(rhs.smallest);
+        }
+    };
+    
+    /**
+     * Order of the level 0 tables: tables with greater identifiers are flushed later.
+     */
+    private static final Comparator<SSTable> NEWEST_FIRST_ORDER = new Comparator<SSTable>() {
+        @Override
+        public int compare(SSTable lhs, SSTable rhs) {
+            return (lhs.id > rhs.id) ? -1 : ((lhs.id == rhs.id) ? 0 : 1);
+        }
+    };
+    
+    /**
+     * In-memory table of the latest modifications.
+     */
+    private static class Memtable {
+        final ConcurrentSkipListMap<SSTable.Key, byte[]>    map;
+        final AtomicLong                                    size;
+        final long                                          first_generation;
+        final long                                          generation;
+        
+        /**
+         * Main constructor.
+         * @param first_generation Oldest log generation holding modifications of the memtable
+         * @param generation Log generation receiving the modifications of the memtable
+         */
+        Memtable(long first_generation, long generation) {
+            this.map = new ConcurrentSkipListMap<SSTable.Key, byte[]>();
+            this.size = new AtomicLong(0);
+            this.first_generation = first_generation;
+            this.generation = generation;
+        }
+        
+        void put(SSTable.Key key, byte[] value) {
+            this.map.put(key, value);
+            this.size.addAndGet(2 * key.key.length() + value.length + SIZEOF_ENTRY_OVERHEAD);
+        }
+    }
+    
+    /**
+     * Immutable snapshot of the memtables and of the tables. Readers use the
+     * snapshot without locking; every change replaces it as a whole.
+     */
+    private static class State {
+        final Memtable              active;
+        final List<Memtable>        immutables; // From the newest to the oldest
+        final List<List<SSTable>>   levels;
+        
+        State(Memtable active, List<Memtable> immutables, List<List<SSTable>> levels) {
+            this.active = active;
+            this.immutables = immutables;
+            this.levels = levels;
+        }
+        
+        /**
+         * Looks the key up, from the newest data to the oldest.
+         * @return The value, TOMBSTONE if the key is deleted, or null if it is unknown
+         */
+        byte[] lookup(SSTable.Key key) {
+            byte[] value = this.lookupMemtables(key);
+            return (value != null) ? value : this.lookupTables(key);
+        }
+        
+        /**
+         * Looks the key up in the memtables only, which never reads the disk.
+         * @return The value, TOMBSTONE if the key is deleted, or null if the
+         *          memtables hold no entry for the key
+         */
+        byte[] lookupMemtables(SSTable.Key key) {
+            byte[] value = this.active.map.get(key);
+            if (value != null) {
+                return value;
+            }
+            for (Memtable memtable : this.immutables) {
+                if ((value = memtable.map.get(key)) != null) {
+                    return value;
+                }
+            }
+            
+            return null;
+        }
+        
+        /**
+         * Checks, using the bloom filters only, whether any table may hold an
+         * entry for the key.
+         */
+        boolean tablesMayHold(SSTable.Key key) {
+            for (SSTable table : this.levels.get(0)) {
+                if (table.mayHold(key)) {
+                    return true;
+                }
+            }
+            for (int level = 1; level < this.levels.size(); ++level) {
+                SSTable table = State.findTable(this.levels.get(level), key);
+                if (table != null && table.mayHold(key)) {
+                    return true;
+                }
+            }
+            
+            return false;
+        }
+        
+        /**
+         * Looks the key up in the tables only. The tables of a state never change,
+         * so the lookup needs no locks.
+         * @return The value, TOMBSTONE if the key is deleted, or null if it is unknown
+         */
+        byte[] lookupTables(SSTable.Key key) {
+            byte[] value;
+            
+            for (SSTable table : this.levels.get(0)) {
+                if ((value = table.get(key)) != null) {
+                    return value;
+                }
+            }
+            for (int level = 1; level < this.levels.size(); ++level) {
+                SSTable table = State.findTable(this.levels.get(level), key);
+                if (table != null && (value = table.get(key)) != null) {
+                    return value;
+                }
+            }
+            
+            return null;
+        }
+        
+        /**
+         * Returns the live entries with hashes in the range (after, upto], which
+         * are merged from the memtables and the tables while being iterated.
+         * @param after Exclusive lower bound, or null to start at the beginning of the ring
+         * @param upto Inclusive upper bound, or null to scan until the end of the ring
+         * @param following Entries returned after the range, or null
+         */
+        Iterator<SSTable.Entry> scan(HashValue after, HashValue upto, Iterator<SSTable.Entry> following) {
+            SSTable.Key                     from = new SSTable.Key((after != null) ? after : MIN_HASH, "");
+            List<Iterator<SSTable.Entry>>   sources = new ArrayList<Iterator<SSTable.Entry>>();
+            
+            sources.add(new MemtableIterator(this.active.map.tailMap(from).entrySet().iterator()));
+            for (Memtable memtable : this.immutables) {
+                sources.add(new MemtableIterator(memtable.map.tailMap(from).entrySet().iterator()));
+            }
+            for (List<SSTable> level : this.levels) {
+                for (SSTable table : level) {
+                    if (table.largest.compareTo(from) >= 0 &&
+                            (upto == null || table.smallest.hash.compareTo(upto) <= 0)) {
+                        sources.add(table.iterator(from));
+                    }
+                }
+            }
+            
+            return new RangeIterator(new MergingIterator(sources), after, upto, following);
+        }
+        
+        long getOldestGeneration() {
+            return this.immutables.isEmpty() ? this.active.first_generation :
+                    this.immutables.get(this.immutables.size() - 1).first_generation;
+        }
+        
+        /**
+         * Finds the table of a level covering the key; the tables of the level do
+         * not overlap and are sorted.
+         */
+        private static SSTable findTable(List<SSTable> level, SSTable.Key key) {
+            int low = 0;
+            int high = level.size() - 1;
+            
+            while (low <= high) {
+                int     middle = (low + high) >>> 1;
+                SSTable table = level.get(middle);
+                if (table.largest.compareTo(key) < 0) {
+                    low = middle + 1;
+                } else if (table.smallest.compareTo(key) > 0) {
+                    high = middle - 1;
+                } else {
+                    return table;
+                }
+            }
+            
+            return null;
+        }
+    }
+    
+    /**
+     * Tables merged by a compaction: tables of a level together with the
+     * overlapping tables of the next level.
+     */
+    private static class Compaction {
+        final List<SSTable> inputs; // From the newest to the oldest
+        final int           level;
+        final boolean       drop_tombstones;
+        
+        Compaction(List<SSTable> inputs, int level, boolean drop_tombstones) {
+            this.inputs = inputs;
+            this.level = level;
+            this.drop_tombstones = drop_tombstones;
+        }
+    }
+    
+    private static class MemtableIterator implements Iterator<SSTable.Entry> {
+        private final Iterator<Map.Entry<SSTable.Key, byte[]>> iterator;
+        
+        MemtableIterator(Iterator<Map.Entry<SSTable.Key, byte[]>> iterator) {
+            this.iterator = iterator;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            return this.iterator.hasNext();
+        }
+        
+        @Override
+        public SSTable.Entry next() {
+            Map.Entry<SSTable.Key, byte[]> entry = this.iterator.next();
+            return new SSTable.Entry(entry.getKey(), entry.getValue());
+        }
+        
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+    
+    /**
+     * Live entries of a merged sequence with hashes in the range (after, upto],
+     * optionally followed by the entries of another iterator.
+     */
+    private static class RangeIterator implements Iterator<SSTable.Entry> {
+        private final Iterator<SSTable.Entry>   merged;
+        private final HashValue                 after;
+        private final HashValue                 upto;
+        private final Iterator<SSTable.Entry>   following;
+        private SSTable.Entry                   next_entry;
+        private boolean                         exhausted;
+        
+        RangeIterator(Iterator<SSTable.Entry> merged, HashValue after, HashValue upto,
+                Iterator<SSTable.Entry> following) {
+            this.merged = merged;
+            this.after = after;
+            this.upto = upto;
+            this.following = following;
+            this.next_entry = null;
+            this.exhausted = false;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            while (this.next_entry == null && !this.exhausted) {
+                if (!this.merged.hasNext()) {
+                    this.exhausted = true;
+                    break;
+                }
+                
+                SSTable.Entry entry = this.merged.next();
+                if (this.after != null && entry.key.hash.equals(this.after)) {
+                    continue;
+                }
+                if (this.upto != null && entry.key.hash.compareTo(this.upto) > 0) {
+                    this.exhausted = true;
+                } else if (entry.value != SSTable.TOMBSTONE) {
+                    this.next_entry = entry;
+                }
+            }
+            
+            return this.next_entry != null || (this.following != null && this.following.hasNext());
+        }
+        
+        @Override
+        public SSTable.Entry next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (this.next_entry == null) {
+                return this.following.next();
+            }
+            
+            SSTable.Entry entry = this.next_entry;
+            this.next_entry = null;
+            return entry;
+        }
+        
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+    
+    /**
+     * Merges sorted sources into a single sorted sequence. Of the entries with
+     * equal keys, only the one from the first source, i.e. the newest one, is
+     * returned.
+     */
+    private static class MergingIterator implements Iterator<SSTable.Entry> {
+        private final PriorityQueue<Source> queue;
+        
+        MergingIterator(List<Iterator<SSTable.Entry>> sources) {
+            this.queue = new PriorityQueue<Source>(Math.max(sources.size(), 1));
+            for (int i = 0; i < sources.size(); ++i) {
+                Source source = new Source(sources.get(i), i);
+                if (source.advance()) {
+                    this.queue.add(source);
+                }
+            }
+        }
+        
+        @Override
+        public boolean hasNext() {
+            return !this.queue.isEmpty();
+        }
+        
+        @Override
+        public SSTable.Entry next() {
+            if (this.queue.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            
+            Source          newest = this.queue.poll();
+            SSTable.Entry   entry = newest.current;
+            if (newest.advance()) {
+                this.queue.add(newest);
+            }
+            
+            // Skip the older entries with the same key
+            while (!this.queue.isEmpty() && this.queue.peek().current.key.compareTo(entry.key) == 0) {
+                Source older = this.queue.poll();
+                if (older.advance()) {
+                    this.queue.add(older);
+                }
+            }
+            
+            return entry;
+        }
+        
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+        
+        private static class Source implements Comparable<Source> {
+            final Iterator<SSTable.Entry>   iterator;
+            final int                       priority;
+            SSTable.Entry                   current;
+            
+            Source(Iterator<SSTable.Entry> iterator, int priority) {
+                this.iterator = iterator;
+                this.priority = priority;
+                this.current = null;
+            }
+            
+            boolean advance() {
+                if (!this.iterator.hasNext()) {
+                    return false;
+                }
+                this.current = this.iterator.next();
+                return true;
+            }
+            
+            @Override
+            public int compareTo(Source rhs) {
+                int result = this.current.key.compareTo(rhs.current.key);
+                return (result != 0) ? result : (this.priority - rhs.priority);
+            }
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package server;
+
+import app_kvServer.KVServer;
+import common.messages.ControlMessage;
+import common.messages.ControlMessage.ControlType;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageRaw;
+import common.messages.Marshaller;
+import common.messages.NetworkMessage;
+import common.topology.ServerAddress;
+import common.topology.ServiceMetaData;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import logger.LogSetup;
+import org.apache.log4j.Logger;
+
+/**
+ * Protocol logic shared by all the server front ends. An instance serves a single
+ * client connection: it detects whether the connection carries client or control
+ * traffic and turns every received message into the corresponding reply.
+ * @author Danila Klimenko
+ */
+public class RequestProcessor {
+    private static final Logger logger = LogSetup.getLogger();
+    private enum Mode {UNINITIALIZED, KVCLIENT_CONNECTION, CONTROL_CONNECTION};
+    
+    private final KVServer      master;
+    private final String        client_description;
+    private Mode                mode;
+    private volatile boolean    shut_down_requested;
+    
+    /**
+     * Main constructor.
+     * @param master The server instance the requests are addressed to
+     * @param client_description Address of the remote side, used for logging
+     */
+    public RequestProcessor(KVServer master, String client_description) {
+        this.master = master;
+        this.client_description = client_description;
+        this.mode = Mode.UNINITIALIZED;
+        this.shut_down_requested = false;
+    }
+    
+    /**
+     * Indicates whether a SHUTDOWN control message has been received. The front end
+     * is expected to close the connection and shut the server down after sending
+     * the reply.
+     * @return True if the server has to be shut down
+     */
+    public boolean isShutDownRequested() {
+        return this.shut_down_requested;
+    }
+    
+    /**
+     * Processes a single message received from the client.
+     * @param netmsg Client's message
+     * @return Reply message for the client
+     * @throws IOException Thrown if the reply cannot be constructed
+     */
+    public NetworkMessage process(NetworkMessage netmsg) throws IOException {
+        if (this.modeFor(netmsg) == Mode.KVCLIENT_CONNECTION) {
+            return this.processKVMessage(netmsg);
+        } else {
+            return this.processControlMessage(netmsg);
+        }
+    }
+    
+    /**
+     * Checks whether the message is a client query tagged with a request id. Such
+     * queries may be processed concurrently with other queries of the connection
+     * and answered out of order.
+     * @param netmsg Client's message
+     * @return True if the message may be processed out of order
+     */
+    public boolean isTaggedQuery(NetworkMessage netmsg) {
+        return (this.modeFor(netmsg) == Mode.KVCLIENT_CONNECTION) && KVMessageRaw.isTagged(netmsg.getPayload());
+    }
+    
+    private synchronized Mode modeFor(NetworkMessage netmsg) {
+        if (this.mode == Mode.UNINITIALIZED) {
+            this.mode = (ControlMessage.isControlMessage(netmsg.getData())) ?
+                    Mode.CONTROL_CONNECTION : Mode.KVCLIENT_CONNECTION;
+        }
+        return this.mode;
+    }
+    
+    private NetworkMessage processKVMessage(NetworkMessage netmsg) throws IOException {
+        KVMessageRaw    kvmsg;
+        
+        try {
+            kvmsg = KVMessageRaw.unmarshal(netmsg.getPayload());
+            
+        } catch (ParseException e) {
+            StatusType  return_type = StatusType.PROTOCOL_ERROR;
+            String      return_value = "Warning! Received KVMessage is invalid: " + e.getMessage();
+            
+            logger.warn(return_value);
+            
+            return KVMessageRaw.toNetworkMessage(new KVMessageRaw(return_type, return_type.name(), return_value), false);
+        }
+        
+        return this.processKVMessage(kvmsg);
+    }
+    
+    /**
+     * Updates or requests data from the key-value data storage according to the
+     * client's query, and generates a reply-message. The reply carries the request
+     * id of the query and is marshaled in the format of the query. This method may
+     * be called concurrently.
+     * @param kvmsg Client's query
+     * @return Message representing the reply for the client
+     * @throws IOException Thrown if the reply exceeds the message size limit
+     */
+    public NetworkMessage processKVMessage(KVMessageRaw kvmsg) throws IOException {
+        StatusType      return_type;
+        String          return_value = null;
+        byte[]          return_data = null;
+        ServiceMetaData meta_data = null;
+        
+        StatusType  type = kvmsg.getStatus();
+        String      key = kvmsg.getKey();
+        byte[]      value = kvmsg.getValueBytes();
+        
+        if (type == StatusType.GET_BATCH || type == StatusType.PUT_BATCH) {
+            return this.processBatch(kvmsg);
+        }
+        
+        logger.info("Server '" + this.master.getAddressAsString() + "': Received a '" + kvmsg.getStatus().name() +
+                "' request from '" + this.client_description + "' with {key='" + kvmsg.getKey() +
+                "'; value=" + RequestProcessor.describeValue(value) + "}.");
+        
+        if (type != StatusType.PUT && type != StatusType.GET) {
+            return_type = StatusType.PROTOCOL_ERROR;
+            return_value = "Message type '" + type + "' is not a valid request.";
+            
+        } else if (this.master.isStopped()) {
+            return_type = StatusType.SERVER_STOPPED;
+            return_value = "Server is currently stopped. All read and write operations are rejected.";
+            
+        } else if (type == StatusType.PUT && this.master.isLocked()) {
+            return_type = StatusType.SERVER_WRITE_LOCK;
+            return_value = "Server is currently locked. All write operations are rejected.";
+            
+        } else if (!this.master.isResponsibleForKey(key)) {
+            return_type = StatusType.SERVER_NOT_RESPONSIBLE;
+            return_value = "Server is not responsible for the provided key. Forwarding metadata update.";
+            meta_data = this.master.getMetaData();
+            
+        } else if (type == StatusType.PUT) {
+            if (value != null) { // Performing put operation
+                try {
+                    byte[] prev_value = this.master.getDataStorage().putBytes(key, value);
+                    return_type = (prev_value == null) ?
+                                    StatusType.PUT_SUCCESS : StatusType.PUT_UPDATE;
+                    return_data = value; // Return the value form the client query
+                    
+                } catch (IllegalArgumentException e) {
+                    return_type = StatusType.PUT_ERROR;
+                    return_value = e.getMessage();
+                } catch (WriteLockedException e) { // The key is being handed over
+                    return_type = StatusType.SERVER_WRITE_LOCK;
+                    return_value = e.getMessage();
+                } catch (IllegalStateException e) { // The write-ahead log failed
+                    return_type = StatusType.PUT_ERROR;
+                    return_value = e.getMessage();
+                }
+                
+            } else { // Performing delete operation
+                try {
+                    return_data = this.master.getDataStorage().deleteBytes(key);
+                    if (return_data == null) {
+                        return_type = StatusType.DELETE_ERROR;
+                        return_value = "Requested key is not found or invalid.";
+                    } else {
+                        return_type = StatusType.DELETE_SUCCESS;
+                    }
+                } catch (WriteLockedException e) { // The key is being handed over
+                    return_type = StatusType.SERVER_WRITE_LOCK;
+                    return_value = e.getMessage();
+                } catch (IllegalStateException e) { // The write-ahead log failed
+                    return_type = StatusType.DELETE_ERROR;
+                    return_value = e.getMessage();
+                }
+            }
+            
+        } else {
+            try {
+                return_data = this.master.getDataStorage().getBytes(key);
+                if (return_data == null) {
+                    return_type = StatusType.GET_ERROR;
+                    return_value = "Requested key is not found or invalid.";
+                } else {
+                    return_type = StatusType.GET_SUCCESS;
+                }
+            } catch (IllegalStateException e) { // The storage engine failed to read the value
+                return_type = StatusType.GET_ERROR;
+                return_value = e.getMessage();
+            }
+        }
+        
+        logger.info("Server '" + this.master.getAddressAsString() + "': Replying with '" + return_type.name() +
+                "': {key='" + kvmsg.getKey() + "'; value=" + ((return_data != null) ?
+                RequestProcessor.describeValue(return_data) : "'" + return_value + "'") + "; metadata='" +
+                (meta_data == null ? "NO" : "YES") + "'}.");
+        
+        // Stored values are sent back exactly as they were received
+        KVMessageRaw reply = (return_data != null) ?
+                KVMessageRaw.withValueBytes(return_type, key, return_data, meta_data, kvmsg.getRequestId()) :
+                new KVMessageRaw(return_type, key, return_value, meta_data, kvmsg.getRequestId());
+        
+        return KVMessageRaw.toNetworkMessage(reply, kvmsg.isCompact());
+    }
+    
+    /**
+     * Processes a GET_BATCH or PUT_BATCH query. The entries the server is responsible
+     * for are executed by a single batch operation of the data storage. The reply
+     * carries a status for every entry in the order of the query. Entries that do
+     * not fit into the reply are returned unchanged, i.e. with their request status,
+     * and have to be sent again by the client.
+     * @param kvmsg Client's batch query
+     * @return Message representing the reply for the client
+     * @throws IOException Thrown if the reply cannot be constructed
+     */
+    private NetworkMessage processBatch(KVMessageRaw kvmsg) throws IOException {
+        StatusType          type = kvmsg.getStatus();
+        StatusType          entry_type = (type == StatusType.GET_BATCH) ? StatusType.GET : StatusType.PUT;
+        List<KVMessageRaw>  entries = kvmsg.getEntries();
+        
+        logger.info("Server '" + this.master.getAddressAsString() + "': Received a '" + type.name() +
+                "' request from '" + this.client_description + "' with " + entries.size() + " entries.");
+        
+        if (this.master.isStopped()) {
+            return this.batchFailure(kvmsg, StatusType.SERVER_STOPPED,
+                    "Server is currently stopped. All read and write operations are rejected.");
+        }
+        if (type == StatusType.PUT_BATCH && this.master.isLocked()) {
+            return this.batchFailure(kvmsg, StatusType.SERVER_WRITE_LOCK,
+                    "Server is currently locked. All write operations are rejected.");
+        }
+        
+        KVMessageRaw[]  results = new KVMessageRaw[entries.size()];
+        List<Integer>   positions = new ArrayList<Integer>();
+        List<String>    keys = new ArrayList<String>();
+        List<byte[]>    values = new ArrayList<byte[]>();
+        ServiceMetaData meta_data = null;
+        
+        for (int i = 0; i < results.length; ++i) {
+            KVMessageRaw    entry = entries.get(i);
+            String          key = entry.getKey();
+            
+            if (entry.getStatus() != entry_type) {
+                results[i] = new KVMessageRaw(StatusType.PROTOCOL_ERROR, key,
+                        "Entry type '" + entry.getStatus() + "' is not valid in '" + type + "'.");
+                
+            } else if (key == null) {
+                results[i] = new KVMessageRaw((type == StatusType.GET_BATCH) ? StatusType.GET_ERROR : StatusType.PUT_ERROR,
+                        key, "Key may not be empty.");
+                
+            } else if (!this.master.isResponsibleForKey(key)) {
+                results[i] = new KVMessageRaw(StatusType.SERVER_NOT_RESPONSIBLE, key, null);
+                meta_data = this.master.getMetaData();
+                
+            } else {
+                if (entry.getValueBytes() != null) {
+                    try {
+                        KVDataStorage.verifyPair(key, entry.getValueBytes());
+                    } catch (IllegalArgumentException e) {
+                        results[i] = new KVMessageRaw(StatusType.PUT_ERROR, key, e.getMessage());
+                        continue;
+                    }
+                }
+                positions.add(i);
+                keys.add(key);
+                values.add(entry.getValueBytes());
+            }
+        }
+        
+        if (type == StatusType.PUT_BATCH) {
+            byte[][] prev_values;
+            try {
+                prev_values = this.master.getDataStorage().putAllBytes(keys, values);
+            } catch (IllegalStateException e) { // The write-ahead log failed, or the keys are being handed over
+                StatusType error_type = (e instanceof WriteLockedException) ?
+                        StatusType.SERVER_WRITE_LOCK : StatusType.PUT_ERROR;
+                prev_values = new byte[0][];
+                for (int j = 0; j < keys.size(); ++j) {
+                    results[positions.get(j)] = new KVMessageRaw(error_type, keys.get(j), e.getMessage());
+                }
+            }
+            
+            for (int j = 0; j < prev_values.length; ++j) {
+                StatusType  result_type;
+                if (values.get(j) != null) {
+                    result_type = (prev_values[j] == null) ? StatusType.PUT_SUCCESS : StatusType.PUT_UPDATE;
+                } else {
+                    result_type = (prev_values[j] == null) ? StatusType.DELETE_ERROR : StatusType.DELETE_SUCCESS;
+                }
+                results[positions.get(j)] = new KVMessageRaw(result_type, keys.get(j), null);
+            }
+            
+        } else {
+            byte[][] found_values;
+            try {
+                found_values = this.master.getDataStorage().getAllBytes(keys);
+            } catch (IllegalStateException e) { // The storage engine failed to read the values
+                found_values = new byte[0][];
+                for (int j = 0; j < keys.size(); ++j) {
+                    results[positions.get(j)] = new KVMessageRaw(StatusType.GET_ERROR, keys.get(j), e.getMessage());
+                }
+            }
+            
+            for (int j = 0; j < found_values.length; ++j) {
+                results[positions.get(j)] = KVMessageRaw.withValueBytes(
+                        (found_values[j] != null) ? StatusType.GET_SUCCESS : StatusType.GET_ERROR, keys.get(j),
+                        found_values[j], null, KVMessageRaw.NO_REQUEST_ID);
+            }
+        }
+        
+        logger.info("Server '" + this.master.getAddressAsString() + "': Replying to '" + type.name() + "' with " +
+                results.length + " results; metadata='" + (meta_data == null ? "NO" : "YES") + "'.");
+        
+        // Return as many results as fit into a single message
+        Marshaller  marshaller = Marshaller.acquire();
+        int         limit = results.length;
+        while (true) {
+            List<KVMessageRaw>  reply_entries = new ArrayList<KVMessageRaw>(results.length);
+            for (int i = 0; i < results.length; ++i) {
+                reply_entries.add((i < limit) ? results[i] : entries.get(i));
+            }
+            
+            KVMessageRaw.marshal(new KVMessageRaw(StatusType.BATCH_REPLY, reply_entries, meta_data,
+                    kvmsg.getRequestId()), kvmsg.isCompact(), marshaller);
+            if (marshaller.size() <= NetworkMessage.MAX_MESSAGE_SIZE || limit <= 1) {
+                return new NetworkMessage(marshaller);
+            }
+            marshaller.reset();
+            limit /= 2;
+        }
+    }
+    
+    /**
+     * Values are logged by their size only: decoding them for the log would undo
+     * the benefit of passing them through as they are.
+     */
+    private static String describeValue(byte[] value) {
+        return (value != null) ? "<" + value.length + " bytes>" : "null";
+    }
+    
+    private NetworkMessage batchFailure(KVMessageRaw kvmsg, StatusType return_type, String return_value)
+            throws IOException {
+        logger.info("Server '" + this.master.getAddressAsString() + "': Replying to '" + kvmsg.getStatus().name() +
+                "' with '" + return_type.name() + "'.");
+        
+        return KVMessageRaw.toNetworkMessage(
+                new KVMessageRaw(return_type, null, return_value, null, kvmsg.getRequestId()), kvmsg.isCompact());
+    }
+    
+    private NetworkMessage processControlMessage(NetworkMessage netmsg) throws IOException {
+        ControlMessage  ctrlmsg;
+        
+        try {
+            ctrlmsg = ControlMessage.unmarshal(netmsg.getData());
+            
+        } catch (ParseException e) {
+            String description = "Warning! Received ControlMessage is invalid: " + e.getMessage();
+            logger.warn(description);
+            return new NetworkMessage(ControlMessage.marshal(new ControlMessage(ControlType.FAILURE, description)));
+        }
+        
+        ControlType type = ctrlmsg.getType();
+        
+        logger.info("Server '" + this.master.getAddressAsString() + "': Received a control message of type '" + type.name() +
+                "' from '" + this.client_description + "'.");
+        
+        try {
+            switch (type) {
+                case INIT:
+                    ServerAddress   server_address = null;
+                    try {
+                        server_address = new ServerAddress(ctrlmsg.getDescription());
+                    } catch (ParseException ex) {
+                        throw new ProtocolException("Bad server address in INIT message: " + ex.getMessage());
+                    }
+                    this.master.initialize(server_address, ctrlmsg.getMetaData());
+                    break;
+                
+                case START:
+                    this.master.start();
+                    break;
+                
+                case STOP:
+                    this.master.stop();
+                    break;
+                
+                case SHUTDOWN:
+                    this.shut_down_requested = true;
+                    break;
+                
+                case LOCK_WRITE:
+                    this.master.lockWrite();
+                    break;
+                
+                case UNLOCK_WRITE:
+                    this.master.unlockWrite();
+                    break;
+                
+                case UPDATE:
+                    this.master.updateMetaData(ctrlmsg.getMetaData());
+                    break;
+                
+                case MOVE_DATA:
+                    this.master.moveData(ctrlmsg.getDataTransferRequest());
+                    break;
+                
+                case DELETE_DATA:
+                    this.master.deleteData(ctrlmsg.getDataTransferRequest());
+                    break;
+                
+                case TRANSFER:
+                    this.master.acceptTransferredData(ctrlmsg.getKeyValuePacket());
+                    break;
+                
+                case TRANSFER_DELETE:
+                    this.master.acceptTransferredDeletes(ctrlmsg.getKeyValuePacket());
+                    break;
+                
+                default:
+                    throw new ProtocolException("Received a control message with invalid type: '" + type.name() + "'.");
+            }
+            
+            ctrlmsg = new ControlMessage(ControlType.SUCCESS);
+            
+            logger.info("Server '" + this.master.getAddressAsString() + "': Replying to a control message ('" + type.name() +
+                    "') with '" + ctrlmsg.getType().name() + "'.");
+            
+        } catch (ProtocolException ex) {
+            ctrlmsg = new ControlMessage(ControlType.FAILURE, ex.getMessage());
+            logger.error("Error processing control message: " + ex.getMessage());
+            
+        } catch (IllegalStateException ex) {
+            ctrlmsg = new ControlMessage(ControlType.FAILURE, ex.getMessage());
+            logger.error("Error processing control message: " + ex.getMessage());
+        }
+        
+        return new NetworkMessage(ControlMessage.marshal(ctrlmsg));
+    }
+}
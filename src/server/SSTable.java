@@ -0,0 +1,560 @@
+package server;
+
+import common.messages.Marshaller;
+import common.messages.Unmarshaller;
+import common.topology.HashValue;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+/**
+ * Immutable sorted table of an LsmStorage. Entries are sorted by the ring hash of
+ * their keys and then by the keys themselves, so that every hash range is stored
+ * contiguously. The file consists of checksummed data blocks followed by a meta
+ * section holding the block index, the largest key and a bloom filter of the
+ * keys, and a footer locating the meta section. The file is memory-mapped, while
+ * the index and the filter are kept on the heap.
+ * @author Danila Klimenko
+ */
+class SSTable {
+    /**
+     * Value of the deletion markers; compared by identity.
+     */
+    static final byte[]     TOMBSTONE = new byte[0];
+    
+    private static final Charset    UTF8 = Charset.forName("UTF-8");
+    private static final int        MAGIC = 0x4B56534C; // "KVSL"
+    private static final int        BLOCK_SIZE = 4096;
+    private static final int        SIZEOF_FOOTER = 20;
+    private static final int        BLOOM_BITS_PER_KEY = 10;
+    private static final int        BLOOM_HASHES = 7;
+    
+    final int                       id;
+    final int                       level;
+    final File                      file;
+    final Key                       smallest;
+    final Key                       largest;
+    final int                       entry_count;
+    final long                      size;
+    boolean                         compacting;
+    private final MappedByteBuffer  data;
+    private final Key[]             block_keys;
+    private final long[]            block_offsets;
+    private final int[]             block_lengths;
+    private final int[]             block_checksums;
+    private final long[]            bloom;
+    
+    private SSTable(int id, int level, File file, MappedByteBuffer data, int entry_count, Key[] block_keys,
+            long[] block_offsets, int[] block_lengths, int[] block_checksums, Key largest, long[] bloom) {
+        this.id = id;
+        this.level = level;
+        this.file = file;
+        this.data = data;
+        this.size = data.capacity();
+        this.entry_count = entry_count;
+        this.block_keys = block_keys;
+        this.block_offsets = block_offsets;
+        this.block_lengths = block_lengths;
+        this.block_checksums = block_checksums;
+        this.smallest = block_keys[0];
+        this.largest = largest;
+        this.bloom = bloom;
+        this.compacting = false;
+    }
+    
+    /**
+     * Opens a table and reads its meta section.
+     * @param file Table file
+     * @param id Identifier of the table
+     * @param level Level of the table
+     * @return The table
+     * @throws IOException Thrown if the file cannot be read or is corrupted
+     */
+    static SSTable open(File file, int id, int level) throws IOException {
+        RandomAccessFile    random_file = new RandomAccessFile(file, "r");
+        MappedByteBuffer    data;
+        try {
+            data = random_file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, random_file.length());
+        } finally {
+            random_file.close();
+        }
+        
+        int size = data.capacity();
+        if (size < SIZEOF_FOOTER || data.getInt(size - 4) != MAGIC) {
+            throw new IOException("Table '" + file + "' is corrupted: invalid footer.");
+        }
+        long    meta_offset = data.getLong(size - SIZEOF_FOOTER);
+        int     meta_length = data.getInt(size - SIZEOF_FOOTER + 8);
+        int     meta_checksum = data.getInt(size - SIZEOF_FOOTER + 12);
+        if (meta_offset < 0 || meta_length < 0 || meta_offset + meta_length > size - SIZEOF_FOOTER) {
+            throw new IOException("Table '" + file + "' is corrupted: invalid footer.");
+        }
+        
+        byte[]  meta = SSTable.readChecked(data, meta_offset, meta_length, meta_checksum);
+        if (meta == null) {
+            throw new IOException("Table '" + file + "' is corrupted: meta section checksum mismatch.");
+        }
+        
+        try {
+            Unmarshaller    unmarshaller = new Unmarshaller(meta);
+            int             entry_count = unmarshaller.unmarshalInt();
+            int             block_count = unmarshaller.unmarshalInt();
+            if (block_count <= 0 || block_count > meta_length) {
+                throw new IOException("Table '" + file + "' is corrupted: invalid block count.");
+            }
+            
+            Key[]   block_keys = new Key[block_count];
+            long[]  block_offsets = new long[block_count];
+            int[]   block_lengths = new int[block_count];
+            int[]   block_checksums = new int[block_count];
+            for (int i = 0; i < block_count; ++i) {
+                block_keys[i] = SSTable.unmarshalKey(unmarshaller);
+                block_offsets[i] = unmarshaller.unmarshalLong();
+                block_lengths[i] = unmarshaller.unmarshalInt();
+                block_checksums[i] = unmarshaller.unmarshalInt();
+            }
+            Key     largest = SSTable.unmarshalKey(unmarshaller);
+            
+            int     bloom_words = unmarshaller.unmarshalInt();
+            if (bloom_words <= 0 || bloom_words > meta_length / 8) {
+                throw new IOException("Table '" + file + "' is corrupted: invalid filter size.");
+            }
+            long[]  bloom = new long[bloom_words];
+            for (int i = 0; i < bloom_words; ++i) {
+                bloom[i] = unmarshaller.unmarshalLong();
+            }
+            
+            return new SSTable(id, level, file, data, entry_count, block_keys, block_offsets, block_lengths,
+                    block_checksums, largest, bloom);
+            
+        } catch (ParseException ex) {
+            throw new IOException("Table '" + file + "' is corrupted: " + ex.getMessage());
+        }
+    }
+    
+    /**
+     * Looks the key up.
+     * @param key The key
+     * @return The value, TOMBSTONE if the key is deleted, or null if the table
+     *          holds no entry for the key
+     * @throws IllegalStateException Thrown if the block holding the key is corrupted
+     */
+    byte[] get(Key key) {
+        if (!this.mayHold(key)) {
+            return null;
+        }
+        
+        int             block_index = this.findBlock(key);
+        int             length = this.block_lengths[block_index];
+        Unmarshaller    block = this.readBlock(block_index);
+        try {
+            while (block.position() < length) {
+                long    high = block.unmarshalLong();
+                long    low = block.unmarshalLong();
+                byte[]  key_bytes = block.unmarshalVarBytes();
+                byte[]  value = SSTable.unmarshalValue(block);
+                
+                if (high == key.hash.getHigh() && low == key.hash.getLow() &&
+                        key.key.equals(SSTable.decodeKey(key_bytes))) {
+                    return value;
+                }
+            }
+        } catch (ParseException ex) {
+            throw new IllegalStateException("Table '" + this.file + "' is corrupted: " + ex.getMessage());
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Checks, without reading the table, whether it may hold an entry for the
+     * key: the key lies within the table and passes the bloom filter.
+     */
+    boolean mayHold(Key key) {
+        return key.compareTo(this.smallest) >= 0 && key.compareTo(this.largest) <= 0 && this.mightContain(key.hash);
+    }
+    
+    boolean overlaps(Key begin, Key end) {
+        return this.largest.compareTo(begin) >= 0 && this.smallest.compareTo(end) <= 0;
+    }
+    
+    /**
+     * Returns an iterator over the entries starting at the given key, including
+     * the deletion markers.
+     * @param from The first key to return, or null to start at the beginning
+     */
+    Iterator<Entry> iterator(Key from) {
+        return new TableIterator(from);
+    }
+    
+    private boolean mightContain(HashValue hash) {
+        long    bits = 64L * this.bloom.length;
+        
+        for (int i = 0; i < BLOOM_HASHES; ++i) {
+            long bit = ((hash.getLow() + i * hash.getHigh()) & Long.MAX_VALUE) % bits;
+            if ((this.bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Returns the index of the last block starting at or before the key.
+     */
+    private int findBlock(Key key) {
+        int low = 0;
+        int high = this.block_keys.length - 1;
+        
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (this.block_keys[middle].compareTo(key) <= 0) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        
+        return low;
+    }
+    
+    private Unmarshaller readBlock(int block) {
+        byte[] bytes = SSTable.readChecked(this.data, this.block_offsets[block], this.block_lengths[block],
+                this.block_checksums[block]);
+        if (bytes == null) {
+            throw new IllegalStateException("Table '" + this.file + "' is corrupted: checksum mismatch in block " +
+                    block + ".");
+        }
+        
+        return new Unmarshaller(bytes);
+    }
+    
+    private static byte[] readChecked(MappedByteBuffer data, long offset, int length, int checksum) {
+        byte[]      bytes = new byte[length];
+        ByteBuffer  view = data.duplicate();
+        
+        view.position((int) offset);
+        view.get(bytes);
+        
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        
+        return ((int) crc.getValue() == checksum) ? bytes : null;
+    }
+    
+    private static Key unmarshalKey(Unmarshaller unmarshaller) throws ParseException {
+        HashValue   hash = new HashValue(unmarshaller.unmarshalLong(), unmarshaller.unmarshalLong());
+        
+        return new Key(hash, SSTable.decodeKey(unmarshaller.unmarshalVarBytes()));
+    }
+    
+    private static byte[] unmarshalValue(Unmarshaller unmarshaller) throws ParseException {
+        int     length = unmarshaller.unmarshalVarInt() - 1;
+        if (length < 0) {
+            return TOMBSTONE;
+        }
+        
+        byte[]  value = unmarshaller.unmarshalBytes(length);
+        return (value != null) ? value : new byte[0];
+    }
+    
+    private static String decodeKey(byte[] key_bytes) {
+        return (key_bytes != null) ? new String(key_bytes, UTF8) : "";
+    }
+    
+    /**
+     * Sorted iterator over the entries, decoding one block at a time.
+     */
+    private class TableIterator implements Iterator<Entry> {
+        private final List<Entry>   entries;
+        private int                 block;
+        private int                 position;
+        
+        TableIterator(Key from) {
+            this.entries = new ArrayList<Entry>();
+            this.block = (from != null) ? SSTable.this.findBlock(from) : 0;
+            this.position = 0;
+            
+            this.decodeBlock();
+            if (from != null) {
+                while (this.hasNext() && this.entries.get(this.position).key.compareTo(from) < 0) {
+                    this.advance();
+                }
+            }
+        }
+        
+        @Override
+        public boolean hasNext() {
+            return this.position < this.entries.size();
+        }
+        
+        @Override
+        public Entry next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            
+            Entry entry = this.entries.get(this.position);
+            this.advance();
+            
+            return entry;
+        }
+        
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+        
+        private void advance() {
+            if (++this.position == this.entries.size() && ++this.block < SSTable.this.block_keys.length) {
+                this.decodeBlock();
+            }
+        }
+        
+        private void decodeBlock() {
+            Unmarshaller    unmarshaller = SSTable.this.readBlock(this.block);
+            int             length = SSTable.this.block_lengths[this.block];
+            
+            this.entries.clear();
+            this.position = 0;
+            try {
+                while (unmarshaller.position() < length) {
+                    HashValue   hash = new HashValue(unmarshaller.unmarshalLong(), unmarshaller.unmarshalLong());
+                    String      key = SSTable.decodeKey(unmarshaller.unmarshalVarBytes());
+                    this.entries.add(new Entry(new Key(hash, key), SSTable.unmarshalValue(unmarshaller)));
+                }
+            } catch (ParseException ex) {
+                throw new IllegalStateException("Table '" + SSTable.this.file + "' is corrupted: " + ex.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Sort key of the entries: the ring hash of the key, then the key itself.
+     */
+    static final class Key implements Comparable<Key> {
+        final HashValue hash;
+        final String    key;
+        
+        Key(String key) {
+            this(HashValue.hashKey(key), key);
+        }
+        
+        Key(HashValue hash, String key) {
+            this.hash = hash;
+            this.key = key;
+        }
+        
+        @Override
+        public int compareTo(Key rhs) {
+            int result = this.hash.compareTo(rhs.hash);
+            return (result != 0) ? result : this.key.compareTo(rhs.key);
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            
+            Key other = (Key) obj;
+            return this.hash.equals(other.hash) && this.key.equals(other.key);
+        }
+        
+        @Override
+        public int hashCode() {
+            return this.hash.hashCode();
+        }
+    }
+    
+    static final class Entry {
+        final Key       key;
+        final byte[]    value;
+        
+        Entry(Key key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+    
+    /**
+     * Writes the entries of a table, which have to be added in sorted order.
+     */
+    static class Writer {
+        private final File                  file;
+        private final FileOutputStream      file_output;
+        private final OutputStream          output;
+        private final Marshaller            block;
+        private final Marshaller            index;
+        private final CRC32                 crc;
+        private long[]                      hashes;
+        private int                         entry_count;
+        private int                         block_count;
+        private long                        offset;
+        private Key                         block_key;
+        private Key                         last_key;
+        
+        Writer(File file) throws IOException {
+            this.file = file;
+            this.file_output = new FileOutputStream(file);
+            this.output = new BufferedOutputStream(this.file_output, 64 * 1024);
+            this.block = new Marshaller(2 * BLOCK_SIZE);
+            this.index = new Marshaller();
+            this.crc = new CRC32();
+            this.hashes = new long[256];
+            this.entry_count = 0;
+            this.block_count = 0;
+            this.offset = 0;
+            this.block_key = null;
+            this.last_key = null;
+        }
+        
+        /**
+         * Adds an entry.
+         * @param key The key; greater than the key of the previous entry
+         * @param value The value, or TOMBSTONE
+         */
+        void add(Key key, byte[] value) throws IOException {
+            if (this.block.size() == 0) {
+                this.block_key = key;
+            }
+            
+            this.block.marshalLong(key.hash.getHigh());
+            this.block.marshalLong(key.hash.getLow());
+            this.block.marshalVarBytes(key.key.getBytes(UTF8));
+            if (value == TOMBSTONE) {
+                this.block.marshalVarInt(0);
+            } else {
+                this.block.marshalVarInt(value.length + 1);
+                this.block.marshalBytes(value);
+            }
+            
+            if (2 * this.entry_count + 2 > this.hashes.length) {
+                long[] grown = new long[2 * this.hashes.length];
+                System.arraycopy(this.hashes, 0, grown, 0, this.hashes.length);
+                this.hashes = grown;
+            }
+            this.hashes[2 * this.entry_count] = key.hash.getHigh();
+            this.hashes[2 * this.entry_count + 1] = key.hash.getLow();
+            ++this.entry_count;
+            this.last_key = key;
+            
+            if (this.block.size() >= BLOCK_SIZE) {
+                this.flushBlock();
+            }
+        }
+        
+        boolean isEmpty() {
+            return this.entry_count == 0;
+        }
+        
+        /**
+         * Returns the number of bytes written so far.
+         */
+        long size() {
+            return this.offset + this.block.size();
+        }
+        
+        /**
+         * Completes the table, syncs it to the disk and opens it.
+         * @param id Identifier of the table
+         * @param level Level of the table
+         * @return The table
+         */
+        SSTable finish(int id, int level) throws IOException {
+            if (this.entry_count == 0) {
+                throw new IllegalStateException("Table is empty.");
+            }
+            this.flushBlock();
+            
+            Marshaller  meta = new Marshaller(this.index.size() + 64 + this.entry_count * BLOOM_BITS_PER_KEY / 8);
+            meta.marshalInt(this.entry_count);
+            meta.marshalInt(this.block_count);
+            meta.marshalBytes(this.index.getBytes());
+            meta.marshalLong(this.last_key.hash.getHigh());
+            meta.marshalLong(this.last_key.hash.getLow());
+            meta.marshalVarBytes(this.last_key.key.getBytes(UTF8));
+            
+            long[]  bloom = new long[(this.entry_count * BLOOM_BITS_PER_KEY + 63) / 64];
+            long    bits = 64L * bloom.length;
+            for (int e = 0; e < this.entry_count; ++e) {
+                long high = this.hashes[2 * e];
+                long low = this.hashes[2 * e + 1];
+                for (int i = 0; i < BLOOM_HASHES; ++i) {
+                    long bit = ((low + i * high) & Long.MAX_VALUE) % bits;
+                    bloom[(int) (bit >>> 6)] |= 1L << bit;
+                }
+            }
+            meta.marshalInt(bloom.length);
+            for (long word : bloom) {
+                meta.marshalLong(word);
+            }
+            
+            byte[]  meta_bytes = meta.getBytes();
+            this.crc.reset();
+            this.crc.update(meta_bytes);
+            this.output.write(meta_bytes);
+            
+            ByteBuffer  footer = ByteBuffer.allocate(SIZEOF_FOOTER);
+            footer.putLong(this.offset);
+            footer.putInt(meta_bytes.length);
+            footer.putInt((int) this.crc.getValue());
+            footer.putInt(MAGIC);
+            this.output.write(footer.array());
+            
+            this.output.flush();
+            this.file_output.getFD().sync();
+            this.output.close();
+            
+            return SSTable.open(this.file, id, level);
+        }
+        
+        /**
+         * Discards the incomplete table.
+         */
+        void abort() {
+            try {
+                this.output.close();
+            } catch (IOException ex) {
+                // The file is deleted anyway
+            }
+            this.file.delete();
+        }
+        
+        private void flushBlock() throws IOException {
+            if (this.block.size() == 0) {
+                return;
+            }
+            
+            byte[]  bytes = this.block.getBytes();
+            this.crc.reset();
+            this.crc.update(bytes);
+            this.output.write(bytes);
+            
+            this.index.marshalLong(this.block_key.hash.getHigh());
+            this.index.marshalLong(this.block_key.hash.getLow());
+            this.index.marshalVarBytes(this.block_key.key.getBytes(UTF8));
+            this.index.marshalLong(this.offset);
+            this.index.marshalInt(bytes.length);
+            this.index.marshalInt((int) this.crc.getValue());
+            
+            this.offset += bytes.length;
+            ++this.block_count;
+            this.block.reset();
+        }
+    }
+}
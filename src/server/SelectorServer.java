@@ -0,0 +1,581 @@
+package server;
+
+import app_kvServer.KVServer;
+import common.messages.KVMessageRaw;
+import common.messages.NetworkMessage;
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import logger.LogSetup;
+import org.apache.log4j.Logger;
+
+/**
+ * Event-loop server front end. Accepted connections are distributed among a small
+ * number of I/O threads, each multiplexing its non-blocking channels with a single
+ * selector. Complete messages are handed over to a bounded pool of worker threads
+ * for processing; once the pool and its queue are saturated, a connection stops
+ * reading until its message is accepted by the pool, so the I/O threads never
+ * block on the processing of a message themselves.
+ * Client queries tagged with a request id may be answered out of order.
+ * @author Danila Klimenko
+ */
+public class SelectorServer implements Runnable {
+    private static final Logger logger = LogSetup.getLogger();
+    private static final int    MAX_TAGGED_IN_FLIGHT = 64;
+    
+    private final KVServer              master;
+    private final ServerSocketChannel   server_channel;
+    private final IoLoop[]              io_loops;
+    private final ThreadPoolExecutor    workers;
+    private volatile boolean            online;
+    private int                         next_loop;
+    
+    /**
+     * Main constructor.
+     * @param master The server instance the requests are addressed to
+     * @param server_channel Bound server channel to accept connections from
+     * @param io_threads Number of I/O threads
+     * @param worker_threads Number of worker threads
+     * @param queue_size Maximal number of messages waiting for a worker thread
+     * @throws IOException Thrown if selectors cannot be opened
+     */
+    public SelectorServer(KVServer master, ServerSocketChannel server_channel, int io_threads,
+            int worker_threads, int queue_size) throws IOException {
+        if (io_threads < 1 || worker_threads < 1 || queue_size < 1) {
+            throw new IllegalArgumentException("SelectorServer(): thread and queue counts must be positive.");
+        }
+        
+        this.master = master;
+        this.server_channel = server_channel;
+        this.io_loops = new IoLoop[io_threads];
+        for (int i = 0; i < io_threads; ++i) {
+            this.io_loops[i] = new IoLoop();
+        }
+        this.workers = new ThreadPoolExecutor(worker_threads, worker_threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queue_size), new NamedThreadFactory("kv-worker")) {
+            @Override
+            protected void afterExecute(Runnable task, Throwable failure) {
+                // The queue has room for another message
+                for (IoLoop loop : SelectorServer.this.io_loops) {
+                    loop.resumeIfStalled();
+                }
+            }
+        };
+        this.online = true;
+        this.next_loop = 0;
+    }
+    
+    /**
+     * Override for run() method from Runnable interface. Starts the I/O threads and
+     * accepts new connections until the server is shut down.
+     */
+    @Override
+    public void run() {
+        for (int i = 0; i < this.io_loops.length; ++i) {
+            Thread thread = new Thread(this.io_loops[i], "kv-io-" + i);
+            thread.start();
+        }
+        
+        while (this.online) {
+            try {
+                SocketChannel channel = this.server_channel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                
+                IoLoop loop = this.io_loops[this.next_loop];
+                this.next_loop = (this.next_loop + 1) % this.io_loops.length;
+                loop.register(new Connection(loop, channel));
+                
+                logger.info("New connection from " + channel.socket().getInetAddress().getHostName() +
+                            " from port " + channel.socket().getPort() + ".");
+            } catch (IOException e) {
+                if (this.online) {
+                    logger.error("Error! Unable to establish connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Stops accepting connections, closes all the active ones and terminates the
+     * I/O and worker threads.
+     */
+    public void shutDown() {
+        this.online = false;
+        
+        try {
+            this.server_channel.close();
+        } catch (IOException e) {
+            logger.error("Error! Unable to close server socket: " + e.getMessage());
+        }
+        for (IoLoop loop : this.io_loops) {
+            loop.wakeUp();
+        }
+        this.workers.shutdownNow();
+    }
+    
+    /**
+     * A single I/O thread with its own selector.
+     */
+    private class IoLoop implements Runnable {
+        private final Selector          selector;
+        private final Queue<Runnable>   tasks;
+        private final Queue<Connection> stalled_connections;    // Waiting for room in the worker queue
+        private volatile boolean        stalled;
+        private final AtomicBoolean     resume_scheduled;
+        private boolean                 shut_down_master;
+        
+        IoLoop() throws IOException {
+            this.selector = Selector.open();
+            this.tasks = new ConcurrentLinkedQueue<Runnable>();
+            this.stalled_connections = new LinkedList<Connection>();
+            this.stalled = false;
+            this.resume_scheduled = new AtomicBoolean(false);
+            this.shut_down_master = false;
+        }
+        
+        /**
+         * Schedules a task to be run by the I/O thread.
+         */
+        void execute(Runnable task) {
+            this.tasks.add(task);
+            this.selector.wakeup();
+        }
+        
+        void wakeUp() {
+            this.selector.wakeup();
+        }
+        
+        /**
+         * Registers a connection whose message was rejected by the saturated pool.
+         * The submission is retried once right away, in case the pool was drained
+         * before the loop was marked as stalled.
+         */
+        void stall(Connection connection) {
+            this.stalled_connections.add(connection);
+            this.stalled = true;
+            this.resumeIfStalled();
+        }
+        
+        /**
+         * Schedules the stalled connections to retry their submissions; called by
+         * the worker threads whenever they finish a message.
+         */
+        void resumeIfStalled() {
+            if (this.stalled && this.resume_scheduled.compareAndSet(false, true)) {
+                this.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        IoLoop.this.resume_scheduled.set(false);
+                        IoLoop.this.resumeStalled();
+                    }
+                });
+            }
+        }
+        
+        private void resumeStalled() {
+            Connection connection;
+            
+            while ((connection = this.stalled_connections.peek()) != null) {
+                if (!connection.submitStalled()) {
+                    return;
+                }
+                this.stalled_connections.poll();
+                connection.resume();
+            }
+            this.stalled = false;
+        }
+        
+        void register(final Connection connection) {
+            this.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        connection.key = connection.channel.register(IoLoop.this.selector, SelectionKey.OP_READ,
+                                connection);
+                    } catch (IOException e) {
+                        logger.error("Error! Connection could not be established: " + e.getMessage());
+                        connection.close();
+                    }
+                }
+            });
+        }
+        
+        @Override
+        public void run() {
+            try {
+                while (SelectorServer.this.online) {
+                    this.selector.select();
+                    
+                    Runnable task;
+                    while ((task = this.tasks.poll()) != null) {
+                        task.run();
+                    }
+                    
+                    for (Iterator<SelectionKey> it = this.selector.selectedKeys().iterator(); it.hasNext(); ) {
+                        SelectionKey    key = it.next();
+                        Connection      connection = (Connection) key.attachment();
+                        it.remove();
+                        
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        try {
+                            if (key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException e) {
+                            logger.error("Error! Connection lost: " + e.getMessage());
+                            connection.close();
+                        }
+                    }
+                    
+                    if (this.shut_down_master) {
+                        SelectorServer.this.master.shutDown();
+                    }
+                }
+            } catch (IOException e) {
+                logger.error("Error! I/O thread failed: " + e.getMessage());
+            } catch (ClosedSelectorException e) {
+                // Server is being shut down
+            } finally {
+                for (SelectionKey key : this.selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                try {
+                    this.selector.close();
+                } catch (IOException e) {
+                    logger.error("Error! Unable to close selector: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    /**
+     * State of a single client connection. Untagged messages are processed strictly
+     * in order: the connection stops reading until the reply is sent. Queries tagged
+     * with a request id are dispatched to the workers as soon as they are received
+     * and answered in the order of completion, with two restrictions: queries for
+     * the same key are executed in the order of arrival, and at most
+     * MAX_TAGGED_IN_FLIGHT queries are processed at a time.
+     * Messages rejected by the saturated worker pool are kept, in order, until
+     * the pool accepts them; meanwhile the connection does not read.
+     */
+    private class Connection {
+        private final IoLoop                            loop;
+        private final SocketChannel                     channel;
+        private final RequestProcessor                  processor;
+        private final NetworkMessage.Decoder            decoder;
+        private final NetworkMessage.Writer             replies;
+        private final Map<String, Queue<KVMessageRaw>>  busy_keys;
+        private final Queue<Runnable>                   stalled_tasks;
+        private SelectionKey                            key;
+        private NetworkMessage                          untagged_request;
+        private boolean                                 untagged_busy;
+        private int                                     tagged_in_flight;
+        
+        Connection(IoLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            this.processor = new RequestProcessor(SelectorServer.this.master,
+                    channel.socket().getInetAddress() + ":" + channel.socket().getPort());
+            this.decoder = new NetworkMessage.Decoder();
+            this.replies = new NetworkMessage.Writer();
+            this.busy_keys = new HashMap<String, Queue<KVMessageRaw>>();
+            this.stalled_tasks = new LinkedList<Runnable>();
+            this.key = null;
+            this.untagged_request = null;
+            this.untagged_busy = false;
+            this.tagged_in_flight = 0;
+        }
+        
+        private boolean canRead() {
+            return !this.untagged_busy && (this.untagged_request == null) &&
+                    (this.tagged_in_flight < MAX_TAGGED_IN_FLIGHT) && this.stalled_tasks.isEmpty();
+        }
+        
+        private void updateInterest() {
+            if (this.key.isValid()) {
+                this.key.interestOps((this.canRead() ? SelectionKey.OP_READ : 0) |
+                        (this.replies.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+            }
+        }
+        
+        void onReadable() throws IOException {
+            NetworkMessage message;
+            
+            while (this.canRead() && (message = this.decoder.read(this.channel)) != null) {
+                this.receive(message);
+            }
+            this.updateInterest();
+        }
+        
+        /**
+         * Processes the messages the decoder has read ahead while the connection
+         * was not allowed to read.
+         */
+        private void receiveBuffered() throws IOException {
+            NetworkMessage message;
+            
+            while (this.canRead() && (message = this.decoder.poll()) != null) {
+                this.receive(message);
+            }
+        }
+        
+        private void receive(NetworkMessage message) {
+            if (this.processor.isTaggedQuery(message)) {
+                this.receiveTagged(message);
+            } else {
+                this.untagged_request = message;
+                this.dispatchUntagged();
+            }
+        }
+        
+        void onWritable() throws IOException {
+            if (this.replies.write(this.channel) && !this.untagged_busy && this.processor.isShutDownRequested()) {
+                this.close();
+                this.loop.shut_down_master = true;
+            } else {
+                this.updateInterest();
+            }
+        }
+        
+        private void receiveTagged(NetworkMessage message) {
+            KVMessageRaw kvmsg;
+            
+            try {
+                kvmsg = KVMessageRaw.unmarshal(message.getPayload());
+            } catch (ParseException e) {
+                // Let the processor generate the error reply
+                this.untagged_request = message;
+                this.dispatchUntagged();
+                return;
+            }
+            if (KVMessageRaw.isBatchType(kvmsg.getStatus())) {
+                // Batches touch many keys, so they are ordered like untagged messages
+                this.untagged_request = message;
+                this.dispatchUntagged();
+                return;
+            }
+            
+            ++this.tagged_in_flight;
+            
+            String  query_key = (kvmsg.getKey() != null) ? kvmsg.getKey() : "";
+            Queue<KVMessageRaw> waiting = this.busy_keys.get(query_key);
+            
+            if (waiting != null) {
+                waiting.add(kvmsg);
+            } else {
+                this.busy_keys.put(query_key, new LinkedList<KVMessageRaw>());
+                this.dispatchTagged(query_key, kvmsg);
+            }
+        }
+        
+        /**
+         * Dispatches the pending untagged message once all the tagged queries
+         * received before it are answered.
+         */
+        private void dispatchUntagged() {
+            if (this.untagged_request == null || this.tagged_in_flight > 0) {
+                return;
+            }
+            
+            final NetworkMessage message = this.untagged_request;
+            this.untagged_request = null;
+            this.untagged_busy = true;
+            
+            this.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Connection.this.complete(null, Connection.this.processor.process(message));
+                    } catch (IOException e) {
+                        Connection.this.fail(e);
+                    } catch (RuntimeException e) {
+                        Connection.this.fail(e);
+                    }
+                }
+            });
+        }
+        
+        private void dispatchTagged(final String query_key, final KVMessageRaw kvmsg) {
+            this.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Connection.this.complete(query_key, Connection.this.processor.processKVMessage(kvmsg));
+                    } catch (IOException e) {
+                        Connection.this.fail(e);
+                    } catch (RuntimeException e) {
+                        Connection.this.fail(e);
+                    }
+                }
+            });
+        }
+        
+        /**
+         * Hands a message over to the worker pool, or keeps it until the pool has
+         * room if it is saturated.
+         */
+        private void submit(Runnable task) {
+            if (this.stalled_tasks.isEmpty()) {
+                try {
+                    SelectorServer.this.workers.execute(task);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    this.stalled_tasks.add(task);
+                    this.loop.stall(this);
+                    return;
+                }
+            }
+            this.stalled_tasks.add(task);
+        }
+        
+        /**
+         * Retries the submission of the kept messages.
+         * @return False if the pool is still saturated
+         */
+        boolean submitStalled() {
+            if (!this.key.isValid()) {
+                this.stalled_tasks.clear();
+                return true;
+            }
+            
+            Runnable task;
+            while ((task = this.stalled_tasks.peek()) != null) {
+                try {
+                    SelectorServer.this.workers.execute(task);
+                } catch (RejectedExecutionException e) {
+                    return false;
+                }
+                this.stalled_tasks.poll();
+            }
+            
+            return true;
+        }
+        
+        /**
+         * Resumes reading once all the kept messages are accepted by the pool.
+         */
+        void resume() {
+            if (!this.key.isValid()) {
+                return;
+            }
+            try {
+                this.receiveBuffered();
+            } catch (IOException e) {
+                logger.error("Error! Connection lost: " + e.getMessage());
+                this.close();
+                return;
+            }
+            this.updateInterest();
+        }
+        
+        /**
+         * Passes the reply from a worker thread back to the I/O thread.
+         * @param query_key Key of the answered tagged query, or null for an untagged message
+         * @param reply Reply ready to be sent
+         */
+        private void complete(final String query_key, final NetworkMessage reply) {
+            this.loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!Connection.this.key.isValid()) {
+                        reply.release();
+                        return;
+                    }
+                    Connection.this.replies.add(reply);
+                    
+                    if (query_key == null) {
+                        Connection.this.untagged_busy = false;
+                    } else {
+                        --Connection.this.tagged_in_flight;
+                        
+                        Queue<KVMessageRaw> waiting = Connection.this.busy_keys.get(query_key);
+                        if (waiting.isEmpty()) {
+                            Connection.this.busy_keys.remove(query_key);
+                        } else {
+                            Connection.this.dispatchTagged(query_key, waiting.poll());
+                        }
+                        Connection.this.dispatchUntagged();
+                    }
+                    try {
+                        Connection.this.receiveBuffered();
+                    } catch (IOException e) {
+                        logger.error("Error! Connection lost: " + e.getMessage());
+                        Connection.this.close();
+                        return;
+                    }
+                    Connection.this.updateInterest();
+                }
+            });
+        }
+        
+        /**
+         * Closes the connection after a message could not be processed, so that
+         * the client does not wait for a reply that never comes.
+         */
+        private void fail(Exception e) {
+            if (e instanceof RuntimeException) {
+                logger.error("Error! Unable to process message: " + e, e);
+            } else {
+                logger.error("Error! Unable to process message: " + e.getMessage());
+            }
+            this.loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Connection.this.close();
+                }
+            });
+        }
+        
+        void close() {
+            if (this.key != null) {
+                this.key.cancel();
+            }
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                logger.error("Error! Unable to tear down connection: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Thread factory giving the pool threads recognizable names.
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String        prefix;
+        private final AtomicInteger counter;
+        
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+            this.counter = new AtomicInteger(0);
+        }
+        
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, this.prefix + "-" + this.counter.getAndIncrement());
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package server;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Off-heap memory for values. Memory is reserved in slabs of direct buffers,
+ * every slab carved into slots of a single size class; the size classes grow by
+ * a factor of 1.25, which bounds the space wasted per value. Freed slots are
+ * kept in per-class free lists and reused by the next allocation of the class.
+ * Slabs are never returned to the system.
+ * A value is addressed by a handle holding its slab and offset; the slot stores
+ * the length of the value followed by its bytes. Reading a slot that is freed
+ * concurrently is not detected: callers serialize frees of a handle with its
+ * reads, as KVDataStorage does with its segment locks.
+ * @author Danila Klimenko
+ */
+class SlabArena {
+    private static final int    SLAB_SIZE = 1024 * 1024;
+    private static final int    MIN_SLOT_SIZE = 32;
+    private static final double SLOT_GROWTH_FACTOR = 1.25;
+    private static final int    SIZEOF_LENGTH = 4;
+    
+    private final int[]             slot_sizes;
+    private final SizeClass[]       classes;
+    private final long              max_slabs;
+    private volatile ByteBuffer[]   slabs;
+    private int                     slab_count;
+    
+    /**
+     * Main constructor.
+     * @param max_bytes Maximum amount of memory reserved for the slabs
+     * @param max_value_length Length of the largest value to be stored
+     */
+    SlabArena(long max_bytes, int max_value_length) {
+        if (max_bytes < SLAB_SIZE) {
+            throw new IllegalArgumentException("Off-heap memory must hold at least one slab: " + max_bytes + ".");
+        }
+        
+        int count = 0;
+        for (long size = MIN_SLOT_SIZE; ; size = SlabArena.nextSlotSize(size)) {
+            ++count;
+            if (size >= max_value_length + SIZEOF_LENGTH) {
+                break;
+            }
+        }
+        
+        this.slot_sizes = new int[count];
+        this.classes = new SizeClass[count];
+        int size = MIN_SLOT_SIZE;
+        for (int i = 0; i < count; ++i, size = (int) SlabArena.nextSlotSize(size)) {
+            this.slot_sizes[i] = Math.min(size, max_value_length + SIZEOF_LENGTH);
+            this.classes[i] = new SizeClass(this.slot_sizes[i]);
+        }
+        
+        this.max_slabs = max_bytes / SLAB_SIZE;
+        this.slabs = new ByteBuffer[16];
+        this.slab_count = 0;
+    }
+    
+    /**
+     * Copies the value into a free slot.
+     * @return Handle of the slot
+     * @throws IllegalStateException Thrown if the memory limit is reached
+     */
+    long allocate(byte[] value) throws IllegalStateException {
+        if (value.length + SIZEOF_LENGTH > this.slot_sizes[this.slot_sizes.length - 1]) {
+            throw new IllegalArgumentException("Value of " + value.length + " bytes exceeds the largest slot.");
+        }
+        
+        SizeClass   size_class = this.classes[this.classIndexFor(value.length + SIZEOF_LENGTH)];
+        long        handle = size_class.allocate();
+        
+        ByteBuffer  slot = this.slotBuffer(handle);
+        slot.putInt(value.length);
+        slot.put(value);
+        
+        return handle;
+    }
+    
+    /**
+     * Copies the value out of a slot.
+     */
+    byte[] read(long handle) {
+        ByteBuffer  slot = this.slotBuffer(handle);
+        byte[]      value = new byte[slot.getInt()];
+        
+        slot.get(value);
+        
+        return value;
+    }
+    
+    /**
+     * Writes the length and the bytes of the value stored in a slot, copied
+     * through the given buffer instead of a new array.
+     */
+    void writeTo(long handle, DataOutput output, byte[] buffer) throws IOException {
+        ByteBuffer  slot = this.slotBuffer(handle);
+        int         remaining = slot.getInt();
+        
+        output.writeInt(remaining);
+        while (remaining > 0) {
+            int length = Math.min(remaining, buffer.length);
+            slot.get(buffer, 0, length);
+            output.write(buffer, 0, length);
+            remaining -= length;
+        }
+    }
+    
+    /**
+     * Returns the slot to the free list of its class.
+     */
+    void free(long handle) {
+        int length = this.slotBuffer(handle).getInt();
+        this.classes[this.classIndexFor(length + SIZEOF_LENGTH)].free(handle);
+    }
+    
+    /**
+     * @return The amount of memory reserved for the slabs
+     */
+    synchronized long getReservedBytes() {
+        return (long) this.slab_count * SLAB_SIZE;
+    }
+    
+    private static long nextSlotSize(long size) {
+        return ((long) (size * SLOT_GROWTH_FACTOR) + 7) & ~7L;
+    }
+    
+    private int classIndexFor(int slot_size) {
+        int low = 0;
+        int high = this.slot_sizes.length - 1;
+        
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (this.slot_sizes[middle] < slot_size) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        
+        return low;
+    }
+    
+    private ByteBuffer slotBuffer(long handle) {
+        ByteBuffer slot = this.slabs[(int) (handle >>> 32)].duplicate();
+        slot.position((int) handle);
+        return slot;
+    }
+    
+    /**
+     * Reserves a new slab.
+     * @return Index of the slab
+     * @throws IllegalStateException Thrown if the memory limit is reached
+     */
+    private synchronized int addSlab() throws IllegalStateException {
+        if (this.slab_count >= this.max_slabs) {
+            throw new IllegalStateException("Off-heap memory of " + this.getReservedBytes() + " bytes is exhausted.");
+        }
+        
+        ByteBuffer[] slabs = this.slabs;
+        if (this.slab_count == slabs.length) {
+            ByteBuffer[] grown = new ByteBuffer[2 * slabs.length];
+            System.arraycopy(slabs, 0, grown, 0, slabs.length);
+            slabs = grown;
+        }
+        slabs[this.slab_count] = ByteBuffer.allocateDirect(SLAB_SIZE);
+        this.slabs = slabs; // Publishes the slab to the readers
+        
+        return this.slab_count++;
+    }
+    
+    /**
+     * Slots of a single size: the free list and the unused rest of the last slab.
+     */
+    private class SizeClass {
+        private final int   slot_size;
+        private long[]      free_slots;
+        private int         free_count;
+        private int         current_slab;
+        private int         next_offset;
+        
+        SizeClass(int slot_size) {
+            this.slot_size = slot_size;
+            this.free_slots = new long[16];
+            this.free_count = 0;
+            this.current_slab = -1;
+            this.next_offset = SLAB_SIZE;
+        }
+        
+        synchronized long allocate() throws IllegalStateException {
+            if (this.free_count > 0) {
+                return this.free_slots[--this.free_count];
+            }
+            if (this.next_offset + this.slot_size > SLAB_SIZE) {
+                this.current_slab = SlabArena.this.addSlab();
+                this.next_offset = 0;
+            }
+            
+            long handle = ((long) this.current_slab << 32) | this.next_offset;
+            this.next_offset += this.slot_size;
+            
+            return handle;
+        }
+        
+        synchronized void free(long handle) {
+            if (this.free_count == this.free_slots.length) {
+                long[] grown = new long[2 * this.free_slots.length];
+                System.arraycopy(this.free_slots, 0, grown, 0, this.free_count);
+                this.free_slots = grown;
+            }
+            this.free_slots[this.free_count++] = handle;
+        }
+    }
+}
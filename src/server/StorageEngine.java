@@ -0,0 +1,116 @@
+package server;
+
+import common.topology.HashValue;
+import java.util.List;
+
+/**
+ * Interface of the key-value storage engines used by the server. Values are
+ * opaque byte arrays; the String-based methods store the UTF-8 representation
+ * of the values. Engines reporting failures of their persistent state throw
+ * IllegalStateException from the data access methods.
+ * @author Danila Klimenko
+ */
+public interface StorageEngine {
+    /**
+     * Method implementing the 'put' command. Engines keeping the values on disk
+     * may return an empty value instead of reading the previous one, so callers
+     * should only rely on whether the result is null.
+     * @param key The key
+     * @param value The value to be associated with the key
+     * @return The previous value associated with the given key, or null
+     * @throws IllegalArgumentException Thrown if key or value are illegal
+     */
+    String put(String key, String value) throws IllegalArgumentException;
+    
+    byte[] putBytes(String key, byte[] value) throws IllegalArgumentException;
+    
+    /**
+     * Method implementing the 'get' command.
+     * @param key The key
+     * @return The value associated with the given key, or null
+     */
+    String get(String key);
+    
+    byte[] getBytes(String key);
+    
+    /**
+     * Method implementing the 'delete' command.
+     * @param key The key
+     * @return The value previously associated with the given key, or null
+     */
+    String delete(String key);
+    
+    byte[] deleteBytes(String key);
+    
+    /**
+     * Looks up a batch of keys.
+     * @param keys The keys
+     * @return Values in the order of the keys; null for the unknown keys
+     */
+    String[] getAll(List<String> keys);
+    
+    byte[][] getAllBytes(List<String> keys);
+    
+    /**
+     * Performs a batch of puts and deletes; a null value deletes the key. As with
+     * put(), the previous values may be replaced by empty values.
+     * @param keys The keys
+     * @param values The values, in the order of the keys
+     * @return Previous values in the order of the keys
+     * @throws IllegalArgumentException Thrown if a key or value is illegal; no
+     *          modification is performed in this case
+     */
+    String[] putAll(List<String> keys, List<String> values) throws IllegalArgumentException;
+    
+    byte[][] putAllBytes(List<String> keys, List<byte[]> values) throws IllegalArgumentException;
+    
+    /**
+     * Returns the dump of all the contents of the key-value storage.
+     * @return A string containing all stored key-value data
+     */
+    String dump();
+    
+    /**
+     * Calls the visitor for every key-value pair with the key hashed into the
+     * given range. The visited pairs need not form a consistent snapshot of the
+     * range: engines release their locks while the visitor runs, so that a slow
+     * visitor does not block the writers. The visitor may not access the storage.
+     * @param begin Exclusive beginning of the hash range
+     * @param end Inclusive end of the hash range
+     * @param visitor Visitor of the pairs
+     */
+    void visitHashRange(HashValue begin, HashValue end, EntryVisitor visitor);
+    
+    /**
+     * Collects all the key-value pairs with keys hashed into the given range.
+     * @param begin Exclusive beginning of the hash range
+     * @param end Inclusive end of the hash range
+     * @return Packet with the matching key-value pairs
+     */
+    KeyValuePacket getPacketForHashRange(HashValue begin, HashValue end);
+    
+    /**
+     * Stores all the key-value pairs of the packet.
+     * @param packet Packet with the key-value pairs
+     */
+    void putAllFromKeyValuePacket(KeyValuePacket packet);
+    
+    /**
+     * Removes all the key-value pairs with keys hashed into the given range.
+     * @param begin Exclusive beginning of the hash range
+     * @param end Inclusive end of the hash range
+     */
+    void deleteHashRange(HashValue begin, HashValue end);
+    
+    /**
+     * Releases the resources of the engine. The storage may not be used afterwards.
+     */
+    void close();
+    
+    /**
+     * Visitor of the key-value pairs of a storage.
+     */
+    interface EntryVisitor {
+        void visit(String key, byte[] value);
+    }
+}
@@ -0,0 +1,455 @@
+package server;
+
+import common.messages.Marshaller;
+import common.messages.Unmarshaller;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import logger.LogSetup;
+import org.apache.log4j.Logger;
+
+/**
+ * Persistent state of a KVDataStorage kept in a data directory: the latest
+ * snapshot of the storage and the write-ahead log of the modifications made
+ * since. The log is split into numbered generations. Taking a snapshot starts a
+ * new generation; once the snapshot is written, the older generations are
+ * deleted. Recovery loads the snapshot and replays the generations following it.
+ * A snapshot holds one partition per storage segment, each with its own
+ * checksum, followed by a directory of the partitions. On recovery the file is
+ * memory-mapped and the partitions are loaded in parallel.
+ * @author Danila Klimenko
+ */
+public class StoragePersistence {
+    private static final Logger logger = LogSetup.getLogger();
+    
+    private static final Charset    UTF8 = Charset.forName("UTF-8");
+    private static final int        SNAPSHOT_MAGIC = 0x4B565353; // "KVSS"
+    private static final int        SNAPSHOT_VERSION = 1;
+    private static final int        SIZEOF_FOOTER = 12;
+    private static final int        WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int        LOAD_BATCH_SIZE = 4096;
+    
+    private final File      directory;
+    private final String    name;
+    private final int       sync_interval;
+    private final int       snapshot_interval;
+    private final Object    timer;
+    private KVDataStorage   storage;
+    private WriteAheadLog   log;
+    private long            generation;
+    private Thread          snapshot_thread;
+    private boolean         closed;
+    
+    /**
+     * Main constructor.
+     * @param directory Data directory
+     * @param name Common prefix of the file names
+     * @param sync_interval Sync interval of the write-ahead log (see WriteAheadLog)
+     * @param snapshot_interval Interval between snapshots in seconds, or 0 to take
+     *          snapshots only on request
+     */
+    public StoragePersistence(File directory, String name, int sync_interval, int snapshot_interval) {
+        if (snapshot_interval < 0) {
+            throw new IllegalArgumentException("Illegal snapshot interval: " + snapshot_interval + ".");
+        }
+        
+        this.directory = directory;
+        this.name = name;
+        this.sync_interval = sync_interval;
+        this.snapshot_interval = snapshot_interval;
+        this.timer = new Object();
+        this.storage = null;
+        this.log = null;
+        this.generation = 0;
+        this.snapshot_thread = null;
+        this.closed = false;
+    }
+    
+    /**
+     * Restores the contents of the storage from the data directory and attaches
+     * the write-ahead log to it. Must be called once, before the storage is used.
+     * @param storage An empty storage
+     * @throws IOException Thrown if the persistent state cannot be read
+     */
+    public synchronized void recover(KVDataStorage storage) throws IOException {
+        if (this.storage != null) {
+            throw new IllegalStateException("Persistent state is already recovered.");
+        }
+        
+        File    snapshot_file = this.getSnapshotFile();
+        long    first_generation = 0;
+        if (snapshot_file.exists()) {
+            first_generation = StoragePersistence.loadSnapshot(snapshot_file, storage);
+        }
+        
+        // Replay the complete generations; the last one is continued
+        List<Long>  generations = this.listLogGenerations();
+        this.generation = first_generation;
+        for (long log_generation : generations) {
+            if (log_generation < first_generation) {
+                this.deleteLog(log_generation);
+            } else {
+                if (log_generation != generations.get(generations.size() - 1)) {
+                    WriteAheadLog   complete_log = new WriteAheadLog(this.getLogFile(log_generation), 0);
+                    complete_log.replay(storage);
+                    complete_log.close();
+                }
+                this.generation = log_generation;
+            }
+        }
+        
+        this.log = new WriteAheadLog(this.getLogFile(this.generation), this.sync_interval);
+        try {
+            storage.attachLog(this.log);
+        } catch (IOException ex) {
+            this.log.close();
+            throw ex;
+        }
+        this.storage = storage;
+        
+        if (this.snapshot_interval > 0) {
+            this.startSnapshotThread();
+        }
+    }
+    
+    /**
+     * Writes a snapshot of the storage and deletes the log generations it
+     * supersedes. The log is continued in a new generation first, and the
+     * segments are then written one chunk at a time: writers are blocked only
+     * while a chunk of their segment is written. Modifications made during the
+     * snapshot may be missing from it, but they are logged in the new generation,
+     * which is replayed on top of the snapshot.
+     * @throws IOException Thrown if the snapshot cannot be written
+     */
+    public synchronized void snapshot() throws IOException {
+        if (this.storage == null || this.closed) {
+            throw new IllegalStateException("Persistent state is not available.");
+        }
+        
+        long    next_generation = this.generation + 1;
+        long    start_time = System.currentTimeMillis();
+        this.storage.rotateLog(this.getLogFile(next_generation));
+        this.generation = next_generation;
+        
+        File    temp_file = new File(this.directory, this.name + ".snapshot.tmp");
+        int     count = StoragePersistence.writeSnapshot(temp_file, this.storage, next_generation);
+        if (!temp_file.renameTo(this.getSnapshotFile())) {
+            throw new IOException("Unable to replace snapshot '" + this.getSnapshotFile() + "'.");
+        }
+        
+        for (long log_generation : this.listLogGenerations()) {
+            if (log_generation < next_generation) {
+                this.deleteLog(log_generation);
+            }
+        }
+        
+        logger.info("Wrote a snapshot of " + count + " key-value pairs to '" + this.getSnapshotFile() + "' in " +
+                (System.currentTimeMillis() - start_time) + " ms.");
+    }
+    
+    /**
+     * Stops taking snapshots and closes the write-ahead log.
+     */
+    public void close() {
+        synchronized (this.timer) {
+            this.closed = true;
+            this.timer.notifyAll();
+        }
+        if (this.snapshot_thread != null) {
+            try {
+                this.snapshot_thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        synchronized (this) {
+            if (this.log != null) {
+                this.log.close();
+            }
+        }
+    }
+    
+    public File getSnapshotFile() {
+        return new File(this.directory, this.name + ".snapshot");
+    }
+    
+    private File getLogFile(long log_generation) {
+        return new File(this.directory, this.name + "." + log_generation + ".wal");
+    }
+    
+    /**
+     * Returns the generations of the existing log files in ascending order.
+     */
+    private List<Long> listLogGenerations() {
+        List<Long>  generations = new ArrayList<Long>();
+        String[]    file_names = this.directory.list();
+        String      prefix = this.name + ".";
+        
+        if (file_names != null) {
+            for (String file_name : file_names) {
+                if (file_name.startsWith(prefix) && file_name.endsWith(".wal")) {
+                    try {
+                        generations.add(Long.parseLong(
+                                file_name.substring(prefix.length(), file_name.length() - ".wal".length())));
+                    } catch (NumberFormatException ex) {
+                        // Not a log file of this storage
+                    }
+                }
+            }
+        }
+        Collections.sort(generations);
+        
+        return generations;
+    }
+    
+    private void deleteLog(long log_generation) {
+        File    file = this.getLogFile(log_generation);
+        
+        if (!file.delete()) {
+            logger.warn("Warning! Unable to delete obsolete write-ahead log '" + file + "'.");
+        }
+    }
+    
+    private void startSnapshotThread() {
+        this.snapshot_thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    synchronized (StoragePersistence.this.timer) {
+                        long    deadline = System.currentTimeMillis() + 1000L * StoragePersistence.this.snapshot_interval;
+                        long    remaining;
+                        while (!StoragePersistence.this.closed &&
+                                (remaining = deadline - System.currentTimeMillis()) > 0) {
+                            try {
+                                StoragePersistence.this.timer.wait(remaining);
+                            } catch (InterruptedException ex) {
+                                return;
+                            }
+                        }
+                        if (StoragePersistence.this.closed) {
+                            return;
+                        }
+                    }
+                    try {
+                        StoragePersistence.this.snapshot();
+                    } catch (IOException ex) {
+                        logger.error("Error! Unable to write snapshot: " + ex.getMessage());
+                    } catch (IllegalStateException ex) {
+                        logger.error("Error! Unable to write snapshot: " + ex.getMessage());
+                    }
+                }
+            }
+        }, "kv-snapshot");
+        this.snapshot_thread.setDaemon(true);
+        this.snapshot_thread.start();
+    }
+    
+    /**
+     * Writes the segments of the storage as the partitions of a snapshot and
+     * syncs the file.
+     * @return Number of written key-value pairs
+     */
+    private static int writeSnapshot(File file, KVDataStorage storage, long log_generation) throws IOException {
+        FileOutputStream    file_output = new FileOutputStream(file);
+        CRC32               crc = new CRC32();
+        DataOutputStream    output = new DataOutputStream(new BufferedOutputStream(
+                                    new CheckedOutputStream(file_output, crc), WRITE_BUFFER_SIZE));
+        Marshaller          directory = new Marshaller();
+        long                offset = 0;
+        int                 count = 0;
+        
+        try {
+            directory.marshalInt(SNAPSHOT_MAGIC);
+            directory.marshalInt(SNAPSHOT_VERSION);
+            directory.marshalLong(log_generation);
+            directory.marshalInt(storage.getSegmentCount());
+            
+            for (int i = 0; i < storage.getSegmentCount(); ++i) {
+                output.flush();
+                crc.reset();
+                int     pair_count = storage.writeSegment(i, output);
+                output.flush();
+                long    length = file_output.getChannel().position() - offset;
+                
+                directory.marshalLong(offset);
+                directory.marshalLong(length);
+                directory.marshalInt(pair_count);
+                directory.marshalInt((int) crc.getValue());
+                offset += length;
+                count += pair_count;
+            }
+            
+            byte[] directory_data = directory.getBytes();
+            crc.reset();
+            crc.update(directory_data);
+            output.write(directory_data);
+            output.writeInt((int) crc.getValue());
+            output.writeLong(offset);
+            output.writeInt(SNAPSHOT_MAGIC);
+            output.flush();
+            file_output.getFD().sync();
+            
+        } finally {
+            output.close();
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Loads the snapshot into the storage, one partition per thread.
+     * @return Generation of the write-ahead log following the snapshot
+     */
+    private static long loadSnapshot(final File file, final KVDataStorage storage) throws IOException {
+        long                start_time = System.currentTimeMillis();
+        final FileChannel   channel = new RandomAccessFile(file, "r").getChannel();
+        ExecutorService     loaders = null;
+        
+        try {
+            long        size = channel.size();
+            if (size < SIZEOF_FOOTER) {
+                throw new IOException("Snapshot '" + file + "' is truncated.");
+            }
+            
+            ByteBuffer  footer = ByteBuffer.allocate(SIZEOF_FOOTER);
+            WriteAheadLog.readFully(channel, footer, size - SIZEOF_FOOTER);
+            footer.flip();
+            long        directory_offset = footer.getLong();
+            if (footer.getInt() != SNAPSHOT_MAGIC || directory_offset < 0 ||
+                    directory_offset > size - SIZEOF_FOOTER - 4) {
+                throw new IOException("Snapshot '" + file + "' is corrupted: invalid footer.");
+            }
+            
+            ByteBuffer  directory_data = ByteBuffer.allocate((int) (size - SIZEOF_FOOTER - directory_offset));
+            WriteAheadLog.readFully(channel, directory_data, directory_offset);
+            CRC32       crc = new CRC32();
+            crc.update(directory_data.array(), 0, directory_data.capacity() - 4);
+            if ((int) crc.getValue() != directory_data.getInt(directory_data.capacity() - 4)) {
+                throw new IOException("Snapshot '" + file + "' is corrupted: directory checksum mismatch.");
+            }
+            
+            Unmarshaller    directory = new Unmarshaller(directory_data.array());
+            long            log_generation;
+            List<Callable<Integer>> partitions = new ArrayList<Callable<Integer>>();
+            try {
+                if (directory.unmarshalInt() != SNAPSHOT_MAGIC || directory.unmarshalInt() != SNAPSHOT_VERSION) {
+                    throw new IOException("Snapshot '" + file + "' has an unsupported format.");
+                }
+                log_generation = directory.unmarshalLong();
+                
+                int partition_count = directory.unmarshalInt();
+                for (int i = 0; i < partition_count; ++i) {
+                    final long  offset = directory.unmarshalLong();
+                    final long  length = directory.unmarshalLong();
+                    final int   count = directory.unmarshalInt();
+                    final int   checksum = directory.unmarshalInt();
+                    if (offset < 0 || length < 0 || offset + length > directory_offset || length > Integer.MAX_VALUE) {
+                        throw new IOException("Snapshot '" + file + "' is corrupted: invalid partition " + i + ".");
+                    }
+                    
+                    partitions.add(new Callable<Integer>() {
+                        @Override
+                        public Integer call() throws IOException {
+                            return StoragePersistence.loadPartition(channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                                    length), count, checksum, storage);
+                        }
+                    });
+                }
+            } catch (ParseException ex) {
+                throw new IOException("Snapshot '" + file + "' is corrupted: " + ex.getMessage());
+            }
+            
+            int thread_count = Math.max(1, Math.min(partitions.size(), Runtime.getRuntime().availableProcessors()));
+            int total_count = 0;
+            loaders = Executors.newFixedThreadPool(thread_count);
+            try {
+                for (Future<Integer> result : loaders.invokeAll(partitions)) {
+                    total_count += result.get();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading snapshot '" + file + "'.");
+            } catch (ExecutionException ex) {
+                throw new IOException("Unable to load snapshot '" + file + "': " + ex.getCause().getMessage());
+            }
+            
+            logger.info("Loaded " + total_count + " key-value pairs from '" + file + "' in " +
+                    (System.currentTimeMillis() - start_time) + " ms using " + thread_count + " threads.");
+            
+            return log_generation;
+            
+        } finally {
+            if (loaders != null) {
+                loaders.shutdown();
+            }
+            channel.close();
+        }
+    }
+    
+    private static int loadPartition(MappedByteBuffer data, int count, int checksum, KVDataStorage storage)
+            throws IOException {
+        CRC32   crc = new CRC32();
+        byte[]  chunk = new byte[WRITE_BUFFER_SIZE];
+        
+        ByteBuffer  view = data.duplicate();
+        while (view.hasRemaining()) {
+            int length = Math.min(chunk.length, view.remaining());
+            view.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Partition checksum mismatch.");
+        }
+        
+        List<String>    keys = new ArrayList<String>(Math.min(count, LOAD_BATCH_SIZE));
+        List<byte[]>    values = new ArrayList<byte[]>(Math.min(count, LOAD_BATCH_SIZE));
+        for (int i = 0; i < count; ++i) {
+            byte[]  key = StoragePersistence.readBytes(data);
+            byte[]  value = StoragePersistence.readBytes(data);
+            
+            keys.add(new String(key, UTF8));
+            values.add(value);
+            if (keys.size() == LOAD_BATCH_SIZE || i == count - 1) {
+                storage.putAllBytes(keys, values);
+                keys.clear();
+                values.clear();
+            }
+        }
+        
+        return count;
+    }
+    
+    private static byte[] readBytes(ByteBuffer data) throws IOException {
+        if (data.remaining() < 4) {
+            throw new IOException("Partition is truncated.");
+        }
+        int length = data.getInt();
+        if (length < 0 || length > data.remaining()) {
+            throw new IOException("Partition is truncated.");
+        }
+        
+        byte[]  bytes = new byte[length];
+        data.get(bytes);
+        
+        return bytes;
+    }
+}
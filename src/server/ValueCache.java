@@ -0,0 +1,520 @@
+package server;
+
+import common.topology.HashValue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded cache of values, bounded by the number of entries and by the
+ * number of bytes held. The cache is split into independently locked segments,
+ * every segment evicting its entries by the configured policy once it exceeds
+ * its share of the limits.
+ * @author Danila Klimenko
+ */
+class ValueCache {
+    private static final int SIZEOF_ENTRY_OVERHEAD = 64;
+    
+    private final Segment[]     segments;
+    private final AtomicLong    hits;
+    private final AtomicLong    misses;
+    
+    /**
+     * Main constructor.
+     * @param policy Eviction policy
+     * @param max_entries Maximum number of entries, or 0 for no limit
+     * @param max_bytes Maximum number of bytes held by the entries, or 0 for no limit
+     * @param segment_count Number of segments
+     */
+    ValueCache(CachedStorage.EvictionPolicy policy, long max_entries, long max_bytes, int segment_count) {
+        this.segments = new Segment[segment_count];
+        for (int i = 0; i < segment_count; ++i) {
+            this.segments[i] = new Segment(policy, (max_entries + segment_count - 1) / segment_count,
+                    (max_bytes + segment_count - 1) / segment_count);
+        }
+        this.hits = new AtomicLong(0);
+        this.misses = new AtomicLong(0);
+    }
+    
+    /**
+     * @return The cached value, or null if the key is not cached
+     */
+    byte[] get(String key) {
+        byte[] value = this.segmentFor(key).get(key);
+        
+        if (value != null) {
+            this.hits.incrementAndGet();
+        } else {
+            this.misses.incrementAndGet();
+        }
+        
+        return value;
+    }
+    
+    /**
+     * Caches the value, evicting other entries if needed.
+     * @param value The value, or null to remove the key from the cache
+     */
+    void put(String key, byte[] value) {
+        if (value != null) {
+            this.segmentFor(key).put(key, value);
+        } else {
+            this.segmentFor(key).remove(key);
+        }
+    }
+    
+    void remove(String key) {
+        this.segmentFor(key).remove(key);
+    }
+    
+    /**
+     * Removes all the entries with keys hashed into the given range.
+     * @param begin Exclusive beginning of the hash range
+     * @param end Inclusive end of the hash range
+     */
+    void removeHashRange(HashValue begin, HashValue end) {
+        for (Segment segment : this.segments) {
+            segment.removeHashRange(begin, end);
+        }
+    }
+    
+    long getHitCount() {
+        return this.hits.get();
+    }
+    
+    long getMissCount() {
+        return this.misses.get();
+    }
+    
+    /**
+     * @return Number of bytes accounted for an entry with the given key and value
+     *          lengths
+     */
+    static long weightOf(int key_length, int value_length) {
+        return 2L * key_length + value_length + SIZEOF_ENTRY_OVERHEAD;
+    }
+    
+    private Segment segmentFor(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return this.segments[(hash & 0x7FFFFFFF) % this.segments.length];
+    }
+    
+    private static class Segment {
+        private final Map<String, Node>     map;
+        private final Policy                policy;
+        private final long                  max_entries;
+        private final long                  max_bytes;
+        private long                        bytes;
+        
+        Segment(CachedStorage.EvictionPolicy policy, long max_entries, long max_bytes) {
+            this.map = new HashMap<String, Node>();
+            switch (policy) {
+                case LFU:
+                    this.policy = new LfuPolicy();
+                    break;
+                case FIFO:
+                    this.policy = new FifoPolicy();
+                    break;
+                case ARC:
+                    this.policy = new ArcPolicy();
+                    break;
+                default:
+                    this.policy = new LruPolicy();
+                    break;
+            }
+            this.max_entries = max_entries;
+            this.max_bytes = max_bytes;
+            this.bytes = 0;
+        }
+        
+        synchronized byte[] get(String key) {
+            Node node = this.map.get(key);
+            
+            if (node == null) {
+                return null;
+            }
+            this.policy.accessed(node);
+            
+            return node.value;
+        }
+        
+        synchronized void put(String key, byte[] value) {
+            long    weight = ValueCache.weightOf(key.length(), value.length);
+            Node    node = this.map.get(key);
+            
+            if (this.max_bytes > 0 && weight > this.max_bytes) {
+                if (node != null) {
+                    this.unlink(node);
+                }
+                return;
+            }
+            
+            if (node != null) {
+                this.bytes += weight - node.weight;
+                node.value = value;
+                node.weight = weight;
+                this.policy.accessed(node);
+                this.evict(0, 0);
+                return;
+            }
+            
+            this.policy.inserting(key);
+            this.evict(1, weight);
+            node = new Node(key, value, weight);
+            this.map.put(key, node);
+            this.bytes += weight;
+            this.policy.inserted(node);
+        }
+        
+        synchronized void remove(String key) {
+            Node node = this.map.get(key);
+            
+            if (node != null) {
+                this.unlink(node);
+            }
+        }
+        
+        synchronized void removeHashRange(HashValue begin, HashValue end) {
+            List<Node> removed = new ArrayList<Node>();
+            
+            for (Node node : this.map.values()) {
+                if (node.hash == null) {
+                    node.hash = HashValue.hashKey(node.key);
+                }
+                if (node.hash.isInRange(begin, end)) {
+                    removed.add(node);
+                }
+            }
+            for (Node node : removed) {
+                this.unlink(node);
+            }
+        }
+        
+        /**
+         * Evicts entries until the given amount of entries and bytes fits into
+         * the limits.
+         */
+        private void evict(int entries, long weight) {
+            while (!this.map.isEmpty() &&
+                    ((this.max_entries > 0 && this.map.size() + entries > this.max_entries) ||
+                    (this.max_bytes > 0 && this.bytes + weight > this.max_bytes))) {
+                Node victim = this.policy.victim();
+                this.map.remove(victim.key);
+                this.bytes -= victim.weight;
+            }
+        }
+        
+        private void unlink(Node node) {
+            this.map.remove(node.key);
+            this.bytes -= node.weight;
+            this.policy.removed(node);
+        }
+    }
+    
+    /**
+     * Cache entry; also used by the policies as a list element.
+     */
+    private static class Node {
+        final String    key;
+        byte[]          value;
+        long            weight;
+        HashValue       hash; // Computed on the first range removal
+        int             frequency;
+        NodeList        list;
+        Node            prev;
+        Node            next;
+        
+        Node(String key, byte[] value, long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.hash = null;
+            this.frequency = 0;
+            this.list = null;
+        }
+    }
+    
+    /**
+     * Doubly linked list of nodes, from the most recently added to the least
+     * recently added one.
+     */
+    private static class NodeList {
+        private final Node  head;
+        private int         size;
+        
+        NodeList() {
+            this.head = new Node(null, null, 0);
+            this.head.prev = this.head;
+            this.head.next = this.head;
+            this.size = 0;
+        }
+        
+        void addFirst(Node node) {
+            node.list = this;
+            node.prev = this.head;
+            node.next = this.head.next;
+            this.head.next.prev = node;
+            this.head.next = node;
+            ++this.size;
+        }
+        
+        void remove(Node node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            node.list = null;
+            --this.size;
+        }
+        
+        Node removeLast() {
+            Node node = this.head.prev;
+            this.remove(node);
+            return node;
+        }
+        
+        int size() {
+            return this.size;
+        }
+        
+        boolean isEmpty() {
+            return this.size == 0;
+        }
+    }
+    
+    /**
+     * Ordering of the entries of a segment for eviction. The policies are called
+     * with the lock of the segment held.
+     */
+    private interface Policy {
+        /**
+         * Called before the entries are evicted to make room for a new key.
+         */
+        void inserting(String key);
+        
+        void inserted(Node node);
+        
+        void accessed(Node node);
+        
+        /**
+         * Called for the entries removed explicitly, i.e. not evicted.
+         */
+        void removed(Node node);
+        
+        /**
+         * Chooses and forgets the entry to be evicted; the segment is not empty.
+         */
+        Node victim();
+    }
+    
+    private static class LruPolicy implements Policy {
+        private final NodeList list = new NodeList();
+        
+        @Override
+        public void inserting(String key) {
+        }
+        
+        @Override
+        public void inserted(Node node) {
+            this.list.addFirst(node);
+        }
+        
+        @Override
+        public void accessed(Node node) {
+            this.list.remove(node);
+            this.list.addFirst(node);
+        }
+        
+        @Override
+        public void removed(Node node) {
+            this.list.remove(node);
+        }
+        
+        @Override
+        public Node victim() {
+            return this.list.removeLast();
+        }
+    }
+    
+    private static class FifoPolicy implements Policy {
+        private final NodeList list = new NodeList();
+        
+        @Override
+        public void inserting(String key) {
+        }
+        
+        @Override
+        public void inserted(Node node) {
+            this.list.addFirst(node);
+        }
+        
+        @Override
+        public void accessed(Node node) {
+        }
+        
+        @Override
+        public void removed(Node node) {
+            this.list.remove(node);
+        }
+        
+        @Override
+        public Node victim() {
+            return this.list.removeLast();
+        }
+    }
+    
+    /**
+     * Evicts the least frequently accessed entry; of the entries with equal
+     * frequencies, the least recently accessed one.
+     */
+    private static class LfuPolicy implements Policy {
+        private final TreeMap<Integer, NodeList> lists = new TreeMap<Integer, NodeList>();
+        
+        @Override
+        public void inserting(String key) {
+        }
+        
+        @Override
+        public void inserted(Node node) {
+            node.frequency = 1;
+            this.listFor(1).addFirst(node);
+        }
+        
+        @Override
+        public void accessed(Node node) {
+            this.removed(node);
+            if (node.frequency < Integer.MAX_VALUE) {
+                ++node.frequency;
+            }
+            this.listFor(node.frequency).addFirst(node);
+        }
+        
+        @Override
+        public void removed(Node node) {
+            NodeList list = node.list;
+            list.remove(node);
+            if (list.isEmpty()) {
+                this.lists.remove(node.frequency);
+            }
+        }
+        
+        @Override
+        public Node victim() {
+            Map.Entry<Integer, NodeList>    least = this.lists.firstEntry();
+            Node                            node = least.getValue().removeLast();
+            if (least.getValue().isEmpty()) {
+                this.lists.remove(least.getKey());
+            }
+            return node;
+        }
+        
+        private NodeList listFor(int frequency) {
+            NodeList list = this.lists.get(frequency);
+            if (list == null) {
+                list = new NodeList();
+                this.lists.put(frequency, list);
+            }
+            return list;
+        }
+    }
+    
+    /**
+     * Adaptive replacement cache (ARC). Entries seen once are kept apart from the
+     * entries seen repeatedly, so a scan over many keys only displaces other keys
+     * seen once. The keys of recently evicted entries are remembered in two ghost
+     * lists; hits on the ghosts shift the target size of the two parts towards the
+     * one that would have kept the key.
+     */
+    private static class ArcPolicy implements Policy {
+        private final NodeList          recent = new NodeList();     // T1: seen once
+        private final NodeList          frequent = new NodeList();   // T2: seen repeatedly
+        private final NodeList          recent_ghosts = new NodeList();     // B1
+        private final NodeList          frequent_ghosts = new NodeList();   // B2
+        private final Map<String, Node> ghosts = new HashMap<String, Node>();
+        private int                     target = 0; // Target size of T1
+        private boolean                 admit_frequent = false;
+        
+        @Override
+        public void inserting(String key) {
+            Node ghost = this.ghosts.remove(key);
+            
+            this.admit_frequent = (ghost != null);
+            if (ghost == null) {
+                return;
+            }
+            
+            int capacity = this.recent.size() + this.frequent.size();
+            if (ghost.list == this.recent_ghosts) {
+                int delta = Math.max(this.frequent_ghosts.size() / this.recent_ghosts.size(), 1);
+                this.target = Math.min(this.target + delta, capacity);
+            } else {
+                int delta = Math.max(this.recent_ghosts.size() / this.frequent_ghosts.size(), 1);
+                this.target = Math.max(this.target - delta, 0);
+            }
+            ghost.list.remove(ghost);
+        }
+        
+        @Override
+        public void inserted(Node node) {
+            if (this.admit_frequent) {
+                this.frequent.addFirst(node);
+            } else {
+                this.recent.addFirst(node);
+            }
+            this.trimGhosts();
+        }
+        
+        @Override
+        public void accessed(Node node) {
+            node.list.remove(node);
+            this.frequent.addFirst(node);
+        }
+        
+        @Override
+        public void removed(Node node) {
+            node.list.remove(node);
+        }
+        
+        @Override
+        public Node victim() {
+            Node victim;
+            
+            if (!this.recent.isEmpty() && (this.recent.size() > this.target || this.frequent.isEmpty())) {
+                victim = this.recent.removeLast();
+                this.remember(victim, this.recent_ghosts);
+            } else {
+                victim = this.frequent.removeLast();
+                this.remember(victim, this.frequent_ghosts);
+            }
+            
+            return victim;
+        }
+        
+        private void remember(Node victim, NodeList ghost_list) {
+            Node ghost = new Node(victim.key, null, 0);
+            
+            ghost_list.addFirst(ghost);
+            this.ghosts.put(ghost.key, ghost);
+        }
+        
+        /**
+         * Keeps |T1| + |B1| and |T1| + |T2| + |B1| + |B2| within the capacity and
+         * twice the capacity respectively.
+         */
+        private void trimGhosts() {
+            int capacity = this.recent.size() + this.frequent.size();
+            
+            while (!this.recent_ghosts.isEmpty() && this.recent.size() + this.recent_ghosts.size() > capacity) {
+                this.ghosts.remove(this.recent_ghosts.removeLast().key);
+            }
+            while (!this.frequent_ghosts.isEmpty() &&
+                    capacity + this.recent_ghosts.size() + this.frequent_ghosts.size() > 2 * capacity) {
+                this.ghosts.remove(this.frequent_ghosts.removeLast().key);
+            }
+        }
+    }
+}
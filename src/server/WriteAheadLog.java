@@ -0,0 +1,468 @@
+package server;
+
+import common.messages.Marshaller;
+import common.messages.Unmarshaller;
+import common.topology.HashValue;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import logger.LogSetup;
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only log of the modifications of a KVDataStorage, replayed on startup.
+ * Every record is written as its length, its CRC32 checksum and its contents, so
+ * that a record torn by a crash is detected and discarded on replay.
+ * Writers append their records to a shared buffer and then wait for it to reach
+ * the disk. The first waiting writer writes and syncs the whole buffer on behalf
+ * of all the writers that have appended in the meantime (group commit). With a
+ * positive sync interval, a background thread syncs the buffer periodically
+ * instead, and writers do not wait at all: a crash loses at most the last
+ * interval of modifications.
+ * @author Danila Klimenko
+ */
+public class WriteAheadLog {
+    private static final Logger logger = LogSetup.getLogger();
+    
+    private static final byte   RECORD_PUT = 1;
+    private static final byte   RECORD_DELETE = 2;
+    private static final byte   RECORD_PUT_ALL = 3;
+    private static final byte   RECORD_DELETE_RANGE = 4;
+    
+    private static final int    NULL_VALUE_LENGTH = -1;
+    
+    private static final int    SIZEOF_HEADER = 8;
+    private static final int    MAX_RECORD_SIZE = 64 * 1024 * 1024;
+    
+    private final int                   sync_interval;
+    private final Object                lock;
+    private final ByteArrayOutputStream pending;
+    private long                        appended_seq;
+    private long                        durable_seq;
+    private boolean                     syncing;
+    private boolean                     closed;
+    private IOException                 failure;
+    private Thread                      sync_thread;
+    private File                        file;
+    private FileChannel                 channel;
+    
+    /**
+     * Main constructor. Opens or creates the log file; the existing records are
+     * only read by replay().
+     * @param file Log file
+     * @param sync_interval Interval between background syncs in milliseconds, or 0
+     *          to make every writer wait until its records are synced
+     * @throws IOException Thrown if the file cannot be opened
+     */
+    public WriteAheadLog(File file, int sync_interval) throws IOException {
+        if (sync_interval < 0) {
+            throw new IllegalArgumentException("Illegal sync interval: " + sync_interval + ".");
+        }
+        
+        this.file = file;
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        this.sync_interval = sync_interval;
+        this.lock = new Object();
+        this.pending = new ByteArrayOutputStream();
+        this.appended_seq = 0;
+        this.durable_seq = 0;
+        this.syncing = false;
+        this.closed = false;
+        this.failure = null;
+        this.sync_thread = null;
+    }
+    
+    public File getFile() {
+        return this.file;
+    }
+    
+    /**
+     * Applies all the records of the log to the storage, discards a torn record at
+     * the end of the log and starts accepting new records. Must be called once,
+     * before the log is attached to the storage.
+     * @param storage Storage to apply the records to
+     * @return Number of replayed records
+     * @throws IOException Thrown if the log cannot be read
+     */
+    public int replay(StorageEngine storage) throws IOException {
+        ByteBuffer  header = ByteBuffer.allocate(SIZEOF_HEADER);
+        long        position = 0;
+        long        size = this.channel.size();
+        int         count = 0;
+        
+        while (position + SIZEOF_HEADER <= size) {
+            header.clear();
+            WriteAheadLog.readFully(this.channel, header, position);
+            header.flip();
+            
+            int     length = header.getInt();
+            int     checksum = header.getInt();
+            if (length <= 0 || length > MAX_RECORD_SIZE || position + SIZEOF_HEADER + length > size) {
+                break;
+            }
+            
+            ByteBuffer  record = ByteBuffer.allocate(length);
+            WriteAheadLog.readFully(this.channel, record, position + SIZEOF_HEADER);
+            
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            
+            try {
+                WriteAheadLog.apply(storage, record.array());
+            } catch (ParseException ex) {
+                throw new IOException("Write-ahead log '" + this.file + "' is corrupted at offset " + position +
+                        ": " + ex.getMessage());
+            }
+            position += SIZEOF_HEADER + length;
+            ++count;
+        }
+        
+        if (position < size) {
+            logger.warn("Warning! Discarding " + (size - position) + " bytes of an incomplete record at the end of '" +
+                    this.file + "'.");
+            this.channel.truncate(position);
+        }
+        this.channel.position(position);
+        
+        if (this.sync_interval > 0) {
+            this.startSyncThread();
+        }
+        logger.info("Replayed " + count + " records from '" + this.file + "'.");
+        
+        return count;
+    }
+    
+    /**
+     * The following methods append a record to the log buffer. They are called
+     * by the storage while holding the locks of the modified segments, so the
+     * order of the records for every key matches the order of the modifications.
+     * The returned sequence number is to be passed to commit().
+     */
+    long appendPut(String key, byte[] value) {
+        Marshaller  marshaller = new Marshaller();
+        
+        marshaller.marshalByte(RECORD_PUT);
+        marshaller.marshalString(key);
+        marshaller.marshalSizedBytes(value);
+        
+        return this.append(marshaller.getBytes());
+    }
+    
+    long appendDelete(String key) {
+        Marshaller  marshaller = new Marshaller();
+        
+        marshaller.marshalByte(RECORD_DELETE);
+        marshaller.marshalString(key);
+        
+        return this.append(marshaller.getBytes());
+    }
+    
+    /**
+     * A batch is logged as a single record, so that it is replayed either
+     * completely or not at all. A null value deletes the key; it is logged with
+     * a negative length, unlike an empty value.
+     */
+    long appendPutAll(List<String> keys, List<byte[]> values) {
+        Marshaller  marshaller = new Marshaller();
+        
+        marshaller.marshalByte(RECORD_PUT_ALL);
+        marshaller.marshalInt(keys.size());
+        for (int i = 0; i < keys.size(); ++i) {
+            marshaller.marshalString(keys.get(i));
+            if (values.get(i) != null) {
+                marshaller.marshalSizedBytes(values.get(i));
+            } else {
+                marshaller.marshalInt(NULL_VALUE_LENGTH);
+            }
+        }
+        
+        return this.append(marshaller.getBytes());
+    }
+    
+    long appendDeleteRange(HashValue begin, HashValue end) {
+        Marshaller  marshaller = new Marshaller();
+        
+        marshaller.marshalByte(RECORD_DELETE_RANGE);
+        marshaller.marshalBytes(begin.getData());
+        marshaller.marshalBytes(end.getData());
+        
+        return this.append(marshaller.getBytes());
+    }
+    
+    /**
+     * Waits until the records up to the given sequence number are synced to the
+     * disk. Returns immediately if the log is synced in the background.
+     * @param seq Sequence number returned by one of the append methods
+     * @throws IllegalStateException Thrown if the log cannot be written
+     */
+    void commit(long seq) throws IllegalStateException {
+        if (this.sync_interval > 0) {
+            return;
+        }
+        try {
+            this.sync(seq);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Write-ahead log failed: " + ex.getMessage());
+        }
+    }
+    
+    /**
+     * Syncs all the appended records and continues the log in a new file. The
+     * caller has to make sure that no records are appended concurrently.
+     * @param next_file The new log file
+     * @throws IOException Thrown if the log cannot be synced or the new file
+     *          cannot be opened
+     */
+    void rotate(File next_file) throws IOException {
+        FileChannel next_channel = new RandomAccessFile(next_file, "rw").getChannel();
+        FileChannel prev_channel;
+        
+        try {
+            this.sync(Long.MAX_VALUE);
+            next_channel.position(next_channel.size());
+        } catch (IOException ex) {
+            next_channel.close();
+            throw ex;
+        }
+        
+        synchronized (this.lock) {
+            while (this.syncing) {
+                try {
+                    this.lock.wait();
+                } catch (InterruptedException ex) {
+                    next_channel.close();
+                    throw new InterruptedIOException("Interrupted while waiting for the write-ahead log.");
+                }
+            }
+            prev_channel = this.channel;
+            this.channel = next_channel;
+            this.file = next_file;
+        }
+        
+        prev_channel.close();
+    }
+    
+    /**
+     * Syncs all the appended records and closes the log.
+     */
+    public void close() {
+        synchronized (this.lock) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            this.lock.notifyAll();
+        }
+        
+        try {
+            if (this.sync_thread != null) {
+                this.sync_thread.join();
+            }
+            this.sync(Long.MAX_VALUE);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            logger.error("Error! Unable to sync write-ahead log '" + this.file + "': " + ex.getMessage());
+        }
+        
+        try {
+            this.channel.close();
+        } catch (IOException ex) {
+            logger.error("Error! Unable to close write-ahead log '" + this.file + "': " + ex.getMessage());
+        }
+    }
+    
+    private long append(byte[] record) {
+        CRC32   crc = new CRC32();
+        crc.update(record);
+        
+        synchronized (this.lock) {
+            if (this.failure != null) {
+                throw new IllegalStateException("Write-ahead log failed: " + this.failure.getMessage());
+            }
+            if (this.closed) {
+                throw new IllegalStateException("Write-ahead log is closed.");
+            }
+            
+            WriteAheadLog.writeInt(this.pending, record.length);
+            WriteAheadLog.writeInt(this.pending, (int) crc.getValue());
+            this.pending.write(record, 0, record.length);
+            
+            return ++this.appended_seq;
+        }
+    }
+    
+    /**
+     * Group commit: the caller either finds its records synced by another writer,
+     * or writes and syncs all the pending records itself.
+     */
+    private void sync(long seq) throws IOException {
+        byte[]      data;
+        long        target_seq;
+        FileChannel target_channel;
+        
+        synchronized (this.lock) {
+            while (this.syncing) {
+                try {
+                    this.lock.wait();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException("Interrupted while waiting for the write-ahead log.");
+                }
+            }
+            if (this.failure != null) {
+                throw this.failure;
+            }
+            if (this.durable_seq >= Math.min(seq, this.appended_seq)) {
+                return;
+            }
+            
+            data = this.pending.toByteArray();
+            target_seq = this.appended_seq;
+            target_channel = this.channel;
+            this.pending.reset();
+            this.syncing = true;
+        }
+        
+        IOException error = null;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                target_channel.write(buffer);
+            }
+            target_channel.force(false);
+        } catch (IOException ex) {
+            logger.error("Error! Unable to write to write-ahead log '" + this.file + "': " + ex.getMessage());
+            error = ex;
+        }
+        
+        synchronized (this.lock) {
+            if (error != null) {
+                this.failure = error;
+            } else {
+                this.durable_seq = target_seq;
+            }
+            this.syncing = false;
+            this.lock.notifyAll();
+        }
+        
+        if (error != null) {
+            throw error;
+        }
+    }
+    
+    private void startSyncThread() {
+        this.sync_thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    synchronized (WriteAheadLog.this.lock) {
+                        if (WriteAheadLog.this.closed) {
+                            return;
+                        }
+                        try {
+                            WriteAheadLog.this.lock.wait(WriteAheadLog.this.sync_interval);
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                        if (WriteAheadLog.this.closed) {
+                            return;
+                        }
+                    }
+                    try {
+                        WriteAheadLog.this.sync(Long.MAX_VALUE);
+                    } catch (IOException ex) {
+                        return; // The failure is reported to the writers
+                    }
+                }
+            }
+        }, "kv-wal-sync");
+        this.sync_thread.setDaemon(true);
+        this.sync_thread.start();
+    }
+    
+    private static void apply(StorageEngine storage, byte[] record) throws ParseException {
+        Unmarshaller    unmarshaller = new Unmarshaller(record);
+        byte            type = unmarshaller.unmarshalByte();
+        
+        switch (type) {
+            case RECORD_PUT:
+                String  key = unmarshaller.unmarshalString();
+                byte[]  value = unmarshaller.unmarshalSizedBytes();
+                storage.putBytes(key, (value != null) ? value : new byte[0]);
+                break;
+            
+            case RECORD_DELETE:
+                storage.deleteBytes(unmarshaller.unmarshalString());
+                break;
+            
+            case RECORD_PUT_ALL:
+                int count = unmarshaller.unmarshalInt();
+                if (count < 0 || count > record.length) {
+                    throw new ParseException("Invalid number of batch entries: " + count + ".", unmarshaller.position());
+                }
+                
+                List<String>    keys = new ArrayList<String>(count);
+                List<byte[]>    values = new ArrayList<byte[]>(count);
+                for (int i = 0; i < count; ++i) {
+                    keys.add(unmarshaller.unmarshalString());
+                    values.add(WriteAheadLog.unmarshalValue(unmarshaller));
+                }
+                storage.putAllBytes(keys, values);
+                break;
+            
+            case RECORD_DELETE_RANGE:
+                HashValue   begin = new HashValue(unmarshaller.unmarshalBytes(HashValue.VALUE_SIZE));
+                HashValue   end = new HashValue(unmarshaller.unmarshalBytes(HashValue.VALUE_SIZE));
+                storage.deleteHashRange(begin, end);
+                break;
+            
+            default:
+                throw new ParseException("Unknown record type: " + type + ".", 0);
+        }
+    }
+    
+    /**
+     * Reads a batch value, which is null if logged with a negative length.
+     */
+    private static byte[] unmarshalValue(Unmarshaller unmarshaller) throws ParseException {
+        int length = unmarshaller.unmarshalInt();
+        
+        if (length == NULL_VALUE_LENGTH) {
+            return null;
+        }
+        if (length < 0) {
+            throw new ParseException("Invalid value length: " + length + ".", unmarshaller.position());
+        }
+        byte[] value = unmarshaller.unmarshalBytes(length);
+        
+        return (value != null) ? value : new byte[0];
+    }
+    
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read_bytes = channel.read(buffer, position);
+            if (read_bytes < 0) {
+                throw new IOException("Unexpected end of file.");
+            }
+            position += read_bytes;
+        }
+    }
+    
+    private static void writeInt(ByteArrayOutputStream output, int value) {
+        output.write(value >>> 24);
+        output.write(value >>> 16);
+        output.write(value >>> 8);
+        output.write(value);
+    }
+}
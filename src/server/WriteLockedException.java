@@ -0,0 +1,15 @@
+package server;
+
+/**
+ * Thrown by ChangeTrackingStorage for writes to a hash range that is sealed
+ * while it is handed over to another server. The range is write-locked only
+ * briefly, so the write may be retried, unlike after a storage failure.
+ * @author Danila Klimenko
+ */
+public class WriteLockedException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+    
+    public WriteLockedException(String message) {
+        super(message);
+    }
+}
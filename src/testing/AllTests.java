@@ -68,6 +68,11 @@ public class AllTests {
         clientSuite.addTestSuite(ConnectionTest.class);
         clientSuite.addTestSuite(InteractionTest.class);
         clientSuite.addTestSuite(AdditionalTest.class);
+        clientSuite.addTestSuite(StorageTest.class);
+        clientSuite.addTestSuite(TopologyTest.class);
+        clientSuite.addTestSuite(MessageTest.class);
+        clientSuite.addTestSuite(PipelineTest.class);
+        clientSuite.addTestSuite(LaunchTest.class);
 //        return clientSuite;
         return new TestSetup(clientSuite) {
             protected void setUp() throws Exception {
@@ -2,11 +2,14 @@ package testing;
 
 import org.junit.Test;
 
+import client.KVFuture;
 import client.KVStore;
 import junit.framework.TestCase;
 import common.messages.KVMessage;
 import common.messages.KVMessage.StatusType;
 import common.topology.ServerAddress;
+import java.util.ArrayList;
+import java.util.List;
 
 
 public class InteractionTest extends TestCase {
@@ -133,6 +136,27 @@ public class InteractionTest extends TestCase {
 		assertTrue(ex == null && response.getStatus() == StatusType.GET_ERROR);
 	}
 	
+	@Test
+	public void testAsyncPutGet() {
+		List<KVFuture<KVMessage>> puts = new ArrayList<KVFuture<KVMessage>>();
+		KVMessage response = null;
+		Exception ex = null;
+
+		try {
+			for (int i = 0; i < 100; ++i) {
+				puts.add(kvClient.putAsync("async" + i, "value" + i, null));
+			}
+			for (KVFuture<KVMessage> future : puts) {
+				future.get();
+			}
+			response = kvClient.getAsync("async42", null).get();
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertTrue(ex == null && response.getValue().equals("value42"));
+	}
+	
 
 
 }
@@ -0,0 +1,116 @@
+package testing;
+
+import app_kvEcs.ECSClient;
+import app_kvEcs.ServiceNode;
+import app_kvServer.KVServer;
+import app_kvServer.ServerConfig;
+import client.KVStore;
+import common.messages.KVMessage.StatusType;
+import common.topology.ServerAddress;
+import common.topology.ServiceMetaData;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class LaunchTest extends TestCase {
+    private static final int    SERVER_PORT = 50190;
+    private static final int    NODE_PORT = 50191;
+    
+    @Test
+    public void testDefaultDataDirectory() throws Exception {
+        ServerConfig config = new ServerConfig();
+        assertNull(config.getDataDirectory());
+        
+        // Disk-based engines keep their data next to the server classes
+        config.parseStorageEngine("lsm:memtable=1M");
+        File directory = config.getDataDirectory();
+        assertEquals("data", directory.getName());
+        assertTrue(directory.isAbsolute());
+        
+        KVServer        server = new KVServer(SERVER_PORT, config);
+        ServerAddress   address = new ServerAddress("127.0.0.1", SERVER_PORT);
+        new Thread(server).start();
+        try {
+            server.initialize(address, ServiceMetaData.generateForServers(Arrays.asList(address)));
+            server.start();
+            assertTrue(directory.isDirectory());
+            
+            KVStore kv_store = new KVStore(address.getAddress(), SERVER_PORT);
+            kv_store.connect();
+            try {
+                kv_store.put("launch", "value");
+                assertEquals("value", kv_store.get("launch").getValue());
+            } finally {
+                kv_store.disconnect();
+            }
+        } finally {
+            server.shutDown();
+        }
+    }
+    
+    /**
+     * Launches nodes with disk-based engines the way the ECS does, from a
+     * configuration file naming the engines but no data directories.
+     */
+    @Test
+    public void testLaunchWithStorageEngines() throws Exception {
+        File config_file = File.createTempFile("ecs", ".config");
+        config_file.deleteOnExit();
+        
+        FileWriter writer = new FileWriter(config_file);
+        try {
+            String jar = LaunchTest.serverJarFromConfig("src/app_kvEcs/ecs.config");
+            writer.write("Lsm   127.0.0.1   " + NODE_PORT + "   " + jar + "   lsm:memtable=1M\n");
+            writer.write("Log   127.0.0.1   " + (NODE_PORT + 1) + "   " + jar + "   log\n");
+        } finally {
+            writer.close();
+        }
+        
+        List<ServiceNode> nodes = ServiceNode.parseServiceNodesFromFile(config_file.getPath());
+        for (ServiceNode node : nodes) {
+            node.setLauncher(ServiceNode.Launcher.LOCAL);
+        }
+        ECSClient ecs = new ECSClient(nodes);
+        ecs.initializeNodes(nodes.size());
+        try {
+            ecs.startService();
+            
+            KVStore kv_store = new KVStore("127.0.0.1", NODE_PORT);
+            kv_store.connect();
+            try {
+                for (int i = 0; i < 20; ++i) {
+                    assertFalse(kv_store.put("engine" + i, "value" + i).getStatus() == StatusType.PUT_ERROR);
+                }
+                for (int i = 0; i < 20; ++i) {
+                    assertEquals("value" + i, kv_store.get("engine" + i).getValue());
+                }
+            } finally {
+                kv_store.disconnect();
+            }
+        } finally {
+            ecs.shutDownService();
+        }
+    }
+    
+    private static String serverJarFromConfig(String config_path) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(config_path));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#")) {
+                    return line.split("\\s+")[3];
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        throw new IOException("No nodes in '" + config_path + "'.");
+    }
+}
@@ -0,0 +1,202 @@
+package testing;
+
+import common.messages.ControlMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageRaw;
+import common.messages.Marshaller;
+import common.messages.NetworkMessage;
+import common.topology.ServerAddress;
+import common.topology.ServiceMetaData;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+import org.junit.Test;
+import server.KeyValuePacket;
+
+public class MessageTest extends TestCase {
+    
+    private static KVMessageRaw roundTrip(KVMessageRaw kvmsg, boolean compact) throws Exception {
+        KVMessageRaw copy = KVMessageRaw.unmarshal(KVMessageRaw.marshal(kvmsg, compact));
+        
+        assertEquals(compact, copy.isCompact());
+        assertEquals(kvmsg.getStatus(), copy.getStatus());
+        assertEquals(kvmsg.getKey(), copy.getKey());
+        assertEquals(kvmsg.getValue(), copy.getValue());
+        assertEquals(kvmsg.getRequestId(), copy.getRequestId());
+        assertEquals(kvmsg.getEntries().size(), copy.getEntries().size());
+        
+        return copy;
+    }
+    
+    @Test
+    public void testRoundTrip() throws Exception {
+        ServiceMetaData meta_data = ServiceMetaData.generateForServers(Arrays.asList(
+                new ServerAddress("127.0.0.1", 50000), new ServerAddress("127.0.0.1", 50001)));
+        
+        for (boolean compact : new boolean[] {false, true}) {
+            roundTrip(new KVMessageRaw(StatusType.GET, "key", null), compact);
+            roundTrip(new KVMessageRaw(StatusType.PUT, "key", "value", null, 7), compact);
+            roundTrip(new KVMessageRaw(StatusType.PUT_SUCCESS, "key", "value", null, Integer.MAX_VALUE), compact);
+            
+            KVMessageRaw copy = roundTrip(new KVMessageRaw(StatusType.SERVER_NOT_RESPONSIBLE, "key", null, meta_data, 1),
+                    compact);
+            assertEquals(meta_data.toString(), copy.getMetaData().toString());
+        }
+        
+        // The compact format always uses UTF-8
+        roundTrip(new KVMessageRaw(StatusType.PUT, "k\u00e4y", "v\u20acl\uD83D\uDE00", null, 7), true);
+    }
+    
+    @Test
+    public void testBatchRoundTrip() throws Exception {
+        List<KVMessageRaw> entries = new ArrayList<KVMessageRaw>();
+        entries.add(new KVMessageRaw(StatusType.GET_SUCCESS, "a", "1"));
+        entries.add(new KVMessageRaw(StatusType.GET_ERROR, "b", null));
+        entries.add(new KVMessageRaw(StatusType.GET, "c", null));
+        
+        for (boolean compact : new boolean[] {false, true}) {
+            KVMessageRaw copy = roundTrip(new KVMessageRaw(StatusType.BATCH_REPLY, entries, null, 3), compact);
+            
+            for (int i = 0; i < entries.size(); ++i) {
+                assertEquals(entries.get(i).getStatus(), copy.getEntries().get(i).getStatus());
+                assertEquals(entries.get(i).getKey(), copy.getEntries().get(i).getKey());
+                assertEquals(entries.get(i).getValue(), copy.getEntries().get(i).getValue());
+            }
+        }
+    }
+    
+    @Test
+    public void testValueBytesPassThrough() throws Exception {
+        byte[] value = new byte[] {(byte) 0xFF, 0, (byte) 0xC3, 0x28}; // Not valid UTF-8
+        
+        for (boolean compact : new boolean[] {false, true}) {
+            KVMessageRaw kvmsg = KVMessageRaw.withValueBytes(StatusType.GET_SUCCESS, "key", value, null, 1);
+            KVMessageRaw copy = KVMessageRaw.unmarshal(KVMessageRaw.marshal(kvmsg, compact));
+            
+            assertTrue(Arrays.equals(value, copy.getValueBytes()));
+        }
+    }
+    
+    @Test
+    public void testCompactFormatIsSmaller() {
+        KVMessageRaw get = new KVMessageRaw(StatusType.GET, "key", null, null, 42);
+        
+        assertEquals(1 + 1 + 1 + 1 + 1 + 3, KVMessageRaw.marshal(get, true).length);
+        assertTrue(KVMessageRaw.marshal(get, true).length < KVMessageRaw.marshal(get, false).length / 3);
+        assertTrue(KVMessageRaw.isTagged(KVMessageRaw.marshal(get, true)));
+        assertFalse(KVMessageRaw.isTagged(KVMessageRaw.marshal(new KVMessageRaw(StatusType.GET, "key", null), true)));
+    }
+    
+    @Test
+    public void testReusedMarshaller() throws Exception {
+        Marshaller      marshaller = Marshaller.acquire();
+        KVMessageRaw    kvmsg = new KVMessageRaw(StatusType.PUT, "key", "value", null, 9);
+        
+        KVMessageRaw.marshal(kvmsg, true, marshaller);
+        assertTrue(Arrays.equals(KVMessageRaw.marshal(kvmsg, true), marshaller.getBytes()));
+        
+        // The buffer grows beyond its initial size and is reused after reset()
+        StringBuilder   value = new StringBuilder();
+        for (int i = 0; i < 1000; ++i) {
+            value.append("\u00e4");
+        }
+        marshaller.reset();
+        KVMessageRaw.marshal(new KVMessageRaw(StatusType.PUT, "key", value.toString(), null, 9), false, marshaller);
+        assertEquals(value.toString(), KVMessageRaw.unmarshal(marshaller.getBytes()).getValue());
+        
+        marshaller.reset();
+        KVMessageRaw.marshal(kvmsg, false, marshaller);
+        NetworkMessage  netmsg = new NetworkMessage(marshaller);
+        assertTrue(Arrays.equals(KVMessageRaw.marshal(kvmsg, false), netmsg.getData()));
+        assertEquals("value", KVMessageRaw.unmarshal(netmsg.getPayload()).getValue());
+        netmsg.release();
+    }
+    
+    @Test
+    public void testFrames() throws Exception {
+        ByteArrayOutputStream   output = new ByteArrayOutputStream();
+        
+        for (int i = 0; i < 100; ++i) {
+            KVMessageRaw.toNetworkMessage(new KVMessageRaw(StatusType.PUT, "key" + i, "value" + i, null, i), true)
+                    .writeTo(output);
+        }
+        StringBuilder   value = new StringBuilder();
+        for (int i = 0; i < 50000; ++i) {
+            value.append('x');
+        }
+        KVMessageRaw.toNetworkMessage(new KVMessageRaw(StatusType.PUT, "big", value.toString()), false).writeTo(output);
+        
+        // Blocking reads
+        ByteArrayInputStream    input = new ByteArrayInputStream(output.toByteArray());
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(i, KVMessageRaw.unmarshal(NetworkMessage.readFrom(input).getPayload()).getRequestId());
+        }
+        assertEquals(value.toString(), KVMessageRaw.unmarshal(NetworkMessage.readFrom(input).getData()).getValue());
+        
+        // Many frames per read, and a frame exceeding the read buffer
+        NetworkMessage.Decoder  decoder = new NetworkMessage.Decoder();
+        ReadableByteChannel     channel = Channels.newChannel(new ByteArrayInputStream(output.toByteArray()));
+        for (int i = 0; i < 100; ++i) {
+            NetworkMessage  netmsg;
+            while ((netmsg = decoder.read(channel)) == null) {
+                // Read further
+            }
+            assertEquals("value" + i, KVMessageRaw.unmarshal(netmsg.getPayload()).getValue());
+        }
+        NetworkMessage  netmsg;
+        while ((netmsg = decoder.read(channel)) == null) {
+            // Read further
+        }
+        assertEquals(value.toString(), KVMessageRaw.unmarshal(netmsg.getPayload()).getValue());
+    }
+    
+    @Test
+    public void testMalformedCompactMessage() {
+        byte[] data = KVMessageRaw.marshal(new KVMessageRaw(StatusType.PUT, "key", "value", null, 5), true);
+        Exception ex = null;
+        
+        try {
+            KVMessageRaw.unmarshal(Arrays.copyOf(data, data.length - 2));
+        } catch (Exception e) {
+            ex = e;
+        }
+        assertTrue(ex instanceof ParseException);
+        
+        data[1] = (byte) 0xFF; // Unknown opcode
+        ex = null;
+        try {
+            KVMessageRaw.unmarshal(data);
+        } catch (Exception e) {
+            ex = e;
+        }
+        assertTrue(ex instanceof ParseException);
+    }
+    
+    @Test
+    public void testIncrementalTransfer() throws Exception {
+        KeyValuePacket  packet = new KeyValuePacket();
+        Marshaller      marshaller = new Marshaller();
+        
+        int header_size = ControlMessage.beginTransfer(marshaller, ControlMessage.ControlType.TRANSFER);
+        for (int i = 0; i < 10; ++i) {
+            byte[] value = ("value" + i).getBytes("UTF-8");
+            packet.addKeyValuePair("key\u00e4" + i, value);
+            KeyValuePacket.marshalPair(marshaller, "key\u00e4" + i, value);
+        }
+        ControlMessage.finishTransfer(marshaller, ControlMessage.ControlType.TRANSFER, packet.size());
+        
+        byte[] expected = ControlMessage.marshal(new ControlMessage(ControlMessage.ControlType.TRANSFER, packet));
+        assertTrue(Arrays.equals(expected, marshaller.getBytes()));
+        assertEquals(expected.length, header_size + 10 * KeyValuePacket.sizeOfPair("key\u00e41", new byte[6]));
+        
+        KeyValuePacket copy = ControlMessage.unmarshal(marshaller.getBytes()).getKeyValuePacket();
+        assertEquals(10, copy.size());
+        assertEquals("key\u00e40", copy.iterator().next().getKey());
+    }
+}
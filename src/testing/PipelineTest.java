@@ -0,0 +1,295 @@
+package testing;
+
+import app_kvServer.KVServer;
+import app_kvServer.ServerConfig;
+import client.KVFuture;
+import client.KVStore;
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVMessageRaw;
+import common.messages.NetworkMessage;
+import common.topology.ServerAddress;
+import common.topology.ServiceMetaData;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+import org.junit.Test;
+import server.ChangeTrackingStorage;
+import server.StorageEngine;
+
+public class PipelineTest extends TestCase {
+    private static final AtomicInteger  next_port = new AtomicInteger(50090);
+    
+    private GatedServer server;
+    private Socket      socket;
+    private InputStream input;
+    private OutputStream output;
+    
+    /**
+     * Storage blocking reads and writes of the keys starting with "gated" until
+     * the gate is opened, so that the order of the replies is known.
+     */
+    private static class GatedStorage extends ChangeTrackingStorage {
+        final CountDownLatch gate = new CountDownLatch(1);
+        
+        GatedStorage(StorageEngine engine) {
+            super(engine);
+        }
+        
+        private void pass(String key) {
+            if (key.startsWith("gated")) {
+                try {
+                    this.gate.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        
+        @Override
+        public byte[] getBytes(String key) {
+            this.pass(key);
+            return super.getBytes(key);
+        }
+        
+        @Override
+        public byte[] putBytes(String key, byte[] value) {
+            this.pass(key);
+            return super.putBytes(key, value);
+        }
+    }
+    
+    private static class GatedServer extends KVServer {
+        private final GatedStorage storage;
+        
+        GatedServer(int port, ServerConfig config) throws IOException {
+            super(port, config);
+            this.storage = new GatedStorage(super.getDataStorage());
+        }
+        
+        @Override
+        public StorageEngine getDataStorage() {
+            return this.storage;
+        }
+    }
+    
+    private void startServer(String front_end) throws Exception {
+        ServerConfig    config = new ServerConfig();
+        int             port = next_port.getAndIncrement();
+        ServerAddress   address = new ServerAddress("127.0.0.1", port);
+        
+        config.parseFrontEnd(front_end);
+        this.server = new GatedServer(port, config);
+        new Thread(this.server).start();
+        this.server.initialize(address, ServiceMetaData.generateForServers(Arrays.asList(address)));
+        this.server.start();
+        
+        this.socket = new Socket(address.getAddress(), port);
+        this.socket.setSoTimeout(10000);
+        this.input = this.socket.getInputStream();
+        this.output = this.socket.getOutputStream();
+    }
+    
+    @Override
+    protected void tearDown() throws Exception {
+        if (this.server != null) {
+            this.server.storage.gate.countDown();
+            this.socket.close();
+            this.server.shutDown();
+        }
+    }
+    
+    private void send(StatusType type, String key, String value, int request_id, boolean compact) throws IOException {
+        KVMessageRaw kvmsg = new KVMessageRaw(type, key, value, null, request_id);
+        new NetworkMessage(KVMessageRaw.marshal(kvmsg, compact)).writeTo(this.output);
+    }
+    
+    private KVMessageRaw receive() throws Exception {
+        return KVMessageRaw.unmarshal(NetworkMessage.readFrom(this.input).getData());
+    }
+    
+    @Test
+    public void testOutOfOrderReplies() throws Exception {
+        this.startServer("selector:io=1,workers=4,queue=16");
+        
+        this.send(StatusType.GET, "gated", null, 0, true);
+        this.send(StatusType.PUT, "k1", "v1", 1, true);
+        this.send(StatusType.PUT, "k2", "v2", 2, false);
+        
+        // The blocked query does not hold up the ones received after it
+        Set<Integer> answered = new HashSet<Integer>();
+        for (int i = 0; i < 2; ++i) {
+            KVMessageRaw reply = this.receive();
+            assertEquals(StatusType.PUT_SUCCESS, reply.getStatus());
+            assertEquals("k" + reply.getRequestId(), reply.getKey());
+            answered.add(reply.getRequestId());
+        }
+        assertEquals(new HashSet<Integer>(Arrays.asList(1, 2)), answered);
+        
+        this.server.storage.gate.countDown();
+        KVMessageRaw reply = this.receive();
+        assertEquals(0, reply.getRequestId());
+        assertEquals(StatusType.GET_ERROR, reply.getStatus());
+    }
+    
+    @Test
+    public void testSameKeyInOrder() throws Exception {
+        this.startServer("selector:io=1,workers=4,queue=16");
+        
+        for (int i = 0; i < 10; ++i) {
+            this.send(StatusType.PUT, "gated", "v" + i, i, true);
+        }
+        this.send(StatusType.GET, "gated", null, 10, true);
+        this.send(StatusType.GET, "other", null, 11, true);
+        
+        assertEquals(11, this.receive().getRequestId());
+        this.server.storage.gate.countDown();
+        
+        // The writes are applied, and answered, in the order of arrival
+        for (int i = 0; i < 10; ++i) {
+            KVMessageRaw reply = this.receive();
+            assertEquals(i, reply.getRequestId());
+            assertEquals((i == 0) ? StatusType.PUT_SUCCESS : StatusType.PUT_UPDATE, reply.getStatus());
+        }
+        KVMessageRaw reply = this.receive();
+        assertEquals(10, reply.getRequestId());
+        assertEquals("v9", reply.getValue());
+    }
+    
+    @Test
+    public void testUntaggedRequests() throws Exception {
+        this.startServer("selector:io=1,workers=4,queue=16");
+        
+        this.send(StatusType.PUT, "k", "legacy", KVMessageRaw.NO_REQUEST_ID, false);
+        this.send(StatusType.GET, "k", null, KVMessageRaw.NO_REQUEST_ID, true);
+        this.send(StatusType.PUT, "k", null, KVMessageRaw.NO_REQUEST_ID, false);
+        
+        StatusType[] expected = {StatusType.PUT_SUCCESS, StatusType.GET_SUCCESS, StatusType.DELETE_SUCCESS};
+        for (StatusType type : expected) {
+            KVMessageRaw reply = this.receive();
+            assertEquals(KVMessageRaw.NO_REQUEST_ID, reply.getRequestId());
+            assertEquals(type, reply.getStatus());
+        }
+    }
+    
+    @Test
+    public void testSaturatedWorkerPool() throws Exception {
+        this.startServer("selector:io=1,workers=1,queue=1");
+        
+        // The single worker is blocked and the queue is full: the connection stops reading
+        for (int i = 0; i < 3; ++i) {
+            this.send(StatusType.GET, "gated" + i, null, i, true);
+        }
+        for (int i = 3; i < 20; ++i) {
+            this.send(StatusType.PUT, "k" + i, "v" + i, i, true);
+        }
+        this.socket.setSoTimeout(200);
+        try {
+            this.receive();
+            fail("Reply received while the worker was blocked");
+        } catch (SocketTimeoutException ex) {
+        }
+        this.socket.setSoTimeout(10000);
+        
+        this.server.storage.gate.countDown();
+        Set<Integer> answered = new HashSet<Integer>();
+        for (int i = 0; i < 20; ++i) {
+            answered.add(this.receive().getRequestId());
+        }
+        assertEquals(20, answered.size());
+    }
+    
+    /**
+     * Server understanding untagged messages in the legacy format only, like the
+     * servers preceding the request ids and the compact format.
+     */
+    private static class LegacyServer implements Runnable {
+        final ServerSocket          server_socket;
+        final Map<String, String>   data = new HashMap<String, String>();
+        final AtomicInteger         rejected = new AtomicInteger(0);
+        
+        LegacyServer(int port) throws IOException {
+            this.server_socket = new ServerSocket(port);
+        }
+        
+        @Override
+        public void run() {
+            try {
+                Socket          socket = this.server_socket.accept();
+                InputStream     input = socket.getInputStream();
+                OutputStream    output = socket.getOutputStream();
+                
+                while (true) {
+                    byte[]          data = NetworkMessage.readFrom(input).getData();
+                    KVMessageRaw    reply;
+                    
+                    if (data[0] != (byte) 0xA1) {
+                        this.rejected.incrementAndGet();
+                        reply = new KVMessageRaw(StatusType.PROTOCOL_ERROR, null, "Unknown message format.");
+                    } else {
+                        KVMessageRaw request = KVMessageRaw.unmarshal(data);
+                        String      value = request.getValue();
+                        
+                        if (request.getStatus() == StatusType.PUT) {
+                            boolean update = this.data.put(request.getKey(), value) != null;
+                            reply = new KVMessageRaw(update ? StatusType.PUT_UPDATE : StatusType.PUT_SUCCESS,
+                                    request.getKey(), value);
+                        } else {
+                            value = this.data.get(request.getKey());
+                            reply = new KVMessageRaw((value != null) ? StatusType.GET_SUCCESS : StatusType.GET_ERROR,
+                                    request.getKey(), value);
+                        }
+                    }
+                    new NetworkMessage(KVMessageRaw.marshal(reply)).writeTo(output);
+                }
+            } catch (Exception ex) {
+                // The client has disconnected
+            }
+        }
+    }
+    
+    @Test
+    public void testLegacyServerFallback() throws Exception {
+        int             port = next_port.getAndIncrement();
+        LegacyServer    legacy = new LegacyServer(port);
+        new Thread(legacy).start();
+        
+        KVStore kv_store = new KVStore("127.0.0.1", port);
+        try {
+            kv_store.connect();
+            
+            List<KVFuture<KVMessage>> puts = new ArrayList<KVFuture<KVMessage>>();
+            for (int i = 0; i < 20; ++i) {
+                puts.add(kv_store.putAsync("k" + i, "v" + i, null));
+            }
+            for (int i = 0; i < 20; ++i) {
+                KVMessage reply = puts.get(i).get(10, TimeUnit.SECONDS);
+                assertEquals(StatusType.PUT_SUCCESS, reply.getStatus());
+                assertEquals("k" + i, reply.getKey());
+            }
+            for (int i = 0; i < 20; ++i) {
+                assertEquals("v" + i, kv_store.get("k" + i).getValue());
+            }
+            
+            // Only the probe was rejected
+            assertEquals(1, legacy.rejected.get());
+        } finally {
+            kv_store.disconnect();
+            legacy.server_socket.close();
+        }
+    }
+}
@@ -0,0 +1,1020 @@
+package testing;
+
+import common.topology.HashValue;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import junit.framework.TestCase;
+import org.junit.Test;
+import server.CachedStorage;
+import server.ChangeTrackingStorage;
+import server.KVDataStorage;
+import server.KeyValuePacket;
+import server.LogStructuredStorage;
+import server.LsmStorage;
+import server.StorageEngine;
+import server.StoragePersistence;
+import server.WriteAheadLog;
+import server.WriteLockedException;
+
+public class StorageTest extends TestCase {
+    
+    private KVDataStorage storage;
+    
+    @Override
+    public void setUp() {
+        storage = new KVDataStorage();
+    }
+    
+    @Test
+    public void testPutGetDelete() {
+        assertNull(storage.put("key", "value"));
+        assertEquals("value", storage.get("key"));
+        assertEquals("value", storage.put("key", "updated"));
+        assertEquals("updated", storage.get("key"));
+        assertEquals("updated", storage.delete("key"));
+        assertNull(storage.get("key"));
+        assertNull(storage.delete("key"));
+    }
+    
+    @Test
+    public void testBinaryValues() {
+        byte[] value = new byte[] {(byte) 0xFF, 0, (byte) 0xC3, 0x28};
+        
+        assertNull(storage.putBytes("key", value));
+        assertSame(value, storage.getBytes("key"));
+        assertSame(value, storage.deleteBytes("key"));
+        assertNull(storage.getBytes("key"));
+        
+        // String values are stored in their UTF-8 representation
+        storage.put("key", "v\u00e4l");
+        assertTrue(Arrays.equals("v\u00e4l".getBytes(Charset.forName("UTF-8")), storage.getBytes("key")));
+    }
+    
+    @Test
+    public void testIllegalKey() {
+        Exception ex = null;
+        
+        try {
+            storage.put("12345678901234567890abcdef", "value");
+        } catch (IllegalArgumentException e) {
+            ex = e;
+        }
+        
+        assertNotNull(ex);
+        assertNull(storage.get(null));
+    }
+    
+    @Test
+    public void testBatchOperations() {
+        storage.put("b", "old");
+        
+        String[] prev_values = storage.putAll(Arrays.asList("a", "b", "c", "d"), Arrays.asList("1", "2", "3", null));
+        assertNull(prev_values[0]);
+        assertEquals("old", prev_values[1]);
+        assertNull(prev_values[3]);
+        
+        String[] values = storage.getAll(Arrays.asList("a", "b", "c", "d", null));
+        assertEquals(Arrays.asList("1", "2", "3", null, null), Arrays.asList(values));
+        
+        prev_values = storage.putAll(Arrays.asList("a", "c"), Arrays.asList((String) null, null));
+        assertEquals(Arrays.asList("1", "3"), Arrays.asList(prev_values));
+        assertNull(storage.get("a"));
+        
+        // An illegal pair rejects the whole batch
+        Exception ex = null;
+        try {
+            storage.putAll(Arrays.asList("e", "12345678901234567890abcdef"), Arrays.asList("5", "6"));
+        } catch (IllegalArgumentException e) {
+            ex = e;
+        }
+        assertNotNull(ex);
+        assertNull(storage.get("e"));
+    }
+    
+    @Test
+    public void testHashRange() {
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 1000; ++i) {
+            keys.add("key" + i);
+            storage.put("key" + i, "value" + i);
+        }
+        
+        HashValue begin = HashValue.hashKey("key1");
+        HashValue end = HashValue.hashKey("key2");
+        
+        int expected = 0;
+        for (String key : keys) {
+            if (HashValue.hashKey(key).isInRange(begin, end)) {
+                ++expected;
+            }
+        }
+        
+        int count = 0;
+        for (KeyValuePacket.KeyValuePair kv_pair : storage.getPacketForHashRange(begin, end)) {
+            assertTrue(HashValue.hashKey(kv_pair.getKey()).isInRange(begin, end));
+            ++count;
+        }
+        assertEquals(expected, count);
+        
+        // Moving the range into another storage and deleting it leaves the complement
+        KVDataStorage other = new KVDataStorage(4);
+        other.putAllFromKeyValuePacket(storage.getPacketForHashRange(begin, end));
+        storage.deleteHashRange(begin, end);
+        
+        for (String key : keys) {
+            boolean in_range = HashValue.hashKey(key).isInRange(begin, end);
+            assertEquals(in_range, storage.get(key) == null);
+            assertEquals(in_range, other.get(key) != null);
+        }
+    }
+    
+    @Test
+    public void testWrappingHashRange() {
+        // A single segment, so that the ranges are visited in several chunks
+        KVDataStorage single = new KVDataStorage(1);
+        for (int i = 0; i < 3000; ++i) {
+            single.put("key" + i, "value" + i);
+        }
+        
+        HashValue low = HashValue.hashKey("key1");
+        HashValue high = HashValue.hashKey("key2");
+        if (low.compareTo(high) > 0) {
+            HashValue tmp = low;
+            low = high;
+            high = tmp;
+        }
+        
+        // (high, low] wraps around the end of the ring and complements (low, high]
+        int inner = 0;
+        for (KeyValuePacket.KeyValuePair kv_pair : single.getPacketForHashRange(low, high)) {
+            ++inner;
+        }
+        int outer = 0;
+        for (KeyValuePacket.KeyValuePair kv_pair : single.getPacketForHashRange(high, low)) {
+            assertFalse(HashValue.hashKey(kv_pair.getKey()).isInRange(low, high));
+            ++outer;
+        }
+        assertEquals(3000, inner + outer);
+        
+        // A range with equal bounds covers the whole ring
+        single.deleteHashRange(low, low);
+        assertTrue(single.getPacketForHashRange(high, high).isEmpty());
+    }
+    
+    @Test
+    public void testConcurrentWriters() throws InterruptedException {
+        final int       threads = 8;
+        final int       per_thread = 2000;
+        List<Thread>    writers = new ArrayList<Thread>();
+        
+        for (int t = 0; t < threads; ++t) {
+            final int id = t;
+            writers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < per_thread; ++i) {
+                        storage.put("t" + id + "k" + i, "v" + i);
+                    }
+                }
+            }));
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        
+        for (int t = 0; t < threads; ++t) {
+            for (int i = 0; i < per_thread; ++i) {
+                assertEquals("v" + i, storage.get("t" + t + "k" + i));
+            }
+        }
+    }
+    
+    @Test
+    public void testWriteAheadLog() throws Exception {
+        File                file = File.createTempFile("storage-test", ".wal");
+        file.deleteOnExit();
+        
+        final KVDataStorage logged = new KVDataStorage();
+        WriteAheadLog       log = new WriteAheadLog(file, 0);
+        logged.attachLog(log);
+        
+        // Concurrent writers share the syncs
+        List<Thread>    writers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; ++t) {
+            final int id = t;
+            writers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100; ++i) {
+                        logged.put("t" + id + "k" + i, "v" + i);
+                    }
+                }
+            }));
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        logged.deleteHashRange(HashValue.hashKey("t1k0"), HashValue.hashKey("t2k0"));
+        logged.put("t0k0", "updated");
+        logged.put("t0k1", "deleted");
+        logged.delete("t0k1");
+        logged.putAll(Arrays.asList("a", "t0k2"), Arrays.asList("1", null));
+        log.close();
+        
+        // Append a torn record, which has to be discarded
+        FileOutputStream output = new FileOutputStream(file, true);
+        output.write(new byte[] {0, 0, 1, 0, 1, 2, 3});
+        output.close();
+        
+        KVDataStorage   replayed = new KVDataStorage();
+        WriteAheadLog   replay_log = new WriteAheadLog(file, 0);
+        replayed.attachLog(replay_log);
+        for (int t = 0; t < 4; ++t) {
+            for (int i = 0; i < 100; ++i) {
+                assertEquals(logged.get("t" + t + "k" + i), replayed.get("t" + t + "k" + i));
+            }
+        }
+        assertEquals("updated", replayed.get("t0k0"));
+        assertNull(replayed.get("t0k1"));
+        assertNull(replayed.get("t0k2"));
+        assertEquals("1", replayed.get("a"));
+        
+        // The log remains usable after the replay
+        replayed.put("b", "2");
+        replay_log.close();
+        KVDataStorage   again = new KVDataStorage();
+        WriteAheadLog   again_log = new WriteAheadLog(file, 0);
+        again.attachLog(again_log);
+        assertEquals("2", again.get("b"));
+        again_log.close();
+    }
+    
+    @Test
+    public void testWriteAheadLogEmptyValues() throws Exception {
+        File                file = File.createTempFile("storage-test", ".wal");
+        file.deleteOnExit();
+        
+        KVDataStorage   logged = new KVDataStorage();
+        WriteAheadLog   log = new WriteAheadLog(file, 0);
+        logged.attachLog(log);
+        logged.putBytes("single", new byte[0]);
+        logged.putBytes("deleted", new byte[] {1});
+        logged.putAllBytes(Arrays.asList("batch", "deleted"), Arrays.asList(new byte[0], (byte[]) null));
+        log.close();
+        
+        // Empty values are replayed as such, not as deletions
+        KVDataStorage   replayed = new KVDataStorage();
+        WriteAheadLog   replay_log = new WriteAheadLog(file, 0);
+        replayed.attachLog(replay_log);
+        assertEquals(0, replayed.getBytes("single").length);
+        assertEquals(0, replayed.getBytes("batch").length);
+        assertNull(replayed.getBytes("deleted"));
+        replay_log.close();
+    }
+    
+    @Test
+    public void testSnapshot() throws Exception {
+        File directory = File.createTempFile("storage-test", ".d");
+        assertTrue(directory.delete() && directory.mkdir());
+        
+        try {
+            KVDataStorage       original = new KVDataStorage();
+            StoragePersistence  persistence = new StoragePersistence(directory, "test", 0, 0);
+            persistence.recover(original);
+            for (int i = 0; i < 1000; ++i) {
+                original.put("key" + i, "value" + i);
+            }
+            persistence.snapshot();
+            
+            // Modifications after the snapshot are recovered from the log
+            original.put("key0", "updated");
+            original.delete("key1");
+            original.put("new", "value");
+            persistence.close();
+            
+            String[] wal_files = directory.list();
+            Arrays.sort(wal_files);
+            assertEquals(Arrays.asList("test.1.wal", "test.snapshot"), Arrays.asList(wal_files));
+            
+            KVDataStorage       recovered = new KVDataStorage();
+            StoragePersistence  recovered_persistence = new StoragePersistence(directory, "test", 0, 0);
+            recovered_persistence.recover(recovered);
+            for (int i = 0; i < 1000; ++i) {
+                assertEquals(original.get("key" + i), recovered.get("key" + i));
+            }
+            assertEquals("updated", recovered.get("key0"));
+            assertNull(recovered.get("key1"));
+            assertEquals("value", recovered.get("new"));
+            
+            // A second snapshot supersedes the first one and its log
+            recovered.put("newer", "value");
+            recovered_persistence.snapshot();
+            recovered_persistence.close();
+            assertFalse(new File(directory, "test.1.wal").exists());
+            
+            KVDataStorage       again = new KVDataStorage();
+            StoragePersistence  again_persistence = new StoragePersistence(directory, "test", 0, 0);
+            again_persistence.recover(again);
+            assertEquals("value", again.get("newer"));
+            assertEquals("updated", again.get("key0"));
+            again_persistence.close();
+            
+            // A corrupted snapshot is rejected
+            RandomAccessFile snapshot = new RandomAccessFile(new File(directory, "test.snapshot"), "rw");
+            snapshot.seek(10);
+            int b = snapshot.read();
+            snapshot.seek(10);
+            snapshot.write(b ^ 0xFF);
+            snapshot.close();
+            try {
+                new StoragePersistence(directory, "test", 0, 0).recover(new KVDataStorage());
+                fail("Corrupted snapshot loaded.");
+            } catch (IOException e) {}
+            
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+    
+    @Test
+    public void testOffHeapSnapshot() throws Exception {
+        File directory = File.createTempFile("storage-test", ".d");
+        assertTrue(directory.delete() && directory.mkdir());
+        
+        try {
+            // Values larger than the copy buffer are written from the arena in pieces
+            KVDataStorage       original = new KVDataStorage(4, 64 << 20);
+            StoragePersistence  persistence = new StoragePersistence(directory, "test", 0, 0);
+            char[]              large = new char[20000];
+            Arrays.fill(large, 'x');
+            persistence.recover(original);
+            for (int i = 0; i < 2000; ++i) {
+                original.put("key" + i, "value" + i);
+            }
+            original.put("large", new String(large));
+            persistence.snapshot();
+            persistence.close();
+            
+            KVDataStorage       recovered = new KVDataStorage(4, 64 << 20);
+            StoragePersistence  recovered_persistence = new StoragePersistence(directory, "test", 0, 0);
+            recovered_persistence.recover(recovered);
+            for (int i = 0; i < 2000; ++i) {
+                assertEquals("value" + i, recovered.get("key" + i));
+            }
+            assertEquals(new String(large), recovered.get("large"));
+            recovered_persistence.close();
+            
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+    
+    @Test
+    public void testLogStructuredStorage() throws Exception {
+        File directory = File.createTempFile("storage-test", ".d");
+        assertTrue(directory.delete() && directory.mkdir());
+        
+        try {
+            // Small data files, so that the writes span several of them
+            LogStructuredStorage    lss = new LogStructuredStorage(directory, "test", 4096, 1000, 0);
+            for (int i = 0; i < 500; ++i) {
+                assertNull(lss.put("key" + i, "value" + i));
+            }
+            assertNotNull(lss.put("key7", "updated")); // Presence only, the old value is not read
+            assertEquals("updated", lss.get("key7"));
+            assertEquals("value8", lss.delete("key8"));
+            assertNull(lss.get("key8"));
+            assertNull(lss.delete("key8"));
+            lss.putAll(Arrays.asList("key9", "key10", "batch"), Arrays.asList("v", null, "b"));
+            assertEquals("b", lss.get("batch"));
+            lss.deleteHashRange(HashValue.hashKey("key100"), HashValue.hashKey("key200"));
+            
+            KVDataStorage expected = new KVDataStorage();
+            for (int i = 0; i < 500; ++i) {
+                expected.put("key" + i, "value" + i);
+            }
+            expected.put("key7", "updated");
+            expected.delete("key8");
+            expected.putAll(Arrays.asList("key9", "key10", "batch"), Arrays.asList("v", null, "b"));
+            expected.deleteHashRange(HashValue.hashKey("key100"), HashValue.hashKey("key200"));
+            HashValue whole = HashValue.hashKey("whole ring");
+            assertEquals(expected.getPacketForHashRange(whole, whole).size(),
+                    lss.getPacketForHashRange(whole, whole).size());
+            lss.close();
+            
+            // Append a torn record, which has to be discarded on startup
+            File[] data_files = directory.listFiles();
+            Arrays.sort(data_files);
+            assertTrue(data_files.length > 1);
+            FileOutputStream output = new FileOutputStream(data_files[data_files.length - 1], true);
+            output.write(new byte[] {1, 2, 3, 4, 5});
+            output.close();
+            
+            lss = new LogStructuredStorage(directory, "test", 4096, 1000, 0);
+            for (int i = 0; i < 500; ++i) {
+                assertEquals(expected.get("key" + i), lss.get("key" + i));
+            }
+            assertEquals(expected.get("batch"), lss.get("batch"));
+            
+            // Merging drops the overwritten and deleted values
+            for (int i = 0; i < 500; ++i) {
+                lss.put("key" + i, "again" + i);
+            }
+            long size_before = 0;
+            for (File file : directory.listFiles()) {
+                size_before += file.length();
+            }
+            lss.compact();
+            long size_after = 0;
+            for (File file : directory.listFiles()) {
+                size_after += file.length();
+            }
+            assertTrue(size_after < size_before / 2);
+            lss.put("after", "merge");
+            lss.close();
+            
+            lss = new LogStructuredStorage(directory, "test", 4096, 1000, 0);
+            for (int i = 0; i < 500; ++i) {
+                assertEquals("again" + i, lss.get("key" + i));
+            }
+            assertEquals("merge", lss.get("after"));
+            assertEquals(expected.get("batch"), lss.get("batch"));
+            lss.close();
+            
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+    
+    @Test
+    public void testLogStructuredGroupCommit() throws Exception {
+        File directory = File.createTempFile("storage-test", ".d");
+        assertTrue(directory.delete() && directory.mkdir());
+        
+        try {
+            // Every write waits for a sync, which is shared by the concurrent writers
+            final LogStructuredStorage  lss = new LogStructuredStorage(directory, "test", 64 * 1024, 0, 0);
+            List<Thread>                writers = new ArrayList<Thread>();
+            for (int t = 0; t < 4; ++t) {
+                final int id = t;
+                writers.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < 200; ++i) {
+                            lss.put("t" + id + "k" + i, "v" + i);
+                        }
+                    }
+                }));
+            }
+            for (Thread writer : writers) {
+                writer.start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            lss.close();
+            
+            LogStructuredStorage reopened = new LogStructuredStorage(directory, "test", 64 * 1024, 0, 0);
+            for (int t = 0; t < 4; ++t) {
+                for (int i = 0; i < 200; ++i) {
+                    assertEquals("v" + i, reopened.get("t" + t + "k" + i));
+                }
+            }
+            reopened.close();
+            
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+    
+    @Test
+    public void testLsmStorage() throws Exception {
+        File directory = File.createTempFile("storage-test", ".d");
+        assertTrue(directory.delete() && directory.mkdir());
+        
+        try {
+            // Small memtables, so that the writes are flushed and compacted
+            LsmStorage      lsm = new LsmStorage(directory, "test", 16 * 1024, 2, 0);
+            KVDataStorage   expected = new KVDataStorage();
+            for (int round = 0; round < 3; ++round) {
+                for (int i = 0; i < 2000; ++i) {
+                    assertEquals(expected.put("key" + i, "value" + round + "." + i),
+                            lsm.put("key" + i, "value" + round + "." + i));
+                }
+            }
+            assertEquals("value2.8", lsm.delete("key8"));
+            expected.delete("key8");
+            assertNull(lsm.get("key8"));
+            assertNull(lsm.delete("key8"));
+            lsm.putAll(Arrays.asList("key9", "key10", "batch"), Arrays.asList("v", null, "b"));
+            expected.putAll(Arrays.asList("key9", "key10", "batch"), Arrays.asList("v", null, "b"));
+            lsm.deleteHashRange(HashValue.hashKey("key100"), HashValue.hashKey("key200"));
+            expected.deleteHashRange(HashValue.hashKey("key100"), HashValue.hashKey("key200"));
+            
+            lsm.flush();
+            lsm.awaitCompactions();
+            int[] counts = lsm.getTableCounts();
+            assertTrue(counts[0] < 4 && counts[1] > 0);
+            
+            assertNull(lsm.get("missing"));
+            for (int i = 0; i < 2000; ++i) {
+                assertEquals(expected.get("key" + i), lsm.get("key" + i));
+            }
+            // Previous values found in the tables only, after the stripes are unlocked
+            assertNull(lsm.delete("missing"));
+            assertEquals(expected.delete("key5"), lsm.delete("key5"));
+            assertEquals(expected.put("key6", "new"), lsm.put("key6", "new"));
+            assertNull(lsm.delete("key5"));
+            HashValue begin = HashValue.hashKey("key300");
+            HashValue end = HashValue.hashKey("key400");
+            assertEquals(expected.getPacketForHashRange(begin, end).size(),
+                    lsm.getPacketForHashRange(begin, end).size());
+            assertEquals(expected.getPacketForHashRange(end, begin).size(),
+                    lsm.getPacketForHashRange(end, begin).size());
+            
+            // Large ranges are deleted in several chunks
+            lsm.deleteHashRange(end, begin);
+            expected.deleteHashRange(end, begin);
+            assertEquals(0, lsm.getPacketForHashRange(end, begin).size());
+            assertEquals(expected.getPacketForHashRange(begin, end).size(),
+                    lsm.getPacketForHashRange(begin, end).size());
+            
+            // Writes after the last flush are recovered from the log
+            lsm.put("unflushed", "x");
+            lsm.delete("key0");
+            expected.delete("key0");
+            lsm.close();
+            
+            lsm = new LsmStorage(directory, "test", 16 * 1024, 2, 0);
+            for (int i = 0; i < 2000; ++i) {
+                assertEquals(expected.get("key" + i), lsm.get("key" + i));
+            }
+            assertEquals("x", lsm.get("unflushed"));
+            assertEquals(expected.get("batch"), lsm.get("batch"));
+            lsm.close();
+            
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+    
+    @Test
+    public void testStorageEngines() throws Exception {
+        File directory = File.createTempFile("storage-test", ".d");
+        assertTrue(directory.delete() && directory.mkdir());
+        
+        StorageEngine[] engines = null;
+        try {
+            engines = new StorageEngine[] {
+                new KVDataStorage(),
+                new LogStructuredStorage(directory, "log"),
+                new LsmStorage(directory, "lsm")
+            };
+            final HashValue begin = HashValue.hashKey("key10");
+            final HashValue end = HashValue.hashKey("key20");
+            int             expected_count = 0;
+            for (int i = 0; i < 100; ++i) {
+                if (i != 2 && HashValue.hashKey("key" + i).isInRange(begin, end)) {
+                    ++expected_count;
+                }
+            }
+            
+            for (StorageEngine engine : engines) {
+                for (int i = 0; i < 100; ++i) {
+                    engine.put("key" + i, "value" + i);
+                }
+                engine.putAll(Arrays.asList("key1", "key2"), Arrays.asList("updated", null));
+                assertEquals("updated", engine.get("key1"));
+                assertNull(engine.get("key2"));
+                
+                // Visited pairs match the extracted range
+                final List<String> visited = new ArrayList<String>();
+                engine.visitHashRange(begin, end, new StorageEngine.EntryVisitor() {
+                    @Override
+                    public void visit(String key, byte[] value) {
+                        assertTrue(HashValue.hashKey(key).isInRange(begin, end));
+                        visited.add(key);
+                    }
+                });
+                assertEquals(expected_count, visited.size());
+                assertEquals(expected_count, engine.getPacketForHashRange(begin, end).size());
+                
+                engine.deleteHashRange(begin, end);
+                assertEquals(0, engine.getPacketForHashRange(begin, end).size());
+                for (String key : visited) {
+                    assertNull(engine.get(key));
+                }
+            }
+            
+        } finally {
+            if (engines != null) {
+                for (StorageEngine engine : engines) {
+                    engine.close();
+                }
+            }
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+    
+    @Test
+    public void testVisitWithoutBlockingWriters() throws Exception {
+        File directory = File.createTempFile("storage-test", ".d");
+        assertTrue(directory.delete() && directory.mkdir());
+        
+        StorageEngine[] engines = null;
+        try {
+            engines = new StorageEngine[] {
+                new KVDataStorage(),
+                new LogStructuredStorage(directory, "log"),
+                new LsmStorage(directory, "lsm")
+            };
+            HashValue any = HashValue.hashKey("any");
+            
+            for (final StorageEngine engine : engines) {
+                for (int i = 0; i < 3000; ++i) {
+                    engine.put("key" + i, "value" + i);
+                }
+                
+                // Writes to the visited range complete while the visitor runs
+                final Set<String>   visited = new HashSet<String>();
+                final boolean[]     blocked = {false};
+                engine.visitHashRange(any, any, new StorageEngine.EntryVisitor() {
+                    @Override
+                    public void visit(String key, byte[] value) {
+                        if (visited.add(key) && visited.size() % 1000 == 1) {
+                            Thread writer = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    engine.put("written" + visited.size(), "value");
+                                }
+                            });
+                            writer.start();
+                            try {
+                                writer.join(5000);
+                            } catch (InterruptedException ex) {
+                            }
+                            blocked[0] |= writer.isAlive();
+                        }
+                    }
+                });
+                assertFalse(blocked[0]);
+                for (int i = 0; i < 3000; ++i) {
+                    assertTrue(visited.contains("key" + i));
+                }
+                assertEquals("value", engine.get("written1"));
+            }
+            
+        } finally {
+            if (engines != null) {
+                for (StorageEngine engine : engines) {
+                    engine.close();
+                }
+            }
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+    
+    @Test
+    public void testCachedStorage() {
+        // Recency: 'a' is accessed after 'b', so LRU evicts 'b' while FIFO evicts 'a'
+        for (CachedStorage.EvictionPolicy policy : CachedStorage.EvictionPolicy.values()) {
+            CachedStorage   cached = new CachedStorage(new KVDataStorage(), policy, 2, 0);
+            cached.put("a", "1");
+            cached.put("b", "2");
+            assertEquals("1", cached.get("a"));
+            cached.put("c", "3");
+            
+            long hits = cached.getHitCount();
+            assertEquals("1", cached.get("a"));
+            boolean a_cached = (cached.getHitCount() > hits);
+            assertEquals(policy != CachedStorage.EvictionPolicy.FIFO, a_cached);
+        }
+        
+        // Scan resistance: keys read once do not displace the keys read repeatedly
+        CachedStorage   arc = new CachedStorage(new KVDataStorage(), CachedStorage.EvictionPolicy.ARC, 4, 0);
+        arc.put("hot1", "h");
+        arc.put("hot2", "h");
+        arc.get("hot1");
+        arc.get("hot2");
+        for (int i = 0; i < 20; ++i) {
+            arc.put("scan" + i, "s");
+        }
+        long hits = arc.getHitCount();
+        assertEquals("h", arc.get("hot1"));
+        assertEquals("h", arc.get("hot2"));
+        assertEquals(hits + 2, arc.getHitCount());
+        
+        // The cache stays consistent with the engine
+        for (CachedStorage.EvictionPolicy policy : CachedStorage.EvictionPolicy.values()) {
+            KVDataStorage   engine = new KVDataStorage();
+            CachedStorage   cached = new CachedStorage(engine, policy, 0, 4096);
+            for (int i = 0; i < 200; ++i) {
+                cached.put("key" + i, "value" + i);
+                cached.get("key" + (i / 2));
+            }
+            cached.putAll(Arrays.asList("key1", "key2"), Arrays.asList("updated", null));
+            cached.delete("key3");
+            HashValue begin = HashValue.hashKey("key10");
+            HashValue end = HashValue.hashKey("key20");
+            cached.deleteHashRange(begin, end);
+            
+            for (int i = 0; i < 200; ++i) {
+                assertEquals(engine.get("key" + i), cached.get("key" + i));
+                if (HashValue.hashKey("key" + i).isInRange(begin, end)) {
+                    assertNull(cached.get("key" + i));
+                }
+            }
+            assertEquals("updated", cached.get("key1"));
+            assertNull(cached.get("key3"));
+            assertTrue(cached.getHitCount() > 0 && cached.getMissCount() > 0);
+        }
+        
+        // Values up to the maximum length fit into a small byte budget
+        CachedStorage   small = new CachedStorage(new KVDataStorage(), CachedStorage.EvictionPolicy.LRU, 0, 1 << 20);
+        small.putBytes("large", new byte[120 * 1024]);
+        hits = small.getHitCount();
+        assertEquals(120 * 1024, small.getBytes("large").length);
+        assertEquals(hits + 1, small.getHitCount());
+    }
+    
+    @Test
+    public void testOffHeapStorage() {
+        KVDataStorage   off_heap = new KVDataStorage(4, 8L * 1024 * 1024);
+        KVDataStorage   reference = new KVDataStorage(4);
+        int[]           lengths = {0, 1, 100, 5000, 120 * 1024};
+        
+        // Values of all size classes, overwritten with values of other classes
+        for (int round = 0; round < 3; ++round) {
+            for (int i = 0; i < 20; ++i) {
+                byte[] value = new byte[lengths[(i + round) % lengths.length]];
+                Arrays.fill(value, (byte) (i + round));
+                assertTrue(Arrays.equals(reference.putBytes("key" + i, value), off_heap.putBytes("key" + i, value)));
+            }
+        }
+        assertTrue(Arrays.equals(reference.deleteBytes("key7"), off_heap.deleteBytes("key7")));
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 20; ++i) {
+            assertTrue(Arrays.equals(reference.getBytes("key" + i), off_heap.getBytes("key" + i)));
+            keys.add("key" + i);
+        }
+        byte[][] values = off_heap.getAllBytes(keys);
+        for (int i = 0; i < values.length; ++i) {
+            assertTrue(Arrays.equals(reference.getBytes(keys.get(i)), values[i]));
+        }
+        HashValue begin = HashValue.hashKey("key3");
+        HashValue end = HashValue.hashKey("key12");
+        assertEquals(reference.getPacketForHashRange(begin, end).size(),
+                off_heap.getPacketForHashRange(begin, end).size());
+        
+        // Freed slots are reused: the churn writes far more than the limit
+        byte[] large_value = new byte[10 * 1024];
+        for (int round = 0; round < 50; ++round) {
+            for (int i = 0; i < 100; ++i) {
+                off_heap.putBytes("churn" + i, large_value);
+            }
+            for (int i = 0; i < 100; ++i) {
+                assertNotNull(off_heap.deleteBytes("churn" + i));
+            }
+        }
+        
+        // Exhaustion fails the write without modifying the storage
+        byte[]  huge_value = new byte[100 * 1024];
+        int     stored = 0;
+        try {
+            for (; stored < 1000; ++stored) {
+                off_heap.putBytes("fill" + stored, huge_value);
+            }
+            fail("Off-heap memory was not exhausted");
+        } catch (IllegalStateException ex) {
+        }
+        assertTrue(stored > 0);
+        assertNull(off_heap.getBytes("fill" + stored));
+        assertTrue(Arrays.equals(huge_value, off_heap.getBytes("fill0")));
+        off_heap.deleteBytes("fill0");
+        off_heap.putBytes("fill" + stored, huge_value);
+        assertTrue(Arrays.equals(reference.getBytes("key19"), off_heap.getBytes("key19")));
+    }
+    
+    @Test
+    public void testKeyTable() {
+        // A single segment, so that its table grows and shifts entries on removal
+        KVDataStorage           storage = new KVDataStorage(1);
+        Map<String, String>     reference = new HashMap<String, String>();
+        Random                  random = new Random(42);
+        
+        for (int i = 0; i < 20000; ++i) {
+            String key = "k" + random.nextInt(5000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(reference.remove(key), storage.delete(key));
+            } else {
+                assertEquals(reference.put(key, "v" + i), storage.put(key, "v" + i));
+            }
+        }
+        String long_key = "12345678901234567890";
+        assertEquals(reference.put(long_key, "long"), storage.put(long_key, "long"));
+        for (int i = 0; i < 5000; ++i) {
+            assertEquals(reference.get("k" + i), storage.get("k" + i));
+        }
+        assertEquals(reference.get(long_key), storage.get(long_key));
+        
+        // Range removal must not skip entries shifted into the removed slots
+        HashValue begin = HashValue.hashKey("k1");
+        HashValue end = HashValue.hashKey("k2");
+        storage.deleteHashRange(begin, end);
+        int count = 0;
+        for (String key : reference.keySet()) {
+            if (HashValue.hashKey(key).isInRange(begin, end)) {
+                assertNull(storage.get(key));
+            } else {
+                assertEquals(reference.get(key), storage.get(key));
+                ++count;
+            }
+        }
+        assertEquals(count, storage.getPacketForHashRange(end, end).size());
+    }
+    
+    @Test
+    public void testKeyTableGrowth() {
+        // Lookups, scans and removals while the tables move their entries
+        for (KVDataStorage storage : new KVDataStorage[] {new KVDataStorage(1), new KVDataStorage(1, 0, 3000)}) {
+            Map<String, String>     reference = new HashMap<String, String>();
+            HashValue               begin = HashValue.hashKey("k1");
+            HashValue               end = HashValue.hashKey("k2");
+            
+            for (int i = 0; i < 3000; ++i) {
+                assertNull(storage.put("k" + i, "v" + i));
+                reference.put("k" + i, "v" + i);
+                if (i % 7 == 0) {
+                    assertEquals(reference.remove("k" + (i / 2)), storage.delete("k" + (i / 2)));
+                }
+                if (i % 97 == 0) {
+                    assertEquals(reference.size(), storage.getPacketForHashRange(end, end).size());
+                    storage.deleteHashRange(begin, end);
+                    for (Iterator<String> it = reference.keySet().iterator(); it.hasNext(); ) {
+                        if (HashValue.hashKey(it.next()).isInRange(begin, end)) {
+                            it.remove();
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < 3000; ++i) {
+                assertEquals(reference.get("k" + i), storage.get("k" + i));
+            }
+        }
+    }
+    
+    @Test
+    public void testRingIndex() {
+        KVDataStorage   storage = new KVDataStorage(1);
+        HashValue       begin = HashValue.hashKey("k1");
+        HashValue       end = HashValue.hashKey("k2");
+        if (begin.compareTo(end) > 0) {
+            HashValue swap = begin;
+            begin = end;
+            end = swap;
+        }
+        
+        for (int i = 0; i < 1000; ++i) {
+            storage.put("k" + i, "v" + i);
+        }
+        storage.delete("k3");
+        
+        // Both a plain and a wrapping range are visited in the order of the hashes
+        for (HashValue[] range : new HashValue[][] {{begin, end}, {end, begin}}) {
+            final List<HashValue>   visited = new ArrayList<HashValue>();
+            Set<String>             expected = new HashSet<String>();
+            final Set<String>       keys = new HashSet<String>();
+            
+            for (int i = 0; i < 1000; ++i) {
+                if (i != 3 && HashValue.hashKey("k" + i).isInRange(range[0], range[1])) {
+                    expected.add("k" + i);
+                }
+            }
+            storage.visitHashRange(range[0], range[1], new StorageEngine.EntryVisitor() {
+                @Override
+                public void visit(String key, byte[] value) {
+                    visited.add(HashValue.hashKey(key));
+                    keys.add(key);
+                }
+            });
+            assertEquals(expected, keys);
+            
+            int descents = 0;
+            for (int i = 1; i < visited.size(); ++i) {
+                if (visited.get(i - 1).compareTo(visited.get(i)) > 0) {
+                    ++descents;
+                }
+            }
+            assertEquals((range[0] == begin) ? 0 : 1, descents);
+        }
+        
+        // Removals empty whole blocks of the index
+        for (int i = 0; i < 990; ++i) {
+            storage.delete("k" + i);
+        }
+        HashValue whole = HashValue.hashKey("whole ring");
+        assertEquals(10, storage.getPacketForHashRange(whole, whole).size());
+        assertEquals("v995", storage.get("k995"));
+    }
+    
+    @Test
+    public void testChangeTracking() {
+        ChangeTrackingStorage   tracked = new ChangeTrackingStorage(storage);
+        HashValue               begin = HashValue.hashKey("k1");
+        HashValue               end = HashValue.hashKey("k2");
+        List<String>            inside = new ArrayList<String>();
+        List<String>            outside = new ArrayList<String>();
+        
+        for (int i = 0; i < 100; ++i) {
+            tracked.put("k" + i, "v" + i);
+            (HashValue.hashKey("k" + i).isInRange(begin, end) ? inside : outside).add("k" + i);
+        }
+        assertFalse(inside.isEmpty());
+        assertFalse(outside.isEmpty());
+        
+        // Every range records its own keys, once per drain
+        tracked.startTracking(begin, end);
+        tracked.startTracking(end, begin);
+        try {
+            tracked.startTracking(begin, end);
+            fail("Range was tracked twice");
+        } catch (IllegalStateException ex) {
+        }
+        tracked.put(inside.get(0), "updated");
+        tracked.delete(inside.get(1));
+        tracked.put(outside.get(0), "updated");
+        tracked.putAll(Arrays.asList(inside.get(2), outside.get(1)), Arrays.asList("batch", (String) null));
+        assertEquals(new HashSet<String>(inside.subList(0, 3)), tracked.drainChanges(begin, end));
+        assertEquals(new HashSet<String>(outside.subList(0, 2)), tracked.drainChanges(end, begin));
+        assertTrue(tracked.drainChanges(begin, end).isEmpty());
+        
+        // A sealed range rejects writes until its tracking stops
+        tracked.put(inside.get(3), "updated");
+        assertEquals(Collections.singleton(inside.get(3)), tracked.seal(begin, end));
+        try {
+            tracked.put(inside.get(4), "rejected");
+            fail("Write to a sealed range was accepted");
+        } catch (WriteLockedException ex) {
+        }
+        try {
+            tracked.putAll(Arrays.asList(outside.get(2), inside.get(4)), Arrays.asList("rejected", "rejected"));
+            fail("Batch write to a sealed range was accepted");
+        } catch (WriteLockedException ex) {
+        }
+        assertEquals("v" + inside.get(4).substring(1), tracked.get(inside.get(4)));
+        assertEquals("v" + outside.get(2).substring(1), tracked.get(outside.get(2)));
+        tracked.put(outside.get(2), "accepted");
+        assertTrue(tracked.drainChanges(begin, end).isEmpty());
+        assertEquals(Collections.singleton(outside.get(2)), tracked.drainChanges(end, begin));
+        
+        tracked.stopTracking(begin, end);
+        try {
+            tracked.drainChanges(begin, end);
+            fail("Untracked range was drained");
+        } catch (IllegalStateException ex) {
+        }
+        tracked.stopTracking();
+        tracked.put(inside.get(4), "accepted");
+        assertEquals("accepted", storage.get(inside.get(4)));
+    }
+}
@@ -0,0 +1,208 @@
+package testing;
+
+import common.messages.Marshaller;
+import common.topology.HashValue;
+import common.topology.ServerAddress;
+import common.topology.ServiceMetaData;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class TopologyTest extends TestCase {
+    
+    private static byte[] md5(String str) throws Exception {
+        return MessageDigest.getInstance("MD5").digest(str.getBytes(Charset.forName("UTF-8")));
+    }
+    
+    @Test
+    public void testHashMatchesMD5() throws Exception {
+        String[] keys = {"", "foo", "127.0.0.1:50001", "\u00e4\u00f6\u00fc\u20ac", "\uD83D\uDE00 key", "\uD800 lone"};
+        
+        for (String key : keys) {
+            assertTrue(Arrays.equals(md5(key), HashValue.hashKey(key).getData()));
+        }
+    }
+    
+    @Test
+    public void testWireFormatRoundTrip() throws Exception {
+        HashValue hash = HashValue.hashKey("round trip");
+        HashValue copy = new HashValue(hash.getData());
+        
+        assertEquals(hash, copy);
+        assertEquals(0, hash.compareTo(copy));
+        assertEquals(HashValue.VALUE_SIZE, hash.getData().length);
+    }
+    
+    @Test
+    public void testUnsignedOrdering() throws Exception {
+        for (int i = 0; i < 200; ++i) {
+            HashValue lhs = HashValue.hashKey("lhs" + i);
+            HashValue rhs = HashValue.hashKey("rhs" + i);
+            int expected = new BigInteger(1, lhs.getData()).compareTo(new BigInteger(1, rhs.getData()));
+            
+            assertEquals(Integer.signum(expected), Integer.signum(lhs.compareTo(rhs)));
+        }
+    }
+    
+    @Test
+    public void testIsInRange() {
+        HashValue low = new HashValue(0L, 10L);
+        HashValue mid = new HashValue(0L, 20L);
+        HashValue high = new HashValue(-1L, 0L);
+        
+        assertTrue(mid.isInRange(low, high));
+        assertTrue(high.isInRange(low, high));
+        assertFalse(low.isInRange(low, high));
+        assertFalse(mid.isInRange(high, low));
+        assertTrue(low.isInRange(high, low));
+        assertTrue(mid.isInRange(mid, mid));
+    }
+    
+    private static List<ServerAddress> servers(int count) {
+        List<ServerAddress> addresses = new ArrayList<ServerAddress>();
+        for (int i = 0; i < count; ++i) {
+            addresses.add(new ServerAddress("127.0.0.1", 50001 + i));
+        }
+        return addresses;
+    }
+    
+    private static void assertRingConsistent(ServiceMetaData meta_data, List<ServerAddress> addresses) throws Exception {
+        for (int i = 0; i < 500; ++i) {
+            String          key = "key" + i;
+            HashValue       hash = HashValue.hashKey(key);
+            ServerAddress   owner = meta_data.getServerForKey(key);
+            
+            int owners = 0;
+            for (ServerAddress address : addresses) {
+                for (HashValue[] range : meta_data.getHashRangeForServer(address)) {
+                    if (hash.isInRange(range[0], range[1])) {
+                        assertEquals(address, owner);
+                        ++owners;
+                    }
+                }
+            }
+            assertEquals(1, owners);
+        }
+        
+        // The marshaled form describes the same ring
+        ServiceMetaData copy = ServiceMetaData.unmarshal(ServiceMetaData.marshal(meta_data));
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(meta_data.getServerForKey("key" + i), copy.getServerForKey("key" + i));
+        }
+    }
+    
+    @Test
+    public void testServerForKey() throws Exception {
+        List<ServerAddress> addresses = servers(8);
+        
+        assertRingConsistent(ServiceMetaData.generateForServers(addresses), addresses);
+        assertRingConsistent(ServiceMetaData.generateForServers(addresses.subList(0, 1)), addresses.subList(0, 1));
+    }
+    
+    @Test
+    public void testAddAndRemoveServer() throws Exception {
+        List<ServerAddress> addresses = servers(5);
+        ServiceMetaData     initial = ServiceMetaData.generateForServers(addresses.subList(0, 4));
+        ServiceMetaData     added = initial.addServer(addresses.get(4));
+        
+        assertRingConsistent(initial, addresses.subList(0, 4));
+        assertRingConsistent(added, addresses);
+        
+        // The successor of the added server gives away exactly the added range
+        ServerAddress   successor = added.getSuccessorAddressForServer(addresses.get(4));
+        HashValue[]     before = initial.getHashRangeForServer(successor)[0];
+        HashValue[]     after = added.getHashRangeForServer(successor)[0];
+        assertEquals(before[0], added.getHashRangeForServer(addresses.get(4))[0][0]);
+        assertEquals(before[1], after[1]);
+        
+        List<ServiceMetaData.RangeTransfer> transfers = ServiceMetaData.getTransfers(initial, added);
+        assertEquals(1, transfers.size());
+        assertEquals(successor, transfers.get(0).getSource());
+        assertEquals(before[0], transfers.get(0).getRangeBegin());
+        assertEquals(after[0], transfers.get(0).getRangeEnd());
+        
+        ServiceMetaData removed = added.removeServer(addresses.get(4));
+        assertRingConsistent(removed, addresses.subList(0, 4));
+        assertEquals(before[0], removed.getHashRangeForServer(successor)[0][0]);
+    }
+    
+    @Test
+    public void testLegacyMetaDataFormat() throws Exception {
+        List<ServerAddress> addresses = servers(3);
+        ServiceMetaData     meta_data = ServiceMetaData.generateForServers(addresses);
+        
+        // A single token per server keeps the layout of the servers preceding the tokens
+        Marshaller marshaller = new Marshaller();
+        marshaller.marshalInt(addresses.size());
+        for (ServerAddress address : addresses) {
+            HashValue[] range = meta_data.getHashRangeForServer(address)[0];
+            marshaller.marshalString(address.toString());
+            marshaller.marshalBytes(range[0].getData());
+            marshaller.marshalBytes(range[1].getData());
+        }
+        ServiceMetaData legacy = ServiceMetaData.unmarshal(marshaller.getBytes());
+        assertEquals(1, legacy.getTokensPerServer());
+        assertEquals(marshaller.getBytes().length, ServiceMetaData.marshal(meta_data).length);
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(meta_data.getServerForKey("key" + i), legacy.getServerForKey("key" + i));
+        }
+    }
+    
+    @Test
+    public void testVirtualTokens() throws Exception {
+        List<ServerAddress> addresses = servers(9);
+        ServiceMetaData     initial = ServiceMetaData.generateForServers(addresses.subList(0, 8), 64);
+        ServiceMetaData     added = initial.addServer(addresses.get(8));
+        
+        assertRingConsistent(initial, addresses.subList(0, 8));
+        assertRingConsistent(added, addresses);
+        assertEquals(64, ServiceMetaData.unmarshal(ServiceMetaData.marshal(added)).getTokensPerServer());
+        assertEquals(64, added.getHashRangeForServer(addresses.get(8)).length);
+        
+        // Every key either stays or moves to the new server, taken from several peers
+        List<ServiceMetaData.RangeTransfer> transfers = ServiceMetaData.getTransfers(initial, added);
+        Set<ServerAddress>  sources = new HashSet<ServerAddress>();
+        for (ServiceMetaData.RangeTransfer transfer : transfers) {
+            assertEquals(addresses.get(8), transfer.getTarget());
+            sources.add(transfer.getSource());
+        }
+        assertTrue(sources.size() > 4);
+        for (int i = 0; i < 500; ++i) {
+            String  key = "key" + i;
+            boolean moved = false;
+            for (ServiceMetaData.RangeTransfer transfer : transfers) {
+                if (HashValue.hashKey(key).isInRange(transfer.getRangeBegin(), transfer.getRangeEnd())) {
+                    assertEquals(initial.getServerForKey(key), transfer.getSource());
+                    moved = true;
+                }
+            }
+            assertEquals(moved ? addresses.get(8) : initial.getServerForKey(key), added.getServerForKey(key));
+        }
+        
+        // The tokens spread the keys evenly over the servers
+        Map<ServerAddress, Integer> load = new HashMap<ServerAddress, Integer>();
+        for (int i = 0; i < 18000; ++i) {
+            ServerAddress   owner = added.getServerForKey("key" + i);
+            Integer         count = load.get(owner);
+            load.put(owner, (count == null) ? 1 : count + 1);
+        }
+        for (ServerAddress address : addresses) {
+            assertTrue(load.get(address) > 1000 && load.get(address) < 3000);
+        }
+        
+        // Removing the server moves its ranges back to their previous owners
+        ServiceMetaData removed = added.removeServer(addresses.get(8));
+        for (int i = 0; i < 500; ++i) {
+            assertEquals(initial.getServerForKey("key" + i), removed.getServerForKey("key" + i));
+        }
+    }
+}